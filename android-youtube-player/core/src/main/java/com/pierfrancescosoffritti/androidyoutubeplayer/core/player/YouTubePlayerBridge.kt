@@ -2,6 +2,7 @@ package com.pierfrancescosoffritti.androidyoutubeplayer.core.player
 
 import android.os.Handler
 import android.os.Looper
+import android.view.Choreographer
 import androidx.annotation.RestrictTo
 
 import android.text.TextUtils
@@ -11,6 +12,10 @@ import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.listeners.You
 
 /**
  * Bridge used for Javascript-Java communication.
+ *
+ * The high frequency events i.e. the current time and the loaded fraction, are sent by the Javascript player many
+ * times per second; they are coalesced into a single pending dispatch on the next frame, carrying the latest values.
+ * The bridge must be created on the main thread.
  */
 @RestrictTo(RestrictTo.Scope.LIBRARY_GROUP)
 class YouTubePlayerBridge(private val youTubePlayerOwner: YouTubePlayerBridgeCallbacks) {
@@ -40,11 +45,20 @@ class YouTubePlayerBridge(private val youTubePlayerOwner: YouTubePlayerBridgeCal
     }
 
     private val mainThreadHandler: Handler = Handler(Looper.getMainLooper())
+    private val choreographer: Choreographer = Choreographer.getInstance()
+
+    // the latest values of the coalesced events pending dispatch, or null if none; guarded by this
+    private var pendingCurrentSecond: Float? = null
+    private var pendingLoadedFraction: Float? = null
+    private var isDispatchScheduled = false
+
+    private val dispatchFrameCallback = Choreographer.FrameCallback { dispatchPendingEvents() }
 
     interface YouTubePlayerBridgeCallbacks {
         fun getInstance(): YouTubePlayer
         fun getListeners(): Collection<YouTubePlayerListener>
         fun onYouTubeIFrameAPIReady()
+        fun onYouTubePlayerReady()
     }
 
     @JavascriptInterface
@@ -54,6 +68,7 @@ class YouTubePlayerBridge(private val youTubePlayerOwner: YouTubePlayerBridgeCal
     @JavascriptInterface
     fun sendReady() {
         mainThreadHandler.post {
+            youTubePlayerOwner.onYouTubePlayerReady()
             for (listener in youTubePlayerOwner.getListeners())
                 listener.onReady(youTubePlayerOwner.getInstance())
         }
@@ -64,6 +79,8 @@ class YouTubePlayerBridge(private val youTubePlayerOwner: YouTubePlayerBridgeCal
         val playerState = parsePlayerState(state)
 
         mainThreadHandler.post {
+            // deliver the pending current time before the state change, so the listeners see the events in order
+            dispatchPendingEvents()
             for (listener in youTubePlayerOwner.getListeners())
                 listener.onStateChange(youTubePlayerOwner.getInstance(), playerState)
         }
@@ -115,9 +132,9 @@ class YouTubePlayerBridge(private val youTubePlayerOwner: YouTubePlayerBridgeCal
             return
         }
 
-        mainThreadHandler.post {
-            for (listener in youTubePlayerOwner.getListeners())
-                listener.onCurrentSecond(youTubePlayerOwner.getInstance(), currentTimeSeconds)
+        synchronized(this) {
+            pendingCurrentSecond = currentTimeSeconds
+            scheduleDispatch()
         }
     }
 
@@ -148,9 +165,9 @@ class YouTubePlayerBridge(private val youTubePlayerOwner: YouTubePlayerBridgeCal
             return
         }
 
-        mainThreadHandler.post {
-            for (listener in youTubePlayerOwner.getListeners())
-                listener.onVideoLoadedFraction(youTubePlayerOwner.getInstance(), loadedFraction)
+        synchronized(this) {
+            pendingLoadedFraction = loadedFraction
+            scheduleDispatch()
         }
     }
 
@@ -170,6 +187,42 @@ class YouTubePlayerBridge(private val youTubePlayerOwner: YouTubePlayerBridgeCal
         }
     }
 
+    /**
+     * Schedule the coalesced events dispatch on the next frame, if none is scheduled; must be called holding the lock.
+     */
+    private fun scheduleDispatch() {
+        if (isDispatchScheduled)
+            return
+
+        isDispatchScheduled = true
+        mainThreadHandler.post { choreographer.postFrameCallback(dispatchFrameCallback) }
+    }
+
+    /**
+     * Deliver the latest values of the coalesced events to the listeners; called on the main thread.
+     */
+    private fun dispatchPendingEvents() {
+        val currentSecond: Float?
+        val loadedFraction: Float?
+        synchronized(this) {
+            currentSecond = pendingCurrentSecond
+            loadedFraction = pendingLoadedFraction
+            pendingCurrentSecond = null
+            pendingLoadedFraction = null
+            isDispatchScheduled = false
+        }
+        choreographer.removeFrameCallback(dispatchFrameCallback)
+
+        if (currentSecond == null && loadedFraction == null)
+            return
+
+        val youTubePlayer = youTubePlayerOwner.getInstance()
+        for (listener in youTubePlayerOwner.getListeners()) {
+            currentSecond?.let { listener.onCurrentSecond(youTubePlayer, it) }
+            loadedFraction?.let { listener.onVideoLoadedFraction(youTubePlayer, it) }
+        }
+    }
+
     private fun parsePlayerState(state: String): PlayerConstants.PlayerState {
         return when {
             state.equals(STATE_UNSTARTED, ignoreCase = true) -> PlayerConstants.PlayerState.UNSTARTED
@@ -31,7 +31,7 @@ internal class LegacyYouTubePlayerView(context: Context, attrs: AttributeSet? =
     constructor(context: Context): this(context, null, 0)
     constructor(context: Context, attrs: AttributeSet? = null): this(context, attrs, 0)
 
-    internal val youTubePlayer: WebViewYouTubePlayer = WebViewYouTubePlayer(context)
+    internal val youTubePlayer: WebViewYouTubePlayer = YouTubePlayerPool.acquire(context) ?: WebViewYouTubePlayer(context)
     private val defaultPlayerUiController: DefaultPlayerUiController
 
     private val networkListener = NetworkListener()
@@ -102,7 +102,8 @@ internal class LegacyYouTubePlayerView(context: Context, attrs: AttributeSet? =
             youTubePlayer.initialize({it.addListener(youTubePlayerListener)}, playerOptions)
         }
 
-        if(!handleNetworkEvents)
+        // the pre-warmed player has its page loaded already; the network events are only needed for the resume
+        if(!handleNetworkEvents || youTubePlayer.isPreloaded)
             initialize()
     }
 
@@ -182,6 +183,7 @@ internal class LegacyYouTubePlayerView(context: Context, attrs: AttributeSet? =
             context.unregisterReceiver(networkListener)
         } catch (ignore: Exception) {
         }
+        YouTubePlayerPool.onPlayerReleased(context)
     }
 
     @OnLifecycleEvent(Lifecycle.Event.ON_RESUME)
@@ -10,12 +10,10 @@ import android.view.View
 import android.webkit.WebChromeClient
 import android.webkit.WebSettings
 import android.webkit.WebView
-import com.pierfrancescosoffritti.androidyoutubeplayer.R
 import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.YouTubePlayer
 import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.YouTubePlayerBridge
 import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.listeners.YouTubePlayerListener
 import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.options.IFramePlayerOptions
-import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.utils.Utils
 import java.util.*
 
 /**
@@ -24,19 +22,64 @@ import java.util.*
 internal class WebViewYouTubePlayer constructor(context: Context, attrs: AttributeSet? = null, defStyleAttr: Int = 0)
     : WebView(context, attrs, defStyleAttr), YouTubePlayer, YouTubePlayerBridge.YouTubePlayerBridgeCallbacks {
 
-    private lateinit var youTubePlayerInitListener: (YouTubePlayer) -> Unit
+    private var youTubePlayerInitListener: ((YouTubePlayer) -> Unit)? = null
 
     private val youTubePlayerListeners = HashSet<YouTubePlayerListener>()
     private val mainThreadHandler: Handler = Handler(Looper.getMainLooper())
 
     internal var isBackgroundPlaybackEnabled = false
 
+    // the player options of the loaded IFrame page; null if not loaded
+    private var loadedPlayerOptions: String? = null
+    private var isIFrameAPIReady = false
+    private var isPlayerReady = false
+
+    // true once the ready events of the pre-warmed player have been replayed to its listeners
+    private var isReadyReplayed = false
+
+    /**
+     * True if the IFrame page has been preloaded by the [YouTubePlayerPool].
+     */
+    internal var isPreloaded = false
+        private set
+
     internal fun initialize(initListener: (YouTubePlayer) -> Unit, playerOptions: IFramePlayerOptions?) {
         youTubePlayerInitListener = initListener
-        initWebView(playerOptions ?: IFramePlayerOptions.default)
+        val options = playerOptions ?: IFramePlayerOptions.default
+        if (options.toString() != loadedPlayerOptions) {
+            initWebView(options)
+            return
+        }
+
+        // the pre-warmed player: replay the ready events fired while the player was in the pool
+        mainThreadHandler.post {
+            if (isIFrameAPIReady)
+                initListener(this)
+
+            if (isPlayerReady && !isReadyReplayed) {
+                isReadyReplayed = true
+                for (listener in getListeners())
+                    listener.onReady(this)
+            }
+        }
+    }
+
+    /**
+     * Load the IFrame page without an init listener, for the [YouTubePlayerPool].
+     */
+    internal fun preload(playerOptions: IFramePlayerOptions) {
+        isPreloaded = true
+        initWebView(playerOptions)
     }
 
-    override fun onYouTubeIFrameAPIReady() = youTubePlayerInitListener(this)
+    override fun onYouTubeIFrameAPIReady() {
+        isIFrameAPIReady = true
+        youTubePlayerInitListener?.invoke(this)
+    }
+
+    override fun onYouTubePlayerReady() {
+        isPlayerReady = true
+    }
 
     override fun getInstance(): YouTubePlayer = this
 
@@ -119,7 +162,12 @@ internal class WebViewYouTubePlayer constructor(context: Context, attrs: Attribu
     }
 
     override fun addListener(listener: YouTubePlayerListener): Boolean {
-        return youTubePlayerListeners.add(listener)
+        val isAdded = youTubePlayerListeners.add(listener)
+
+        // a listener added to the pre-warmed player after its ready events replay has missed onReady
+        if (isAdded && isReadyReplayed)
+            mainThreadHandler.post { if (youTubePlayerListeners.contains(listener)) listener.onReady(this) }
+        return isAdded
     }
 
     override fun removeListener(listener: YouTubePlayerListener): Boolean {
@@ -128,14 +176,18 @@ internal class WebViewYouTubePlayer constructor(context: Context, attrs: Attribu
 
     @SuppressLint("SetJavaScriptEnabled")
     private fun initWebView(playerOptions: IFramePlayerOptions) {
+        loadedPlayerOptions = playerOptions.toString()
+        isIFrameAPIReady = false
+        isPlayerReady = false
+
         settings.javaScriptEnabled = true
         settings.mediaPlaybackRequiresUserGesture = false
         settings.cacheMode = WebSettings.LOAD_NO_CACHE
 
         addJavascriptInterface(YouTubePlayerBridge(this), "YouTubePlayerBridge")
 
-        val htmlPage = Utils
-                .readHTMLFromUTF8File(resources.openRawResource(R.raw.ayp_youtube_player))
+        val htmlPage = YouTubePlayerPool
+                .getHtmlTemplate(resources)
                 .replace("<<injectedPlayerVars>>", playerOptions.toString())
 
         loadDataWithBaseURL(playerOptions.getOrigin(), htmlPage, "text/html", "utf-8", null)
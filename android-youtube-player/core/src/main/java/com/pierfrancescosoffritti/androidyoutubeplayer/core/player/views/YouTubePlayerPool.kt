@@ -0,0 +1,88 @@
+package com.pierfrancescosoffritti.androidyoutubeplayer.core.player.views
+
+import android.content.Context
+import android.content.MutableContextWrapper
+import android.content.res.Resources
+import android.os.Looper
+import com.pierfrancescosoffritti.androidyoutubeplayer.R
+import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.options.IFramePlayerOptions
+import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.utils.Utils
+import java.util.ArrayDeque
+
+/**
+ * A small pool of pre-warmed [WebViewYouTubePlayer], with the IFrame API bootstrap page already loaded.
+ * The WebView creation and the IFrame API boot take most of the video start time; a pooled player is taken over
+ * by the next [YouTubePlayerView] created, so loadVideo/cueVideo is the only work left when the user plays a video.
+ *
+ * The pooled players are created with the application context in a [MutableContextWrapper], which is switched to the
+ * host context on acquire. Once [prewarm] is called, the pool is refilled on the idle main thread after a player is
+ * released. The IFrame API HTML template is read once and cached in memory for all the players.
+ *
+ * All the methods must be called on the main thread.
+ */
+object YouTubePlayerPool {
+    private const val MAX_POOL_SIZE = 1
+
+    private val pool = ArrayDeque<WebViewYouTubePlayer>()
+
+    // the player options of the pooled players; null if the pool is not in use
+    private var poolPlayerOptions: IFramePlayerOptions? = null
+
+    private var htmlTemplate: String? = null
+
+    /**
+     * Create and preload the pooled players, so the next [YouTubePlayerView] starts with a ready player.
+     * @param playerOptions the options of the pooled players; a player initialized with other options reloads its page.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun prewarm(context: Context, playerOptions: IFramePlayerOptions? = null) {
+        val options = playerOptions ?: IFramePlayerOptions.default
+        poolPlayerOptions = options
+
+        while (pool.size < MAX_POOL_SIZE) {
+            val youTubePlayer = WebViewYouTubePlayer(MutableContextWrapper(context.applicationContext))
+            youTubePlayer.preload(options)
+            pool.add(youTubePlayer)
+        }
+    }
+
+    /**
+     * Destroy all the pooled players, and stop the pool refill e.g. on the memory trim request.
+     */
+    @JvmStatic
+    fun clear() {
+        poolPlayerOptions = null
+        while (pool.isNotEmpty())
+            pool.poll()?.destroy()
+    }
+
+    /**
+     * @return a pooled player for the given host context, or null if the pool is empty.
+     */
+    internal fun acquire(context: Context): WebViewYouTubePlayer? {
+        val youTubePlayer = pool.poll() ?: return null
+        (youTubePlayer.context as MutableContextWrapper).baseContext = context
+        return youTubePlayer
+    }
+
+    /**
+     * Refill the pool on the idle main thread after a player is released, if the pool is in use.
+     */
+    internal fun onPlayerReleased(context: Context) {
+        if (poolPlayerOptions == null)
+            return
+
+        val appContext = context.applicationContext
+        Looper.myQueue().addIdleHandler {
+            poolPlayerOptions?.let { prewarm(appContext, it) }
+            false
+        }
+    }
+
+    internal fun getHtmlTemplate(resources: Resources): String {
+        return htmlTemplate ?: Utils
+                .readHTMLFromUTF8File(resources.openRawResource(R.raw.ayp_youtube_player))
+                .also { htmlTemplate = it }
+    }
+}
@@ -34,13 +34,21 @@ import static org.cog.hymnchtv.MainActivity.HYMN_XB;
 import static org.cog.hymnchtv.MainActivity.PREF_MENU_SHOW;
 import static org.cog.hymnchtv.MainActivity.PREF_SETTINGS;
 import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_DB_NO_MAX;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_BB_NO_MAX;
 import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_DB_NO_TMAX;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_ER_NO_MAX;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_XB_NO_MAX;
 
+import android.Manifest;
+import android.app.ActivityManager;
+import android.app.AlertDialog;
 import android.content.*;
 import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Looper;
 import android.view.*;
 import android.widget.FrameLayout;
 import android.widget.PopupWindow;
@@ -49,18 +57,33 @@ import androidx.fragment.app.FragmentActivity;
 import androidx.viewpager2.widget.ViewPager2;
 import androidx.viewpager2.widget.ViewPager2.OnPageChangeCallback;
 
+import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.views.YouTubePlayerPool;
+
 import org.apache.http.util.EncodingUtils;
 import org.apache.http.util.TextUtils;
+import org.cog.hymnchtv.download.*;
 import org.cog.hymnchtv.mediaconfig.MediaRecord;
+import org.cog.hymnchtv.mediaconfig.ShareWith;
+import org.cog.hymnchtv.mediaplayer.ExoPlayerHolder;
+import org.cog.hymnchtv.mediaplayer.midi.MidiPlayer;
+import org.cog.hymnchtv.mediaplayer.midi.MidiSequence;
+import org.cog.hymnchtv.mediaplayer.pitch.NoteTimeline;
+import org.cog.hymnchtv.mediaplayer.pitch.PitchTracker;
+import org.cog.hymnchtv.mediaplayer.pitch.PitchView;
 import org.cog.hymnchtv.persistance.DatabaseBackend;
 import org.cog.hymnchtv.persistance.FileBackend;
+import org.cog.hymnchtv.persistance.MediaBlobStore;
+import org.cog.hymnchtv.persistance.MediaIndex;
+import org.cog.hymnchtv.persistance.MediaQuota;
+import org.cog.hymnchtv.persistance.PermissionUtils;
 import org.cog.hymnchtv.utils.*;
 import org.cog.hymnchtv.webview.WebViewFragment;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
-import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import timber.log.Timber;
 
@@ -69,7 +92,7 @@ import timber.log.Timber;
  *
  * @author Eng Chong Meng
  */
-public class ContentHandler extends FragmentActivity
+public class ContentHandler extends FragmentActivity implements MediaIndex.MediaIndexListener
 {
     public static String HYMNCHTV_FAQ_PLAYBACK = "https://cmeng-git.github.io/hymnchtv/faq.html#hymnch_0050";
     public static String HYMNCHTV_QQ_MAIN = "https://mp.weixin.qq.com/s/kgqBH0C_zgDaBnxbvC9wew";
@@ -87,10 +110,27 @@ public class ContentHandler extends FragmentActivity
     public static final String MIDI_DB = "dm";
     public static final String MIDI_DBC = "dmc";
 
+    // The user selected hymn numbers for the playlist playback, saved as comma separated string
+    public static final String PREF_PLAYLIST_USER = "PlaylistUser";
+
+    // Enable the karaoke lyrics line highlight of the playing media with the lyrics timing track; default is true
+    public static final String PREF_LYRICS_SYNC = "LyricsSync";
+
+    // The number of lyrics pages to retain on either side of the current page; user selectable 1 to 3, default is 1
+    public static final String PREF_PAGER_OFFSCREEN = "PagerOffscreenLimit";
+    public static final int PAGER_OFFSCREEN_DEFAULT = 1;
+
+    // The offline prefetch media are resolved off the main thread, one prefetch at a time
+    private static final ExecutorService mPrefetchExecutor = Executors.newSingleThreadExecutor();
+
+    // The playlist items are resolved off the main thread, not queued behind the offline prefetch
+    private static final ExecutorService mPlaylistExecutor = Executors.newSingleThreadExecutor();
+
+    private static final int REQUEST_PITCH_PRACTICE = 1010;
+
     public final DatabaseBackend mDB = DatabaseBackend.getInstance(HymnsApp.getGlobalContext());
     private MediaContentHandler mMediaContentHandler;
 
-    public boolean isHFAvailable = false;
     private boolean isShowPlayerUi;
 
     // Hymn Type and number selected by user
@@ -104,10 +144,59 @@ public class ContentHandler extends FragmentActivity
     private String mWebUrl = null;
     private String mHymnInfo = null;
 
+    // True while the offline prefetch media are being resolved; accessed on the main thread only
+    private boolean isPrefetching = false;
+
+    // The lyrics timing track of the playing media uri, and the lyrics page being synced; mSyncUri is null if none
+    private LyricsTimeSync mLyricsSync = null;
+    private Uri mSyncUri = null;
+    private int mSyncPage = -1;
+    private boolean isLyricsCapture = false;
+
+    // The pitch practice tracker against the hymn midi melody, and the midi main uri being tracked; null if none
+    private PitchTracker mPitchTracker = null;
+    private Uri mPitchUri = null;
+    private PitchView mPitchView;
+
     /**
-     * 大本诗歌 MP3 file naming is a mess, so attempt to use lyricsPhrase; may not match all the times
+     * The immutable hymn reference for the media lookup, with the hymn info read from its lyrics text; so the
+     * media of any hymn e.g. the playlist item, is resolved without changing the activity hymn states.
      */
-    private String lyricsPhrase;
+    static final class HymnRef
+    {
+        final String hymnType;
+        final int hymnNo;
+
+        // The hymn info for display, and the hymn title (punctuation marks removed) for the media file name
+        final String hymnInfo;
+        final String hymnTitle;
+
+        // 大本诗歌 MP3 file naming is a mess, so attempt to use lyricsPhrase; may not match all the times
+        final String lyricsPhrase;
+
+        HymnRef(String hymnType, int hymnNo, String hymnInfo, String hymnTitle, String lyricsPhrase)
+        {
+            this.hymnType = hymnType;
+            this.hymnNo = hymnNo;
+            this.hymnInfo = hymnInfo;
+            this.hymnTitle = hymnTitle;
+            this.lyricsPhrase = lyricsPhrase;
+        }
+    }
+
+    /**
+     * The offline prefetch batch, with the download jobs collected by getPlayHymn() while resolving its media
+     */
+    private static final class PrefetchBatch
+    {
+        final String batch;
+        final List<DownloadJob> jobs = new ArrayList<>();
+
+        PrefetchBatch(String batch)
+        {
+            this.batch = batch;
+        }
+    }
 
     public enum UrlType
     {
@@ -121,6 +210,12 @@ public class ContentHandler extends FragmentActivity
     private MyPagerAdapter mPagerAdapter;
     private ViewPager2 mPager;
 
+    // Swipe frame timing instrumentation for debug build only
+    private FrameJankMonitor mFrameJankMonitor = null;
+
+    // Trim the stale pager fragment references on low memory
+    private final MemoryGovernor.TrimListener mTrimListener = level -> mPagerAdapter.trimFragments(mPager.getCurrentItem());
+
     public PopupWindow pop;
     public SharedPreferences sPreference;
 
@@ -139,8 +234,22 @@ public class ContentHandler extends FragmentActivity
         requestWindowFeature(1);
         getWindow().setFlags(1024, 1024);
         setContentView(R.layout.content_main);
+        // Lyrics pages are opaque; use a matching window background in place of the viewPager background
+        getWindow().setBackgroundDrawableResource(R.color.background_light);
         registerForContextMenu(findViewById(R.id.linear));
-        checkHFAvailability();
+        // Refresh the stale online media hosts health in the background
+        HostMonitor.getInstance().refresh();
+
+        // Pre-warm the embedded youtube player on the idle main thread, so the youtube media starts without delay;
+        // and do not keep the detached video player warm on the low RAM device
+        boolean isLowRam = ((ActivityManager) getSystemService(ACTIVITY_SERVICE)).isLowRamDevice();
+        ExoPlayerHolder.getInstance(this).setIdleTimeout(isLowRam ? 0 : ExoPlayerHolder.IDLE_TIMEOUT);
+        if (!isLowRam) {
+            Looper.myQueue().addIdleHandler(() -> {
+                YouTubePlayerPool.prewarm(this);
+                return false;
+            });
+        }
 
         // Attach the media controller player UI; Reuse the fragment if found;
         // do not create/add new, otherwise playerUi setVisibility is no working
@@ -162,6 +271,8 @@ public class ContentHandler extends FragmentActivity
         mWebView = findViewById(R.id.webView);
         mWebView.setVisibility(View.INVISIBLE);
 
+        mPitchView = findViewById(R.id.pitchView);
+
         // Always start with UiPlayer hidden if in landscape mode
         sPreference = getSharedPreferences(PREF_SETTINGS, 0);
         isShowPlayerUi = sPreference.getBoolean(PREF_MENU_SHOW, true);
@@ -188,8 +299,8 @@ public class ContentHandler extends FragmentActivity
         // Instantiate a ViewPager2 and a PagerAdapter.
         mPager = findViewById(R.id.viewPager);
         // FragmentStatePagerAdapter default seems to create only 2, so omit this statement, otherwise 9 items get created
-        // FragmentStateAdapter default created 9, setOffscreenPageLimit has no effet
-        // mPager.setOffscreenPageLimit(1);
+        // FragmentStateAdapter default created 9; an explicit limit keeps the neighbour pages laid out for a smooth swipe
+        mPager.setOffscreenPageLimit(sPreference.getInt(PREF_PAGER_OFFSCREEN, PAGER_OFFSCREEN_DEFAULT));
         // mPager.setCurrentItem(hymnIdx, false) will force it to load only user selected page
         mPager.setAdapter(mPagerAdapter);
         mPager.setPageTransformer(new DepthPageTransformer());
@@ -202,6 +313,14 @@ public class ContentHandler extends FragmentActivity
             mPager.setCurrentItem(hymnNo, false);
 
         mPager.registerOnPageChangeCallback(initOnPageChangeCallback());
+        MemoryGovernor.registerTrimListener(ContentHandler.class.getSimpleName(), mTrimListener);
+    }
+
+    @Override
+    protected void onDestroy()
+    {
+        MemoryGovernor.unregisterTrimListener(ContentHandler.class.getSimpleName(), mTrimListener);
+        super.onDestroy();
     }
 
     @Override
@@ -209,26 +328,39 @@ public class ContentHandler extends FragmentActivity
     {
         super.onResume();
         showPlayerUi(isShowPlayerUi && HymnsApp.isPortrait);
+
+        // Build the media availability index on first use, and refresh the media buttons on its changes
+        MediaIndex mediaIndex = MediaIndex.getInstance();
+        mediaIndex.addListener(this);
+        mediaIndex.start();
+
+        if (BuildConfig.DEBUG && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)) {
+            if (mFrameJankMonitor == null)
+                mFrameJankMonitor = new FrameJankMonitor(this, "Lyrics page swipe");
+            mFrameJankMonitor.attach(getWindow());
+        }
+    }
+
+    @Override
+    protected void onPause()
+    {
+        if (mFrameJankMonitor != null && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)) {
+            mFrameJankMonitor.detach();
+        }
+        MediaIndex.getInstance().removeListener(this);
+        // Release the microphone when the user leaves
+        stopPitchPractice();
+        super.onPause();
     }
 
     /**
-     * Check to see if heavenlyfood.cn site is accessible with 3s timeout;
-     * Need to execute on new thread for network access
+     * Check to see if heavenlyfood.cn site is accessible, from its cached health without any network access
+     *
+     * @return true if heavenlyfood.cn was available on its last check
      */
-    private void checkHFAvailability()
+    public boolean isHFAvailable()
     {
-        String host = "https://heavenlyfood.cn/";
-        new Thread()
-        {
-            public void run()
-            {
-                try {
-                    isHFAvailable = InetAddress.getByName(host).isReachable(3000);
-                } catch (IOException e) {
-                    Timber.w("URL Exception: %s", e.getMessage());
-                }
-            }
-        }.start();
+        return HostMonitor.getInstance().isAvailable(HostMonitor.HOST_HF);
     }
 
     public void showPlayerUi(boolean show)
@@ -307,6 +439,95 @@ public class ContentHandler extends FragmentActivity
                     contentView.setLyricsTextSize(item.getItemId() == R.id.lyrcsTextSizeInc);
                 return true;
 
+            case R.id.pagerOffscreen1:
+            case R.id.pagerOffscreen2:
+            case R.id.pagerOffscreen3:
+                int offscreenLimit = (item.getItemId() == R.id.pagerOffscreen1) ? 1
+                        : (item.getItemId() == R.id.pagerOffscreen2) ? 2 : 3;
+                editor.putInt(PREF_PAGER_OFFSCREEN, offscreenLimit);
+                editor.apply();
+                mPager.setOffscreenPageLimit(offscreenLimit);
+                return true;
+
+            case R.id.lyricsShareImage:
+            case R.id.lyricsSharePdf:
+                LyricsRenderer.Style style = (item.getItemId() == R.id.lyricsShareImage)
+                        ? LyricsRenderer.Style.TEXT_IMAGE : LyricsRenderer.Style.SCORE_PDF;
+                LyricsRenderer.render(this, mSelect, mPager.getCurrentItem(), style, uris -> {
+                    if (uris.isEmpty())
+                        HymnsApp.showToastMessage(R.string.gui_lyrics_share_failed);
+                    else if (!isFinishing())
+                        ShareWith.share(this, null, uris);
+                });
+                return true;
+
+            case R.id.playlistCategory:
+                mMediaGuiController.startPlaylist(getCategoryHymns());
+                return true;
+
+            case R.id.playlistUserAdd:
+                addUserPlaylist();
+                return true;
+
+            case R.id.playlistUserPlay:
+                List<Integer> hymnNos = getUserPlaylist();
+                if (hymnNos.isEmpty())
+                    HymnsApp.showToastMessage(R.string.gui_playlist_empty);
+                else
+                    mMediaGuiController.startPlaylist(hymnNos);
+                return true;
+
+            case R.id.playlistUserClear:
+                editor.remove(PREF_PLAYLIST_USER + mSelect);
+                editor.apply();
+                return true;
+
+            case R.id.prefetchCategory:
+                startPrefetch(getCategoryHymns());
+                return true;
+
+            case R.id.prefetchBook:
+                startPrefetch(getBookHymns());
+                return true;
+
+            case R.id.prefetchCancel:
+                MediaPrefetcher.getInstance(this).cancelAll();
+                return true;
+
+            case R.id.prefetchUnpin:
+                MediaQuota.getInstance(this).unpinAll();
+                HymnsApp.showToastMessage(R.string.gui_media_unpinned);
+                return true;
+
+            case R.id.mediaUsage:
+                showMediaUsage();
+                return true;
+
+            case R.id.mediaQuota:
+                showMediaQuota();
+                return true;
+
+            case R.id.lyricsSync:
+                boolean isLyricsSync = !sPreference.getBoolean(PREF_LYRICS_SYNC, true);
+                editor.putBoolean(PREF_LYRICS_SYNC, isLyricsSync);
+                editor.apply();
+                // Reload or drop the timing track on the next playback frame
+                stopLyricsSync();
+                return true;
+
+            case R.id.lyricsSyncCapture:
+                startLyricsCapture();
+                return true;
+
+            case R.id.pitchPractice:
+                if (mPitchTracker != null)
+                    stopPitchPractice();
+                else if (PermissionUtils.isPermissionGranted(this, Manifest.permission.RECORD_AUDIO))
+                    startPitchPractice();
+                else
+                    PermissionUtils.requestPermission(this, REQUEST_PITCH_PRACTICE, Manifest.permission.RECORD_AUDIO, false);
+                return true;
+
             case R.id.lyrcsEnglish:
                 if (hymnNoEng == null) {
                     HymnsApp.showToastMessage(R.string.gui_error_english_lyrics_null, hymnNo);
@@ -353,6 +574,8 @@ public class ContentHandler extends FragmentActivity
                 int tmp = HymnIdx2NoConvert.hymnIdx2NoConvert(mSelect, position)[0];
                 if (tmp != hymnNo) {
                     hymnNo = tmp;
+                    // The melody reference is for the previous hymn
+                    stopPitchPractice();
                     updateMediaPlayerInfo();
 
                     ContentView contentView = (ContentView) mPagerAdapter.mFragments.get(mPager.getCurrentItem());
@@ -361,6 +584,22 @@ public class ContentHandler extends FragmentActivity
 
                 }
             }
+
+            /**
+             * Collect the frame metrics while the page is being dragged or settling.
+             *
+             * @param state the new scroll state
+             */
+            @Override
+            public void onPageScrollStateChanged(int state)
+            {
+                if ((mFrameJankMonitor != null) && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)) {
+                    if (state == ViewPager2.SCROLL_STATE_IDLE)
+                        mFrameJankMonitor.stop();
+                    else
+                        mFrameJankMonitor.start();
+                }
+            }
         };
     }
 
@@ -407,106 +646,189 @@ public class ContentHandler extends FragmentActivity
             return mAutoPlay;
     }
 
-    public void onError(String statusText)
+    /**
+     * Update the karaoke lyrics line highlight of the playing media; called per display frame by the media
+     * player UI while the media is playing. The timing track is loaded only when the playing uri changes.
+     *
+     * @param uri the playing media uri
+     * @param position the playback position (ms)
+     */
+    public void onPlaybackPosition(Uri uri, int position)
     {
-        mMediaGuiController.playbackPlay.setImageResource(R.drawable.ic_play_stop);
-        HymnsApp.showToastMessage(statusText);
+        if (!uri.equals(mSyncUri)) {
+            stopLyricsSync();
+            mSyncUri = uri;
+            mSyncPage = mPager.getCurrentItem();
+            if (sPreference.getBoolean(PREF_LYRICS_SYNC, true))
+                mLyricsSync = LyricsTimeSync.load(uri);
+        }
+
+        // The highlight follows the user taps during the capture
+        if ((mLyricsSync != null) && !isLyricsCapture) {
+            ContentView contentView = (ContentView) mPagerAdapter.mFragments.get(mSyncPage);
+            if (contentView != null)
+                contentView.highlightLyricsLine(mLyricsSync.getLineIndex(position));
+        }
+
+        // The melody reference timing is valid only for the hymn midi playback
+        if (mPitchTracker != null) {
+            String path = uri.getPath();
+            mPitchTracker.setPlaybackPosition(((path != null) && path.equals(mPitchUri.getPath())) ? position : -1);
+        }
     }
 
-    // DB MP3 links non-standard naming conventions
-    private static final Map<Integer, String> DB_Links = new HashMap<>();
-
-    static {
-        DB_Links.put(8, "D8父阿你是万灵之");
-        DB_Links.put(13, "D13父阿在你并无动的影儿");
-        DB_Links.put(49, "D49父阿我们在你面前拜");
-        DB_Links.put(65, "D65耶稣大名");
-        DB_Links.put(75, "D75永活的故事");
-        DB_Links.put(90, "D90赞美不尽赞美赞美救主恩深");
-        DB_Links.put(91, "D91祂不能救自己必须死髑髅地");
-        DB_Links.put(113, "D113何等权柄耶稣的名");
-        DB_Links.put(143, "D143最美的耶稣");
-        DB_Links.put(147, "D147荣耀归与我主");
-        DB_Links.put(178, "D178看这神圣筵席");
-        DB_Links.put(183, "D183诅咒他受祝福我享");
-        DB_Links.put(190, "D190赞他赞他赞美耶稣");
-        DB_Links.put(192, "D192主惟有你");
-        DB_Links.put(193, "D193但愿尊贵荣耀丰富");
-        DB_Links.put(199, "D199荣耀的主");
-        DB_Links.put(202, "D202在旷野加底斯");
-        DB_Links.put(207, "D207神赐祂有能力");
-        DB_Links.put(210, "D210主求你向我吹圣");
-        DB_Links.put(212, "D212圣灵的大风");
-        DB_Links.put(222, "D222有福的事实");
-        DB_Links.put(223, "D223主我来就你");
-        DB_Links.put(245, "D245路途遥远");
-        DB_Links.put(247, "D247惊人恩典");
-        DB_Links.put(251, "D251我是个罪人蒙主");
-        DB_Links.put(277, "D277请进,哦请进");
-        DB_Links.put(302, "D302主阿何等奥秘你灵在我灵");
-        DB_Links.put(340, "D340完全地交出");
-        DB_Links.put(346, "D346我今愿跟随救主");
-        DB_Links.put(350, "D350谁是在主这边谁要跟随主");
-        DB_Links.put(374, "D374基督是万有唯一的实际");
-        DB_Links.put(388, "D388_1我已得到宇宙至宝");
-        DB_Links.put(395, "D395唯有耶稣是我题目");
-        DB_Links.put(402, "D402不是字句律法乃是生命主");
-        DB_Links.put(413, "D413无别声音破此寂静");
-        DB_Links.put(435, "D435在亚当里罪死是我所有");
-        DB_Links.put(447, "D447何等奥妙父子灵乃是一神");
-        DB_Links.put(467, "D467你怎能没有伤痕");
-        DB_Links.put(470, "D470唯有常出代价愿背十字架");
-        DB_Links.put(476, "D476活在生命光中不断与主交通");
-        DB_Links.put(479, "D479要思想耶稣");
-        DB_Links.put(485, "D485莫在世界仍留恋");
-        DB_Links.put(491, "D491我必与你同在甜美的应许");
-        DB_Links.put(494, "D494当你经过试炼茫然无所从");
-        DB_Links.put(499, "D499非我所是");
-        DB_Links.put(515, "D515不在此时许在将来");
-        DB_Links.put(522, "D522长久陷入忧患苦痛");
-        DB_Links.put(527, "D527迫得太紧");
-        DB_Links.put(547, "D547不是挣扎努力乃是全归依");
-        DB_Links.put(552, "D552祷告乃是灵中");
-        DB_Links.put(561, "D561凭信心求");
-        DB_Links.put(606, "D606救我脱");
-        DB_Links.put(607, "D607主啊发言主啊吹气");
-        DB_Links.put(614, "D614灵能交流恩主灵能交流");
-        DB_Links.put(622, "D622弟兄和睦同居何等美善");
-        DB_Links.put(635, "D635当你苦受撒旦试探");
-        DB_Links.put(638, "D638我神乃是大能堡垒");
-        DB_Links.put(639, "D639如果战争凶猛");
-        DB_Links.put(641, "D641今日争战凶猛");
-        DB_Links.put(649, "D649撒旦早已定规");
-        DB_Links.put(656, "D656要在身体事奉工作");
-        DB_Links.put(675, "D675昨日今日直到永远");
-        DB_Links.put(677, "D677怜悯慈爱宽恕温柔又谦和");
-        DB_Links.put(714, "D714此时当就耶稣耶稣在此");
-        DB_Links.put(715, "D715你堕落罪恶境历尽了苦情");
-        DB_Links.put(721, "D721贫穷软弱悲伤忧愁");
-        DB_Links.put(723, "D723耶稣恩主是人唯一需要");
-        DB_Links.put(726, "D726你的欢迎声音召我前来相信");
-        DB_Links.put(730, "D730听阿罪人慈声");
-        DB_Links.put(732, "D732你曾离天庭");
-        DB_Links.put(737, "D737当我疲困罪恶境祂以柔爱来寻");
-        DB_Links.put(751, "D751今天神的国度对我是操练");
-        DB_Links.put(755, "D755基督快要再临日子已紧近");
-        DB_Links.put(774, "D774在起初时候");
-        DB_Links.put(782, "DF2阿利路阿利路亚");
+    /**
+     * Save the captured lyrics timing track if any, and remove the lyrics line highlight on playback stop
+     */
+    public void onPlaybackStopped()
+    {
+        stopLyricsSync();
+        if (mPitchTracker != null)
+            mPitchTracker.setPlaybackPosition(-1);
     }
 
-    // DB MP3 links non-standard naming conventions
-    private static final Map<Integer, String> BB_Links = new HashMap<>();
+    /**
+     * @return true if the pitch practice is running
+     */
+    public boolean isPitchPractice()
+    {
+        return mPitchTracker != null;
+    }
+
+    /**
+     * Start the pitch practice of the current hymn: the user singing from the microphone is compared with the
+     * melody of the hymn midi main during its playback. Only the hymn with the midi i.e. 大本 and 补充本 is supported.
+     */
+    private void startPitchPractice()
+    {
+        String midiName;
+        if (HYMN_BB.equals(mSelect))
+            midiName = MIDI_BB + hymnNo;
+        else if (HYMN_DB.equals(mSelect))
+            midiName = MIDI_DB + hymnNo;
+        else
+            midiName = null;
 
-    static {
-        BB_Links.put(1, "B1当我们开口赞美");
+        int resId = (midiName == null) ? 0 : HymnsApp.getFileResId(midiName, "raw");
+        if (resId == 0) {
+            HymnsApp.showToastMessage(R.string.gui_pitch_no_midi);
+            return;
+        }
+
+        NoteTimeline timeline;
+        try (InputStream in = getResources().openRawResource(resId)) {
+            timeline = NoteTimeline.fromSequence(MidiSequence.parse(in));
+        } catch (IOException | Resources.NotFoundException e) {
+            Timber.w("Pitch practice midi parse failed: %s; %s", midiName, e.getMessage());
+            HymnsApp.showToastMessage(R.string.gui_pitch_no_midi);
+            return;
+        }
+        if (timeline.size() == 0) {
+            HymnsApp.showToastMessage(R.string.gui_pitch_no_midi);
+            return;
+        }
+
+        PitchTracker tracker = new PitchTracker(timeline);
+        if (!tracker.start()) {
+            HymnsApp.showToastMessage(R.string.gui_pitch_failed);
+            return;
+        }
+
+        mPitchTracker = tracker;
+        mPitchUri = HymnsApp.getRawUri(midiName);
+        mPitchView.setTracker(tracker);
+        mPitchView.setVisibility(View.VISIBLE);
+        HymnsApp.showToastMessage(R.string.gui_pitch_start);
     }
 
-    // DB MP3 links non-standard naming conventions
-    private static final Map<Integer, String> ER_Links = new HashMap<>();
+    /**
+     * Stop the pitch practice if running, and release the microphone
+     */
+    private void stopPitchPractice()
+    {
+        if (mPitchTracker == null)
+            return;
 
-    static {
-        // ER_Links.put(108, "3主的爱/01.唱啊唱啊我们来唱歌(108)");
-        ER_Links.put(601, "E601耶稣我们爱你");
+        mPitchTracker.stop();
+        mPitchTracker = null;
+        mPitchUri = null;
+        mPitchView.setTracker(null);
+        mPitchView.setVisibility(View.GONE);
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NotNull String[] permissions, @NotNull int[] grantResults)
+    {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_PITCH_PRACTICE) {
+            if (PermissionUtils.isPermissionGranted(permissions, grantResults, Manifest.permission.RECORD_AUDIO))
+                startPitchPractice();
+            else
+                HymnsApp.showToastMessage(R.string.gui_pitch_permission);
+        }
+    }
+
+    /**
+     * Start the lyrics timing track capture of the playing media: the user taps the lyrics text as each line
+     * starts to be sung; the captured track is saved as the media sidecar file when the playback stops.
+     */
+    private void startLyricsCapture()
+    {
+        if ((mSyncUri == null) || (mMediaGuiController.getPlaybackPosition() < 0)) {
+            HymnsApp.showToastMessage(R.string.gui_lyrics_sync_play_first);
+            return;
+        }
+        if (LyricsTimeSync.getTrackFile(mSyncUri) == null) {
+            HymnsApp.showToastMessage(R.string.gui_lyrics_sync_unsupported);
+            return;
+        }
+
+        ContentView contentView = (ContentView) mPagerAdapter.mFragments.get(mSyncPage);
+        if (contentView == null)
+            return;
+
+        contentView.highlightLyricsLine(-1);
+        mLyricsSync = new LyricsTimeSync();
+        isLyricsCapture = true;
+        contentView.setLyricsTapListener(v -> {
+            int position = mMediaGuiController.getPlaybackPosition();
+            if (isLyricsCapture && (position >= 0))
+                contentView.highlightLyricsLine(mLyricsSync.addLine(position));
+        });
+        HymnsApp.showToastMessage(R.string.gui_lyrics_sync_capture);
+    }
+
+    /**
+     * Stop the lyrics sync of the current playing uri; the captured timing track is saved
+     */
+    private void stopLyricsSync()
+    {
+        ContentView contentView = (ContentView) mPagerAdapter.mFragments.get(mSyncPage);
+        if (isLyricsCapture) {
+            isLyricsCapture = false;
+            if (contentView != null)
+                contentView.setLyricsTapListener(null);
+
+            File trackFile = LyricsTimeSync.getTrackFile(mSyncUri);
+            if ((trackFile != null) && (mLyricsSync.getLineCount() > 0)) {
+                if (mLyricsSync.save(trackFile))
+                    HymnsApp.showToastMessage(R.string.gui_lyrics_sync_saved, mLyricsSync.getLineCount());
+                else
+                    HymnsApp.showToastMessage(R.string.gui_lyrics_sync_save_failed);
+            }
+        }
+
+        if (contentView != null)
+            contentView.highlightLyricsLine(-1);
+        mLyricsSync = null;
+        mSyncUri = null;
+        mSyncPage = -1;
+    }
+
+    public void onError(String statusText)
+    {
+        mMediaGuiController.playbackPlay.setImageResource(R.drawable.ic_play_stop);
+        HymnsApp.showToastMessage(statusText);
     }
 
     /**
@@ -521,6 +843,13 @@ public class ContentHandler extends FragmentActivity
 
     public static final int[] category_er = new int[]{1, 101, 201, 301, 401, 501, 601, 701, 801, 901, 1001, 1101, 1201, 1301};
 
+    // The online media source rules of all the hymnTypes
+    private static final MediaSourceRules mediaSourceRules = new MediaSourceRules()
+            .addCategory(HYMN_ER, category_er, hymnCategoryEr)
+            .addCategory(HYMN_XB, category_xb, hymnCategoryXb)
+            .addCategory(HYMN_BB, category_bb, hymnCategoryBb)
+            .addCategory(HYMN_DB, category_db, hymnCategoryDb);
+
     /**
      * For testing of the getPlayHymn algorithms for the specified media Type
      * and proceed to download if proceedDownload is true;
@@ -529,9 +858,8 @@ public class ContentHandler extends FragmentActivity
     {
         for (int hymnIdx = 1; hymnIdx <= HYMN_DB_NO_TMAX; hymnIdx++) {
             int[] hymnNoPage = HymnIdx2NoConvert.hymnIdx2NoConvert(mSelect, hymnIdx);
-            hymnNo = hymnNoPage[0];
-            if (hymnNo != -1) {
-                getPlayHymn(mediaType, proceedDownLoad);
+            if (hymnNoPage[0] != -1) {
+                getPlayHymn(getHymnRef(mSelect, hymnNoPage[0]), mediaType, proceedDownLoad, false, null);
             }
         }
     }
@@ -545,14 +873,348 @@ public class ContentHandler extends FragmentActivity
      * else drop to next mediaType for playback
      *
      * @param mediaType media Type for the playback i.e. midi, BanZhou, JianChang or MP3
-     * @param proceedDownLoad download from the specified dnLink if true;
+     * @param proceedDownLoad download from the media source mirror links if true;
      * @return array of media resource to playback. Usually only one item, two for midi resources
      */
     public List<Uri> getPlayHymn(MediaType mediaType, boolean proceedDownLoad)
     {
+        return getPlayHymn(getHymnRef(mSelect, hymnNo), mediaType, proceedDownLoad, false, null);
+    }
+
+    /**
+     * Callback interface for the playlist item resolved on the background thread
+     */
+    public interface PlaylistItemListener
+    {
+        /**
+         * Invoked on the main thread with the first available playlist item
+         *
+         * @param index the playlist index of the item; or -1 if none is available
+         * @param uris the playback audio media uris of the item; empty list if none
+         */
+        void onPlaylistItem(int index, List<Uri> uris);
+    }
+
+    /**
+     * Resolve the playback audio media uris of the first available playlist item at or after the given index,
+     * ahead of its playback; use the online media link for streaming if there is no local media file.
+     * No download is started, and no video media is played. The lyrics asset, DB and the media file lookups
+     * are done on the playlist executor, and the result is posted back to the main thread.
+     *
+     * @param playlist the playlist hymn numbers of the current hymnType
+     * @param fromIndex the playlist index to start the resolve
+     * @param mediaType media Type for the playback
+     * @param listener the listener to receive the resolved item
+     */
+    public void getPlaylistItem(List<Integer> playlist, int fromIndex, MediaType mediaType,
+            PlaylistItemListener listener)
+    {
+        String hymnType = mSelect;
+        mPlaylistExecutor.execute(() -> {
+            int index = fromIndex;
+            List<Uri> uris = new ArrayList<>();
+            for (; (index < playlist.size()) && uris.isEmpty() && !isFinishing(); index++) {
+                try {
+                    uris = getPlayHymn(getHymnRef(hymnType, playlist.get(index)), mediaType, false, true, null);
+                } catch (Exception e) {
+                    Timber.w("Playlist media resolve failed: %s; %s", playlist.get(index), e.getMessage());
+                }
+            }
+
+            int itemIndex = uris.isEmpty() ? -1 : index - 1;
+            List<Uri> itemUris = uris;
+            runOnUiThread(() -> {
+                if (!isFinishing())
+                    listener.onPlaylistItem(itemIndex, itemUris);
+            });
+        });
+    }
+
+    /**
+     * Get all the valid hymn numbers of the category that the current hymn belongs to, for the playlist playback
+     *
+     * @return list of the category hymn numbers
+     */
+    public List<Integer> getCategoryHymns()
+    {
+        int[] category;
+        switch (mSelect) {
+            case HYMN_ER:
+                category = category_er;
+                break;
+            case HYMN_XB:
+                category = category_xb;
+                break;
+            case HYMN_BB:
+                category = category_bb;
+                break;
+            case HYMN_DB:
+            default:
+                category = category_db;
+                break;
+        }
+
+        // The last category is assumed to have the max of 100 hymns
+        int start = category[category.length - 1];
+        int end = start + 100;
+        for (int x = 1; x < category.length; x++) {
+            if (hymnNo < category[x]) {
+                start = category[x - 1];
+                end = category[x];
+                break;
+            }
+        }
+
+        List<Integer> hymnNos = new ArrayList<>();
+        for (int no = start; no < end; no++) {
+            if (HymnNo2IdxConvert.hymnNo2IdxConvert(mSelect, no) != -1)
+                hymnNos.add(no);
+        }
+        return hymnNos;
+    }
+
+    /**
+     * Get all the valid hymn numbers of the current hymnType, for the whole hymn book offline prefetch
+     *
+     * @return list of the hymn book hymn numbers
+     */
+    private List<Integer> getBookHymns()
+    {
+        int maxNo;
+        switch (mSelect) {
+            case HYMN_ER:
+                maxNo = HYMN_ER_NO_MAX;
+                break;
+            case HYMN_XB:
+                maxNo = HYMN_XB_NO_MAX;
+                break;
+            case HYMN_BB:
+                maxNo = HYMN_BB_NO_MAX;
+                break;
+            case HYMN_DB:
+            default:
+                maxNo = HYMN_DB_NO_TMAX;
+                break;
+        }
+
+        List<Integer> hymnNos = new ArrayList<>();
+        for (int no = 1; no <= maxNo; no++) {
+            if (HymnNo2IdxConvert.hymnNo2IdxConvert(mSelect, no) != -1)
+                hymnNos.add(no);
+        }
+        return hymnNos;
+    }
+
+    /**
+     * Start the offline prefetch of the given hymns media, for the current hymnType and the user selected
+     * media type. The media are resolved on the prefetch executor from the immutable hymn references, so the
+     * activity hymn states are untouched; the media files not available locally are then queued on the main
+     * thread as a single prefetch batch.
+     *
+     * @param hymnNos the hymn numbers to prefetch
+     */
+    private void startPrefetch(List<Integer> hymnNos)
+    {
+        MediaType mediaType = mMediaGuiController.getMediaType();
+        if (isPrefetching) {
+            HymnsApp.showToastMessage(R.string.gui_prefetch_busy);
+            return;
+        }
+        if ((mediaType == null) || hymnNos.isEmpty()) {
+            HymnsApp.showToastMessage(R.string.gui_prefetch_none);
+            return;
+        }
+
+        int first = hymnNos.get(0);
+        int last = hymnNos.get(hymnNos.size() - 1);
+        String batch = mSelect + "_" + mediaType.name() + "_" + first + "_" + last;
+        String label = getHymnTypeLabel(mSelect) + " #" + first + "-" + last + " " + getMediaTypeLabel(mediaType);
+
+        String hymnType = mSelect;
+        PrefetchBatch prefetch = new PrefetchBatch(batch);
+        isPrefetching = true;
+        mPrefetchExecutor.execute(() -> {
+            for (int prefetchHymnNo : hymnNos) {
+                if (isFinishing())
+                    break;
+                resolvePrefetchItem(hymnType, prefetchHymnNo, mediaType, prefetch);
+            }
+
+            runOnUiThread(() -> {
+                isPrefetching = false;
+                if (isFinishing())
+                    return;
+
+                int queued = MediaPrefetcher.getInstance(ContentHandler.this).startBatch(batch, label, prefetch.jobs);
+                if (queued == 0)
+                    HymnsApp.showToastMessage(R.string.gui_prefetch_none);
+                else
+                    HymnsApp.showToastMessage(R.string.gui_prefetch_queued, queued);
+            });
+        });
+    }
+
+    /**
+     * Show the storage used by the downloaded media of each hymnType, and the user set media quota
+     */
+    private void showMediaUsage()
+    {
+        MediaQuota mediaQuota = MediaQuota.getInstance(this);
+        mediaQuota.getUsage((usage, pinned) -> {
+            if (isFinishing())
+                return;
+
+            long total = 0;
+            StringBuilder message = new StringBuilder();
+            for (Map.Entry<String, Long> entry : usage.entrySet()) {
+                total += entry.getValue();
+                message.append(getString(R.string.gui_media_usage_item, getHymnTypeLabel(entry.getKey()),
+                        ByteFormat.format(entry.getValue()))).append("\n");
+            }
+
+            int quota = mediaQuota.getQuota();
+            message.append(getString(R.string.gui_media_usage_total, ByteFormat.format(total), ByteFormat.format(pinned),
+                    (quota == 0) ? getString(R.string.gui_media_quota_none) : ByteFormat.format(quota * 1024L * 1024L)));
+            DialogActivity.showDialog(this, getString(R.string.gui_media_usage), message.toString());
+        });
+    }
+
+    /**
+     * Let the user select the media quota; the least recently used media are evicted when it is exceeded
+     */
+    private void showMediaQuota()
+    {
+        MediaQuota mediaQuota = MediaQuota.getInstance(this);
+        int[] quotas = getResources().getIntArray(R.array.media_quota_value);
+        int selected = 0;
+        for (int i = 0; i < quotas.length; i++) {
+            if (quotas[i] == mediaQuota.getQuota())
+                selected = i;
+        }
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.gui_media_quota)
+                .setSingleChoiceItems(R.array.media_quota_name, selected, (dialog, which) -> {
+                    mediaQuota.setQuota(quotas[which]);
+                    dialog.dismiss();
+                })
+                .setNegativeButton(R.string.gui_cancel, null)
+                .show();
+    }
+
+    /**
+     * Resolve the prefetch media of the given hymn on the prefetch executor; see getPlaylistItem(List, int, MediaType, PlaylistItemListener)
+     *
+     * @param hymnType the prefetch hymnType
+     * @param prefetchHymnNo the prefetch hymnNo
+     * @param mediaType media Type for the prefetch
+     * @param prefetch the prefetch batch to collect the download jobs
+     */
+    private void resolvePrefetchItem(String hymnType, int prefetchHymnNo, MediaType mediaType, PrefetchBatch prefetch)
+    {
+        try {
+            getPlayHymn(getHymnRef(hymnType, prefetchHymnNo), mediaType, false, false, prefetch);
+        } catch (Exception e) {
+            Timber.w("Prefetch media resolve failed: %s; %s", prefetchHymnNo, e.getMessage());
+        }
+    }
+
+    private String getHymnTypeLabel(String hymnType)
+    {
+        switch (hymnType) {
+            case HYMN_ER:
+                return getString(R.string.hymn_er);
+            case HYMN_XB:
+                return getString(R.string.hymn_xb);
+            case HYMN_BB:
+                return getString(R.string.hymn_bb);
+            case HYMN_DB:
+            default:
+                return getString(R.string.hymn_db);
+        }
+    }
+
+    private String getMediaTypeLabel(MediaType mediaType)
+    {
+        switch (mediaType) {
+            case HYMN_BANZOU:
+                return getString(R.string.hymn_media_banzou);
+            case HYMN_JIAOCHANG:
+                return getString(R.string.hymn_media_jiaochang);
+            case HYMN_CHANGSHI:
+                return getString(R.string.hymn_media_changshi);
+            default:
+                return getString(R.string.hymn_media_media);
+        }
+    }
+
+    /**
+     * Show the lyrics page of the given hymnNo e.g. the current playlist playback hymn
+     *
+     * @param playHymnNo the hymnNo of the current hymnType
+     */
+    public void showHymn(int playHymnNo)
+    {
+        int idx = HymnNo2IdxConvert.hymnNo2IdxConvert(mSelect, playHymnNo);
+        if ((idx != -1) && (idx != mPager.getCurrentItem()))
+            mPager.setCurrentItem(idx, false);
+    }
+
+    /**
+     * Add the current hymnNo to the user playlist
+     */
+    private void addUserPlaylist()
+    {
+        List<Integer> hymnNos = getUserPlaylist();
+        if (!hymnNos.contains(hymnNo)) {
+            String playlist = sPreference.getString(PREF_PLAYLIST_USER + mSelect, "");
+            playlist = TextUtils.isEmpty(playlist) ? String.valueOf(hymnNo) : playlist + "," + hymnNo;
+            sPreference.edit().putString(PREF_PLAYLIST_USER + mSelect, playlist).apply();
+            hymnNos.add(hymnNo);
+        }
+        HymnsApp.showToastMessage(R.string.gui_playlist_added, hymnNo, hymnNos.size());
+    }
+
+    /**
+     * Get the user playlist for the current hymnType
+     *
+     * @return list of the user selected hymn numbers
+     */
+    private List<Integer> getUserPlaylist()
+    {
+        List<Integer> hymnNos = new ArrayList<>();
+        String playlist = sPreference.getString(PREF_PLAYLIST_USER + mSelect, "");
+        if (!TextUtils.isEmpty(playlist)) {
+            for (String no : playlist.split(",")) {
+                try {
+                    hymnNos.add(Integer.parseInt(no));
+                } catch (NumberFormatException e) {
+                    Timber.w("Invalid playlist hymn number: %s", no);
+                }
+            }
+        }
+        return hymnNos;
+    }
+
+    /**
+     * Fetch the required playback media resources; see getPlayHymn(MediaType, boolean)
+     *
+     * @param hymn the hymn reference of the media
+     * @param mediaType media Type for the playback i.e. midi, BanZhou, JianChang or MP3
+     * @param proceedDownLoad download from the media source mirror links if true;
+     * @param isPlaylist true to resolve the playlist item audio media; the media link is returned for streaming
+     * @param prefetch the offline prefetch batch to which the download of the media file not available locally
+     * is added instead; null if not resolving the offline prefetch
+     * @return array of media resource to playback. Usually only one item, two for midi resources
+     */
+    private List<Uri> getPlayHymn(HymnRef hymn, MediaType mediaType, boolean proceedDownLoad, boolean isPlaylist,
+            PrefetchBatch prefetch)
+    {
+        String hymnType = hymn.hymnType;
+        int hymnNo = hymn.hymnNo;
         List<Uri> uriList = new ArrayList<>();
-        String dnLink = "";
-        String fbLink = "";
+        // The media type of the online media source; null if none
+        MediaType sourceType = null;
         String dir = "";
         String tmpName;
 
@@ -567,70 +1229,49 @@ public class ContentHandler extends FragmentActivity
          *
          * Proceed to other media handlers if is not handled in getMediaUris i.e. not defined in DB
          */
-        if (mMediaContentHandler.getMediaUris(mSelect, hymnNo, mediaType, uriList)) {
+        if (isPlaylist || (prefetch != null)) {
+            if (mMediaContentHandler.getAudioUris(hymnType, hymnNo, mediaType, uriList))
+                return uriList;
+        }
+        else if (mMediaContentHandler.getMediaUris(hymnType, hymnNo, mediaType, uriList)) {
             return uriList;
         }
 
-        String hymnTitle = getHymnTitle();
-        String fileName = hymnNo + hymnTitle + ".mp3";
+        String fileName = hymnNo + hymn.hymnTitle + ".mp3";
 
-        switch (mSelect) {
+        switch (hymnType) {
             case HYMN_ER:
                 switch (mediaType) {
                     case HYMN_MEDIA:
                         // drop down to next level
 
                     case HYMN_BANZOU:
-                        dir = mSelect + MEDIA_MIDI;
+                        dir = hymnType + MEDIA_MIDI;
                         tmpName = "C" + hymnNo + ".mid";
-                        if (isExist(dir, tmpName, uriList)) {
+                        if (isExist(dir, tmpName, uriList, prefetch)) {
                             return uriList;
                         }
 
-                        // https://heavenlyfood.cn/hymns/music/er/C1.mp3
-                        dir = mSelect + MEDIA_BANZOU;
+                        dir = hymnType + MEDIA_BANZOU;
                         fileName = "C" + hymnNo + ".mp3";
-                        dnLink = "https://heavenlyfood.cn/hymns/music/er/" + fileName;
+                        sourceType = MediaType.HYMN_BANZOU;
                         break;
 
                     case HYMN_JIAOCHANG:
-                        dir = mSelect + MEDIA_JIAOCHANG;
+                        dir = hymnType + MEDIA_JIAOCHANG;
                         tmpName = hymnNo + ".mp3";
-                        if (isExist(dir, tmpName, uriList)) {
+                        if (isExist(dir, tmpName, uriList, prefetch)) {
                             return uriList;
                         }
 
                     case HYMN_CHANGSHI:
-                        dir = mSelect + MEDIA_CHANGSHI;
+                        // https://heavenlyfood.cn/hymnal/CD专辑/儿童诗歌集/3主的爱/02.大山可以挪开(318).mp3 - currently no supported
+                        dir = hymnType + MEDIA_CHANGSHI;
                         fileName = "C" + fileName;
-                        if (isExist(dir, fileName, uriList)) {
+                        if (isExist(dir, fileName, uriList, prefetch)) {
                             return uriList;
                         }
-
-                        if (isHFAvailable) {
-                            // https://heavenlyfood.cn/hymnal/CD专辑/儿童诗歌集/3主的爱/02.大山可以挪开(318).mp3 - currently no supported
-                            // https://heavenlyfood.cn/hymnal/诗歌/儿童诗歌/06爱主/C603我爱我的主耶稣.mp3
-                            String subLink = "";
-                            for (int x = 0; x < category_er.length; x++) {
-                                if (hymnNo < category_er[x]) {
-                                    subLink = String.format(Locale.CHINA, "%02d%s/", (x - 1), hymnCategoryEr[x - 1]);
-                                    break;
-                                }
-                            }
-
-                            // Generate the resName for link creation
-                            String resName = ER_Links.get(hymnNo);
-                            if (resName == null) {
-                                resName = fileName;
-                            }
-                            else {
-                                resName = resName + ".mp3";
-                            }
-                            dnLink = "https://heavenlyfood.cn/hymnal/诗歌/儿童诗歌/" + subLink + resName;
-                        }
-                        else if (TextUtils.isEmpty(fbLink)) {
-                            fbLink = String.format(Locale.US, "http://www.lightinnj.org/mp3/k-mp3/C%04d.mp3", hymnNo);
-                        }
+                        sourceType = MediaType.HYMN_CHANGSHI;
                         break;
                 }
                 break;
@@ -641,45 +1282,29 @@ public class ContentHandler extends FragmentActivity
                         // drop down to next level
 
                     case HYMN_BANZOU:
-                        dir = mSelect + MEDIA_MIDI;
+                        dir = hymnType + MEDIA_MIDI;
                         tmpName = "X" + hymnNo + ".mid";
-                        if (isExist(dir, tmpName, uriList)) {
+                        if (isExist(dir, tmpName, uriList, prefetch)) {
                             return uriList;
                         }
 
-                        dir = mSelect + MEDIA_BANZOU;
+                        dir = hymnType + MEDIA_BANZOU;
                         tmpName = "X" + hymnNo + ".mp3";
-                        if (isExist(dir, tmpName, uriList)) {
+                        if (isExist(dir, tmpName, uriList, prefetch)) {
                             return uriList;
                         }
 
                     case HYMN_JIAOCHANG:
-                        dir = mSelect + MEDIA_JIAOCHANG;
+                        dir = hymnType + MEDIA_JIAOCHANG;
                         tmpName = hymnNo + ".mp3";
-                        if (isExist(dir, tmpName, uriList)) {
+                        if (isExist(dir, tmpName, uriList, prefetch)) {
                             return uriList;
                         }
 
                     case HYMN_CHANGSHI:
-                        dir = mSelect + MEDIA_CHANGSHI;
+                        dir = hymnType + MEDIA_CHANGSHI;
                         fileName = "X" + fileName;
-
-                        if (isHFAvailable) {
-                            // https://heavenlyfood.cn/hymnal/诗歌/新歌颂咏/4召会生活110/X112神生命的种子.mp3
-                            String subLink = "";
-                            for (int x = 0; x < category_xb.length; x++) {
-                                // dnlink for xB does not use the last hymn category for fetching
-                                if (hymnNo < category_xb[x]) {
-                                    subLink = String.format(Locale.CHINA, "%d%s%03d/", x, hymnCategoryXb[x - 1],
-                                            category_xb[x - 1]);
-                                    break;
-                                }
-                            }
-                            dnLink = "https://heavenlyfood.cn/hymnal/诗歌/新歌颂咏/" + subLink + fileName;
-                        }
-                        else if (TextUtils.isEmpty(fbLink)) {
-                            fbLink = String.format(Locale.US, "http://g.cgbr.org/music/x/media/%03d.mp3", hymnNo);
-                        }
+                        sourceType = MediaType.HYMN_CHANGSHI;
                         break;
                 }
                 break;
@@ -692,61 +1317,28 @@ public class ContentHandler extends FragmentActivity
                     case HYMN_BANZOU:
                         // proceed to use HYMN_BANZOU if no midi files available
                         if (HymnsApp.getFileResId(MIDI_BB + hymnNo, "raw") != 0) {
-                            uriList.add(HymnsApp.getRawUri(MIDI_BB + hymnNo));
-                            uriList.add(HymnsApp.getRawUri(MIDI_BBC + hymnNo));
+                            // Play the midi main and accompany as a single stream with the in-app midi player
+                            uriList.add(MidiPlayer.getMergedUri(HymnsApp.getRawUri(MIDI_BB + hymnNo),
+                                    HymnsApp.getRawUri(MIDI_BBC + hymnNo)));
                             break;
                         }
 
-                        // https://heavenlyfood.cn/hymns/music/bu/B15.mp3
-                        dir = mSelect + MEDIA_BANZOU;
+                        dir = hymnType + MEDIA_BANZOU;
                         fileName = "B" + hymnNo + ".mp3";
-
-                        if (isHFAvailable) {
-                            dnLink = "https://heavenlyfood.cn/hymns/music/bu/" + fileName;
-                        }
-                        else if (TextUtils.isEmpty(fbLink)) {
-                            fbLink = String.format(Locale.US, "https://www.hymnal.net/cn/hymn/ts/%d/f=mid", hymnNo);
-                        }
+                        sourceType = MediaType.HYMN_BANZOU;
                         break;
 
                     case HYMN_JIAOCHANG:
-                        dir = mSelect + MEDIA_JIAOCHANG;
+                        dir = hymnType + MEDIA_JIAOCHANG;
                         tmpName = hymnNo + ".mp3";
-                        if (isExist(dir, tmpName, uriList)) {
+                        if (isExist(dir, tmpName, uriList, prefetch)) {
                             return uriList;
                         }
 
                     case HYMN_CHANGSHI:
-                        // https://heavenlyfood.cn/hymnal/诗歌/补充本/00赞美的话/B1当我们开口赞美.mp3
-                        // https://heavenlyfood.cn/hymnal/诗歌/补充本/00赞美的话/B37赞美荣耀王.mp3
-                        // https://heavenlyfood.cn/hymnal/诗歌/补充本/01灵与生命/B123耶稣活在我里面.mp3
-                        // https://heavenlyfood.cn/hymnal/诗歌/补充本/01灵与生命/B141神在基督耶稣里成那灵.mp3
-                        // https://heavenlyfood.cn/hymnal/诗歌/补充本/05教会的异象/B501基督殿城与地.mp3
-                        // https://heavenlyfood.cn/hymnal/诗歌/补充本/05教会的异象/B521来这美妙住处.mp3
-                        dir = mSelect + MEDIA_CHANGSHI;
+                        dir = hymnType + MEDIA_CHANGSHI;
                         fileName = "B" + fileName;
-
-                        if (isHFAvailable) {
-                            String subLink = "";
-                            for (int x = 0; x < category_bb.length; x++) {
-                                if (hymnNo < category_bb[x]) {
-                                    subLink = String.format(Locale.CHINA, "%02d%s/", (x - 1), hymnCategoryBb[x - 1]);
-                                    break;
-                                }
-                            }
-                            // Generate the resName for link creation
-                            String resName = BB_Links.get(hymnNo);
-                            if (resName == null) {
-                                resName = fileName;
-                            }
-                            else {
-                                resName = resName + ".mp3";
-                            }
-                            dnLink = "https://heavenlyfood.cn/hymnal/诗歌/补充本/" + subLink + resName;
-                        }
-                        else if (TextUtils.isEmpty(fbLink)) {
-                            fbLink = String.format(Locale.US, "https://www.hymnal.net/cn/hymn/ts/%d/f=sing", hymnNo);
-                        }
+                        sourceType = MediaType.HYMN_CHANGSHI;
                         break;
                 }
                 break;
@@ -759,69 +1351,27 @@ public class ContentHandler extends FragmentActivity
                     case HYMN_BANZOU:
                         // proceed to use HYMN_BANZOU if no midi files available
                         if (HymnsApp.getFileResId(MIDI_DB + hymnNo, "raw") != 0) {
-                            uriList.add(HymnsApp.getRawUri(MIDI_DB + hymnNo));
-                            uriList.add(HymnsApp.getRawUri(MIDI_DBC + hymnNo));
+                            // Play the midi main and accompany as a single stream with the in-app midi player
+                            uriList.add(MidiPlayer.getMergedUri(HymnsApp.getRawUri(MIDI_DB + hymnNo),
+                                    HymnsApp.getRawUri(MIDI_DBC + hymnNo)));
                             break;
                         }
 
-                        // https://heavenlyfood.cn/hymns/music/da/D45.mp3
-                        // https://heavenlyfood.cn/hymns/music/da/D781.mp3
-                        dir = mSelect + MEDIA_BANZOU;
+                        dir = hymnType + MEDIA_BANZOU;
                         fileName = "D" + hymnNo + ".mp3";
-
-                        if (isHFAvailable) {
-                            dnLink = "https://heavenlyfood.cn/hymns/music/da/" + fileName;
-                        }
-                        else if (TextUtils.isEmpty(fbLink)) {
-                            fbLink = String.format(Locale.US, "https://www.hymnal.net/cn/hymn/ch/%d/f=mid", hymnNo);
-                        }
+                        sourceType = MediaType.HYMN_BANZOU;
                         break;
 
                     case HYMN_JIAOCHANG:
-                        // https://heavenlyfood.cn/hymns/jiaochang/da/781.mp3;
-                        // https://heavenlyfood.cn/hymnal/诗歌/大本诗歌/02敬拜父006/D45父神我们称颂你.mp3
-                        // https://heavenlyfood.cn/hymnal/诗歌/大本诗歌/09经历基督367/D422主我还有谁在天上.mp3
-                        // https://heavenlyfood.cn/hymnal/诗歌/大本诗歌/30附/DF1颂赞与尊贵与荣耀归你.mp3
-                        dir = mSelect + MEDIA_JIAOCHANG;
+                        dir = hymnType + MEDIA_JIAOCHANG;
                         fileName = hymnNo + ".mp3";
-
-                        dnLink = "https://heavenlyfood.cn/hymns/jiaochang/da/" + fileName;
+                        sourceType = MediaType.HYMN_JIAOCHANG;
                         break;
 
                     case HYMN_CHANGSHI:
-                        dir = mSelect + MEDIA_CHANGSHI;
+                        dir = hymnType + MEDIA_CHANGSHI;
                         fileName = "D" + fileName;
-
-                        if (isHFAvailable) {
-                            String subLink = "";
-                            for (int x = 0; x < category_db.length; x++) {
-                                if (hymnNo < category_db[x]) {
-                                    if (hymnNo > HYMN_DB_NO_MAX) {
-                                        subLink = String.format(Locale.CHINA, "%02d%s/", x, hymnCategoryDb[x - 1]);
-                                    }
-                                    else {
-                                        subLink = String.format(Locale.CHINA, "%02d%s%03d/", x, hymnCategoryDb[x - 1],
-                                                category_db[x - 1]);
-                                    }
-                                    break;
-                                }
-                            }
-
-                            // Generate the resName for link creation
-                            String resName = DB_Links.get(hymnNo);
-                            if (resName == null) {
-                                if (hymnNo > HYMN_DB_NO_MAX) {
-                                    resName = "DF" + (hymnNo - HYMN_DB_NO_MAX) + lyricsPhrase;
-                                }
-                                else {
-                                    resName = "D" + hymnNo + lyricsPhrase;
-                                }
-                            }
-                            dnLink = "https://heavenlyfood.cn/hymnal/诗歌/大本诗歌/" + subLink + resName + ".mp3";
-                        }
-                        else if (TextUtils.isEmpty(fbLink)) {
-                            fbLink = String.format(Locale.US, "https://www.hymnal.net/cn/hymn/ch/%d/f=sing", hymnNo);
-                        }
+                        sourceType = MediaType.HYMN_CHANGSHI;
                         break;
                 }
                 break;
@@ -829,16 +1379,32 @@ public class ContentHandler extends FragmentActivity
 
         if (!TextUtils.isEmpty(fileName)) {
             File mediaFile = new File(FileBackend.getHymnchtvStore(dir, true), fileName);
-            if (mediaFile.exists()) {
-                uriList.add(Uri.fromFile(mediaFile));
+            File localFile = MediaBlobStore.getInstance().resolve(mediaFile);
+            if (localFile != null) {
+                uriList.add(Uri.fromFile(localFile));
+                // The local media of the offline hymn set is pinned against the quota eviction
+                if (prefetch != null)
+                    MediaQuota.getInstance(this).pin(mediaFile);
             }
-            else if (!TextUtils.isEmpty(fbLink) && proceedDownLoad) {
-                Timber.d("FileName = %s%s; fbLink = %s", dir, fileName, fbLink);
-                mMediaDownloadHandler.initHttpFileDownload(fbLink, dir, fileName);
-            }
-            else if (!TextUtils.isEmpty(dnLink) && proceedDownLoad) {
-                Timber.d("FileName = %s%s; dnLink = %s", dir, fileName, dnLink);
-                mMediaDownloadHandler.initHttpFileDownload(dnLink, dir, fileName);
+            else if (sourceType != null) {
+                // The online media mirror links, ranked by the host availability and the learned success rate
+                MediaSourceRules.HymnRef hymnRef = new MediaSourceRules.HymnRef(hymnType, hymnNo, fileName, hymn.lyricsPhrase);
+                List<String> links = MediaSourceResolver.getInstance()
+                        .sortLinks(mediaSourceRules.getLinks(hymnRef, sourceType));
+
+                if (links.isEmpty()) {
+                    Timber.w("No media source defined: %s%s", dir, fileName);
+                }
+                else if (prefetch != null) {
+                    prefetch.jobs.add(new DownloadJob(DownloadScheduler.encodeLink(links.get(0)), mediaFile, prefetch.batch));
+                }
+                else if (isPlaylist) {
+                    uriList.add(Uri.parse(links.get(0)));
+                }
+                else if (proceedDownLoad) {
+                    Timber.d("FileName = %s%s; links = %s", dir, fileName, links);
+                    mMediaDownloadHandler.initHttpFileDownload(links, dir, fileName);
+                }
             }
         }
         return uriList;
@@ -850,34 +1416,55 @@ public class ContentHandler extends FragmentActivity
      * @param dir the media local dir
      * @param fileName the media filename
      * @param uriList the media URI list
+     * @param prefetch the offline prefetch batch, for which the local media file is pinned; null if none
      * @return true if local media file is found else false
      */
-    private boolean isExist(String dir, String fileName, List<Uri> uriList)
+    private boolean isExist(String dir, String fileName, List<Uri> uriList, PrefetchBatch prefetch)
     {
-        File mediaFile = new File(FileBackend.getHymnchtvStore(dir, false), fileName);
-        if (mediaFile.exists()) {
+        File mediaFile = FileBackend.getMediaFile(dir, fileName);
+        if (mediaFile != null) {
             uriList.add(Uri.fromFile(mediaFile));
+            if (prefetch != null)
+                MediaQuota.getInstance(this).pin(new File(FileBackend.getHymnchtvStore(dir, false), fileName));
             return true;
         }
         return false;
     }
 
+    /**
+     * Refresh the media buttons state of the current hymn on the media availability changes e.g. download completed
+     *
+     * @param hymnType the hymnType of which the media availability has changed
+     */
+    @Override
+    public void onMediaIndexChanged(String hymnType)
+    {
+        if (hymnType.equals(mSelect) && (mHymnInfo != null)) {
+            mMediaGuiController.initHymnInfo(mHymnInfo, getHymnMediaState());
+        }
+    }
+
     private boolean isExist(String dir, String fileName)
     {
         File mediaFile = new File(FileBackend.getHymnchtvStore(dir, false), fileName);
-        return mediaFile.exists();
+        return MediaBlobStore.getInstance().isAvailable(mediaFile);
     }
 
     /**
-     * Get the local availability of the hymn media content for all mediaType
+     * Get the local availability of the hymn media content for all mediaType, from the in-memory MediaIndex
+     * without any I/O; fall back to the database and the media files check if the index is not ready yet.
      *
      * @return array of media content availability for all mediaType
      */
     private boolean[] getHymnMediaState()
     {
+        boolean[] mediaState = MediaIndex.getInstance().getMediaState(mSelect, hymnNo);
+        if (mediaState != null)
+            return mediaState;
+
         int i = 0;
         String dir;
-        String hymnTitle = getHymnTitle();
+        String hymnTitle = getHymnRef(mSelect, hymnNo).hymnTitle;
         boolean[] isAvailable = {false, false, false, false};
 
         // Check to see if HYMN_MEDIA is available for the current selected HymnType/HymnNo
@@ -939,35 +1526,33 @@ public class ContentHandler extends FragmentActivity
     }
 
     /**
-     * Generate the hymn fileName (remove all punctuation marks), and the lyricsPhrase
-     * Currently use in  MP3 media fileName is: ? + hymnNo + hymnTitle + ".mp3"
+     * Get the hymn information for the media controller.
+     *
+     * @return the hymn info for display
      */
-    private String getHymnTitle()
+    public String getHymnInfo()
     {
-        String pattern = "[，、‘’！：；。？]";
-        String hymnTitle = getHymnInfo().split(":\\s|？|（")[1].replaceAll(pattern, "");
-        // Strip off the hymn category prefix
-        int idx = hymnTitle.lastIndexOf("－");
-        if (idx != -1) {
-            hymnTitle = hymnTitle.substring(idx + 1);
-        }
-        return hymnTitle;
+        return getHymnRef(mSelect, hymnNo).hymnInfo;
     }
 
     /**
-     * Get the hymn information for the media controller.
-     * It always try to generate the possible lyricsPhrase for media download link
+     * Get the hymn reference of the given hymn, with the hymn info read from its lyrics text.
+     * It always try to generate the possible lyricsPhrase for media download link; and the hymn title for
+     * the MP3 media fileName i.e. ? + hymnNo + hymnTitle + ".mp3"
      *
-     * @return the hymn info for display
+     * @param hymnType the hymnType
+     * @param hymnNo the hymnNo
+     * @return the hymn reference
      */
-    public String getHymnInfo()
+    HymnRef getHymnRef(String hymnType, int hymnNo)
     {
         String fName = "";
+        String lyricsPhrase = "";
         String hymnInfo = "";
         String hymnTitle = "";
         Resources res = getResources();
 
-        switch (mSelect) {
+        switch (hymnType) {
             case HYMN_ER:
                 fName = LYRICS_ER_TEXT + "er" + hymnNo + ".txt";
                 break;
@@ -985,11 +1570,10 @@ public class ContentHandler extends FragmentActivity
                 break;
         }
 
-        try {
-            InputStream in2 = getResources().getAssets().open(fName);
+        try (InputStream in2 = getResources().getAssets().open(fName)) {
             byte[] buffer2 = new byte[in2.available()];
             if (in2.read(buffer2) == -1)
-                return hymnInfo;
+                return new HymnRef(hymnType, hymnNo, hymnInfo, "", lyricsPhrase);
 
             String mResult = EncodingUtils.getString(buffer2, "utf-8");
             String[] mList = mResult.split("\r\n|\n");
@@ -1010,7 +1594,6 @@ public class ContentHandler extends FragmentActivity
                 tmp = mList[idx++];
             }
 
-            lyricsPhrase = "";
             mList = tmp.split("[，、‘’！：；。？]");
             for (String s : mList) {
                 if (lyricsPhrase.length() < 6)
@@ -1022,7 +1605,7 @@ public class ContentHandler extends FragmentActivity
             hymnTitle = hymnTitle + HymnsApp.getResString(R.string.gui_error_file_not_found, fName);
         }
 
-        switch (mSelect) {
+        switch (hymnType) {
             case HYMN_ER:
                 hymnInfo = res.getString(R.string.hymn_title_mc_er, hymnNo, hymnTitle);
                 break;
@@ -1041,7 +1624,15 @@ public class ContentHandler extends FragmentActivity
                 }
                 break;
         }
-        return hymnInfo;
+
+        // Generate the hymn fileName (remove all punctuation marks), and strip off the hymn category prefix
+        String[] infos = hymnInfo.split(":\\s|？|（");
+        String title = (infos.length > 1) ? infos[1].replaceAll("[，、‘’！：；。？]", "") : "";
+        int idx = title.lastIndexOf("－");
+        if (idx != -1) {
+            title = title.substring(idx + 1);
+        }
+        return new HymnRef(hymnType, hymnNo, hymnInfo, title, lyricsPhrase);
     }
 
     /**
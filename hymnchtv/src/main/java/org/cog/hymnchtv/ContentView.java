@@ -19,9 +19,12 @@ package org.cog.hymnchtv;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
-import android.text.TextUtils;
+import android.text.*;
+import android.text.style.BackgroundColorSpan;
 import android.view.*;
 import android.widget.ImageView;
+import android.widget.ScrollView;
+import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -35,9 +38,13 @@ import org.cog.hymnchtv.utils.ZoomTextView;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 
 import timber.log.Timber;
 
+import static org.cog.hymnchtv.ContentHandler.PAGER_OFFSCREEN_DEFAULT;
+import static org.cog.hymnchtv.ContentHandler.PREF_LYRICS_SYNC;
+import static org.cog.hymnchtv.ContentHandler.PREF_PAGER_OFFSCREEN;
 import static org.cog.hymnchtv.MainActivity.HYMN_BB;
 import static org.cog.hymnchtv.MainActivity.HYMN_DB;
 import static org.cog.hymnchtv.MainActivity.HYMN_ER;
@@ -50,6 +57,9 @@ import static org.cog.hymnchtv.MainActivity.PREF_SETTINGS;
  *
  * Note: The context menu needs to be created here, instead its parent, for it to be visible
  *
+ * The lyrics text line being sung is highlighted and scrolled into view for the karaoke lyrics time sync;
+ * the highlight span is reused, and the text is updated only when the highlighted line changes.
+ *
  * @author Eng Chong Meng
  */
 public class ContentView extends Fragment implements ZoomTextView.ZoomTextListener
@@ -75,6 +85,9 @@ public class ContentView extends Fragment implements ZoomTextView.ZoomTextListen
     public static final String PREF_LYRICS_SCALE_P = "LyricsScaleP";
     public static final String PREF_LYRICS_SCALE_L = "LyricsScaleL";
 
+    // The karaoke lyrics line highlight color
+    private static final int HIGHLIGHT_COLOR = 0x66FFC107;
+
     private FragmentActivity mContext;
 
     private View mConvertView;
@@ -84,6 +97,13 @@ public class ContentView extends Fragment implements ZoomTextView.ZoomTextListen
     private ImageView mContentView = null;
     private Integer hymnNoEng = null;
 
+    // The text offsets of the non-blank lyrics text lines, and the highlighted line index for the lyrics time sync
+    private int[] mLineStarts = new int[0];
+    private int[] mLineEnds = new int[0];
+    private int mLineCount = 0;
+    private int mSyncLine = -1;
+    private final BackgroundColorSpan mHighlightSpan = new BackgroundColorSpan(HIGHLIGHT_COLOR);
+
     private static float lyricsScaleP;
     private static float lyricsScaleL;
 
@@ -153,6 +173,12 @@ public class ContentView extends Fragment implements ZoomTextView.ZoomTextListen
 
         // Hide "英文歌词" if no associated English lyrics
         menu.findItem(R.id.lyrcsEnglish).setVisible(hymnNoEng != null);
+        menu.findItem(R.id.lyricsSync).setChecked(mSharedPref.getBoolean(PREF_LYRICS_SYNC, true));
+        menu.findItem(R.id.pitchPractice).setChecked(((ContentHandler) mContext).isPitchPractice());
+
+        int offscreenLimit = mSharedPref.getInt(PREF_PAGER_OFFSCREEN, PAGER_OFFSCREEN_DEFAULT);
+        menu.findItem((offscreenLimit >= 3) ? R.id.pagerOffscreen3
+                : (offscreenLimit == 2) ? R.id.pagerOffscreen2 : R.id.pagerOffscreen1).setChecked(true);
     }
 
     /**
@@ -167,9 +193,6 @@ public class ContentView extends Fragment implements ZoomTextView.ZoomTextListen
      */
     private void updateHymnContent(String hymnType, int hymnIndex)
     {
-        String resPrefix;
-        String resFName;
-
         int[] hymnScoreInfo = HymnIdx2NoConvert.hymnIdx2NoConvert(hymnType, hymnIndex);
 
         // Chinese lyrics#
@@ -178,38 +201,47 @@ public class ContentView extends Fragment implements ZoomTextView.ZoomTextListen
         // get the corresponding English lyrics# or null if none
         hymnNoEng = HymnNoCh2EngXRef.hymnNoCh2EngConvert(hymnType, lyricsNo);
 
+        String[] lyricsRes = getLyricsResource(hymnType, lyricsNo);
+        if (lyricsRes == null) {
+            Timber.e("Unsupported content type: %s", hymnType);
+            return;
+        }
+        String resPrefix = lyricsRes[0];
+        String resFName = lyricsRes[1];
+
+        // Show Hymn Lyric Scores for the selected hymnNo
+        showLyricsScore(resPrefix, hymnScoreInfo);
+
+        // Show Hymn Lyric Text for the selected hymnNo
+        if (!TextUtils.isEmpty(resFName)) {
+            showLyricsChText(resFName);
+        }
+    }
+
+    /**
+     * Get the asset resource names of the lyrics scores and lyrics text for the given hymnType and lyrics number.
+     *
+     * @param hymnType HYMN_ER, HYMN_XB, HYMN_BB or HYMN_DB
+     * @param lyricsNo the hymn lyrics number
+     * @return {lyrics score fileName prefix, lyrics text fileName}, or null if hymnType is unsupported
+     */
+    public static String[] getLyricsResource(String hymnType, int lyricsNo)
+    {
         switch (hymnType) {
             case HYMN_ER:
-                resPrefix = LYRICS_ER_SCORE + lyricsNo;
-                resFName = LYRICS_ER_TEXT + "er" + lyricsNo + ".txt";
-                break;
+                return new String[]{LYRICS_ER_SCORE + lyricsNo, LYRICS_ER_TEXT + "er" + lyricsNo + ".txt"};
 
             case HYMN_XB:
-                resPrefix = LYRICS_XB_SCORE + "xb" + lyricsNo;
-                resFName = LYRICS_XB_TEXT + "xb" + lyricsNo + ".txt";
-                break;
+                return new String[]{LYRICS_XB_SCORE + "xb" + lyricsNo, LYRICS_XB_TEXT + "xb" + lyricsNo + ".txt"};
 
             case HYMN_BB:
-                resPrefix = LYRICS_BB_SCORE + "bb" + lyricsNo;
-                resFName = LYRICS_BBS_TEXT + lyricsNo + ".txt";
-                break;
+                return new String[]{LYRICS_BB_SCORE + "bb" + lyricsNo, LYRICS_BBS_TEXT + lyricsNo + ".txt"};
 
             case HYMN_DB:
-                resPrefix = LYRICS_DB_SCORE + "db" + lyricsNo;
-                resFName = LYRICS_DBS_TEXT + lyricsNo + ".txt";
-                break;
+                return new String[]{LYRICS_DB_SCORE + "db" + lyricsNo, LYRICS_DBS_TEXT + lyricsNo + ".txt"};
 
             default:
-                Timber.e("Unsupported content type: %s", hymnType);
-                return;
-        }
-
-        // Show Hymn Lyric Scores for the selected hymnNo
-        showLyricsScore(resPrefix, hymnScoreInfo);
-
-        // Show Hymn Lyric Text for the selected hymnNo
-        if (!TextUtils.isEmpty(resFName)) {
-            showLyricsChText(resFName);
+                return null;
         }
     }
 
@@ -287,12 +319,88 @@ public class ContentView extends Fragment implements ZoomTextView.ZoomTextListen
                 lyrics.append(line);
                 lyrics.append('\n');
             }
-            lyricsTextView.setText(lyrics);
+            lyricsTextView.setText(lyrics, TextView.BufferType.SPANNABLE);
+            initLyricsLines(lyrics);
         } catch (IOException e) {
             Timber.w("Error reading file: %s", resFName);
         }
     }
 
+    /**
+     * Find the text offsets of all the non-blank lyrics lines for the lyrics time sync highlight
+     *
+     * @param lyrics the lyrics text
+     */
+    private void initLyricsLines(CharSequence lyrics)
+    {
+        int length = lyrics.length();
+        int count = 0;
+        int[] starts = new int[64];
+        int[] ends = new int[64];
+
+        int start = 0;
+        while (start < length) {
+            int end = start;
+            while ((end < length) && (lyrics.charAt(end) != '\n'))
+                end++;
+
+            if (!TextUtils.isEmpty(lyrics.subSequence(start, end).toString().trim())) {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                    ends = Arrays.copyOf(ends, count * 2);
+                }
+                starts[count] = start;
+                ends[count] = end;
+                count++;
+            }
+            start = end + 1;
+        }
+        mLineStarts = starts;
+        mLineEnds = ends;
+        mLineCount = count;
+        mSyncLine = -1;
+    }
+
+    /**
+     * Highlight the given lyrics line, and scroll it into view; no action if the line is unchanged.
+     *
+     * @param line the non-blank lyrics line index; or -1 to remove the highlight
+     */
+    public void highlightLyricsLine(int line)
+    {
+        if ((line == mSyncLine) || !(lyricsTextView.getText() instanceof Spannable))
+            return;
+
+        mSyncLine = line;
+        Spannable lyrics = (Spannable) lyricsTextView.getText();
+        if ((line < 0) || (line >= mLineCount)) {
+            lyrics.removeSpan(mHighlightSpan);
+            return;
+        }
+        // Setting the same span again moves it to the new line
+        lyrics.setSpan(mHighlightSpan, mLineStarts[line], mLineEnds[line], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+
+        // Keep the highlighted line at the upper third of the lyrics view
+        Layout layout = lyricsTextView.getLayout();
+        if ((layout != null) && (mConvertView instanceof ScrollView)) {
+            int top = lyricsTextView.getTop() + layout.getLineTop(layout.getLineForOffset(mLineStarts[line]));
+            ((ScrollView) mConvertView).smoothScrollTo(0, Math.max(0, top - mConvertView.getHeight() / 3));
+        }
+    }
+
+    /**
+     * Set the lyrics text tap listener for the lyrics timing track capture; the lyrics text is not clickable
+     * otherwise, so the long press for the context menu is not affected.
+     *
+     * @param listener the lyrics text tap listener; null to end the capture
+     */
+    public void setLyricsTapListener(View.OnClickListener listener)
+    {
+        lyricsTextView.setOnClickListener(listener);
+        if (listener == null)
+            lyricsTextView.setClickable(false);
+    }
+
     /**
      * Update the lyrics text view default size and the stored scale factor
      * Also being used onConfiguration change
@@ -315,12 +423,16 @@ public class ContentView extends Fragment implements ZoomTextView.ZoomTextListen
     }
 
     /**
-     * Save the user selected scale factory to preference settings
+     * Save the user selected scale factory to preference settings; called once at the end of each zoom gesture.
+     * The preference is written asynchronously, and only if it has been changed.
      * @param scaleFactor scale factor
      */
     @Override
     public void updateTextScale(Float scaleFactor)
     {
+        if (scaleFactor == (HymnsApp.isPortrait ? lyricsScaleP : lyricsScaleL))
+            return;
+
         if (HymnsApp.isPortrait) {
             lyricsScaleP = scaleFactor;
             mEditor.putFloat(PREF_LYRICS_SCALE_P, scaleFactor);
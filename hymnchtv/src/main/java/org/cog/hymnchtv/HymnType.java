@@ -0,0 +1,38 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv;
+
+/**
+ * The hymnType and hymnNo constants shared by the UI and the plain java classes e.g. the MediaSourceRules;
+ * this class must not have any android dependency.
+ *
+ * @author Eng Chong Meng
+ */
+public final class HymnType
+{
+    public static final String HYMN_ER = "hymn_er";
+    public static final String HYMN_XB = "hymn_xb";
+    public static final String HYMN_BB = "hymn_bb";
+    public static final String HYMN_DB = "hymn_db";
+
+    // Maximum HymnNo of 大本诗歌; its supplement (附) hymnNo is HYMN_DB_NO_MAX + fu Number
+    public static final int HYMN_DB_NO_MAX = 780;
+
+    private HymnType()
+    {
+    }
+}
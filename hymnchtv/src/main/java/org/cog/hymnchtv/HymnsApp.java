@@ -32,12 +32,16 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.lifecycle.*;
 
+import org.cog.hymnchtv.download.MediaPrefetcher;
 import org.cog.hymnchtv.impl.timberlog.TimberLogImpl;
+import org.cog.hymnchtv.mediaconfig.MediaLibraryScanner;
 import org.cog.hymnchtv.persistance.DatabaseBackend;
+import org.cog.hymnchtv.persistance.MediaQuota;
 import org.cog.hymnchtv.service.androidnotification.NotificationHelper;
 import org.cog.hymnchtv.service.androidupdate.OnlineUpdateService;
 import org.cog.hymnchtv.service.androidupdate.UpdateServiceImpl;
 import org.cog.hymnchtv.utils.DialogActivity;
+import org.cog.hymnchtv.utils.MemoryGovernor;
 
 import java.util.List;
 
@@ -106,6 +110,9 @@ public class HymnsApp extends Application implements LifecycleEventObserver
         ProcessLifecycleOwner.get().getLifecycle().addObserver(this);
         mMediaDownloadHandler = new MediaDownloadHandler();
 
+        // Release the long-lived caches and idle players when the system is running low in memory
+        registerComponentCallbacks(MemoryGovernor.getInstance(this));
+
         // Get android device screen display size
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
             Point size = new Point();
@@ -122,6 +129,15 @@ public class HymnsApp extends Application implements LifecycleEventObserver
         }
         // Purge all the previously old downloaded apk
         UpdateServiceImpl.getInstance().removeOldDownloads();
+
+        // Resume the pending media downloads and the offline prefetch queued before the app restart
+        MediaPrefetcher.getInstance(this);
+
+        // Track the media usage, and keep the downloaded media within the user set quota
+        MediaQuota.getInstance(this);
+
+        // Register the new or changed media files in the media library folders, and watch for the changes
+        MediaLibraryScanner.getInstance(this).scan(null);
     }
 
     @Override
@@ -28,7 +28,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.graphics.Typeface;
-import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
@@ -71,10 +70,10 @@ public class MainActivity extends FragmentActivity implements AdapterView.OnItem
     public static final String ATTR_PAGE = "page";
     public static final String ATTR_AUTO_PLAY = "autoPlay";
 
-    public static final String HYMN_ER = "hymn_er";
-    public static final String HYMN_XB = "hymn_xb";
-    public static final String HYMN_BB = "hymn_bb";
-    public static final String HYMN_DB = "hymn_db";
+    public static final String HYMN_ER = HymnType.HYMN_ER;
+    public static final String HYMN_XB = HymnType.HYMN_XB;
+    public static final String HYMN_BB = HymnType.HYMN_BB;
+    public static final String HYMN_DB = HymnType.HYMN_DB;
 
     public static final String PREF_MENU_SHOW = "MenuShow";
     public static final String PREF_SETTINGS = "Settings";
@@ -782,21 +781,21 @@ public class MainActivity extends FragmentActivity implements AdapterView.OnItem
     }
 
     /**
-     * Init the main UI wallpaper with one of the predefined image in drawable or user own if bgResId == -1
+     * Init the main UI wallpaper with one of the predefined image in drawable or user own if bgResId == -1;
+     * the wallpaper is decoded in the background to the exact view size.
      */
     private void setWallpaper()
     {
         mSharedPref = getSharedPreferences(PREF_SETTINGS, 0);
         int bgResId = mSharedPref.getInt(PREF_BACKGROUND, 5);
         if (bgResId != -1) {
-            background.setBackgroundResource(MainActivity.bgResId[bgResId]);
+            WallpaperLoader.loadWallpaper(background, MainActivity.bgResId[bgResId]);
         }
         else {
             String fileName = mSharedPref.getString(PREF_WALLPAPER, null);
             File wpFile = FileBackend.getHymnchtvStore(DIR_WALLPAPER + fileName, false);
             if ((wpFile != null) && wpFile.exists()) {
-                Drawable drawable = Drawable.createFromPath(wpFile.getAbsolutePath());
-                background.setBackground(drawable);
+                WallpaperLoader.loadWallpaper(background, wpFile);
             }
         }
     }
@@ -885,7 +884,7 @@ public class MainActivity extends FragmentActivity implements AdapterView.OnItem
     {
         mEditor.putInt(PREF_BACKGROUND, bgMode);
         mEditor.apply();
-        background.setBackgroundResource(resid);
+        WallpaperLoader.loadWallpaper(background, resid);
     }
 
     /**
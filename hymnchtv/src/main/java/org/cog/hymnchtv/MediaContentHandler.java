@@ -84,6 +84,39 @@ public class MediaContentHandler
         return false;
     }
 
+    /**
+     * Get the user defined hymn audio media uri for the playlist; the video media is not supported and not played.
+     *
+     * @return true if the audio media uri is available and added to the uriList
+     */
+    public boolean getAudioUris(String hymnTable, int hymnNo, MediaType mediaType, List<Uri> uriList)
+    {
+        boolean isFu = hymnTable.equals(HYMN_DB) && (hymnNo > HYMN_DB_NO_MAX);
+        MediaRecord mediaRecord = new MediaRecord(hymnTable, hymnNo, isFu, mediaType);
+        if (mDB.getMediaRecord(mediaRecord, true)) {
+            String mediaFile = mediaRecord.getMediaFilePath();
+            if (!TextUtils.isEmpty(mediaFile) && new File(mediaFile).exists()) {
+                return addAudioUri(Uri.fromFile(new File(mediaFile)), uriList);
+            }
+
+            String mediaUrl = mediaRecord.getMediaUri();
+            if (!TextUtils.isEmpty(mediaUrl) && URLUtil.isValidUrl(mediaUrl)) {
+                return addAudioUri(Uri.parse(mediaUrl), uriList);
+            }
+        }
+        return false;
+    }
+
+    private boolean addAudioUri(Uri uri, List<Uri> uriList)
+    {
+        String mimeType = FileBackend.getMimeType(mContext, uri);
+        if (!TextUtils.isEmpty(mimeType) && mimeType.contains("audio")) {
+            uriList.add(uri);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Start playback the given mediaUrl if it it is youtube link;
      * or an internet video link, or local stored video media content
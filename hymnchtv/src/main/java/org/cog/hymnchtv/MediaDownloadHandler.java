@@ -16,59 +16,62 @@
  */
 package org.cog.hymnchtv;
 
-import android.app.DownloadManager;
-import android.content.*;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
 import android.view.*;
-import android.widget.ProgressBar;
-import android.widget.TextView;
+import android.widget.*;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
+import org.cog.hymnchtv.download.DownloadJob;
+import org.cog.hymnchtv.download.DownloadScheduler;
+import org.cog.hymnchtv.download.MediaSourceResolver;
 import org.cog.hymnchtv.persistance.FileBackend;
-import org.cog.hymnchtv.persistance.FilePathHelper;
 import org.cog.hymnchtv.utils.AndroidUtils;
 import org.cog.hymnchtv.utils.ByteFormat;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.util.*;
 
 import timber.log.Timber;
 
+import static org.cog.hymnchtv.download.DownloadScheduler.MAX_IDLE_TIME;
+
 /**
  * Class implements the media content handler. It proceeds to download median from online source
  * if there is no local resource available.
  *
+ * The downloads are queued and run by the DownloadScheduler; the UI shows the progress of all the pending
+ * download jobs, up to MAX_JOB_VIEWS, as driven by the scheduler progress events. The offline prefetch batch jobs
+ * are not shown; their progress is shown in the MediaPrefetcher notification instead.
+ *
  * Must have only one instance of this class running at any one time; else UI display may have problem.
  *
  * @author Eng Chong Meng
  */
-public class MediaDownloadHandler extends Fragment
+public class MediaDownloadHandler extends Fragment implements DownloadScheduler.DownloadListener
 {
+    // The max number of the job progress views shown
+    private static final int MAX_JOB_VIEWS = 4;
+
     public View fileXferUi;
-    private TextView fileLabel = null;
+    private TextView fileJobs = null;
     private TextView fileStatus = null;
-    private TextView fileXferSpeed = null;
-    private TextView estTimeRemain = null;
-    private ProgressBar progressBar = null;
+    private LinearLayout jobsView = null;
 
-    /* DownloadManager Broadcast Receiver Handler */
-    private DownloadManager downloadManager;
-    private DownloadReceiver downloadReceiver = null;
+    /* The job progress views of <jobId, view> */
+    private final Map<Long, View> jobViews = new HashMap<>();
 
-    /* previousDownloads map of <DownloadJobId, @notNull destFile>; need TreeMap.lastKey */
-    private final static NavigableMap<Long, File> fileDownloads = new TreeMap<>();
-    private final static NavigableMap<Long, String> linkDownloads = new TreeMap<>();
+    private DownloadScheduler mScheduler;
 
-    // File download variables
-    protected File mXferFile;
+    // To start the download of the resolved mirror link on the main thread
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // The last user requested download file, to be played on its download completion
+    private File mPlayFile = null;
 
     private ContentHandler mContentHandler;
 
@@ -80,12 +83,10 @@ public class MediaDownloadHandler extends Fragment
     {
         View convertView = inflater.inflate(R.layout.file_xfer_ui, container, false);
 
-        fileLabel = convertView.findViewById(R.id.filexferFileNameView);
+        fileJobs = convertView.findViewById(R.id.filexferJobsView);
         fileStatus = convertView.findViewById(R.id.filexferStatusView);
-
-        progressBar = convertView.findViewById(R.id.file_progressbar);
-        fileXferSpeed = convertView.findViewById(R.id.file_progressSpeed);
-        estTimeRemain = convertView.findViewById(R.id.file_estTime);
+        jobsView = convertView.findViewById(R.id.filexferJobs);
+        jobViews.clear();
 
         // Hide the file xfer UI on start
         fileXferUi = convertView.findViewById(R.id.filexferUi);
@@ -103,16 +104,25 @@ public class MediaDownloadHandler extends Fragment
         if (mContentHandler == null)
             return;
 
-        if (downloadManager == null)
-            downloadManager = HymnsApp.getDownloadManager();
+        mScheduler = DownloadScheduler.getInstance(mContentHandler);
+        mScheduler.addListener(this);
 
-        if (downloadReceiver == null) {
-            downloadReceiver = new DownloadReceiver();
-            HymnsApp.getGlobalContext().registerReceiver(downloadReceiver,
-                    new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+        // Show the downloads in progress e.g. restored after the app restart
+        List<DownloadJob> jobs = mScheduler.getJobs();
+        if (!jobs.isEmpty()) {
+            fileXferUi.setVisibility(View.VISIBLE);
+            onDownloadProgress(jobs);
         }
     }
 
+    @Override
+    public void onPause()
+    {
+        super.onPause();
+        if (mScheduler != null)
+            mScheduler.removeListener(this);
+    }
+
     /**
      * Returns the string, showing information for the given file.
      *
@@ -130,13 +140,15 @@ public class MediaDownloadHandler extends Fragment
     // Routines supporting File Download
 
     /**
-     * Call from ContentHandler to fetch the requested media fName from the specified dnLnk
+     * Call from ContentHandler to fetch the requested media fName from the specified mirror links. The mirror
+     * links are probed concurrently, and the download is started with the first mirror responded; fallback to
+     * the best ranked mirror if none has responded.
      *
-     * @param dnLnk    the source link for downloading file.
+     * @param links    the source mirror links for downloading file, see MediaSourceRules.
      * @param dir      the destination dir for the downloaded file.
      * @param fileName the downloaded filename.
      */
-    public void initHttpFileDownload(String dnLnk, String dir, String fileName)
+    public void initHttpFileDownload(List<String> links, String dir, String fileName)
     {
         File subDir = FileBackend.getHymnchtvStore(dir, true);
         if (subDir == null) {
@@ -145,373 +157,177 @@ public class MediaDownloadHandler extends Fragment
         }
 
         File destFile = new File(subDir, fileName);
-        if (fileDownloads.containsValue(destFile)) {
-            HymnsApp.showToastMessage(R.string.gui_download_wait);
-            fileXferUi.setVisibility(View.VISIBLE);
-            Timber.w("Skip duplicated download file request: %s", destFile.getAbsolutePath());
-            return;
-        }
-
+        mPlayFile = destFile;
         fileXferUi.setVisibility(View.VISIBLE);
         fileStatus.setVisibility(View.GONE);
-        fileLabel.setText(getFileLabel(fileName, mFileSize));
-
-        String encDnLnk = dnLnk;
-        try {
-            // Need to encode chinese link for safe access; revert all "%3A" and "%2F" to ":" and "/" etc
-            encDnLnk = AndroidUtils.UrlEncode(dnLnk);
-        } catch (UnsupportedEncodingException e) {
-            Timber.w("Exception in URLEncoder.encode (%s): %s", fileName, e.getMessage());
-        }
-        Uri uri = Uri.parse(encDnLnk);
 
-        long jobId = download(uri, fileName);
-        if (jobId != -1) {
-            fileDownloads.put(jobId, destFile);
-            linkDownloads.put(jobId, encDnLnk);
-            startProgressChecker();
-        }
-        else {
-            fileXferUi.setVisibility(View.GONE);
+        if (mScheduler.isPending(destFile)) {
+            HymnsApp.showToastMessage(R.string.gui_download_wait);
+            Timber.w("Skip duplicated download file request: %s", destFile.getAbsolutePath());
+            return;
         }
-    }
 
-    /**
-     * Schedules media file download.
-     */
-    private long download(Uri uri, String fileName)
-    {
-        DownloadManager.Request request = new DownloadManager.Request(uri);
-        request.setNotificationVisibility(DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED);
-
-        File tmpFile = new File(fileName);
-        try {
-            mXferFile = new File(FileBackend.getHymnchtvStore(FileBackend.TMP, true), fileName);
-            request.setDestinationUri(Uri.fromFile(mXferFile));
-
-            return downloadManager.enqueue(request);
-        } catch (SecurityException e) {
-            HymnsApp.showToastMessage(e.getMessage());
-        } catch (Exception e) {
-            Timber.w("Download Manager failed for: %s; %s", tmpFile.getAbsolutePath(), e.getMessage());
-            HymnsApp.showToastMessage(R.string.gui_file_DOES_NOT_EXIST);
+        List<String> encLinks = new ArrayList<>();
+        for (String link : links) {
+            encLinks.add(DownloadScheduler.encodeLink(link));
         }
-        return -1;
-    }
-
-    private class DownloadReceiver extends BroadcastReceiver
-    {
-        @Override
-        public void onReceive(Context context, Intent intent)
-        {
-            // Fetching the download id received with the broadcast and
-            // if the received broadcast is for our enqueued download by matching download id
-            long downloadJobId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
-            int downloadJobStatus = checkDownloadStatus(downloadJobId);
-
-            if (fileDownloads.containsKey(downloadJobId)) {
-                String dnLink = linkDownloads.get(downloadJobId);
-
-                if (downloadJobStatus == DownloadManager.STATUS_SUCCESSFUL) {
-                    Uri fileUri = downloadManager.getUriForDownloadedFile(downloadJobId);
-                    File inFile = new File(FilePathHelper.getFilePath(context, fileUri));
-
-                    if (inFile.exists()) {
-                        // update fileSize for progress bar update, in case it is still not updated by download Manager
-                        mFileSize = inFile.length();
-                        File destFile = fileDownloads.get(downloadJobId);
-                        // destFile will always not null; just to keep AS happy
-                        String destFName = (destFile != null) ? destFile.getName() : "";
-
-                        // Rename will move the received media infile to destFile dir.
-                        // mFileSize == 1 if file not found online
-                        if ((mFileSize > 200) && (destFile != null) && inFile.renameTo(destFile)) {
-                            String uiLabel = fileLabel.getText().toString();
-                            Timber.d("Downloaded file: %s (size: %s); label: %s; uiShown: %s",
-                                    destFName, mFileSize, uiLabel, fileXferUi.isShown());
-
-                            // Start playing only if the same player user still stay put.
-                            // Otherwise, ui is not sync and user has no control of the play back
-                            if (fileXferUi.isShown() && uiLabel.startsWith(destFName)) {
-                                mContentHandler.startPlay();
-                            }
-                        }
-                        else {
-                            HymnsApp.showToastMessage(R.string.gui_file_DOWNLOAD_FAILED, dnLink);
-                            Timber.d("Downloaded file failed: %s (size: %s) <= %s",
-                                    inFile.getAbsolutePath(), mFileSize, dnLink);
-                        }
-                    }
-                }
-                else if (downloadJobStatus == DownloadManager.STATUS_FAILED) {
-                    onError(HymnsApp.getResString(R.string.gui_file_DOWNLOAD_FAILED, dnLink));
-                }
-            }
-            // Remove lastDownloadId from downloadManager record and delete the tmp file
-            downloadManager.remove(downloadJobId);
-            fileDownloads.remove(downloadJobId);
-            linkDownloads.remove(downloadJobId);
-
-            if (fileDownloads.isEmpty())
-                fileXferUi.setVisibility(View.GONE);
 
+        if (encLinks.size() == 1) {
+            mScheduler.enqueue(encLinks.get(0), destFile);
+            return;
         }
-    }
 
-    private void onError(String statusText)
-    {
-        fileStatus.setVisibility(View.GONE);
-        fileStatus.setText(statusText);
-        mContentHandler.onError(statusText);
+        MediaSourceResolver resolver = MediaSourceResolver.getInstance();
+        resolver.resolve(encLinks, link -> mHandler.post(() -> {
+            String dnLnk = (link != null) ? link : resolver.getBestLink(encLinks);
+            Timber.d("Mirror link resolved: %s => %s", link, dnLnk);
+            if (!mScheduler.isPending(destFile))
+                mScheduler.enqueue(dnLnk, destFile);
+        }));
     }
 
     /**
-     * Get the jobId for the given dnFile
+     * Update the progress views of the pending jobs; the views of the finished jobs are removed.
      *
-     * @param dnFile previously download File
-     * @return jobId for the dnFile if available else -1
+     * @param allJobs all the pending jobs in the queue order
      */
-    private long getJobId(File dnFile)
-    {
-        for (Map.Entry<Long, File> entry : fileDownloads.entrySet()) {
-            if (entry.getValue().equals(dnFile)) {
-                return entry.getKey();
-            }
-        }
-        return -1;
-    }
-
-    //=========================================================
-    /*
-     * Monitoring file download progress
-     */
-    private static final int PROGRESS_DELAY = 1000;
-
-    // The maximum download idle time (60 seconds) before it is forced stop
-    private static final int MAX_IDLE_TIME = 60;
-
-    private boolean isProgressCheckerRunning = false;
-    private final Handler handler = new Handler();
-
-    private long previousProgress;
-    private int waitTime;
-
-    /**
-     * The size of the file to be transferred.
-     */
-    private long mFileSize = 0;
-
-    /**
-     * The time of the last fileTransfer update.
-     */
-    private long mLastTimestamp = -1;
-
-    /**
-     * The number of bytes in last transferred.
-     */
-    private long mLastTransferredBytes = 0;
-
-    /**
-     * The last calculated average progress speed.
-     */
-    private long mTransferSpeedAverage = 0;
-
-    /**
-     * The last estimated remaining time.
-     */
-    private long mEstimatedTimeLeft = -1;
-
-    /**
-     * Starts monitoring the download progress.
-     *
-     * This method is safe to call multiple times. Starting an already running progress checker is a no-op.
-     */
-    private void startProgressChecker()
+    @Override
+    public void onDownloadProgress(List<DownloadJob> allJobs)
     {
-        if (!isProgressCheckerRunning) {
-            isProgressCheckerRunning = true;
-
-            mLastTransferredBytes = 0;
-            waitTime = MAX_IDLE_TIME;
-            previousProgress = -1;
+        if (jobsView == null)
+            return;
 
-            progressChecker.run();
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (DownloadJob job : allJobs) {
+            if (job.getBatch() == null)
+                jobs.add(job);
         }
-    }
 
-    /**
-     * Stops monitoring download progress.
-     */
-    private void stopProgressChecker()
-    {
-        isProgressCheckerRunning = false;
-        handler.removeCallbacks(progressChecker);
-    }
-
-    /**
-     * Checks download progress and updates status, then re-schedules itself.
-     */
-    private final Runnable progressChecker = new Runnable()
-    {
-        @Override
-        public void run()
-        {
-            if (isProgressCheckerRunning) {
-                checkProgress();
-                handler.postDelayed(this, PROGRESS_DELAY);
+        Set<Long> shownJobs = new HashSet<>();
+        for (DownloadJob job : jobs) {
+            if (shownJobs.size() >= MAX_JOB_VIEWS)
+                break;
+
+            shownJobs.add(job.getJobId());
+            View jobView = jobViews.get(job.getJobId());
+            if (jobView == null) {
+                jobView = LayoutInflater.from(jobsView.getContext()).inflate(R.layout.file_xfer_item, jobsView, false);
+                jobsView.addView(jobView);
+                jobViews.put(job.getJobId(), jobView);
             }
+            updateJobView(jobView, job);
         }
-    };
 
-    /**
-     * Queries the <tt>DownloadManager</tt> for the status of download job identified by the given <tt>id</tt>.
-     *
-     * @param id download identifier which status will be returned.
-     * @return download status of the job identified by given id. If the given job is not found
-     *
-     * {@link DownloadManager#STATUS_FAILED} will be returned.
-     */
-    private int checkDownloadStatus(long id)
-    {
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(id);
-
-        try (Cursor cursor = downloadManager.query(query)) {
-            if (!cursor.moveToFirst())
-                return DownloadManager.STATUS_FAILED;
-            else {
-                return cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
+        Iterator<Map.Entry<Long, View>> iterator = jobViews.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, View> entry = iterator.next();
+            if (!shownJobs.contains(entry.getKey())) {
+                jobsView.removeView(entry.getValue());
+                iterator.remove();
             }
         }
+
+        fileJobs.setText(HymnsApp.getResString(R.string.gui_download_jobs, jobs.size()));
+        if (jobs.isEmpty() && (fileStatus.getVisibility() != View.VISIBLE))
+            fileXferUi.setVisibility(View.GONE);
     }
 
     /**
-     * Checks and show to user download progress for the last file transfer task entry only
+     * Start playing the downloaded media only if the same player user still stay put.
+     * Otherwise, ui is not sync and user has no control of the play back
+     *
+     * @param job the completed job
      */
-    private void checkProgress()
+    @Override
+    public void onDownloadCompleted(DownloadJob job)
     {
-        if (fileDownloads.isEmpty()) {
-            stopProgressChecker();
-            return;
-        }
-
-        File lastdestFile = fileDownloads.get(fileDownloads.lastKey());
-        long lastDownloadId = getJobId(lastdestFile);
-        if (lastDownloadId == -1)
+        if (job.getBatch() != null)
             return;
 
-        int lastJobStatus = checkDownloadStatus(lastDownloadId);
-        String mFileName = lastdestFile.getName();
-
-        // Terminate downloading task if failed or idleTime timeout
-        if (lastJobStatus == DownloadManager.STATUS_FAILED || waitTime <= 0) {
-            // Remove lastDownloadId from downloadManager record and delete the tmp file
-            downloadManager.remove(lastDownloadId);
-            fileDownloads.remove(lastDownloadId);
-            linkDownloads.remove(lastDownloadId);
-
-            File tmpFile = new File(FileBackend.getHymnchtvStore(FileBackend.TMP, false), mFileName);
-            Timber.d("Downloading file failed due to slow progress: %s (%s): %s",
-                    tmpFile.length(), mFileSize, tmpFile.getAbsolutePath());
-            onError(HymnsApp.getResString(R.string.gui_file_DOWNLOAD_FAILED, tmpFile.getAbsolutePath()));
-            return;
-        }
-
-        DownloadManager.Query query = new DownloadManager.Query();
-        query.setFilterById(lastDownloadId);
-        query.setFilterByStatus(~(DownloadManager.STATUS_FAILED | DownloadManager.STATUS_SUCCESSFUL));
-        Cursor cursor = downloadManager.query(query);
-
-        if (cursor.moveToFirst()) {
-            mFileSize = cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES));
-            long progress = cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR));
-
-            if (progressBar.isShown()) {
-                fileLabel.setText(getFileLabel(mFileName, mFileSize));
-                progressBar.setMax((int) mFileSize);
+        if (job.getState() == DownloadJob.State.COMPLETED) {
+            Timber.d("Downloaded file: %s; uiShown: %s", job.getFileName(), fileXferUi.isShown());
+            if (fileXferUi.isShown() && job.getDestFile().equals(mPlayFile)) {
+                mPlayFile = null;
+                mContentHandler.startPlay();
             }
-
-            if (progress <= previousProgress) {
-                waitTime--;
-                Timber.d("Downloading file countdown, jobId: %s; status: %s; dnProgress: %s (%s)",
-                        lastDownloadId, lastJobStatus, previousProgress, waitTime);
-                if (waitTime < 50) {
-                    fileXferSpeed.setText(HymnsApp.getResString(R.string.gui_download_timeout_timer, waitTime));
-                }
-            }
-            else {
-                waitTime = MAX_IDLE_TIME;
-                previousProgress = progress;
-            }
-            updateProgress(mFileName, previousProgress, System.currentTimeMillis());
         }
-        cursor.close();
+        else {
+            onError(HymnsApp.getResString(R.string.gui_file_DOWNLOAD_FAILED, job.getLink()));
+        }
     }
 
     /**
-     * Calculate a moving average for file download speed with a larger SMOOTHING_FACTOR;
-     * so the UI display remaining time is no so jumpy
+     * Show the job progress i.e. the progress bar, the average download speed and the remaining time;
+     * or the job state if it is not running.
      *
-     * @param transferredBytes  file size
-     * @param progressTimestamp time stamp
+     * @param jobView the job progress view
+     * @param job the download job
      */
-    private void updateProgress(String fileName, long transferredBytes, long progressTimestamp)
+    private void updateJobView(View jobView, DownloadJob job)
     {
-        long SMOOTHING_FACTOR = 100;
-
-        // before file transfer start is -1
-        if (transferredBytes == -1)
-            return;
-
-        final String bytesString = ByteFormat.format(transferredBytes);
-        long byteTransferDelta = (transferredBytes == 0) ? 0 : (transferredBytes - mLastTransferredBytes);
-
-        // Calculate running average transfer speed in bytes/sec and time left, with the given SMOOTHING_FACTOR
-        if (mLastTimestamp > 0) {
-            long timeElapsed = progressTimestamp - mLastTimestamp;
-            long transferSpeedCurrent = (timeElapsed > 0) ? (byteTransferDelta * 1000) / timeElapsed : 0;
-            if (mTransferSpeedAverage != 0) {
-                mTransferSpeedAverage = (transferSpeedCurrent + (SMOOTHING_FACTOR - 1) * mTransferSpeedAverage) / SMOOTHING_FACTOR;
-            }
-            else {
-                mTransferSpeedAverage = transferSpeedCurrent;
-            }
-        }
-        else {
-            mEstimatedTimeLeft = -1;
+        TextView fileLabel = jobView.findViewById(R.id.filexferFileNameView);
+        TextView jobStatus = jobView.findViewById(R.id.filexferStatusView);
+        ProgressBar progressBar = jobView.findViewById(R.id.file_progressbar);
+        TextView fileXferSpeed = jobView.findViewById(R.id.file_progressSpeed);
+        TextView estTimeRemain = jobView.findViewById(R.id.file_estTime);
+
+        long fileSize = job.getFileSize();
+        long transferredBytes = job.getTransferredBytes();
+        fileLabel.setText(getFileLabel(job.getFileName(), Math.max(0, fileSize)));
+
+        switch (job.getState()) {
+            case QUEUED:
+                jobStatus.setVisibility(View.VISIBLE);
+                jobStatus.setText(R.string.gui_download_queued);
+                break;
+
+            case RETRY:
+                long delay = Math.max(0, job.getRetryTime() - System.currentTimeMillis()) / 1000;
+                jobStatus.setVisibility(View.VISIBLE);
+                jobStatus.setText(HymnsApp.getResString(R.string.gui_download_retry, delay, job.getAttempts()));
+                break;
+
+            default:
+                jobStatus.setVisibility(View.GONE);
+                break;
         }
 
-        // Calculate  running average time left in sec
-        if (mTransferSpeedAverage > 0)
-            mEstimatedTimeLeft = (mFileSize - transferredBytes) / mTransferSpeedAverage;
-
-        mLastTimestamp = progressTimestamp;
-        mLastTransferredBytes = transferredBytes;
-
-        // Need to do it here as it was found that Http File Upload completed before the progress Bar is even visible
-        if (!progressBar.isShown()) {
-            progressBar.setVisibility(View.VISIBLE);
-            if (mXferFile != null)
-                progressBar.setMax((int) mXferFile.length());
-        }
         // Note: progress bar can only handle int size (4-bytes: 2,147,483, 647);
+        progressBar.setMax((int) Math.max(0, fileSize));
         progressBar.setProgress((int) transferredBytes);
 
-        if (mTransferSpeedAverage > 0) {
-            fileXferSpeed.setVisibility(View.VISIBLE);
-            fileXferSpeed.setText(
-                    HymnsApp.getResString(R.string.gui_download_speed, ByteFormat.format(mTransferSpeedAverage), bytesString));
+        if (job.getState() != DownloadJob.State.RUNNING) {
+            fileXferSpeed.setVisibility(View.GONE);
+            estTimeRemain.setVisibility(View.GONE);
+            return;
         }
-        Timber.d("%s RxByte = %s / %s; TimeLeft = %s; speed = %s", fileName, transferredBytes, mFileSize,
-                mEstimatedTimeLeft, mTransferSpeedAverage);
 
-        if (transferredBytes >= mFileSize) {
-            estTimeRemain.setVisibility(View.GONE);
+        long idleTime = MAX_IDLE_TIME - (System.currentTimeMillis() - job.getLastProgressTime()) / 1000;
+        if (idleTime < 50) {
+            fileXferSpeed.setVisibility(View.VISIBLE);
+            fileXferSpeed.setText(HymnsApp.getResString(R.string.gui_download_timeout_timer, Math.max(0, idleTime)));
         }
-        else if (mEstimatedTimeLeft > 0) {
+        else if (job.getSpeed() > 0) {
+            fileXferSpeed.setVisibility(View.VISIBLE);
+            fileXferSpeed.setText(HymnsApp.getResString(R.string.gui_download_speed,
+                    ByteFormat.format(job.getSpeed()), ByteFormat.format(transferredBytes)));
+        }
+
+        long timeLeft = job.getEstimatedTimeLeft();
+        if ((fileSize > 0) && (transferredBytes < fileSize) && (timeLeft > 0)) {
             estTimeRemain.setVisibility(View.VISIBLE);
             estTimeRemain.setText(HymnsApp.getResString(R.string.gui_download_remaining_time,
-                    AndroidUtils.formatSeconds(mEstimatedTimeLeft * 1000)));
+                    AndroidUtils.formatSeconds(timeLeft * 1000)));
+        }
+        else {
+            estTimeRemain.setVisibility(View.GONE);
         }
     }
+
+    private void onError(String statusText)
+    {
+        fileStatus.setVisibility(View.VISIBLE);
+        fileStatus.setText(statusText);
+        mContentHandler.onError(statusText);
+    }
 }
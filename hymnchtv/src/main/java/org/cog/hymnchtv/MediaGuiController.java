@@ -40,6 +40,7 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.cog.hymnchtv.mediaconfig.QQRecord;
 import org.cog.hymnchtv.mediaplayer.AudioBgService;
+import org.cog.hymnchtv.mediaplayer.PlaybackStatus;
 import org.cog.hymnchtv.utils.TouchListener;
 import org.cog.hymnchtv.utils.ViewUtil;
 import org.jetbrains.annotations.NotNull;
@@ -118,6 +119,11 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
     private boolean isSeeking = false;
     private int positionSeek;
 
+    // Playback position sampler at display refresh while the UI is visible and the media is playing
+    private final PlaybackStatus mPlaybackStatus = new PlaybackStatus();
+    private boolean isSampling = false;
+    private int mShownSeconds = -1;
+
     private MediaType mMediaType;
     private SharedPreferences mSharedPref;
     private static SharedPreferences.Editor mEditor;
@@ -129,6 +135,12 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
     protected Uri mUri;
     List<Uri> mediaHymns = new ArrayList<>();
 
+    // Playlist playback: the hymn numbers, the current item index, and the queued next item
+    private List<Integer> mPlaylist = null;
+    private int mPlaylistIndex = -1;
+    private int mNextIndex = -1;
+    private ArrayList<Uri> mNextUris = null;
+
     private ContentHandler mContentHandler;
 
     // Need this to prevent crash on rotation if there are other constructors implementation
@@ -201,6 +213,7 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
         // playbackPlay.setOnClickListener(this);
         playbackPlay.setOnClickListener(view -> startPlay());
         playbackPlay.setOnLongClickListener(view -> {
+            mPlaylist = null;
             stopPlay();
             return true;
         });
@@ -268,6 +281,14 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
         if (mContentHandler.isAutoPlay(true)) {
             startPlay();
         }
+        startStatusSampling();
+    }
+
+    @Override
+    public void onPause()
+    {
+        super.onPause();
+        stopStatusSampling();
     }
 
     /**
@@ -305,6 +326,14 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
         return (playerUi.getVisibility() == View.VISIBLE);
     }
 
+    /**
+     * @return the user selected media type for the playback
+     */
+    public MediaType getMediaType()
+    {
+        return mMediaType;
+    }
+
     public boolean isPlaying()
     {
         return (playerState == STATE_PLAY);
@@ -382,6 +411,111 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
         // mContentHandler.initMediaPlayerInfo();
     }
 
+    /**
+     * Start the playlist playback of the given hymn numbers of the current hymnType; the current playback
+     * if any, is stopped before the playlist playback starts.
+     *
+     * @param hymnNos the playlist hymn numbers
+     */
+    public void startPlaylist(List<Integer> hymnNos)
+    {
+        if (hymnNos.isEmpty())
+            return;
+
+        mPlaylist = new ArrayList<>(hymnNos);
+        mPlaylistIndex = -1;
+        if (playerState == STATE_STOP) {
+            playlistStartNext();
+        }
+        else {
+            // Playlist playback is started on playback stop state update
+            stopPlay();
+        }
+    }
+
+    /**
+     * Start the playback of the next available playlist item after the current; the playlist ends if none.
+     * The item is resolved in the background; the result is dropped if the playlist has changed meanwhile.
+     */
+    private void playlistStartNext()
+    {
+        List<Integer> playlist = mPlaylist;
+        int current = mPlaylistIndex;
+        mContentHandler.getPlaylistItem(playlist, current + 1, mMediaType, (index, uris) -> {
+            if (isPlaylistChanged(playlist, current))
+                return;
+
+            if (uris.isEmpty()) {
+                Timber.d("Playlist playback completed");
+                mPlaylist = null;
+                return;
+            }
+
+            mPlaylistIndex = index;
+            mediaHymns = uris;
+            playlistShowItem();
+            startPlay();
+            playlistQueueNext();
+        });
+    }
+
+    /**
+     * Resolve the next available playlist item uris ahead of time in the background, and queue it to the
+     * audio service for pre-preparing and gapless playback.
+     */
+    private void playlistQueueNext()
+    {
+        mNextIndex = -1;
+        mNextUris = null;
+
+        List<Integer> playlist = mPlaylist;
+        int current = mPlaylistIndex;
+        mContentHandler.getPlaylistItem(playlist, current + 1, mMediaType, (index, uris) -> {
+            if (isPlaylistChanged(playlist, current))
+                return;
+
+            if (!uris.isEmpty()) {
+                mNextIndex = index;
+                mNextUris = new ArrayList<>(uris);
+            }
+            queueNext();
+        });
+    }
+
+    /**
+     * Check if the playlist or its current item has changed since the background resolve was started
+     *
+     * @param playlist the playlist when the resolve was started
+     * @param index the playlist current item index when the resolve was started
+     * @return true if the resolved item is stale and must be dropped
+     */
+    private boolean isPlaylistChanged(List<Integer> playlist, int index)
+    {
+        return !isAdded() || (playlist != mPlaylist) || (index != mPlaylistIndex);
+    }
+
+    /**
+     * Queue the resolved next playlist item to the audio service; none if mNextUris is null
+     */
+    private void queueNext()
+    {
+        Intent intent = new Intent(mContentHandler, AudioBgService.class);
+        intent.setAction(AudioBgService.ACTION_PLAYLIST_NEXT);
+        intent.putParcelableArrayListExtra(AudioBgService.PLAYLIST_CURRENT, new ArrayList<>(mediaHymns));
+        intent.putParcelableArrayListExtra(AudioBgService.PLAYLIST_NEXT, mNextUris);
+        AudioBgService.enqueueWork(mContentHandler, intent);
+    }
+
+    /**
+     * Show the current playlist item lyrics, and the playlist queue state in the hymn info
+     */
+    private void playlistShowItem()
+    {
+        mContentHandler.showHymn(mPlaylist.get(mPlaylistIndex));
+        hymnInfo.setText(getString(R.string.gui_playlist_info, mPlaylistIndex + 1, mPlaylist.size(),
+                mContentHandler.getHymnInfo()));
+    }
+
     @Override
     public void onCheckedChanged(RadioGroup group, int checkedId)
     {
@@ -455,7 +589,7 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
                     break;
 
                 case R.id.btn_jiaochang:
-                    if (!mContentHandler.isHFAvailable && !isJiaoChangAvailable)
+                    if (!mContentHandler.isHFAvailable() && !isJiaoChangAvailable)
                         mContentHandler.initWebView(ContentHandler.UrlType.hymnQqSearch);
                     else
                         mBtnJiaoChang.performClick();
@@ -502,11 +636,33 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
         }
     }
 
+    /**
+     * Unregister and remove all the stale receivers whose MediaGuiController is no longer attached,
+     * so the static bcRegisters does not keep a reference to the destroyed fragment and its views.
+     *
+     * @param context the application context
+     * @return the number of stale receivers removed
+     */
+    public static int trimReceivers(Context context)
+    {
+        int count = 0;
+        Iterator<Map.Entry<Uri, BroadcastReceiver>> iterator = bcRegisters.entrySet().iterator();
+        while (iterator.hasNext()) {
+            BroadcastReceiver receiver = iterator.next().getValue();
+            if ((receiver instanceof MpBroadcastReceiver) && ((MpBroadcastReceiver) receiver).isStale()) {
+                LocalBroadcastManager.getInstance(context).unregisterReceiver(receiver);
+                iterator.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
     private void registerMpBroadCastReceiver()
     {
         IntentFilter filter = new IntentFilter();
         filter.addAction(AudioBgService.PLAYBACK_STATE);
-        filter.addAction(AudioBgService.PLAYBACK_STATUS);
+        filter.addAction(AudioBgService.PLAYLIST_STATE);
         LocalBroadcastManager.getInstance(mContentHandler).registerReceiver(mReceiver, filter);
     }
 
@@ -680,9 +836,29 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
      */
     private class MpBroadcastReceiver extends BroadcastReceiver
     {
+        /**
+         * @return true if the owner MediaGuiController has been detached from its activity
+         */
+        boolean isStale()
+        {
+            return !isAdded();
+        }
+
         @Override
         public void onReceive(Context context, Intent intent)
         {
+            // The playlist playback has advanced to the queued next item
+            if (AudioBgService.PLAYLIST_STATE.equals(intent.getAction())) {
+                ArrayList<Uri> uris = intent.getParcelableArrayListExtra(AudioBgService.PLAYLIST_CURRENT);
+                if ((mPlaylist != null) && (uris != null) && uris.equals(mNextUris)) {
+                    mPlaylistIndex = mNextIndex;
+                    mediaHymns = uris;
+                    playlistShowItem();
+                    playlistQueueNext();
+                }
+                return;
+            }
+
             // proceed only if it is the playback of the current Uri
             Uri uri = intent.getParcelableExtra(AudioBgService.PLAYBACK_URI);
             // Timber.d("Audio playback state: %s: %s", intent.getAction(), uri.getPath());
@@ -692,16 +868,9 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
             int position = intent.getIntExtra(AudioBgService.PLAYBACK_POSITION, 0);
             int audioDuration = intent.getIntExtra(AudioBgService.PLAYBACK_DURATION, 0);
 
-            if ((playerState == STATE_PLAY) && AudioBgService.PLAYBACK_STATUS.equals(intent.getAction())) {
-                if (!isSeeking)
-                    playbackPosition.setText(formatTime(position));
-                playbackDuration.setText(formatTime(audioDuration - position));
-                playbackSeekBar.setMax(audioDuration);
-                playbackSeekBar.setProgress(position);
-
-            }
-            else if (AudioBgService.PLAYBACK_STATE.equals(intent.getAction())) {
+            if (AudioBgService.PLAYBACK_STATE.equals(intent.getAction())) {
                 PlaybackState playbackState = (PlaybackState) intent.getSerializableExtra(AudioBgService.PLAYBACK_STATE);
+                int lastState = playerState;
                 Timber.d("Audio playback state: %s (%s/%s): %s", playbackState, position, audioDuration, uri.getPath());
 
                 switch (playbackState) {
@@ -723,6 +892,7 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
 
                         playbackPlay.setImageDrawable(null);
                         mPlayerAnimate.start();
+                        startStatusSampling();
                         break;
 
                     case stop:
@@ -744,6 +914,7 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
 
                         LocalBroadcastManager.getInstance(mContentHandler).unregisterReceiver(mReceiver);
                         mContentHandler.updateMediaPlayerInfo();
+                        mContentHandler.onPlaybackStopped();
                         // flow through to reset player state
 
                     case pause:
@@ -760,6 +931,11 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
                                 ? R.drawable.ic_play_pause : R.drawable.ic_play_stop);
                         break;
                 }
+
+                // Start the next playlist item if it is not chained for gapless playback, or start the new playlist
+                if ((playbackState == PlaybackState.stop) && (lastState != STATE_STOP) && (mPlaylist != null)) {
+                    playlistStartNext();
+                }
             }
         }
     }
@@ -802,6 +978,79 @@ public class MediaGuiController extends Fragment implements AdapterView.OnItemSe
         }
     }
 
+    /**
+     * @return the current playback position (ms) of the playing media; or -1 if no media is playing
+     */
+    public int getPlaybackPosition()
+    {
+        for (int i = 0; i < mediaHymns.size(); i++) {
+            if (mPlaybackStatus.sample(mediaHymns.get(i)) && mPlaybackStatus.isPlaying)
+                return mPlaybackStatus.position;
+        }
+        return -1;
+    }
+
+    /**
+     * Start the playback status sampling at display refresh if the media is playing and the UI is visible
+     */
+    private void startStatusSampling()
+    {
+        if (!isSampling && (playerState == STATE_PLAY) && isResumed()) {
+            isSampling = true;
+            mShownSeconds = -1;
+            Choreographer.getInstance().postFrameCallback(mStatusSampler);
+        }
+    }
+
+    private void stopStatusSampling()
+    {
+        isSampling = false;
+        Choreographer.getInstance().removeFrameCallback(mStatusSampler);
+    }
+
+    /**
+     * Sample the playing media status per display frame, and update the seek bar; the position text views
+     * are updated only when the shown seconds change. The sampler stops when the playback is not playing.
+     */
+    private final Choreographer.FrameCallback mStatusSampler = new Choreographer.FrameCallback()
+    {
+        @Override
+        public void doFrame(long frameTimeNanos)
+        {
+            if (!isSampling)
+                return;
+            if (playerState != STATE_PLAY) {
+                isSampling = false;
+                return;
+            }
+
+            // Use indexed access to avoid the iterator allocation
+            for (int i = 0; i < mediaHymns.size(); i++) {
+                if (mPlaybackStatus.sample(mediaHymns.get(i)) && mPlaybackStatus.isPlaying) {
+                    int position = mPlaybackStatus.position;
+                    int duration = mPlaybackStatus.duration;
+
+                    playbackSeekBar.setMax(duration);
+                    if (!isSeeking)
+                        playbackSeekBar.setProgress(position);
+
+                    // Follow the playback with the karaoke lyrics line highlight
+                    mContentHandler.onPlaybackPosition(mediaHymns.get(i), position);
+
+                    int seconds = position / 1000;
+                    if (seconds != mShownSeconds) {
+                        mShownSeconds = seconds;
+                        if (!isSeeking)
+                            playbackPosition.setText(formatTime(position));
+                        playbackDuration.setText(formatTime(duration - position));
+                    }
+                    break;
+                }
+            }
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
     /**
      * Format the given time to mm:ss
      *
@@ -94,4 +94,24 @@ public class MyPagerAdapter extends FragmentStateAdapter
         mContentView.setArguments(bundle);
         return mContentView;
     }
+
+    /**
+     * Drop the references to the ContentView fragments that have been destroyed by the FragmentStateAdapter;
+     * the current page reference is always retained.
+     *
+     * @param currentItem the current view pager page index
+     * @return the number of stale fragment references removed
+     */
+    public int trimFragments(int currentItem)
+    {
+        int count = 0;
+        for (int i = mFragments.size() - 1; i >= 0; i--) {
+            Fragment fragment = mFragments.valueAt(i);
+            if ((mFragments.keyAt(i) != currentItem) && ((fragment == null) || !fragment.isAdded())) {
+                mFragments.removeAt(i);
+                count++;
+            }
+        }
+        return count;
+    }
 }
@@ -0,0 +1,261 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import java.io.File;
+
+/**
+ * The media file download job of the DownloadScheduler; persisted in the database table downloadJob,
+ * so the queued and the running jobs are resumed after the process restart.
+ *
+ * The format of the download job record consists of: link, destFile, state, downloadId, attempts, retryTime, batch
+ * a. link: the encoded source link of the media file
+ * b. destFile: the final destination file path of the downloaded media
+ * c. state: one of QUEUED, RUNNING or RETRY; the completed job is deleted from the table
+ * d. downloadId: the DownloadManager job id when RUNNING, else -1
+ * e. attempts: the number of the failed attempts
+ * f. retryTime: the time (ms) at which the RETRY job is re-queued
+ * g. batch: the bulk offline prefetch batch of the job; null for the user requested download
+ *
+ * The progress info is not persisted, and is updated by the DownloadScheduler on the main thread.
+ *
+ * @author Eng Chong Meng
+ */
+public class DownloadJob
+{
+    public static final String TABLE_NAME = "downloadJob";
+    public static final String JOB_ID = "jobId";
+    public static final String LINK = "link";
+    public static final String DEST_FILE = "destFile";
+    public static final String STATE = "state";
+    public static final String DOWNLOAD_ID = "downloadId";
+    public static final String ATTEMPTS = "attempts";
+    public static final String RETRY_TIME = "retryTime";
+    public static final String BATCH = "batch";
+
+    public enum State
+    {
+        QUEUED,
+        RUNNING,
+        RETRY,
+        COMPLETED,
+        FAILED
+    }
+
+    // Use a larger smoothing factor, so the UI display remaining time is no so jumpy
+    private static final long SMOOTHING_FACTOR = 100;
+
+    private long mJobId;
+    private final String mLink;
+    private final File mDestFile;
+    private State mState;
+    private long mDownloadId;
+    private int mAttempts;
+    private long mRetryTime;
+    private final String mBatch;
+
+    private long mFileSize = -1;
+    private long mTransferredBytes = 0;
+    private long mLastTimestamp = -1;
+    private long mLastProgressTime;
+    private long mSpeedAverage = 0;
+    private long mEstimatedTimeLeft = -1;
+
+    public DownloadJob(String link, File destFile)
+    {
+        this(link, destFile, null);
+    }
+
+    public DownloadJob(String link, File destFile, String batch)
+    {
+        this(-1, link, destFile, State.QUEUED, -1, 0, 0, batch);
+    }
+
+    public DownloadJob(long jobId, String link, File destFile, State state, long downloadId, int attempts,
+            long retryTime, String batch)
+    {
+        mJobId = jobId;
+        mLink = link;
+        mDestFile = destFile;
+        mState = state;
+        mDownloadId = downloadId;
+        mAttempts = attempts;
+        mRetryTime = retryTime;
+        mBatch = batch;
+        mLastProgressTime = System.currentTimeMillis();
+    }
+
+    public long getJobId()
+    {
+        return mJobId;
+    }
+
+    void setJobId(long jobId)
+    {
+        mJobId = jobId;
+    }
+
+    public String getLink()
+    {
+        return mLink;
+    }
+
+    public File getDestFile()
+    {
+        return mDestFile;
+    }
+
+    public String getFileName()
+    {
+        return mDestFile.getName();
+    }
+
+    public State getState()
+    {
+        return mState;
+    }
+
+    void setState(State state)
+    {
+        mState = state;
+    }
+
+    public long getDownloadId()
+    {
+        return mDownloadId;
+    }
+
+    void setDownloadId(long downloadId)
+    {
+        mDownloadId = downloadId;
+    }
+
+    public int getAttempts()
+    {
+        return mAttempts;
+    }
+
+    void setAttempts(int attempts)
+    {
+        mAttempts = attempts;
+    }
+
+    public long getRetryTime()
+    {
+        return mRetryTime;
+    }
+
+    void setRetryTime(long retryTime)
+    {
+        mRetryTime = retryTime;
+    }
+
+    /**
+     * @return the prefetch batch of the job; null for the user requested download
+     */
+    public String getBatch()
+    {
+        return mBatch;
+    }
+
+    /**
+     * @return the file size; -1 if it is still unknown
+     */
+    public long getFileSize()
+    {
+        return mFileSize;
+    }
+
+    public long getTransferredBytes()
+    {
+        return mTransferredBytes;
+    }
+
+    /**
+     * @return the running average download speed in bytes/sec
+     */
+    public long getSpeed()
+    {
+        return mSpeedAverage;
+    }
+
+    /**
+     * @return the estimated remaining time in sec; -1 if unknown
+     */
+    public long getEstimatedTimeLeft()
+    {
+        return mEstimatedTimeLeft;
+    }
+
+    /**
+     * @return the time (ms) of the last received data; for the idle timeout check
+     */
+    public long getLastProgressTime()
+    {
+        return mLastProgressTime;
+    }
+
+    /**
+     * Reset the progress info on the job (re)start
+     */
+    void resetProgress()
+    {
+        mTransferredBytes = 0;
+        mLastTimestamp = -1;
+        mSpeedAverage = 0;
+        mEstimatedTimeLeft = -1;
+        mLastProgressTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Update the job progress, and calculate the moving average download speed and the remaining time.
+     *
+     * @param transferredBytes the bytes downloaded so far
+     * @param fileSize the file size; -1 if unknown
+     * @param timestamp the progress time stamp
+     * @return true if there is new data received since the last update
+     */
+    boolean updateProgress(long transferredBytes, long fileSize, long timestamp)
+    {
+        if (fileSize > 0)
+            mFileSize = fileSize;
+
+        boolean hasProgress = transferredBytes > mTransferredBytes;
+        if (hasProgress)
+            mLastProgressTime = timestamp;
+
+        // Calculate running average transfer speed in bytes/sec and time left, with the given SMOOTHING_FACTOR
+        if (mLastTimestamp > 0) {
+            long timeElapsed = timestamp - mLastTimestamp;
+            long byteDelta = Math.max(0, transferredBytes - mTransferredBytes);
+            long speedCurrent = (timeElapsed > 0) ? (byteDelta * 1000) / timeElapsed : 0;
+            if (mSpeedAverage != 0) {
+                mSpeedAverage = (speedCurrent + (SMOOTHING_FACTOR - 1) * mSpeedAverage) / SMOOTHING_FACTOR;
+            }
+            else {
+                mSpeedAverage = speedCurrent;
+            }
+        }
+
+        if ((mSpeedAverage > 0) && (mFileSize > 0))
+            mEstimatedTimeLeft = (mFileSize - transferredBytes) / mSpeedAverage;
+
+        mLastTimestamp = timestamp;
+        mTransferredBytes = transferredBytes;
+        return hasProgress;
+    }
+}
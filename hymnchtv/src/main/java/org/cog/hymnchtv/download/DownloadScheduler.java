@@ -0,0 +1,841 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import android.annotation.SuppressLint;
+import android.app.DownloadManager;
+import android.content.*;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.cog.hymnchtv.HymnsApp;
+import org.cog.hymnchtv.persistance.DatabaseBackend;
+import org.cog.hymnchtv.persistance.FileBackend;
+import org.cog.hymnchtv.persistance.MediaBlobStore;
+import org.cog.hymnchtv.persistance.MediaIndex;
+import org.cog.hymnchtv.utils.AndroidUtils;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+
+import timber.log.Timber;
+
+/**
+ * The media download scheduler; all the media file downloads are queued as DownloadJob in the database,
+ * and are run with at most MAX_PARALLEL_JOBS jobs at any one time.
+ *
+ * a. The job progress is driven by the DownloadManager ContentObserver change notifications, coalesced into
+ * a single query of all the running jobs; there is no periodic polling of the DownloadManager.
+ * b. The failed or idle timeout job is retried with an exponential backoff, up to MAX_ATTEMPTS.
+ * c. The job queue survives the process death: the DownloadManager continues the running jobs in the system
+ * process; the queue is restored on the app start, and the jobs completed in the mean time are finalized.
+ * d. The large file on the server with the byte range support e.g. the jiaochang and changshi mp3, is downloaded
+ * in-app with the SegmentedDownloader instead; the stalled or interrupted download is resumed per segment
+ * rather than restarted from zero.
+ * e. The bulk offline prefetch jobs are queued as a named batch, and run at a lower priority i.e. only when
+ * there is no queued user requested download; so the user download is never starved by the prefetch.
+ *
+ * All the methods must be called on the main thread; the listeners are also notified on the main thread.
+ *
+ * @author Eng Chong Meng
+ */
+@SuppressLint("Range")
+public class DownloadScheduler
+{
+    // The max number of the parallel running jobs
+    private static final int MAX_PARALLEL_JOBS = 2;
+
+    // The max number of attempts for each job before it is failed
+    private static final int MAX_ATTEMPTS = 4;
+
+    // The retry backoff base delay (ms); doubled on each failed attempt
+    private static final long RETRY_DELAY = 5000;
+
+    // The maximum download idle time (60 seconds) before the job is forced stop and retried
+    public static final int MAX_IDLE_TIME = 60;
+
+    // The idle check interval (ms), only while there are running jobs
+    private static final long IDLE_CHECK_INTERVAL = 5000;
+
+    // The min interval (ms) between the progress queries on the DownloadManager change notifications
+    private static final long PROGRESS_INTERVAL = 500;
+
+    // The min file size for the in-app segmented download; the smaller file is downloaded by the DownloadManager
+    private static final long SEGMENTED_MIN_SIZE = 2 * SegmentedDownloader.SEGMENT_SIZE;
+
+    // The downloaded file of size below this is an error page i.e. file not found online
+    private static final long MIN_FILE_SIZE = 200;
+
+    // The DownloadManager content uri for the downloads of this app
+    private static final Uri DOWNLOADS_URI = Uri.parse("content://downloads/my_downloads");
+
+    /**
+     * The listener for the download jobs progress and completion; called on the main thread
+     */
+    public interface DownloadListener
+    {
+        /**
+         * @param jobs all the pending jobs i.e. running, queued and waiting for retry, in the queue order
+         */
+        void onDownloadProgress(List<DownloadJob> jobs);
+
+        /**
+         * @param job the completed job; with state COMPLETED or FAILED
+         */
+        void onDownloadCompleted(DownloadJob job);
+    }
+
+    private static DownloadScheduler mInstance = null;
+
+    // The executor for the url probe and the segmented download of the running jobs
+    private static final ExecutorService mExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_JOBS);
+
+    private final Context mContext;
+    private final DownloadManager mDownloadManager;
+    private final DatabaseBackend mDB;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // All the pending jobs in the queue order
+    private final List<DownloadJob> mJobs = new ArrayList<>();
+    private final List<DownloadListener> mListeners = new CopyOnWriteArrayList<>();
+
+    // The in-app segmented downloads of the running jobs
+    private final Map<DownloadJob, SegmentedDownloader> mDownloaders = new HashMap<>();
+
+    private ContentObserver mDownloadObserver = null;
+    private BroadcastReceiver mDownloadReceiver = null;
+    private boolean isProgressPending = false;
+    private boolean isIdleCheckRunning = false;
+
+    /**
+     * Get the DownloadScheduler instance, and restore the persisted jobs on first access
+     *
+     * @param context context
+     * @return the DownloadScheduler instance
+     */
+    public static synchronized DownloadScheduler getInstance(Context context)
+    {
+        if (mInstance == null) {
+            mInstance = new DownloadScheduler(context.getApplicationContext());
+            mInstance.restore();
+        }
+        return mInstance;
+    }
+
+    private DownloadScheduler(Context context)
+    {
+        mContext = context;
+        mDownloadManager = HymnsApp.getDownloadManager();
+        mDB = DatabaseBackend.getInstance(context);
+    }
+
+    public void addListener(DownloadListener listener)
+    {
+        if (!mListeners.contains(listener))
+            mListeners.add(listener);
+    }
+
+    public void removeListener(DownloadListener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * @return a copy of all the pending jobs in the queue order
+     */
+    public List<DownloadJob> getJobs()
+    {
+        return new ArrayList<>(mJobs);
+    }
+
+    /**
+     * @param destFile the download destination file
+     * @return true if there is a pending job for the destFile
+     */
+    public boolean isPending(File destFile)
+    {
+        return getJob(destFile) != null;
+    }
+
+    /**
+     * Queue the download of the given link to the destFile
+     *
+     * @param link the encoded source link
+     * @param destFile the download destination file
+     * @return the queued job, or null if the destFile download is already pending
+     */
+    public DownloadJob enqueue(String link, File destFile)
+    {
+        if (isPending(destFile)) {
+            Timber.w("Skip duplicated download file request: %s", destFile.getAbsolutePath());
+            return null;
+        }
+
+        DownloadJob job = new DownloadJob(link, destFile);
+        job.setJobId(mDB.storeDownloadJob(job));
+        mJobs.add(job);
+        schedule();
+        notifyProgress();
+        return job;
+    }
+
+    /**
+     * Queue the given prefetch batch jobs, skipping those with their destFile download already pending;
+     * the jobs are saved in a single database transaction.
+     *
+     * @param jobs the new batch jobs, see DownloadJob(String, File, String)
+     * @return the number of the jobs queued
+     */
+    public int enqueueBatch(List<DownloadJob> jobs)
+    {
+        Set<File> pendingFiles = new HashSet<>();
+        for (DownloadJob job : mJobs) {
+            pendingFiles.add(job.getDestFile());
+        }
+
+        List<DownloadJob> newJobs = new ArrayList<>();
+        for (DownloadJob job : jobs) {
+            if (pendingFiles.add(job.getDestFile()))
+                newJobs.add(job);
+        }
+
+        if (!newJobs.isEmpty()) {
+            long[] jobIds = mDB.storeDownloadJobs(newJobs);
+            for (int i = 0; i < jobIds.length; i++) {
+                newJobs.get(i).setJobId(jobIds[i]);
+            }
+            mJobs.addAll(newJobs);
+            schedule();
+            notifyProgress();
+        }
+        Timber.d("Download batch queued: %s (%s/%s)", newJobs.isEmpty() ? null : newJobs.get(0).getBatch(),
+                newJobs.size(), jobs.size());
+        return newJobs.size();
+    }
+
+    /**
+     * Cancel all the pending jobs of the given prefetch batch
+     *
+     * @param batch the prefetch batch name
+     */
+    public void cancelBatch(String batch)
+    {
+        for (DownloadJob job : new ArrayList<>(mJobs)) {
+            if (batch.equals(job.getBatch()))
+                cancel(job);
+        }
+    }
+
+    /**
+     * Cancel the given pending job, and remove its DownloadManager job and the partial downloaded file
+     *
+     * @param job the job to cancel
+     */
+    public void cancel(DownloadJob job)
+    {
+        if (mJobs.remove(job)) {
+            if (job.getDownloadId() != -1)
+                mDownloadManager.remove(job.getDownloadId());
+            SegmentedDownloader downloader = mDownloaders.remove(job);
+            if (downloader != null)
+                downloader.cancel();
+            mDB.deleteDownloadJob(job);
+            schedule();
+            notifyProgress();
+        }
+    }
+
+    /**
+     * Restore the persisted jobs on the app start: the RUNNING job is re-attached to its DownloadManager job,
+     * or finalized if the DownloadManager job has completed while the app was not running; the in-app segmented
+     * download is re-queued, and resumes from its saved segment progress.
+     */
+    private void restore()
+    {
+        mJobs.addAll(mDB.getDownloadJobs());
+        if (mJobs.isEmpty())
+            return;
+
+        Timber.d("Restore download jobs: %s", mJobs.size());
+        for (DownloadJob job : new ArrayList<>(mJobs)) {
+            if ((job.getState() == DownloadJob.State.RUNNING) && (job.getDownloadId() == -1)) {
+                job.setState(DownloadJob.State.QUEUED);
+            }
+            else if (job.getState() == DownloadJob.State.RUNNING) {
+                registerDownloadObserver();
+                int status = getStatus(job.getDownloadId());
+                if ((status == DownloadManager.STATUS_SUCCESSFUL) || (status == DownloadManager.STATUS_FAILED))
+                    onJobFinished(job, status);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Start the queued jobs which are due, up to MAX_PARALLEL_JOBS running jobs; and schedule the next
+     * retry check for the jobs waiting for retry. The user requested jobs are started before the batch jobs.
+     */
+    private void schedule()
+    {
+        mHandler.removeCallbacks(scheduler);
+
+        long now = System.currentTimeMillis();
+        long nextRetry = Long.MAX_VALUE;
+        int running = 0;
+        for (DownloadJob job : mJobs) {
+            if (job.getState() == DownloadJob.State.RUNNING)
+                running++;
+            else if (job.getState() == DownloadJob.State.RETRY) {
+                if (job.getRetryTime() > now)
+                    nextRetry = Math.min(nextRetry, job.getRetryTime());
+                else
+                    job.setState(DownloadJob.State.QUEUED);
+            }
+        }
+
+        // First pass for the user requested jobs, then the prefetch batch jobs
+        for (int pass = 0; (pass < 2) && (running < MAX_PARALLEL_JOBS); pass++) {
+            for (DownloadJob job : mJobs) {
+                if (running >= MAX_PARALLEL_JOBS)
+                    break;
+
+                boolean isBatch = job.getBatch() != null;
+                if ((job.getState() == DownloadJob.State.QUEUED) && (isBatch == (pass == 1))) {
+                    start(job);
+                    running++;
+                }
+            }
+        }
+
+        if (nextRetry != Long.MAX_VALUE)
+            mHandler.postDelayed(scheduler, nextRetry - now);
+
+        if (running > 0) {
+            registerDownloadObserver();
+            startIdleCheck();
+        }
+        else {
+            unregisterDownloadObserver();
+        }
+    }
+
+    private final Runnable scheduler = this::schedule;
+
+    /**
+     * Start the given job; the url is probed on the executor, and the job is downloaded in-app with the
+     * SegmentedDownloader if the server supports the byte range for the large file, else by the DownloadManager.
+     *
+     * The probe failure is handled as the job error.
+     *
+     * @param job the job to start
+     */
+    private void start(DownloadJob job)
+    {
+        job.setState(DownloadJob.State.RUNNING);
+        job.setDownloadId(-1);
+        job.resetProgress();
+        mDB.updateDownloadJob(job);
+
+        // The attempt to which the executor results belong; the results of a stalled attempt are dropped
+        int attempt = job.getAttempts();
+        File tmpFile = getTmpFile(job);
+        mExecutor.execute(() -> {
+            String host = Uri.parse(job.getLink()).getHost();
+            long startTime = System.currentTimeMillis();
+            try {
+                URL url = new URL(job.getLink());
+                SegmentedDownloader.Probe probe = SegmentedDownloader.probe(url);
+                long latency = System.currentTimeMillis() - startTime;
+                HostMonitor.getInstance().reportResult(host, true, latency);
+                MediaSourceResolver.getInstance().report(host, true, latency);
+                boolean isSegmented = probe.acceptRanges && (probe.length >= SEGMENTED_MIN_SIZE);
+                SegmentedDownloader downloader = isSegmented ? new SegmentedDownloader(url, tmpFile, probe) : null;
+                mHandler.post(() -> {
+                    if (isActive(job, attempt)) {
+                        if (downloader != null)
+                            startSegmented(job, downloader);
+                        else
+                            startDownloadManager(job);
+                    }
+                });
+            } catch (IOException e) {
+                Timber.w("Download link probe failed: %s; %s", job.getLink(), e.getMessage());
+                // The file not found error is still a response from the host, but not from the media mirror
+                long latency = System.currentTimeMillis() - startTime;
+                HostMonitor.getInstance().reportResult(host, e instanceof FileNotFoundException, latency);
+                MediaSourceResolver.getInstance().report(host, false, latency);
+                mHandler.post(() -> {
+                    if (isActive(job, attempt)) {
+                        onJobError(job, e instanceof FileNotFoundException);
+                        schedule();
+                        notifyProgress();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return true if the given job attempt is still running i.e. not cancelled, stalled or restarted
+     */
+    private boolean isActive(DownloadJob job, int attempt)
+    {
+        return mJobs.contains(job) && (job.getState() == DownloadJob.State.RUNNING) && (job.getAttempts() == attempt);
+    }
+
+    /**
+     * Start the given job with the DownloadManager, to a tmp file which is moved to the destFile on completion
+     *
+     * @param job the job to start
+     */
+    private void startDownloadManager(DownloadJob job)
+    {
+        File tmpFile = getTmpFile(job);
+        if (tmpFile.exists() && !tmpFile.delete())
+            Timber.w("Failed to delete old tmp file: %s", tmpFile);
+
+        DownloadManager.Request request = new DownloadManager.Request(Uri.parse(job.getLink()));
+        // The prefetch batch has its own summary notification; do not flood the notification bar
+        request.setNotificationVisibility((job.getBatch() == null)
+                ? DownloadManager.Request.VISIBILITY_VISIBLE_NOTIFY_COMPLETED
+                : DownloadManager.Request.VISIBILITY_VISIBLE);
+        request.setDestinationUri(Uri.fromFile(tmpFile));
+
+        try {
+            job.setDownloadId(mDownloadManager.enqueue(request));
+        } catch (Exception e) {
+            Timber.w("Download Manager failed for: %s; %s", job.getLink(), e.getMessage());
+            onJobError(job, false);
+            schedule();
+            notifyProgress();
+            return;
+        }
+
+        mDB.updateDownloadJob(job);
+        Timber.d("Download job started: %s => %s", job.getLink(), job.getFileName());
+    }
+
+    /**
+     * Start the in-app segmented download of the given job on the executor
+     *
+     * @param job the job to start
+     * @param downloader the segmented downloader of the job
+     */
+    private void startSegmented(DownloadJob job, SegmentedDownloader downloader)
+    {
+        mDownloaders.put(job, downloader);
+        Timber.d("Segmented download job started: %s => %s", job.getLink(), job.getFileName());
+
+        mExecutor.execute(() -> {
+            IOException error = null;
+            try {
+                downloader.download((transferredBytes, fileSize) -> mHandler.post(this::requestProgress));
+            } catch (IOException e) {
+                error = e;
+            }
+
+            IOException result = error;
+            mHandler.post(() -> onSegmentedFinished(job, downloader, result));
+        });
+    }
+
+    /**
+     * Handle the segmented download completion; the download cancelled by the user is deleted, while the stalled
+     * download is kept for the resume on retry.
+     *
+     * @param job the download job
+     * @param downloader the segmented downloader of the job
+     * @param error the download error, or null on success
+     */
+    private void onSegmentedFinished(DownloadJob job, SegmentedDownloader downloader, IOException error)
+    {
+        if (mDownloaders.get(job) != downloader) {
+            if (!mJobs.contains(job))
+                downloader.delete();
+            return;
+        }
+
+        mDownloaders.remove(job);
+        if (error == null) {
+            onJobDownloaded(job);
+        }
+        else {
+            Timber.w("Segmented download failed: %s; %s", job.getLink(), error.getMessage());
+            boolean permanent = error instanceof FileNotFoundException;
+            if (permanent)
+                downloader.delete();
+            onJobError(job, permanent);
+        }
+        schedule();
+        notifyProgress();
+    }
+
+    /**
+     * Encode the chinese link for safe access; revert all "%3A" and "%2F" to ":" and "/" etc
+     *
+     * @param link the source link
+     * @return the encoded link, or the given link on failure
+     */
+    public static String encodeLink(String link)
+    {
+        try {
+            return AndroidUtils.UrlEncode(link);
+        } catch (UnsupportedEncodingException e) {
+            Timber.w("Exception in URLEncoder.encode (%s): %s", link, e.getMessage());
+            return link;
+        }
+    }
+
+    private File getTmpFile(DownloadJob job)
+    {
+        return new File(FileBackend.getHymnchtvStore(FileBackend.TMP, true), job.getJobId() + "_" + job.getFileName());
+    }
+
+    private DownloadJob getJob(File destFile)
+    {
+        for (DownloadJob job : mJobs) {
+            if (job.getDestFile().equals(destFile))
+                return job;
+        }
+        return null;
+    }
+
+    private DownloadJob getJob(long downloadId)
+    {
+        for (DownloadJob job : mJobs) {
+            if ((job.getState() == DownloadJob.State.RUNNING) && (job.getDownloadId() == downloadId))
+                return job;
+        }
+        return null;
+    }
+
+    /**
+     * Handle the DownloadManager job completion; move the downloaded file to the destFile on success,
+     * else retry the job.
+     *
+     * @param job the download job
+     * @param status the DownloadManager job status
+     */
+    private void onJobFinished(DownloadJob job, int status)
+    {
+        long downloadId = job.getDownloadId();
+        job.setDownloadId(-1);
+
+        if (status == DownloadManager.STATUS_SUCCESSFUL) {
+            onJobDownloaded(job);
+        }
+        else {
+            onJobError(job, isPermanentError(downloadId));
+        }
+        // Remove the job from downloadManager record and delete the tmp file if any
+        mDownloadManager.remove(downloadId);
+    }
+
+    /**
+     * Store the downloaded tmp file in the MediaBlobStore for the job destFile. The tmp file is first moved out
+     * of the DownloadManager record, and is then hashed and stored in the background; the identical media
+     * already in the store is deduplicated.
+     *
+     * @param job the downloaded job
+     */
+    private void onJobDownloaded(DownloadJob job)
+    {
+        File tmpFile = getTmpFile(job);
+        long fileSize = tmpFile.length();
+        job.updateProgress(fileSize, fileSize, System.currentTimeMillis());
+
+        // fileSize is small if not found online; the DownloadManager deletes its tmpFile on the job remove
+        File blobFile = new File(tmpFile.getParentFile(), "blob_" + tmpFile.getName());
+        if ((fileSize <= MIN_FILE_SIZE) || !tmpFile.renameTo(blobFile)) {
+            Timber.d("Downloaded file failed: %s (size: %s) <= %s", tmpFile, fileSize, job.getLink());
+            tmpFile.delete();
+            onJobError(job, true);
+            return;
+        }
+
+        mExecutor.execute(() -> {
+            boolean stored = MediaBlobStore.getInstance().store(blobFile, job.getDestFile());
+            mHandler.post(() -> {
+                if (stored) {
+                    Timber.d("Downloaded file: %s (size: %s)", job.getDestFile(), fileSize);
+                    MediaIndex.getInstance().onFileChanged(job.getDestFile());
+                }
+                if (!mJobs.contains(job)) {
+                    // The job is cancelled while it is stored
+                    if (!stored)
+                        blobFile.delete();
+                    return;
+                }
+
+                if (stored) {
+                    onJobCompleted(job, DownloadJob.State.COMPLETED);
+                }
+                else {
+                    blobFile.delete();
+                    onJobError(job, false);
+                }
+                schedule();
+                notifyProgress();
+            });
+        });
+    }
+
+    /**
+     * Retry the failed job after the backoff delay, or fail the job if the error is permanent or
+     * it has reached the MAX_ATTEMPTS.
+     *
+     * @param job the failed job
+     * @param permanent true if the retry will not help e.g. the file not found online
+     */
+    private void onJobError(DownloadJob job, boolean permanent)
+    {
+        job.setAttempts(job.getAttempts() + 1);
+        if (permanent || (job.getAttempts() >= MAX_ATTEMPTS)) {
+            onJobCompleted(job, DownloadJob.State.FAILED);
+            return;
+        }
+
+        long delay = RETRY_DELAY << (job.getAttempts() - 1);
+        job.setState(DownloadJob.State.RETRY);
+        job.setRetryTime(System.currentTimeMillis() + delay);
+        mDB.updateDownloadJob(job);
+        Timber.w("Download job retry in %s ms (%s): %s", delay, job.getAttempts(), job.getLink());
+    }
+
+    private void onJobCompleted(DownloadJob job, DownloadJob.State state)
+    {
+        job.setState(state);
+        mJobs.remove(job);
+        mDB.deleteDownloadJob(job);
+        for (DownloadListener listener : mListeners) {
+            listener.onDownloadCompleted(job);
+        }
+    }
+
+    /**
+     * @param downloadId the DownloadManager job id
+     * @return true if the failure is an http client error e.g. 404 file not found
+     */
+    private boolean isPermanentError(long downloadId)
+    {
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(downloadId);
+        try (Cursor cursor = mDownloadManager.query(query)) {
+            if ((cursor != null) && cursor.moveToFirst()) {
+                int reason = cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_REASON));
+                return (reason >= 400) && (reason < 500);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queries the <tt>DownloadManager</tt> for the status of download job identified by the given <tt>id</tt>.
+     *
+     * @param id download identifier which status will be returned.
+     * @return download status of the job identified by given id. If the given job is not found
+     * {@link DownloadManager#STATUS_FAILED} will be returned.
+     */
+    private int getStatus(long id)
+    {
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(id);
+
+        try (Cursor cursor = mDownloadManager.query(query)) {
+            if ((cursor == null) || !cursor.moveToFirst())
+                return DownloadManager.STATUS_FAILED;
+            else {
+                return cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
+            }
+        }
+    }
+
+    //=========================================================
+    /*
+     * Monitoring the download jobs progress
+     */
+
+    /**
+     * Register the DownloadManager change observer and the job completion receiver while there are running jobs
+     */
+    private void registerDownloadObserver()
+    {
+        if (mDownloadObserver == null) {
+            mDownloadObserver = new ContentObserver(mHandler)
+            {
+                @Override
+                public void onChange(boolean selfChange)
+                {
+                    requestProgress();
+                }
+            };
+            mContext.getContentResolver().registerContentObserver(DOWNLOADS_URI, true, mDownloadObserver);
+        }
+
+        if (mDownloadReceiver == null) {
+            mDownloadReceiver = new BroadcastReceiver()
+            {
+                @Override
+                public void onReceive(Context context, Intent intent)
+                {
+                    long downloadId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+                    DownloadJob job = getJob(downloadId);
+                    if (job != null) {
+                        onJobFinished(job, getStatus(downloadId));
+                        schedule();
+                        notifyProgress();
+                    }
+                }
+            };
+            mContext.registerReceiver(mDownloadReceiver, new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE));
+        }
+    }
+
+    private void unregisterDownloadObserver()
+    {
+        if (mDownloadObserver != null) {
+            mContext.getContentResolver().unregisterContentObserver(mDownloadObserver);
+            mDownloadObserver = null;
+        }
+        if (mDownloadReceiver != null) {
+            mContext.unregisterReceiver(mDownloadReceiver);
+            mDownloadReceiver = null;
+        }
+        mHandler.removeCallbacks(progressQuery);
+        isProgressPending = false;
+    }
+
+    /**
+     * Coalesce the burst of the DownloadManager change notifications into a single progress query
+     */
+    private void requestProgress()
+    {
+        if (!isProgressPending) {
+            isProgressPending = true;
+            mHandler.postDelayed(progressQuery, PROGRESS_INTERVAL);
+        }
+    }
+
+    private final Runnable progressQuery = () -> {
+        isProgressPending = false;
+        queryProgress();
+    };
+
+    /**
+     * Query the progress of all the running jobs in a single DownloadManager query, and notify the listeners
+     */
+    private void queryProgress()
+    {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<DownloadJob, SegmentedDownloader> entry : mDownloaders.entrySet()) {
+            SegmentedDownloader downloader = entry.getValue();
+            entry.getKey().updateProgress(downloader.getTransferredBytes(), downloader.getFileSize(), now);
+        }
+
+        List<Long> ids = new ArrayList<>();
+        for (DownloadJob job : mJobs) {
+            if ((job.getState() == DownloadJob.State.RUNNING) && (job.getDownloadId() != -1))
+                ids.add(job.getDownloadId());
+        }
+        if (ids.isEmpty()) {
+            notifyProgress();
+            return;
+        }
+
+        long[] downloadIds = new long[ids.size()];
+        for (int i = 0; i < downloadIds.length; i++) {
+            downloadIds[i] = ids.get(i);
+        }
+
+        DownloadManager.Query query = new DownloadManager.Query();
+        query.setFilterById(downloadIds);
+        try (Cursor cursor = mDownloadManager.query(query)) {
+            while ((cursor != null) && cursor.moveToNext()) {
+                DownloadJob job = getJob(cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_ID)));
+                if (job != null) {
+                    job.updateProgress(cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_BYTES_DOWNLOADED_SO_FAR)),
+                            cursor.getLong(cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES)), now);
+                }
+            }
+        }
+        notifyProgress();
+    }
+
+    /**
+     * Start the idle check of the running jobs; not a progress polling, as it runs at a long interval and
+     * only forces the retry of the stalled job.
+     */
+    private void startIdleCheck()
+    {
+        if (!isIdleCheckRunning) {
+            isIdleCheckRunning = true;
+            mHandler.postDelayed(idleChecker, IDLE_CHECK_INTERVAL);
+        }
+    }
+
+    private final Runnable idleChecker = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            long now = System.currentTimeMillis();
+            boolean hasRunning = false;
+            for (DownloadJob job : new ArrayList<>(mJobs)) {
+                if (job.getState() != DownloadJob.State.RUNNING)
+                    continue;
+
+                if (now - job.getLastProgressTime() > MAX_IDLE_TIME * 1000L) {
+                    Timber.d("Download job stalled for %s sec: %s", MAX_IDLE_TIME, job.getFileName());
+                    if (job.getDownloadId() != -1)
+                        mDownloadManager.remove(job.getDownloadId());
+                    job.setDownloadId(-1);
+
+                    // The stalled segmented download is kept for the resume on retry
+                    SegmentedDownloader downloader = mDownloaders.remove(job);
+                    if (downloader != null)
+                        downloader.cancel();
+                    onJobError(job, false);
+                }
+                else {
+                    hasRunning = true;
+                }
+            }
+
+            if (hasRunning) {
+                mHandler.postDelayed(this, IDLE_CHECK_INTERVAL);
+            }
+            else {
+                isIdleCheckRunning = false;
+            }
+            schedule();
+            notifyProgress();
+        }
+    };
+
+    private void notifyProgress()
+    {
+        List<DownloadJob> jobs = getJobs();
+        for (DownloadListener listener : mListeners) {
+            listener.onDownloadProgress(jobs);
+        }
+    }
+}
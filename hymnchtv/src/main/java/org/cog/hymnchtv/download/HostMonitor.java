@@ -0,0 +1,229 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import timber.log.Timber;
+
+/**
+ * The process-wide health monitor of the online media source hosts. The host health i.e. the availability and
+ * the http HEAD request latency, is cached with a TTL, and is refreshed on a background thread only when it is
+ * stale; the failed host is re-checked with an exponential backoff. The actual download results may also be
+ * reported, so the health is kept current without the extra probe.
+ *
+ * All the methods are thread-safe and never block on the network; the unknown host is reported as unavailable
+ * until its first check is completed.
+ *
+ * @author Eng Chong Meng
+ */
+public class HostMonitor implements MediaSourceResolver.HostFilter
+{
+    public static final String HOST_HF = "heavenlyfood.cn";
+    public static final String HOST_HYMNAL = "www.hymnal.net";
+    public static final String HOST_LIGHTINNJ = "www.lightinnj.org";
+    public static final String HOST_CGBR = "g.cgbr.org";
+
+    // The probe urls of the monitored hosts
+    private static final String[][] hostUrls = {
+            {HOST_HF, "https://heavenlyfood.cn/"},
+            {HOST_HYMNAL, "https://www.hymnal.net/"},
+            {HOST_LIGHTINNJ, "http://www.lightinnj.org/"},
+            {HOST_CGBR, "http://g.cgbr.org/"},
+    };
+
+    // The probe connect and read timeout (ms)
+    private static final int PROBE_TIMEOUT = 3000;
+
+    // The health TTL (ms) of the available host
+    private static final long HEALTH_TTL = 10 * 60 * 1000;
+
+    // The re-check backoff base delay (ms) of the unavailable host; doubled on each failure up to HEALTH_TTL
+    private static final long RETRY_DELAY = 30 * 1000;
+
+    /**
+     * The immutable health snapshot of a host
+     */
+    public static class Health
+    {
+        public final boolean isAvailable;
+
+        // The last http HEAD request latency (ms); -1 if unavailable
+        public final long latency;
+
+        // The number of the consecutive failures
+        public final int failures;
+
+        // The time (ms) at which the health is stale
+        final long expiry;
+
+        Health(boolean isAvailable, long latency, int failures, long expiry)
+        {
+            this.isAvailable = isAvailable;
+            this.latency = latency;
+            this.failures = failures;
+            this.expiry = expiry;
+        }
+    }
+
+    private static final HostMonitor mInstance = new HostMonitor();
+
+    private final Map<String, String> mProbeUrls = new ConcurrentHashMap<>();
+    private final Map<String, Health> mHealth = new ConcurrentHashMap<>();
+
+    // The hosts with the pending check; to avoid the duplicated probe
+    private final Map<String, Boolean> mChecking = new ConcurrentHashMap<>();
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "HostMonitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static HostMonitor getInstance()
+    {
+        return mInstance;
+    }
+
+    private HostMonitor()
+    {
+        for (String[] hostUrl : hostUrls) {
+            mProbeUrls.put(hostUrl[0], hostUrl[1]);
+        }
+        MediaSourceResolver.getInstance().setHostFilter(this);
+    }
+
+    /**
+     * Refresh the health of all the stale hosts in the background e.g. on the content screen start
+     */
+    public void refresh()
+    {
+        for (String host : mProbeUrls.keySet()) {
+            refresh(host);
+        }
+    }
+
+    /**
+     * @param host the host name
+     * @return true if the host was available on its last check; the stale health is refreshed in the background
+     */
+    @Override
+    public boolean isAvailable(String host)
+    {
+        Health health = getHealth(host);
+        return (health != null) && health.isAvailable;
+    }
+
+    /**
+     * @param host the host name
+     * @return the last http HEAD request latency (ms) of the host; -1 if unknown or unavailable
+     */
+    public long getLatency(String host)
+    {
+        Health health = getHealth(host);
+        return (health != null) ? health.latency : -1;
+    }
+
+    /**
+     * @param host the host name
+     * @return the health snapshot of the host, or null if it is not checked yet; refreshed in the background if stale
+     */
+    public Health getHealth(String host)
+    {
+        refresh(host);
+        return mHealth.get(host);
+    }
+
+    /**
+     * Update the host health with the actual request result e.g. the download probe
+     *
+     * @param host the host name
+     * @param success true if the host has responded
+     * @param latency the request latency (ms)
+     */
+    public void reportResult(String host, boolean success, long latency)
+    {
+        if (host == null)
+            return;
+
+        Health health = mHealth.get(host);
+        int failures = success ? 0 : ((health != null) ? health.failures + 1 : 1);
+        long ttl = success ? HEALTH_TTL : Math.min(HEALTH_TTL, RETRY_DELAY << Math.min(failures - 1, 8));
+        mHealth.put(host, new Health(success, success ? latency : -1, failures, System.currentTimeMillis() + ttl));
+    }
+
+    /**
+     * Check the given host health in the background if it is stale and is a monitored host
+     *
+     * @param host the host name
+     */
+    private void refresh(String host)
+    {
+        String probeUrl = mProbeUrls.get(host);
+        if (probeUrl == null)
+            return;
+
+        Health health = mHealth.get(host);
+        if ((health != null) && (System.currentTimeMillis() < health.expiry))
+            return;
+
+        if (mChecking.put(host, Boolean.TRUE) != null)
+            return;
+
+        mExecutor.execute(() -> {
+            try {
+                long startTime = System.currentTimeMillis();
+                boolean success = probe(probeUrl);
+                long latency = System.currentTimeMillis() - startTime;
+                reportResult(host, success, latency);
+                Timber.d("Host health: %s; available: %s; latency: %s ms", host, success, latency);
+            } finally {
+                mChecking.remove(host);
+            }
+        });
+    }
+
+    /**
+     * Send the http HEAD request to the given url
+     *
+     * @param probeUrl the probe url
+     * @return true if the server has responded i.e. any non server error response
+     */
+    private static boolean probe(String probeUrl)
+    {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(probeUrl).openConnection();
+            conn.setRequestMethod("HEAD");
+            conn.setConnectTimeout(PROBE_TIMEOUT);
+            conn.setReadTimeout(PROBE_TIMEOUT);
+            conn.setInstanceFollowRedirects(true);
+            int responseCode = conn.getResponseCode();
+            return (responseCode > 0) && (responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR);
+        } catch (IOException e) {
+            Timber.w("Host probe failed: %s; %s", probeUrl, e.getMessage());
+            return false;
+        } finally {
+            if (conn != null)
+                conn.disconnect();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.text.TextUtils;
+
+import androidx.core.app.NotificationCompat;
+
+import org.cog.hymnchtv.HymnsApp;
+import org.cog.hymnchtv.R;
+import org.cog.hymnchtv.service.androidnotification.NotificationHelper;
+
+import java.util.*;
+
+import timber.log.Timber;
+
+/**
+ * The bulk offline media prefetch of a hymn category or the whole hymn book. The prefetch jobs are queued
+ * as a named batch in the DownloadScheduler, which runs them with its bounded concurrency and at a lower
+ * priority than the user requested downloads, with the retry and the resume across the app restart.
+ *
+ * The batch totals and the failed counts are kept in the SharedPreferences, so the aggregate progress
+ * notification continues after the app restart; a summary notification is shown when all the batches
+ * have completed.
+ *
+ * All the methods must be called on the main thread.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaPrefetcher implements DownloadScheduler.DownloadListener
+{
+    private static final String PREF_PREFETCH = "MediaPrefetch";
+    private static final String PREF_BATCHES = "Batches";
+    private static final String PREF_LABEL = "_label";
+    private static final String PREF_TOTAL = "_total";
+    private static final String PREF_FAILED = "_failed";
+
+    private static final String PREFETCH_TAG = "MediaPrefetch";
+    private static final int PREFETCH_NOTIFY_ID = 2;
+
+    private static MediaPrefetcher mInstance = null;
+
+    private final Context mContext;
+    private final DownloadScheduler mScheduler;
+    private final SharedPreferences mPref;
+    private final NotificationManager mNotificationMgr;
+
+    // The active prefetch batches, in the start order
+    private final List<String> mBatches = new ArrayList<>();
+
+    // The pending jobs count on the last notification update; to skip the unchanged update
+    private int mLastPending = -1;
+
+    /**
+     * Get the MediaPrefetcher instance, and restore the active batches progress on first access
+     *
+     * @param context context
+     * @return the MediaPrefetcher instance
+     */
+    public static synchronized MediaPrefetcher getInstance(Context context)
+    {
+        if (mInstance == null) {
+            mInstance = new MediaPrefetcher(context.getApplicationContext());
+            mInstance.restore();
+        }
+        return mInstance;
+    }
+
+    private MediaPrefetcher(Context context)
+    {
+        mContext = context;
+        mScheduler = DownloadScheduler.getInstance(context);
+        mPref = context.getSharedPreferences(PREF_PREFETCH, Context.MODE_PRIVATE);
+        mNotificationMgr = HymnsApp.getNotificationManager();
+        mScheduler.addListener(this);
+    }
+
+    private void restore()
+    {
+        String batches = mPref.getString(PREF_BATCHES, "");
+        if (!TextUtils.isEmpty(batches)) {
+            mBatches.addAll(Arrays.asList(batches.split(",")));
+            onDownloadProgress(mScheduler.getJobs());
+        }
+    }
+
+    /**
+     * Queue the given prefetch jobs as the named batch; the jobs with their destFile download already pending
+     * are skipped. The same batch may be restarted e.g. to add the jobs failed in the previous run.
+     *
+     * @param batch the unique batch name of the hymnType, media type and hymn range
+     * @param label the batch label for the notification
+     * @param jobs the batch jobs, see DownloadJob(String, File, String)
+     * @return the number of the jobs queued
+     */
+    public int startBatch(String batch, String label, List<DownloadJob> jobs)
+    {
+        int queued = mScheduler.enqueueBatch(jobs);
+        if (queued > 0) {
+            SharedPreferences.Editor editor = mPref.edit();
+            int total = queued;
+            if (mBatches.contains(batch)) {
+                total += mPref.getInt(batch + PREF_TOTAL, 0);
+            }
+            else {
+                mBatches.add(batch);
+                editor.putString(PREF_BATCHES, TextUtils.join(",", mBatches));
+                editor.putInt(batch + PREF_FAILED, 0);
+            }
+            editor.putString(batch + PREF_LABEL, label);
+            editor.putInt(batch + PREF_TOTAL, total);
+            editor.apply();
+
+            mLastPending = -1;
+            onDownloadProgress(mScheduler.getJobs());
+        }
+        Timber.d("Prefetch batch started: %s (%s/%s)", batch, queued, jobs.size());
+        return queued;
+    }
+
+    /**
+     * Cancel all the active prefetch batches, and remove the prefetch notification
+     */
+    public void cancelAll()
+    {
+        List<String> batches = new ArrayList<>(mBatches);
+        clearBatches();
+        for (String batch : batches) {
+            mScheduler.cancelBatch(batch);
+        }
+        mNotificationMgr.cancel(PREFETCH_TAG, PREFETCH_NOTIFY_ID);
+    }
+
+    /**
+     * Update the aggregate progress notification of all the active batches when the pending count changes;
+     * show the summary notification when all the batches have completed.
+     *
+     * @param jobs all the pending jobs i.e. running, queued and waiting for retry, in the queue order
+     */
+    @Override
+    public void onDownloadProgress(List<DownloadJob> jobs)
+    {
+        if (mBatches.isEmpty())
+            return;
+
+        Map<String, Integer> pendingJobs = new HashMap<>();
+        for (DownloadJob job : jobs) {
+            String batch = job.getBatch();
+            if (batch != null) {
+                Integer count = pendingJobs.get(batch);
+                pendingJobs.put(batch, (count == null) ? 1 : count + 1);
+            }
+        }
+
+        int total = 0;
+        int failed = 0;
+        int pending = 0;
+        List<String> labels = new ArrayList<>();
+        for (String batch : mBatches) {
+            Integer count = pendingJobs.get(batch);
+            total += mPref.getInt(batch + PREF_TOTAL, 0);
+            failed += mPref.getInt(batch + PREF_FAILED, 0);
+            if (count != null) {
+                pending += count;
+                labels.add(mPref.getString(batch + PREF_LABEL, batch));
+            }
+        }
+
+        if (pending == mLastPending)
+            return;
+        mLastPending = pending;
+
+        NotificationCompat.Builder nBuilder = new NotificationCompat.Builder(mContext, NotificationHelper.DEFAULT_GROUP);
+        nBuilder.setSmallIcon(R.drawable.hymnchtv);
+        nBuilder.setWhen(System.currentTimeMillis());
+        nBuilder.setOnlyAlertOnce(true);
+        nBuilder.setContentTitle(mContext.getString(R.string.gui_prefetch_title));
+
+        int done = total - pending - failed;
+        if (pending > 0) {
+            nBuilder.setOngoing(true);
+            nBuilder.setProgress(total, done + failed, false);
+            nBuilder.setContentText(mContext.getString(R.string.gui_prefetch_progress,
+                    TextUtils.join("、", labels), done, total));
+        }
+        else {
+            Timber.d("Prefetch batches completed: %s; failed: %s", done, failed);
+            nBuilder.setAutoCancel(true);
+            nBuilder.setContentText(mContext.getString(R.string.gui_prefetch_done, done, failed));
+            clearBatches();
+        }
+        mNotificationMgr.notify(PREFETCH_TAG, PREFETCH_NOTIFY_ID, nBuilder.build());
+    }
+
+    /**
+     * Count the failed prefetch job of the active batch
+     *
+     * @param job the completed job; with state COMPLETED or FAILED
+     */
+    @Override
+    public void onDownloadCompleted(DownloadJob job)
+    {
+        String batch = job.getBatch();
+        if ((job.getState() == DownloadJob.State.FAILED) && mBatches.contains(batch)) {
+            mPref.edit().putInt(batch + PREF_FAILED, mPref.getInt(batch + PREF_FAILED, 0) + 1).apply();
+        }
+    }
+
+    private void clearBatches()
+    {
+        SharedPreferences.Editor editor = mPref.edit();
+        for (String batch : mBatches) {
+            editor.remove(batch + PREF_LABEL);
+            editor.remove(batch + PREF_TOTAL);
+            editor.remove(batch + PREF_FAILED);
+        }
+        editor.remove(PREF_BATCHES);
+        editor.apply();
+
+        mBatches.clear();
+        mLastPending = -1;
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The online media source resolver of the mirror links given by the MediaSourceRules. The mirror links are
+ * probed concurrently with the http HEAD request, and the first mirror responded with the media is used;
+ * the probe and the download results are used to learn the success rate and the latency of each mirror host,
+ * so the mirrors can be ranked without the network access e.g. for the playlist streaming.
+ *
+ * The learned statistics are kept in memory only. The class has no android dependency.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaSourceResolver
+{
+    // The probe connect and read timeout (ms)
+    private static final int PROBE_TIMEOUT = 5000;
+
+    // The weight of the new result in the exponentially weighted moving average of the host statistics
+    private static final double EWMA_WEIGHT = 0.3;
+
+    // The prior success rate of the host without any result
+    private static final double PRIOR_RATE = 0.5;
+
+    /**
+     * The host availability filter e.g. the HostMonitor
+     */
+    public interface HostFilter
+    {
+        /**
+         * @param host the host name
+         * @return true if the host is deemed available
+         */
+        boolean isAvailable(String host);
+    }
+
+    /**
+     * The callback of the resolve request; called on the resolver worker thread
+     */
+    public interface ResolveListener
+    {
+        /**
+         * @param link the first link responded successfully; null if none has
+         */
+        void onResolved(String link);
+    }
+
+    /**
+     * The learned statistics of a mirror host
+     */
+    private static class HostStats
+    {
+        double successRate = PRIOR_RATE;
+        double latency = -1;
+
+        synchronized void update(boolean success, long time)
+        {
+            successRate += EWMA_WEIGHT * ((success ? 1 : 0) - successRate);
+            if (success) {
+                latency = (latency < 0) ? time : latency + EWMA_WEIGHT * (time - latency);
+            }
+        }
+
+        /**
+         * @return the host score for the ranking; the success rate, with the latency as the tie breaker
+         */
+        synchronized double getScore()
+        {
+            return successRate - ((latency < 0) ? 0 : Math.min(latency, 10000) / 1e6);
+        }
+    }
+
+    private static final MediaSourceResolver mInstance = new MediaSourceResolver();
+
+    private final ConcurrentHashMap<String, HostStats> mStats = new ConcurrentHashMap<>();
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "MediaSourceResolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private HostFilter mHostFilter = null;
+
+    public static MediaSourceResolver getInstance()
+    {
+        return mInstance;
+    }
+
+    /**
+     * Create a new resolver instance e.g. for the unit test; else use getInstance()
+     */
+    public MediaSourceResolver()
+    {
+    }
+
+    /**
+     * @param hostFilter the host availability filter; null to treat all the hosts as available
+     */
+    public void setHostFilter(HostFilter hostFilter)
+    {
+        mHostFilter = hostFilter;
+    }
+
+    /**
+     * Sort the given mirror links by the host availability and then the learned host score; the links with the
+     * same rank retain their rules preference order.
+     *
+     * @param links the mirror links in the rules preference order
+     * @return the new sorted list of the links
+     */
+    public List<String> sortLinks(List<String> links)
+    {
+        List<String> sortedLinks = new ArrayList<>(links);
+        if (sortedLinks.size() < 2)
+            return sortedLinks;
+
+        final HostFilter hostFilter = mHostFilter;
+        final Map<String, Double> ranks = new HashMap<>();
+        for (String link : sortedLinks) {
+            String host = getHost(link);
+            boolean isAvailable = (hostFilter == null) || hostFilter.isAvailable(host);
+            ranks.put(link, (isAvailable ? 10 : 0) + getScore(host));
+        }
+
+        // Collections.sort is stable, so the rules preference order is retained for the same rank
+        Collections.sort(sortedLinks, (link1, link2) -> Double.compare(ranks.get(link2), ranks.get(link1)));
+        return sortedLinks;
+    }
+
+    /**
+     * Get the best mirror link without the network access
+     *
+     * @param links the mirror links in the rules preference order
+     * @return the best mirror link; null if links is empty
+     */
+    public String getBestLink(List<String> links)
+    {
+        return links.isEmpty() ? null : sortLinks(links).get(0);
+    }
+
+    /**
+     * Probe all the given mirror links concurrently, and return the first link responded successfully.
+     * The remaining probes are left to complete in the background for the host statistics update.
+     *
+     * @param links the mirror links
+     * @param listener the listener to be notified on the worker thread of the resolved link, or null if none
+     */
+    public void resolve(List<String> links, final ResolveListener listener)
+    {
+        if (links.isEmpty()) {
+            listener.onResolved(null);
+            return;
+        }
+
+        final AtomicBoolean isResolved = new AtomicBoolean(false);
+        final AtomicInteger pending = new AtomicInteger(links.size());
+        for (final String link : sortLinks(links)) {
+            mExecutor.execute(() -> {
+                boolean success = probe(link);
+                if (success && isResolved.compareAndSet(false, true)) {
+                    listener.onResolved(link);
+                }
+                if ((pending.decrementAndGet() == 0) && isResolved.compareAndSet(false, true)) {
+                    listener.onResolved(null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Update the host statistics with the actual request result e.g. the download probe
+     *
+     * @param host the host name
+     * @param success true if the host has responded with the media
+     * @param latency the request latency (ms)
+     */
+    public void report(String host, boolean success, long latency)
+    {
+        if (host == null)
+            return;
+
+        HostStats stats = mStats.get(host);
+        if (stats == null) {
+            stats = new HostStats();
+            HostStats prevStats = mStats.putIfAbsent(host, stats);
+            if (prevStats != null)
+                stats = prevStats;
+        }
+        stats.update(success, latency);
+    }
+
+    /**
+     * @param host the host name
+     * @return the learned success rate of the host; PRIOR_RATE if there is no result yet
+     */
+    public double getSuccessRate(String host)
+    {
+        HostStats stats = mStats.get(host);
+        return (stats == null) ? PRIOR_RATE : stats.successRate;
+    }
+
+    private double getScore(String host)
+    {
+        HostStats stats = (host == null) ? null : mStats.get(host);
+        return (stats == null) ? PRIOR_RATE : stats.getScore();
+    }
+
+    /**
+     * Probe the given link with the http HEAD request; fallback to the single byte GET request if the server
+     * does not support HEAD. The result is reported to the host statistics.
+     *
+     * @param link the media link
+     * @return true if the server has responded with the media
+     */
+    boolean probe(String link)
+    {
+        long startTime = System.currentTimeMillis();
+        int responseCode = request(link, "HEAD");
+        if ((responseCode == HttpURLConnection.HTTP_BAD_METHOD)
+                || (responseCode == HttpURLConnection.HTTP_NOT_IMPLEMENTED)) {
+            responseCode = request(link, "GET");
+        }
+
+        boolean success = (responseCode >= 200) && (responseCode < 400);
+        report(getHost(link), success, System.currentTimeMillis() - startTime);
+        return success;
+    }
+
+    /**
+     * @return the http response code of the request; -1 on error
+     */
+    private static int request(String link, String method)
+    {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(link).openConnection();
+            conn.setRequestMethod(method);
+            conn.setConnectTimeout(PROBE_TIMEOUT);
+            conn.setReadTimeout(PROBE_TIMEOUT);
+            conn.setInstanceFollowRedirects(true);
+            if ("GET".equals(method))
+                conn.setRequestProperty("Range", "bytes=0-0");
+            return conn.getResponseCode();
+        } catch (IOException | IllegalArgumentException e) {
+            return -1;
+        } finally {
+            if (conn != null)
+                conn.disconnect();
+        }
+    }
+
+    /**
+     * @param link the media link
+     * @return the host name of the link; null if the link is malformed
+     */
+    public static String getHost(String link)
+    {
+        try {
+            return new URL(link).getHost();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import static org.cog.hymnchtv.HymnType.HYMN_BB;
+import static org.cog.hymnchtv.HymnType.HYMN_DB;
+import static org.cog.hymnchtv.HymnType.HYMN_DB_NO_MAX;
+import static org.cog.hymnchtv.HymnType.HYMN_ER;
+import static org.cog.hymnchtv.HymnType.HYMN_XB;
+
+import org.cog.hymnchtv.MediaType;
+
+import java.util.*;
+
+/**
+ * The declarative online media source rules of the hymn media. Each rule defines the url template of a media
+ * source mirror for the given hymnType, MediaType and hymnNo range; the rules of the same media are listed in
+ * the mirror preference order. The url template supports the following placeholders:
+ * a. {no}, {no3}, {no4}: the hymnNo, and the hymnNo zero-padded to 3 or 4 digits
+ * b. {fuNo}: the hymnNo of the hymn_db appendix i.e. hymnNo - HYMN_DB_NO_MAX
+ * c. {file}: the local media file name
+ * d. {phrase}: the lyrics phrase, for the best guess of the non-standard media file name
+ * e. {cat}: the hymn category sub-path, formatted with the rule category format; the format arguments are
+ * the category index (0 based), the category index (1 based), the category name and its first hymnNo.
+ * f. {res}: the resource name; from the override map of the non-standard naming if defined, else the rule
+ * resource template
+ *
+ * The class has no android dependency; the hymn categories are provided by the caller.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaSourceRules
+{
+    private static final String HF_MUSIC = "https://heavenlyfood.cn/hymns/music/";
+    private static final String HF_HYMNAL = "https://heavenlyfood.cn/hymnal/诗歌/";
+    private static final String HYMNAL_CN = "https://www.hymnal.net/cn/hymn/";
+
+    // DB MP3 links non-standard naming conventions
+    private static final Map<Integer, String> DB_Links = new HashMap<>();
+
+    static {
+        DB_Links.put(8, "D8父阿你是万灵之");
+        DB_Links.put(13, "D13父阿在你并无动的影儿");
+        DB_Links.put(49, "D49父阿我们在你面前拜");
+        DB_Links.put(65, "D65耶稣大名");
+        DB_Links.put(75, "D75永活的故事");
+        DB_Links.put(90, "D90赞美不尽赞美赞美救主恩深");
+        DB_Links.put(91, "D91祂不能救自己必须死髑髅地");
+        DB_Links.put(113, "D113何等权柄耶稣的名");
+        DB_Links.put(143, "D143最美的耶稣");
+        DB_Links.put(147, "D147荣耀归与我主");
+        DB_Links.put(178, "D178看这神圣筵席");
+        DB_Links.put(183, "D183诅咒他受祝福我享");
+        DB_Links.put(190, "D190赞他赞他赞美耶稣");
+        DB_Links.put(192, "D192主惟有你");
+        DB_Links.put(193, "D193但愿尊贵荣耀丰富");
+        DB_Links.put(199, "D199荣耀的主");
+        DB_Links.put(202, "D202在旷野加底斯");
+        DB_Links.put(207, "D207神赐祂有能力");
+        DB_Links.put(210, "D210主求你向我吹圣");
+        DB_Links.put(212, "D212圣灵的大风");
+        DB_Links.put(222, "D222有福的事实");
+        DB_Links.put(223, "D223主我来就你");
+        DB_Links.put(245, "D245路途遥远");
+        DB_Links.put(247, "D247惊人恩典");
+        DB_Links.put(251, "D251我是个罪人蒙主");
+        DB_Links.put(277, "D277请进,哦请进");
+        DB_Links.put(302, "D302主阿何等奥秘你灵在我灵");
+        DB_Links.put(340, "D340完全地交出");
+        DB_Links.put(346, "D346我今愿跟随救主");
+        DB_Links.put(350, "D350谁是在主这边谁要跟随主");
+        DB_Links.put(374, "D374基督是万有唯一的实际");
+        DB_Links.put(388, "D388_1我已得到宇宙至宝");
+        DB_Links.put(395, "D395唯有耶稣是我题目");
+        DB_Links.put(402, "D402不是字句律法乃是生命主");
+        DB_Links.put(413, "D413无别声音破此寂静");
+        DB_Links.put(435, "D435在亚当里罪死是我所有");
+        DB_Links.put(447, "D447何等奥妙父子灵乃是一神");
+        DB_Links.put(467, "D467你怎能没有伤痕");
+        DB_Links.put(470, "D470唯有常出代价愿背十字架");
+        DB_Links.put(476, "D476活在生命光中不断与主交通");
+        DB_Links.put(479, "D479要思想耶稣");
+        DB_Links.put(485, "D485莫在世界仍留恋");
+        DB_Links.put(491, "D491我必与你同在甜美的应许");
+        DB_Links.put(494, "D494当你经过试炼茫然无所从");
+        DB_Links.put(499, "D499非我所是");
+        DB_Links.put(515, "D515不在此时许在将来");
+        DB_Links.put(522, "D522长久陷入忧患苦痛");
+        DB_Links.put(527, "D527迫得太紧");
+        DB_Links.put(547, "D547不是挣扎努力乃是全归依");
+        DB_Links.put(552, "D552祷告乃是灵中");
+        DB_Links.put(561, "D561凭信心求");
+        DB_Links.put(606, "D606救我脱");
+        DB_Links.put(607, "D607主啊发言主啊吹气");
+        DB_Links.put(614, "D614灵能交流恩主灵能交流");
+        DB_Links.put(622, "D622弟兄和睦同居何等美善");
+        DB_Links.put(635, "D635当你苦受撒旦试探");
+        DB_Links.put(638, "D638我神乃是大能堡垒");
+        DB_Links.put(639, "D639如果战争凶猛");
+        DB_Links.put(641, "D641今日争战凶猛");
+        DB_Links.put(649, "D649撒旦早已定规");
+        DB_Links.put(656, "D656要在身体事奉工作");
+        DB_Links.put(675, "D675昨日今日直到永远");
+        DB_Links.put(677, "D677怜悯慈爱宽恕温柔又谦和");
+        DB_Links.put(714, "D714此时当就耶稣耶稣在此");
+        DB_Links.put(715, "D715你堕落罪恶境历尽了苦情");
+        DB_Links.put(721, "D721贫穷软弱悲伤忧愁");
+        DB_Links.put(723, "D723耶稣恩主是人唯一需要");
+        DB_Links.put(726, "D726你的欢迎声音召我前来相信");
+        DB_Links.put(730, "D730听阿罪人慈声");
+        DB_Links.put(732, "D732你曾离天庭");
+        DB_Links.put(737, "D737当我疲困罪恶境祂以柔爱来寻");
+        DB_Links.put(751, "D751今天神的国度对我是操练");
+        DB_Links.put(755, "D755基督快要再临日子已紧近");
+        DB_Links.put(774, "D774在起初时候");
+        DB_Links.put(782, "DF2阿利路阿利路亚");
+    }
+
+    // DB MP3 links non-standard naming conventions
+    private static final Map<Integer, String> BB_Links = new HashMap<>();
+
+    static {
+        BB_Links.put(1, "B1当我们开口赞美");
+    }
+
+    // DB MP3 links non-standard naming conventions
+    private static final Map<Integer, String> ER_Links = new HashMap<>();
+
+    static {
+        // ER_Links.put(108, "3主的爱/01.唱啊唱啊我们来唱歌(108)");
+        ER_Links.put(601, "E601耶稣我们爱你");
+    }
+
+
+    /**
+     * The hymn reference for the media links resolution
+     */
+    public static class HymnRef
+    {
+        final String hymnType;
+        final int hymnNo;
+        final String fileName;
+        final String lyricsPhrase;
+
+        /**
+         * @param hymnType the hymnType
+         * @param hymnNo the hymnNo
+         * @param fileName the local media file name
+         * @param lyricsPhrase the lyrics phrase of the hymn; may be null
+         */
+        public HymnRef(String hymnType, int hymnNo, String fileName, String lyricsPhrase)
+        {
+            this.hymnType = hymnType;
+            this.hymnNo = hymnNo;
+            this.fileName = fileName;
+            this.lyricsPhrase = (lyricsPhrase == null) ? "" : lyricsPhrase;
+        }
+    }
+
+    /**
+     * The media source rule of a mirror
+     */
+    public static class Rule
+    {
+        final String hymnType;
+        final MediaType mediaType;
+        final int minNo;
+        final int maxNo;
+        final String urlTemplate;
+
+        String catFormat = null;
+        String resTemplate = "{file}";
+        Map<Integer, String> overrides = null;
+        String overrideSuffix = "";
+
+        public Rule(String hymnType, MediaType mediaType, int minNo, int maxNo, String urlTemplate)
+        {
+            this.hymnType = hymnType;
+            this.mediaType = mediaType;
+            this.minNo = minNo;
+            this.maxNo = maxNo;
+            this.urlTemplate = urlTemplate;
+        }
+
+        /**
+         * @param catFormat the {cat} format of the category index (0 and 1 based), name and its first hymnNo
+         * @return this rule
+         */
+        public Rule category(String catFormat)
+        {
+            this.catFormat = catFormat;
+            return this;
+        }
+
+        /**
+         * @param resTemplate the {res} template if there is no override defined
+         * @param overrides the override map of the non-standard resource names
+         * @param overrideSuffix the suffix appended to the override name
+         * @return this rule
+         */
+        public Rule resource(String resTemplate, Map<Integer, String> overrides, String overrideSuffix)
+        {
+            this.resTemplate = resTemplate;
+            this.overrides = overrides;
+            this.overrideSuffix = overrideSuffix;
+            return this;
+        }
+
+        boolean matches(String type, MediaType media, int hymnNo)
+        {
+            return hymnType.equals(type) && (mediaType == media) && (hymnNo >= minNo) && (hymnNo <= maxNo);
+        }
+    }
+
+    /**
+     * The hymn categories of a hymnType
+     */
+    private static class Category
+    {
+        final int[] starts;
+        final String[] names;
+
+        Category(int[] starts, String[] names)
+        {
+            this.starts = starts;
+            this.names = names;
+        }
+    }
+
+    private final List<Rule> mRules = new ArrayList<>();
+    private final Map<String, Category> mCategories = new HashMap<>();
+
+    /**
+     * Create the media source rules with the default rules table
+     */
+    public MediaSourceRules()
+    {
+        this(getDefaultRules());
+    }
+
+    /**
+     * Create the media source rules with the given rules table e.g. for the unit test
+     *
+     * @param rules the rules in the mirror preference order
+     */
+    public MediaSourceRules(List<Rule> rules)
+    {
+        mRules.addAll(rules);
+    }
+
+    /**
+     * Add the hymn categories of the given hymnType for the {cat} placeholder
+     *
+     * @param hymnType the hymnType
+     * @param starts the first hymnNo of each category, plus the first hymnNo after the last category
+     * @param names the category names
+     * @return this MediaSourceRules
+     */
+    public MediaSourceRules addCategory(String hymnType, int[] starts, String[] names)
+    {
+        mCategories.put(hymnType, new Category(starts, names));
+        return this;
+    }
+
+    /**
+     * Get the online media links of the given hymn, in the mirror preference order
+     *
+     * @param ref the hymn reference
+     * @param mediaType the media type of the online source
+     * @return the list of the media links; empty if none is defined
+     */
+    public List<String> getLinks(HymnRef ref, MediaType mediaType)
+    {
+        List<String> links = new ArrayList<>();
+        for (Rule rule : mRules) {
+            if (rule.matches(ref.hymnType, mediaType, ref.hymnNo)) {
+                links.add(expand(rule.urlTemplate, rule, ref));
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Expand all the placeholders of the given template
+     */
+    private String expand(String template, Rule rule, HymnRef ref)
+    {
+        int hymnNo = ref.hymnNo;
+        String result = template;
+        if (result.contains("{res}")) {
+            String override = (rule.overrides == null) ? null : rule.overrides.get(hymnNo);
+            String res = (override != null) ? override + rule.overrideSuffix : expand(rule.resTemplate, rule, ref);
+            result = result.replace("{res}", res);
+        }
+        if (result.contains("{cat}")) {
+            result = result.replace("{cat}", getCategoryPath(rule, ref));
+        }
+
+        return result.replace("{file}", ref.fileName)
+                .replace("{phrase}", ref.lyricsPhrase)
+                .replace("{fuNo}", Integer.toString(hymnNo - HYMN_DB_NO_MAX))
+                .replace("{no3}", String.format(Locale.US, "%03d", hymnNo))
+                .replace("{no4}", String.format(Locale.US, "%04d", hymnNo))
+                .replace("{no}", Integer.toString(hymnNo));
+    }
+
+    /**
+     * @return the formatted category sub-path of the hymnNo; or empty string if not found
+     */
+    private String getCategoryPath(Rule rule, HymnRef ref)
+    {
+        Category category = mCategories.get(ref.hymnType);
+        if ((category == null) || (rule.catFormat == null))
+            return "";
+
+        for (int x = 1; x < category.starts.length; x++) {
+            if (ref.hymnNo < category.starts[x]) {
+                return String.format(Locale.CHINA, rule.catFormat, x - 1, x, category.names[x - 1],
+                        category.starts[x - 1]);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * The default rules table; heavenlyfood.cn is the preferred mirror for all the media.
+     */
+    private static List<Rule> getDefaultRules()
+    {
+        int max = Integer.MAX_VALUE;
+        return Arrays.asList(
+                // https://heavenlyfood.cn/hymns/music/er/C1.mp3
+                new Rule(HYMN_ER, MediaType.HYMN_BANZOU, 1, max, HF_MUSIC + "er/{file}"),
+                // https://heavenlyfood.cn/hymnal/诗歌/儿童诗歌/06爱主/C603我爱我的主耶稣.mp3
+                new Rule(HYMN_ER, MediaType.HYMN_CHANGSHI, 1, max, HF_HYMNAL + "儿童诗歌/{cat}{res}")
+                        .category("%1$02d%3$s/").resource("{file}", ER_Links, ".mp3"),
+                new Rule(HYMN_ER, MediaType.HYMN_CHANGSHI, 1, max, "http://www.lightinnj.org/mp3/k-mp3/C{no4}.mp3"),
+
+                // https://heavenlyfood.cn/hymnal/诗歌/新歌颂咏/4召会生活110/X112神生命的种子.mp3
+                new Rule(HYMN_XB, MediaType.HYMN_CHANGSHI, 1, max, HF_HYMNAL + "新歌颂咏/{cat}{file}")
+                        .category("%2$d%3$s%4$03d/"),
+                new Rule(HYMN_XB, MediaType.HYMN_CHANGSHI, 1, max, "http://g.cgbr.org/music/x/media/{no3}.mp3"),
+
+                // https://heavenlyfood.cn/hymns/music/bu/B15.mp3
+                new Rule(HYMN_BB, MediaType.HYMN_BANZOU, 1, max, HF_MUSIC + "bu/{file}"),
+                new Rule(HYMN_BB, MediaType.HYMN_BANZOU, 1, max, HYMNAL_CN + "ts/{no}/f=mid"),
+                // https://heavenlyfood.cn/hymnal/诗歌/补充本/01灵与生命/B123耶稣活在我里面.mp3
+                new Rule(HYMN_BB, MediaType.HYMN_CHANGSHI, 1, max, HF_HYMNAL + "补充本/{cat}{res}")
+                        .category("%1$02d%3$s/").resource("{file}", BB_Links, ".mp3"),
+                new Rule(HYMN_BB, MediaType.HYMN_CHANGSHI, 1, max, HYMNAL_CN + "ts/{no}/f=sing"),
+
+                // https://heavenlyfood.cn/hymns/music/da/D45.mp3
+                new Rule(HYMN_DB, MediaType.HYMN_BANZOU, 1, max, HF_MUSIC + "da/{file}"),
+                new Rule(HYMN_DB, MediaType.HYMN_BANZOU, 1, max, HYMNAL_CN + "ch/{no}/f=mid"),
+                // https://heavenlyfood.cn/hymns/jiaochang/da/781.mp3
+                new Rule(HYMN_DB, MediaType.HYMN_JIAOCHANG, 1, max, "https://heavenlyfood.cn/hymns/jiaochang/da/{file}"),
+                // https://heavenlyfood.cn/hymnal/诗歌/大本诗歌/09经历基督367/D422主我还有谁在天上.mp3
+                new Rule(HYMN_DB, MediaType.HYMN_CHANGSHI, 1, HYMN_DB_NO_MAX, HF_HYMNAL + "大本诗歌/{cat}{res}.mp3")
+                        .category("%2$02d%3$s%4$03d/").resource("D{no}{phrase}", DB_Links, ""),
+                // https://heavenlyfood.cn/hymnal/诗歌/大本诗歌/30附/DF1颂赞与尊贵与荣耀归你.mp3
+                new Rule(HYMN_DB, MediaType.HYMN_CHANGSHI, HYMN_DB_NO_MAX + 1, max, HF_HYMNAL + "大本诗歌/{cat}{res}.mp3")
+                        .category("%2$02d%3$s/").resource("DF{fuNo}{phrase}", DB_Links, ""),
+                new Rule(HYMN_DB, MediaType.HYMN_CHANGSHI, 1, max, HYMNAL_CN + "ch/{no}/f=sing")
+        );
+    }
+}
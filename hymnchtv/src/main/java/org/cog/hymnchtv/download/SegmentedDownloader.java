@@ -0,0 +1,667 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The segmented HTTP downloader for the large media files e.g. the jiaochang and changshi mp3.
+ *
+ * The server support of the byte range is probed first; the file is then split into SEGMENT_SIZE segments,
+ * fetched in parallel by up to MAX_WORKERS workers, each taking the next pending segment, so the keep-alive
+ * connections of the HttpURLConnection pool are reused across the segments. The data is written straight
+ * to its file offset with the FileChannel positional write.
+ *
+ * The progress of each segment is saved in the state file next to the download file; an interrupted download
+ * is resumed per segment, as long as the file validator (ETag or Last-Modified) is unchanged. The completed file
+ * is verified with the bytes actually written to each segment, and with the MD5 of the whole file if the server
+ * gives one: the Digest header, the Content-MD5 of the full (HEAD) response, or the MD5 hex ETag e.g. of S3.
+ *
+ * The server without the byte range support is downloaded as a single stream; and restarts from zero on error.
+ *
+ * This class has no android dependency, so it can be verified against a local HTTP server stub on the JVM.
+ *
+ * @author Eng Chong Meng
+ */
+public class SegmentedDownloader
+{
+    public static final int SEGMENT_SIZE = 512 * 1024;
+    private static final int MAX_WORKERS = 4;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 30000;
+
+    // Save the segment progress at least on every STATE_STEP bytes written
+    private static final int STATE_STEP = 64 * 1024;
+
+    // The min interval (ms) between the progress callbacks
+    private static final long PROGRESS_INTERVAL = 500;
+
+    private static final String STATE_EXT = ".seg";
+    private static final int STATE_MAGIC = 0x48534547;
+
+    private static final ExecutorService mWorkers = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "SegmentedDownloader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * The listener for the download progress; called on the worker threads, at most every PROGRESS_INTERVAL
+     */
+    public interface ProgressListener
+    {
+        void onProgress(long transferredBytes, long fileSize);
+    }
+
+    /**
+     * The probe result of the given url
+     */
+    public static class Probe
+    {
+        public final long length;
+        public final boolean acceptRanges;
+        public final String validator;
+
+        // The base64 MD5 of the whole file; null if unknown
+        public final String contentMd5;
+
+        Probe(long length, boolean acceptRanges, String validator, String contentMd5)
+        {
+            this.length = length;
+            this.acceptRanges = acceptRanges;
+            this.validator = validator;
+            this.contentMd5 = contentMd5;
+        }
+    }
+
+    private final URL mUrl;
+    private final File mFile;
+    private final File mStateFile;
+    private final Probe mProbe;
+
+    private final AtomicLong mTransferred = new AtomicLong();
+
+    // The bytes written to each segment, including those of the resumed download; null for the stream download
+    private long[] mDone = null;
+
+    private final List<HttpURLConnection> mConnections = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean isCancelled = false;
+
+    private long mLastProgressTime = 0;
+
+    /**
+     * Probe the server support of the byte range with a single byte range request. The Content-MD5 of the partial
+     * response is of the single byte only; so the whole file MD5 is then taken from the Digest or the MD5 ETag,
+     * else from a HEAD request.
+     *
+     * @param url the file url
+     * @return the probe result
+     * @throws FileNotFoundException if the server returns an http client error e.g. 404
+     * @throws IOException on the network error
+     */
+    public static Probe probe(URL url)
+            throws IOException
+    {
+        HttpURLConnection conn = openConnection(url);
+        int code = -1;
+        try {
+            conn.setRequestProperty("Range", "bytes=0-0");
+            code = conn.getResponseCode();
+            checkResponse(url, code);
+
+            String validator = getValidator(conn);
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                // Content-Range: bytes 0-0/12345
+                String range = conn.getHeaderField("Content-Range");
+                int idx = (range == null) ? -1 : range.lastIndexOf('/');
+                if ((idx != -1) && !range.endsWith("*")) {
+                    String md5 = getFileMd5(conn, true);
+                    if (md5 == null)
+                        md5 = probeFileMd5(url);
+                    return new Probe(Long.parseLong(range.substring(idx + 1).trim()), true, validator, md5);
+                }
+            }
+
+            // The server has ignored the byte range; the response is then of the whole file
+            return new Probe(getContentLength(conn), false, validator, getFileMd5(conn, false));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Range: " + url);
+        } finally {
+            // Keep the connection alive only for the single byte response; else drop the full body stream
+            if (code == HttpURLConnection.HTTP_PARTIAL)
+                drain(conn);
+            else
+                conn.disconnect();
+        }
+    }
+
+    /**
+     * Get the whole file MD5 with a HEAD request; the HEAD response has the same headers as the full GET response
+     *
+     * @param url the file url
+     * @return the base64 MD5 of the whole file; or null if none or on error
+     */
+    private static String probeFileMd5(URL url)
+    {
+        HttpURLConnection conn = null;
+        try {
+            conn = openConnection(url);
+            conn.setRequestMethod("HEAD");
+            return (conn.getResponseCode() == HttpURLConnection.HTTP_OK) ? getFileMd5(conn, false) : null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (conn != null)
+                conn.disconnect();
+        }
+    }
+
+    /**
+     * @param url the file url
+     * @param file the download file
+     * @param probe the url probe result
+     */
+    public SegmentedDownloader(URL url, File file, Probe probe)
+    {
+        mUrl = url;
+        mFile = file;
+        mStateFile = new File(file.getPath() + STATE_EXT);
+        mProbe = probe;
+    }
+
+    /**
+     * @return true if the download is to be run with the byte range segments
+     */
+    public boolean isSegmented()
+    {
+        return mProbe.acceptRanges && (mProbe.length > 0);
+    }
+
+    public long getTransferredBytes()
+    {
+        return mTransferred.get();
+    }
+
+    public long getFileSize()
+    {
+        return mProbe.length;
+    }
+
+    /**
+     * Cancel the download; the segment progress is kept for the resume
+     */
+    public void cancel()
+    {
+        isCancelled = true;
+        synchronized (mConnections) {
+            for (HttpURLConnection conn : mConnections) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Delete the download file and its segment state file
+     */
+    public void delete()
+    {
+        mFile.delete();
+        mStateFile.delete();
+    }
+
+    /**
+     * Download the file; block until it has completed and verified, or failed.
+     *
+     * @param listener the progress listener; may be null
+     * @throws IOException on the download error, or InterruptedIOException if cancelled
+     */
+    public void download(ProgressListener listener)
+            throws IOException
+    {
+        if (isSegmented())
+            downloadSegments(listener);
+        else
+            downloadStream(listener);
+
+        if (isCancelled)
+            throw new InterruptedIOException("Download cancelled: " + mUrl);
+        verify();
+        mStateFile.delete();
+    }
+
+    /**
+     * Download all the pending segments with the parallel workers
+     */
+    private void downloadSegments(ProgressListener listener)
+            throws IOException
+    {
+        long length = mProbe.length;
+        int count = (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        long[] done = loadState(count);
+        mDone = done;
+
+        try (RandomAccessFile stateRaf = new RandomAccessFile(mStateFile, "rw");
+             RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            long stateOffset = writeStateHeader(stateRaf, count, done);
+            if (raf.length() != length)
+                raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+
+            long transferred = 0;
+            for (long bytes : done) {
+                transferred += bytes;
+            }
+            mTransferred.set(transferred);
+
+            AtomicInteger nextSegment = new AtomicInteger();
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < Math.min(MAX_WORKERS, count); i++) {
+                futures.add(mWorkers.submit(() -> {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int segment;
+                    while (!isCancelled && ((segment = nextSegment.getAndIncrement()) < count)) {
+                        long start = (long) segment * SEGMENT_SIZE;
+                        long end = Math.min(length, start + SEGMENT_SIZE);
+                        if (start + done[segment] < end) {
+                            fetchSegment(channel, stateRaf, stateOffset, segment, start, end, done, buffer, listener);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            waitFor(futures);
+        }
+    }
+
+    /**
+     * Fetch the remaining bytes of the given segment, and save the segment progress as it goes
+     */
+    private void fetchSegment(FileChannel channel, RandomAccessFile stateRaf, long stateOffset, int segment,
+            long start, long end, long[] done, byte[] buffer, ProgressListener listener)
+            throws IOException
+    {
+        long position = start + done[segment];
+        HttpURLConnection conn = openConnection(mUrl);
+        mConnections.add(conn);
+        boolean success = false;
+        try {
+            conn.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+            if (mProbe.validator != null)
+                conn.setRequestProperty("If-Range", mProbe.validator);
+
+            int code = conn.getResponseCode();
+            checkResponse(mUrl, code);
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                // The file has changed on the server; restart on the next attempt
+                mStateFile.delete();
+                throw new IOException("Byte range not honoured (" + code + "): " + mUrl);
+            }
+
+            long lastSaved = position;
+            try (InputStream in = conn.getInputStream()) {
+                ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+                int count;
+                while ((position < end) && ((count = in.read(buffer, 0, (int) Math.min(buffer.length, end - position))) != -1)) {
+                    if (isCancelled)
+                        return;
+
+                    byteBuffer.clear().limit(count);
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position);
+                    }
+                    done[segment] = position - start;
+                    mTransferred.addAndGet(count);
+
+                    if ((position - lastSaved >= STATE_STEP) || (position == end)) {
+                        saveState(stateRaf, stateOffset, segment, done[segment]);
+                        lastSaved = position;
+                    }
+                    notifyProgress(listener);
+                }
+            }
+            if (position < end)
+                throw new EOFException("Segment " + segment + " incomplete: " + position + " < " + end);
+            success = true;
+        } finally {
+            mConnections.remove(conn);
+            // The fully read connection is returned to the keep-alive pool for the next segment
+            if (!success)
+                conn.disconnect();
+        }
+    }
+
+    /**
+     * Download the whole file as a single stream, for the server without the byte range support
+     */
+    private void downloadStream(ProgressListener listener)
+            throws IOException
+    {
+        mStateFile.delete();
+        mTransferred.set(0);
+
+        HttpURLConnection conn = openConnection(mUrl);
+        mConnections.add(conn);
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(0);
+            checkResponse(mUrl, conn.getResponseCode());
+
+            FileChannel channel = raf.getChannel();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long position = 0;
+            try (InputStream in = conn.getInputStream()) {
+                int count;
+                while (!isCancelled && ((count = in.read(buffer)) != -1)) {
+                    byteBuffer.clear().limit(count);
+                    while (byteBuffer.hasRemaining()) {
+                        position += channel.write(byteBuffer, position);
+                    }
+                    mTransferred.addAndGet(count);
+                    notifyProgress(listener);
+                }
+            }
+        } finally {
+            mConnections.remove(conn);
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Verify the downloaded file with the bytes written to each segment or to the stream, and with the whole file
+     * MD5 if any. The file length alone cannot be used, as the segmented download file is pre-sized.
+     *
+     * @throws IOException if the verification failed; the file and the state are deleted
+     */
+    private void verify()
+            throws IOException
+    {
+        long written;
+        if (mDone != null) {
+            written = 0;
+            for (int i = 0; i < mDone.length; i++) {
+                long start = (long) i * SEGMENT_SIZE;
+                long size = Math.min(mProbe.length, start + SEGMENT_SIZE) - start;
+                if (mDone[i] != size) {
+                    delete();
+                    throw new IOException("Downloaded segment " + i + " incomplete: " + mDone[i] + " != " + size);
+                }
+                written += mDone[i];
+            }
+        }
+        else {
+            written = mTransferred.get();
+        }
+
+        if ((mProbe.length > 0) && ((written != mProbe.length) || (mFile.length() != mProbe.length))) {
+            delete();
+            throw new IOException("Downloaded file length mismatched: " + written + " != " + mProbe.length);
+        }
+
+        if (mProbe.contentMd5 != null) {
+            String md5 = getFileMd5(mFile);
+            if (!mProbe.contentMd5.trim().equals(md5)) {
+                delete();
+                throw new IOException("Downloaded file md5 mismatched: " + md5 + " != " + mProbe.contentMd5);
+            }
+        }
+    }
+
+    /**
+     * @param file the file
+     * @return the base64 MD5 digest of the file, as given in the http Content-MD5 header
+     * @throws IOException on the file read error
+     */
+    public static String getFileMd5(File file)
+            throws IOException
+    {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+            return base64(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Load the segment progress of the previous download if its file length, segment size and validator match
+     *
+     * @param count the number of segments
+     * @return the downloaded bytes of each segment
+     */
+    private long[] loadState(int count)
+    {
+        long[] done = new long[count];
+        if (!mStateFile.exists() || !mFile.exists() || (mProbe.validator == null))
+            return done;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mStateFile)))) {
+            if ((in.readInt() != STATE_MAGIC) || (in.readLong() != mProbe.length) || (in.readInt() != SEGMENT_SIZE)
+                    || (in.readInt() != count) || !mProbe.validator.equals(in.readUTF()))
+                return done;
+
+            for (int i = 0; i < count; i++) {
+                done[i] = in.readLong();
+            }
+        } catch (IOException e) {
+            Arrays.fill(done, 0);
+        }
+        return done;
+    }
+
+    /**
+     * Write the state header and the current segment progress
+     *
+     * @return the state file offset of the segment progress
+     */
+    private long writeStateHeader(RandomAccessFile stateRaf, int count, long[] done)
+            throws IOException
+    {
+        stateRaf.setLength(0);
+        stateRaf.writeInt(STATE_MAGIC);
+        stateRaf.writeLong(mProbe.length);
+        stateRaf.writeInt(SEGMENT_SIZE);
+        stateRaf.writeInt(count);
+        stateRaf.writeUTF((mProbe.validator == null) ? "" : mProbe.validator);
+        long offset = stateRaf.getFilePointer();
+        for (long bytes : done) {
+            stateRaf.writeLong(bytes);
+        }
+        return offset;
+    }
+
+    private static void saveState(RandomAccessFile stateRaf, long stateOffset, int segment, long bytes)
+            throws IOException
+    {
+        byte[] value = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            value[i] = (byte) (bytes >>> (56 - 8 * i));
+        }
+        stateRaf.getChannel().write(ByteBuffer.wrap(value), stateOffset + 8L * segment);
+    }
+
+    private void notifyProgress(ProgressListener listener)
+    {
+        if (listener == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - mLastProgressTime < PROGRESS_INTERVAL)
+                return;
+            mLastProgressTime = now;
+        }
+        listener.onProgress(mTransferred.get(), mProbe.length);
+    }
+
+    private void waitFor(List<Future<Void>> futures)
+            throws IOException
+    {
+        IOException error = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // Stop the other workers on the first error
+                if (error == null) {
+                    Throwable cause = e.getCause();
+                    error = (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+                    cancel();
+                }
+            } catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted: " + mUrl);
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    private static HttpURLConnection openConnection(URL url)
+            throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        // The byte range must be on the raw content
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        return conn;
+    }
+
+    /**
+     * @throws FileNotFoundException for the http client error i.e. the retry will not help
+     * @throws IOException for the other http errors
+     */
+    private static void checkResponse(URL url, int code)
+            throws IOException
+    {
+        if ((code >= 400) && (code < 500))
+            throw new FileNotFoundException("Http error " + code + ": " + url);
+        if (code >= 300)
+            throw new IOException("Http error " + code + ": " + url);
+    }
+
+    /**
+     * @return the http Content-Length; or -1 if unknown. HttpURLConnection#getContentLengthLong() is API-24
+     */
+    private static long getContentLength(HttpURLConnection conn)
+    {
+        try {
+            String length = conn.getHeaderField("Content-Length");
+            return (length == null) ? -1 : Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the MD5 of the whole file from the response headers: the Digest (RFC 3230) is of the whole file even for
+     * the partial response; the Content-MD5 is of the response body i.e. only of the full response. The strong ETag
+     * of 32 hex digits is taken as the MD5 hex e.g. of S3; the other server ETags are not a plain hex.
+     *
+     * @param conn the connection with the response
+     * @param isPartial true if the response is the byte range partial response
+     * @return the base64 MD5 of the whole file; or null if none
+     */
+    private static String getFileMd5(HttpURLConnection conn, boolean isPartial)
+    {
+        // Digest: md5=HUXZLQLMuI/KZ5KDcJPcOA==, sha=...
+        String digest = conn.getHeaderField("Digest");
+        if (digest != null) {
+            for (String item : digest.split(",")) {
+                int idx = item.indexOf('=');
+                if ((idx != -1) && "md5".equalsIgnoreCase(item.substring(0, idx).trim()))
+                    return item.substring(idx + 1).trim();
+            }
+        }
+
+        if (!isPartial) {
+            String md5 = conn.getHeaderField("Content-MD5");
+            if (md5 != null)
+                return md5.trim();
+        }
+
+        String etag = conn.getHeaderField("ETag");
+        if ((etag != null) && etag.matches("\"[0-9a-fA-F]{32}\"")) {
+            byte[] md5 = new byte[16];
+            for (int i = 0; i < md5.length; i++) {
+                md5[i] = (byte) Integer.parseInt(etag.substring(1 + 2 * i, 3 + 2 * i), 16);
+            }
+            return base64(md5);
+        }
+        return null;
+    }
+
+    private static String getValidator(HttpURLConnection conn)
+    {
+        String etag = conn.getHeaderField("ETag");
+        // The weak ETag cannot be used for the byte range validation
+        if ((etag != null) && !etag.startsWith("W/"))
+            return etag;
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Read out the response body, so the connection is returned to the keep-alive pool
+     */
+    private static void drain(HttpURLConnection conn)
+    {
+        try (InputStream in = conn.getInputStream()) {
+            byte[] buffer = new byte[256];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } catch (IOException e) {
+            conn.disconnect();
+        }
+    }
+
+    private static String base64(byte[] data)
+    {
+        final String table = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length)
+                b |= (data[i + 1] & 0xFF) << 8;
+            if (i + 2 < data.length)
+                b |= data[i + 2] & 0xFF;
+
+            sb.append(table.charAt((b >> 18) & 0x3F)).append(table.charAt((b >> 12) & 0x3F));
+            sb.append((i + 1 < data.length) ? table.charAt((b >> 6) & 0x3F) : '=');
+            sb.append((i + 2 < data.length) ? table.charAt(b & 0x3F) : '=');
+        }
+        return sb.toString();
+    }
+}
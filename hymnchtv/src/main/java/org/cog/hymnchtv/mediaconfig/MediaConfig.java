@@ -39,6 +39,7 @@ import static org.cog.hymnchtv.mediaplayer.MediaExoPlayerFragment.ATTR_MEDIA_URL
 import static org.cog.hymnchtv.mediaplayer.YoutubePlayerFragment.URL_YOUTUBE;
 import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_DB_NO_MAX;
 
+import android.Manifest;
 import android.annotation.SuppressLint;
 import android.content.*;
 import android.content.pm.PackageManager;
@@ -54,6 +55,7 @@ import android.widget.*;
 import androidx.activity.result.ActivityResultCaller;
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.core.content.ContextCompat;
 import androidx.fragment.app.FragmentActivity;
 
 import org.apache.http.util.EncodingUtils;
@@ -75,8 +77,9 @@ import timber.log.Timber;
  * b. video or audio media file
  * and link it to a specific hymnType and hymnNo.
  *
- * It includes the capability to import, export or auto generate the export file
- * based on all the media files saved in a specified HymnType/MediaType sub-directory
+ * It includes the capability to import or export the media records; and the media library folders i.e.
+ * the media files in the user selected folders are registered in bulk by the MediaLibraryScanner, with the
+ * hymnNo extracted from the media file names
  *
  * The format of the export record "," separated: hymnType, HymnNo, isFu, HymnMedia, urlLink, mediaUri
  * a. hymnType: HYMN_BB HYMN_DB, HYMN_ER, HYMN_XB
@@ -191,6 +194,9 @@ public class MediaConfig extends FragmentActivity
         mediaDir.put(HYMN_CHANGSHI, MEDIA_CHANGSHI);
     }
 
+    private ActivityResultLauncher<Uri> mGetFolder;
+    private ActivityResultLauncher<String> mRequestRead;
+
     private String mHymnType = hymnTypeValue.get(0);
     private MediaType mMediaType = mediaTypeValue.get(0);
     private final DatabaseBackend mDB = DatabaseBackend.getInstance(HymnsApp.getGlobalContext());
@@ -253,6 +259,14 @@ public class MediaConfig extends FragmentActivity
             mGetContent.launch("*/*");
         });
 
+        mGetFolder = getFolderUri();
+        mRequestRead = registerForActivityResult(new ActivityResultContracts.RequestPermission(), isGranted -> {
+            if (isGranted)
+                mGetFolder.launch(null);
+            else
+                HymnsApp.showToastMessage(R.string.permission_storage_required);
+        });
+
         findViewById(R.id.shareMediaUri).setOnClickListener(this);
         findViewById(R.id.decodeUri).setOnClickListener(this);
 
@@ -303,7 +317,9 @@ public class MediaConfig extends FragmentActivity
         btnExport.setOnClickListener(this);
         btnExport.setOnLongClickListener(this);
 
-        findViewById(R.id.button_import_create).setOnClickListener(this);
+        Button btnLibrary = findViewById(R.id.button_import_create);
+        btnLibrary.setOnClickListener(this);
+        btnLibrary.setOnLongClickListener(this);
         findViewById(R.id.button_db_records).setOnClickListener(this);
 
         mPlayerView = findViewById(R.id.player_container);
@@ -381,7 +397,12 @@ public class MediaConfig extends FragmentActivity
 
             // Auto creates a export file based on the sub-directory media files
             case R.id.button_import_create:
-                createImportFile();
+                // The library folder is scanned via its file path, and requires the storage read permission
+                if (ContextCompat.checkSelfPermission(this, Manifest.permission.READ_EXTERNAL_STORAGE)
+                        == PackageManager.PERMISSION_GRANTED)
+                    mGetFolder.launch(null);
+                else
+                    mRequestRead.launch(Manifest.permission.READ_EXTERNAL_STORAGE);
                 break;
 
             // Show the DB content for all user defined media link
@@ -399,6 +420,12 @@ public class MediaConfig extends FragmentActivity
             createExportLink();
             return true;
         }
+        // Remove all the media library folders of the selected hymnType
+        else if (v.getId() == R.id.button_import_create) {
+            int count = MediaLibraryScanner.getInstance(this).removeFolders(mHymnType);
+            HymnsApp.showToastMessage(R.string.gui_media_library_removed, count);
+            return true;
+        }
         return false;
     }
 
@@ -497,6 +524,43 @@ public class MediaConfig extends FragmentActivity
         });
     }
 
+    /**
+     * The user selected folder is added to the media library for the current mHymnType and mMediaType;
+     * all the media files in the folder are registered by the MediaLibraryScanner.
+     * The tree uri read grant is persisted, so the folder stays accessible across the device reboot.
+     *
+     * @return an instant of ActivityResultLauncher<Uri>
+     */
+    private ActivityResultLauncher<Uri> getFolderUri()
+    {
+        return registerForActivityResult(new ActivityResultContracts.OpenDocumentTree(), uri -> {
+            if (uri == null)
+                return;
+
+            try {
+                getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            } catch (SecurityException e) {
+                Timber.w("Persist the folder read permission failed: %s", e.getMessage());
+            }
+
+            // The tree uri not on the shared storage volume e.g. cloud provider, cannot be scanned via its file path
+            String dirPath = FilePathHelper.getTreePath(uri);
+            if ((dirPath == null) || !new File(dirPath).isDirectory() || (new File(dirPath).listFiles() == null)) {
+                HymnsApp.showToastMessage(R.string.gui_file_DOES_NOT_EXIST);
+                return;
+            }
+
+            HymnsApp.showToastMessage(R.string.gui_media_library_added, dirPath);
+            MediaLibraryScanner.Folder folder = new MediaLibraryScanner.Folder(mHymnType, mMediaType, new File(dirPath));
+            MediaLibraryScanner.getInstance(this).addFolder(folder, (stored, deleted) -> {
+                if ((stored + deleted) != 0)
+                    HymnsApp.showToastMessage(R.string.gui_media_library_scan, stored, deleted);
+                else
+                    HymnsApp.showToastMessage(R.string.hymn_match_none);
+            });
+        });
+    }
+
     /**
      * Copy the user selected import_export file (content://) to the hymnchtv own import_export directory;
      * So it will be properly updated with user edited content.
@@ -983,6 +1047,7 @@ public class MediaConfig extends FragmentActivity
             String mResult = EncodingUtils.getString(buffer2, "utf-8");
             String[] mList = mResult.split("\r\n|\n");
 
+            List<MediaRecord> mediaRecords = new ArrayList<>();
             for (String mRecord : mList) {
                 MediaRecord mediaRecord = MediaRecord.toRecord(mRecord);
                 if (mediaRecord == null)
@@ -992,9 +1057,11 @@ public class MediaConfig extends FragmentActivity
                 int hymnNo = isFu ? (mediaRecord.getHymnNo() - HYMN_DB_NO_MAX) : mediaRecord.getHymnNo();
                 int nui = HymnNoValidate.validateHymnNo(mediaRecord.getHymnType(), hymnNo, isFu);
                 if ((nui != -1) && (isOverWrite || !mDB.getMediaRecord(mediaRecord, false))) {
-                    mDB.storeMediaRecord(mediaRecord);
+                    mediaRecords.add(mediaRecord);
                 }
             }
+            // Save all the records in a single transaction
+            mDB.storeMediaRecords(mediaRecords);
         } catch (IOException e) {
             Timber.w("Content toc not available: %s", e.getMessage());
         }
@@ -1104,67 +1171,6 @@ public class MediaConfig extends FragmentActivity
         }
     }
 
-    /**
-     * Auto creates the export file basing on all the media files reside in the MEDIA_MEDIA directory:
-     * a. mHymnType selected is used as the DB Table
-     * b. The only medias supported are in sub-dir: mHymnType + MEDIA_MEDIA
-     * c. The hymnNo is extracted from the fileName (without the ext), default to "0000" if none
-     * d. User must review and edit the generated text file to update Fu hymn
-     * <p>
-     * Export filename tagged with timeStamp e.g hymn_db-20201212_092033
-     */
-    private void createImportFile()
-    {
-        String mediaRecord;
-        String fileName = String.format("%s-%s.txt", mHymnType,
-                new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()));
-
-        File importtFile;
-        if ((importtFile = createFile(fileName)) == null) {
-            return;
-        }
-
-        if (importtFile.exists()) {
-            File srcPath = FileBackend.getHymnchtvStore(mHymnType + MEDIA_MEDIA, false);
-            if ((srcPath != null) && srcPath.isDirectory()) {
-                File[] files = srcPath.listFiles();
-                if ((files != null) && (files.length > 0)) {
-                    // Sort filename in ascending order i.e. so the export file has its hymnNo in ascending order
-                    Arrays.sort(files);
-                    try {
-                        FileWriter fileWriter = new FileWriter(importtFile.getAbsolutePath());
-                        for (File file : files) {
-
-                            // Extract the hymnNo from the fileName with ext stripped
-                            String mFileName = file.getName();
-                            int idx = mFileName.lastIndexOf(".");
-                            if (idx != -1)
-                                mFileName = mFileName.substring(0, idx);
-                            String hymnNo = mFileName.replaceAll("\\D*", "");
-
-                            if (TextUtils.isEmpty(hymnNo)) {
-                                hymnNo = "0000";
-                            }
-                            mediaRecord = String.format(Locale.CHINA, "%s,%s,%d,%s,%s,%s\r\n",
-                                    mHymnType, hymnNo, 0, HYMN_MEDIA, null, file.getAbsolutePath());
-                            fileWriter.write(mediaRecord);
-                        }
-                        HymnsApp.showToastMessage(R.string.hymn_match, files.length);
-                        fileWriter.close();
-
-                        tvImportFile.setText(importtFile.getPath());
-                        editFile(importtFile.getPath());
-                    } catch (IOException e) {
-                        Timber.e("Create Import File exception: %s", e.getMessage());
-                    }
-                }
-                else {
-                    HymnsApp.showToastMessage(R.string.hymn_match_none);
-                }
-            }
-        }
-    }
-
     /**
      * Created a file with the give fileName in the DIR_IMPORT_EXPORT if permitted
      *
@@ -0,0 +1,609 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaconfig;
+
+import static org.cog.hymnchtv.ContentHandler.MEDIA_MEDIA;
+import static org.cog.hymnchtv.MainActivity.HYMN_BB;
+import static org.cog.hymnchtv.MainActivity.HYMN_DB;
+import static org.cog.hymnchtv.MainActivity.HYMN_ER;
+import static org.cog.hymnchtv.MainActivity.HYMN_XB;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_BB_NO_MAX;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_DBS_NO_MAX;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_DB_NO_MAX;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_ER_NO_MAX;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_XB_NO_MAX;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.webkit.MimeTypeMap;
+
+import org.cog.hymnchtv.MediaType;
+import org.cog.hymnchtv.persistance.DatabaseBackend;
+import org.cog.hymnchtv.persistance.FileBackend;
+
+import java.io.File;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import timber.log.Timber;
+
+/**
+ * The incremental media library scanner for the bulk registration of the user media files. Each library folder
+ * is assigned with a hymnType and a MediaType; the hymnNo is extracted from each media file name, and the media
+ * record is saved to the database. The hymnType + MEDIA_MEDIA directories are always in the library as HYMN_MEDIA.
+ *
+ * The file and directory last modified time and size of the last scan are kept as the snapshots in the database;
+ * only the new and changed files are processed, and the directory listing is skipped if the directory is unchanged.
+ * The snapshots of a folder are cleared when the folder is added or removed, so the folder re-assigned to another
+ * hymnType or MediaType, or re-added after its media records are deleted, is fully rescanned.
+ * The media records are saved in batched transactions. The library directories are watched with the FileObserver,
+ * and are rescanned on change. The existing media record of another media file is never overwritten; the media
+ * record of the removed media file is deleted.
+ *
+ * The scan is run on the scanner worker thread; the snapshots are accessed on the worker thread only.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaLibraryScanner
+{
+    private static final String PREF_LIBRARY = "MediaLibrary";
+    private static final String PREF_FOLDERS = "Folders";
+
+    // The delay (ms) to coalesce the burst of the file change events into a single scan
+    private static final long SCAN_DELAY = 2000;
+
+    // The maximum number of the records or snapshots saved in a single transaction
+    private static final int BATCH_SIZE = 500;
+
+    // The hymnNo is the first digits in the file name; with the optional Fu prefix for hymn_db
+    private static final Pattern HYMN_NO_PATTERN = Pattern.compile("(附)?(\\d+)");
+
+    private static final String[] hymnTypes = {HYMN_ER, HYMN_XB, HYMN_BB, HYMN_DB};
+
+    private static final int OBSERVER_MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.MOVED_FROM;
+
+    /**
+     * The callback of the scan request; called on the main thread
+     */
+    public interface ScanListener
+    {
+        /**
+         * @param stored the number of the media records saved
+         * @param deleted the number of the media records deleted for the removed media files
+         */
+        void onScanCompleted(int stored, int deleted);
+    }
+
+    /**
+     * A library folder with the hymnType and the MediaType assigned to its media files
+     */
+    public static class Folder
+    {
+        public final String hymnType;
+        public final MediaType mediaType;
+        public final File dir;
+
+        public Folder(String hymnType, MediaType mediaType, File dir)
+        {
+            this.hymnType = hymnType;
+            this.mediaType = mediaType;
+            this.dir = dir;
+        }
+
+        private static Folder fromString(String folder)
+        {
+            String[] items = folder.split(",", 3);
+            try {
+                return new Folder(items[0], MediaType.valueOf(items[1]), new File(items[2]));
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                Timber.w("Invalid media library folder: %s", folder);
+                return null;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return hymnType + "," + mediaType + "," + dir.getAbsolutePath();
+        }
+    }
+
+    /**
+     * The changes found by a scan
+     */
+    private static class ScanResult
+    {
+        final List<MediaRecord> records = new ArrayList<>();
+        final List<MediaRecord> removedRecords = new ArrayList<>();
+        final List<MediaSnapshot> snapshots = new ArrayList<>();
+        final List<String> removed = new ArrayList<>();
+        final List<File> dirs = new ArrayList<>();
+    }
+
+    private static MediaLibraryScanner mInstance = null;
+
+    private final DatabaseBackend mDB;
+    private final SharedPreferences mPref;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // The <path, MediaSnapshot> of the last scan, and the <parent path, child paths> of the snapshots
+    private Map<String, MediaSnapshot> mSnapshots = null;
+    private final Map<String, Set<String>> mChildren = new HashMap<>();
+
+    // Must keep a strong reference to the observers; else the events stop once they are garbage collected
+    private final List<FileObserver> mObservers = new ArrayList<>();
+
+    private final Thread.UncaughtExceptionHandler mExceptionHandler
+            = (thread, e) -> Timber.e(e, "Media library scan failed");
+
+    private final Runnable scanner = () -> scan(null);
+
+    /**
+     * Get the MediaLibraryScanner instance
+     *
+     * @param context context
+     * @return the MediaLibraryScanner instance
+     */
+    public static synchronized MediaLibraryScanner getInstance(Context context)
+    {
+        if (mInstance == null) {
+            mInstance = new MediaLibraryScanner(context.getApplicationContext());
+        }
+        return mInstance;
+    }
+
+    private MediaLibraryScanner(Context context)
+    {
+        mDB = DatabaseBackend.getInstance(context);
+        mPref = context.getSharedPreferences(PREF_LIBRARY, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return all the library folders; the default hymnType + MEDIA_MEDIA folders first
+     */
+    public List<Folder> getFolders()
+    {
+        List<Folder> folders = new ArrayList<>();
+        for (String hymnType : hymnTypes) {
+            File dir = FileBackend.getHymnchtvStore(hymnType + MEDIA_MEDIA, false);
+            if (dir != null)
+                folders.add(new Folder(hymnType, MediaType.HYMN_MEDIA, dir));
+        }
+
+        for (String item : mPref.getStringSet(PREF_FOLDERS, Collections.emptySet())) {
+            Folder folder = Folder.fromString(item);
+            if (folder != null)
+                folders.add(folder);
+        }
+        return folders;
+    }
+
+    /**
+     * Add the user selected folder to the library, and start the scan
+     *
+     * @param folder the library folder
+     * @param listener the scan listener; null if none
+     */
+    public void addFolder(Folder folder, ScanListener listener)
+    {
+        Set<String> folders = new HashSet<>(mPref.getStringSet(PREF_FOLDERS, Collections.emptySet()));
+        // The same directory may only be assigned to one hymnType and MediaType
+        Iterator<String> iterator = folders.iterator();
+        while (iterator.hasNext()) {
+            Folder item = Folder.fromString(iterator.next());
+            if ((item == null) || item.dir.equals(folder.dir))
+                iterator.remove();
+        }
+        folders.add(folder.toString());
+        mPref.edit().putStringSet(PREF_FOLDERS, folders).apply();
+        scan(Collections.singletonList(folder.dir), listener);
+    }
+
+    /**
+     * Remove all the user selected folders of the given hymnType from the library; the media records
+     * already saved are kept.
+     *
+     * @param hymnType the hymnType
+     * @return the number of the folders removed
+     */
+    public int removeFolders(String hymnType)
+    {
+        Set<String> folders = new HashSet<>(mPref.getStringSet(PREF_FOLDERS, Collections.emptySet()));
+        int count = folders.size();
+        List<File> removedDirs = new ArrayList<>();
+        Iterator<String> iterator = folders.iterator();
+        while (iterator.hasNext()) {
+            Folder item = Folder.fromString(iterator.next());
+            if ((item == null) || item.hymnType.equals(hymnType)) {
+                iterator.remove();
+                if (item != null)
+                    removedDirs.add(item.dir);
+            }
+        }
+        mPref.edit().putStringSet(PREF_FOLDERS, folders).apply();
+        // Rescan to stop watching the removed folders
+        scan(removedDirs, null);
+        return count - folders.size();
+    }
+
+    /**
+     * Start the incremental scan of all the library folders on a background thread
+     *
+     * @param listener the scan listener; null if none
+     */
+    public void scan(ScanListener listener)
+    {
+        scan(Collections.emptyList(), listener);
+    }
+
+    /**
+     * Start the incremental scan of all the library folders on a background thread
+     *
+     * @param resetDirs the directories of which the snapshots are cleared before the scan
+     * @param listener the scan listener; null if none
+     */
+    private void scan(List<File> resetDirs, ScanListener listener)
+    {
+        mHandler.removeCallbacks(scanner);
+        List<Folder> folders = getFolders();
+        Thread thread = new Thread(() -> {
+            synchronized (this) {
+                long startTime = System.currentTimeMillis();
+                for (File dir : resetDirs) {
+                    clearSnapshots(dir);
+                }
+
+                ScanResult result = new ScanResult();
+                for (Folder folder : folders) {
+                    scanDir(folder, folder.dir, result);
+                }
+                int[] counts = commit(result);
+                startObservers(result.dirs);
+                Timber.d("Media library scanned in %s ms: stored %s; deleted %s",
+                        System.currentTimeMillis() - startTime, counts[0], counts[1]);
+                if (listener != null)
+                    mHandler.post(() -> listener.onScanCompleted(counts[0], counts[1]));
+            }
+        }, "MediaLibraryScanner");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.setUncaughtExceptionHandler(mExceptionHandler);
+        thread.start();
+    }
+
+    /**
+     * Schedule a rescan on the library change; the burst of the change events are coalesced
+     */
+    private void requestScan()
+    {
+        mHandler.removeCallbacks(scanner);
+        mHandler.postDelayed(scanner, SCAN_DELAY);
+    }
+
+    /**
+     * Scan the given directory and its sub-directories for the changes since the last scan; the listing of
+     * the directory unchanged since the last scan is skipped, and only its known sub-directories are scanned.
+     *
+     * @param folder the library folder of the directory
+     * @param dir the directory to scan
+     * @param result the scan result
+     */
+    private void scanDir(Folder folder, File dir, ScanResult result)
+    {
+        Map<String, MediaSnapshot> snapshots = getSnapshots();
+        String dirPath = dir.getAbsolutePath();
+        long modified = dir.lastModified();
+        if (modified == 0)
+            return;
+
+        result.dirs.add(dir);
+        MediaSnapshot dirSnapshot = snapshots.get(dirPath);
+        Set<String> children = getChildren(dirPath);
+
+        if ((dirSnapshot != null) && (dirSnapshot.getModified() == modified)) {
+            for (String path : new ArrayList<>(children)) {
+                MediaSnapshot snapshot = snapshots.get(path);
+                if ((snapshot != null) && snapshot.isDirectory())
+                    scanDir(folder, new File(path), result);
+            }
+            return;
+        }
+
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+
+        Set<String> found = new HashSet<>();
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            if (file.getName().startsWith("."))
+                continue;
+
+            if (file.isDirectory()) {
+                found.add(path);
+                scanDir(folder, file, result);
+                continue;
+            }
+
+            MediaRecord mRecord = getMediaRecord(folder, file);
+            if (mRecord == null)
+                continue;
+
+            found.add(path);
+            MediaSnapshot snapshot = snapshots.get(path);
+            long fileModified = file.lastModified();
+            long size = file.length();
+            if ((snapshot == null) || (snapshot.getModified() != fileModified) || (snapshot.getSize() != size)) {
+                result.records.add(mRecord);
+                putSnapshot(new MediaSnapshot(path, fileModified, size), result);
+            }
+        }
+
+        for (String path : new ArrayList<>(children)) {
+            if (!found.contains(path))
+                removeSnapshot(folder, path, result);
+        }
+        putSnapshot(new MediaSnapshot(dirPath, modified, MediaSnapshot.DIRECTORY), result);
+    }
+
+    /**
+     * Save the scan changes in batched transactions; the new media record is saved only if there is no
+     * record of another existing media file or link, and the record of the removed media file is deleted.
+     *
+     * @param result the scan result
+     * @return the number of the records stored and deleted
+     */
+    private int[] commit(ScanResult result)
+    {
+        // The <record key, media file path> of the existing records, loaded once for each hymnType
+        Map<String, String> recordPaths = new HashMap<>();
+        if (!result.records.isEmpty() || !result.removedRecords.isEmpty()) {
+            for (String hymnType : hymnTypes) {
+                for (MediaRecord mRecord : mDB.getMediaRecords(hymnType)) {
+                    recordPaths.put(getRecordKey(mRecord), mRecord.getMediaFilePath());
+                }
+            }
+        }
+
+        List<MediaRecord> records = new ArrayList<>();
+        for (MediaRecord mRecord : result.records) {
+            String key = getRecordKey(mRecord);
+            String filePath = recordPaths.get(key);
+            // The record without the media file path is the user media link, and is kept
+            if (!recordPaths.containsKey(key) || mRecord.getMediaFilePath().equals(filePath)
+                    || ((filePath != null) && !new File(filePath).exists())) {
+                records.add(mRecord);
+                recordPaths.put(key, mRecord.getMediaFilePath());
+            }
+        }
+
+        int stored = 0;
+        for (int i = 0; i < records.size(); i += BATCH_SIZE) {
+            stored += mDB.storeMediaRecords(records.subList(i, Math.min(i + BATCH_SIZE, records.size())));
+        }
+
+        int deleted = 0;
+        for (MediaRecord mRecord : result.removedRecords) {
+            if (mRecord.getMediaFilePath().equals(recordPaths.get(getRecordKey(mRecord))))
+                deleted += mDB.deleteMediaRecord(mRecord);
+        }
+
+        for (int i = 0; i < Math.max(result.snapshots.size(), result.removed.size()); i += BATCH_SIZE) {
+            mDB.storeMediaSnapshots(
+                    result.snapshots.subList(Math.min(i, result.snapshots.size()), Math.min(i + BATCH_SIZE, result.snapshots.size())),
+                    result.removed.subList(Math.min(i, result.removed.size()), Math.min(i + BATCH_SIZE, result.removed.size())));
+        }
+        return new int[]{stored, deleted};
+    }
+
+    /**
+     * Remove the snapshot of the given path and all its sub-directories snapshots
+     */
+    private void removeSnapshot(Folder folder, String path, ScanResult result)
+    {
+        MediaSnapshot snapshot = getSnapshots().remove(path);
+        if (snapshot == null)
+            return;
+
+        String parent = new File(path).getParent();
+        Set<String> siblings = mChildren.get(parent);
+        if (siblings != null)
+            siblings.remove(path);
+        result.removed.add(path);
+
+        if (snapshot.isDirectory()) {
+            for (String child : new ArrayList<>(getChildren(path))) {
+                removeSnapshot(folder, child, result);
+            }
+            mChildren.remove(path);
+        }
+        else {
+            MediaRecord mRecord = getMediaRecord(folder, new File(path));
+            if (mRecord != null)
+                result.removedRecords.add(mRecord);
+        }
+    }
+
+    /**
+     * Clear the snapshots of the given directory and all its files and sub-directories; the media records are kept
+     *
+     * @param dir the library folder directory
+     */
+    private void clearSnapshots(File dir)
+    {
+        String dirPath = dir.getAbsolutePath();
+        String prefix = dirPath + File.separator;
+        List<String> removed = new ArrayList<>();
+        Iterator<String> iterator = getSnapshots().keySet().iterator();
+        while (iterator.hasNext()) {
+            String path = iterator.next();
+            if (path.equals(dirPath) || path.startsWith(prefix)) {
+                iterator.remove();
+                mChildren.remove(path);
+                removed.add(path);
+            }
+        }
+        Set<String> siblings = mChildren.get(dir.getParent());
+        if (siblings != null)
+            siblings.remove(dirPath);
+
+        for (int i = 0; i < removed.size(); i += BATCH_SIZE) {
+            mDB.storeMediaSnapshots(Collections.emptyList(), removed.subList(i, Math.min(i + BATCH_SIZE, removed.size())));
+        }
+    }
+
+    private void putSnapshot(MediaSnapshot snapshot, ScanResult result)
+    {
+        getSnapshots().put(snapshot.getPath(), snapshot);
+        String parent = new File(snapshot.getPath()).getParent();
+        if (parent != null)
+            getChildren(parent).add(snapshot.getPath());
+        result.snapshots.add(snapshot);
+    }
+
+    private Set<String> getChildren(String dirPath)
+    {
+        Set<String> children = mChildren.get(dirPath);
+        if (children == null) {
+            children = new HashSet<>();
+            mChildren.put(dirPath, children);
+        }
+        return children;
+    }
+
+    private Map<String, MediaSnapshot> getSnapshots()
+    {
+        if (mSnapshots == null) {
+            mSnapshots = new HashMap<>();
+            for (MediaSnapshot snapshot : mDB.getMediaSnapshots()) {
+                mSnapshots.put(snapshot.getPath(), snapshot);
+                String parent = new File(snapshot.getPath()).getParent();
+                if (parent != null)
+                    getChildren(parent).add(snapshot.getPath());
+            }
+        }
+        return mSnapshots;
+    }
+
+    /**
+     * Watch the scanned directories for the changes; the observers of the previous scan are replaced
+     */
+    private void startObservers(List<File> dirs)
+    {
+        synchronized (mObservers) {
+            for (FileObserver observer : mObservers) {
+                observer.stopWatching();
+            }
+            mObservers.clear();
+
+            for (File dir : dirs) {
+                FileObserver observer = new FileObserver(dir.getAbsolutePath(), OBSERVER_MASK)
+                {
+                    @Override
+                    public void onEvent(int event, String path)
+                    {
+                        if (path != null)
+                            requestScan();
+                    }
+                };
+                observer.startWatching();
+                mObservers.add(observer);
+            }
+        }
+    }
+
+    /**
+     * Create the media record of the given media file in the library folder
+     *
+     * @param folder the library folder
+     * @param file the media file
+     * @return the media record; or null if the file is not a media file, or has no valid hymnNo
+     */
+    private static MediaRecord getMediaRecord(Folder folder, File file)
+    {
+        String fileName = file.getName();
+        int idx = fileName.lastIndexOf('.');
+        if (idx == -1)
+            return null;
+
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(fileName.substring(idx + 1).toLowerCase(Locale.US));
+        if ((mimeType == null) || !(mimeType.startsWith("audio/") || mimeType.startsWith("video/")))
+            return null;
+
+        int hymnNo = getHymnNo(folder.hymnType, fileName.substring(0, idx));
+        if (hymnNo <= 0)
+            return null;
+
+        return new MediaRecord(folder.hymnType, hymnNo, MediaRecord.isFu(folder.hymnType, hymnNo),
+                folder.mediaType, null, file.getAbsolutePath());
+    }
+
+    /**
+     * Extract the hymnNo from the given media file name i.e. the first digits in the name; the hymn_db Fu hymnNo
+     * e.g. "附3" is returned as HYMN_DB_NO_MAX + 3, as stored in the database.
+     *
+     * @param hymnType the hymnType of the media file
+     * @param name the media file name without the extension
+     * @return the hymnNo; or -1 if none or out of range
+     */
+    static int getHymnNo(String hymnType, String name)
+    {
+        Matcher matcher = HYMN_NO_PATTERN.matcher(name);
+        if (!matcher.find())
+            return -1;
+
+        int hymnNo;
+        try {
+            hymnNo = Integer.parseInt(matcher.group(2));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+        boolean isFu = !TextUtils.isEmpty(matcher.group(1));
+        int maxNo;
+        switch (hymnType) {
+            case HYMN_ER:
+                maxNo = HYMN_ER_NO_MAX;
+                break;
+            case HYMN_XB:
+                maxNo = HYMN_XB_NO_MAX;
+                break;
+            case HYMN_BB:
+                maxNo = HYMN_BB_NO_MAX;
+                break;
+            case HYMN_DB:
+                if (isFu) {
+                    return ((hymnNo > 0) && (hymnNo <= HYMN_DBS_NO_MAX)) ? hymnNo + HYMN_DB_NO_MAX : -1;
+                }
+                maxNo = HYMN_DB_NO_MAX;
+                break;
+            default:
+                return -1;
+        }
+        return (!isFu && (hymnNo > 0) && (hymnNo <= maxNo)) ? hymnNo : -1;
+    }
+
+    private static String getRecordKey(MediaRecord mRecord)
+    {
+        return mRecord.getHymnType() + ":" + mRecord.getHymnNo() + ":" + mRecord.isFu() + ":" + mRecord.getMediaType();
+    }
+}
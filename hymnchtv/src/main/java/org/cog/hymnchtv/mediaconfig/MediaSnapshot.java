@@ -0,0 +1,70 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaconfig;
+
+/**
+ * The file state of a media library file or directory, as seen by the last MediaLibraryScanner scan;
+ * persisted in the database table mediaSnapshot.
+ *
+ * The format of the media snapshot record consists of: path, modified, size
+ * a. path: the absolute file or directory path
+ * b. modified: the file or directory last modified time (ms)
+ * c. size: the file size in bytes; DIRECTORY for a directory
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaSnapshot
+{
+    public static final String TABLE_NAME = "mediaSnapshot";
+    public static final String PATH = "path";
+    public static final String MODIFIED = "modified";
+    public static final String SIZE = "size";
+
+    // The size of the directory snapshot
+    public static final long DIRECTORY = -1;
+
+    private final String mPath;
+    private final long mModified;
+    private final long mSize;
+
+    public MediaSnapshot(String path, long modified, long size)
+    {
+        mPath = path;
+        mModified = modified;
+        mSize = size;
+    }
+
+    public String getPath()
+    {
+        return mPath;
+    }
+
+    public long getModified()
+    {
+        return mModified;
+    }
+
+    public long getSize()
+    {
+        return mSize;
+    }
+
+    public boolean isDirectory()
+    {
+        return mSize == DIRECTORY;
+    }
+}
@@ -28,22 +28,40 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.cog.hymnchtv.HymnsApp;
 import org.cog.hymnchtv.R;
+import org.cog.hymnchtv.mediaplayer.midi.MidiPlayer;
 import org.cog.hymnchtv.persistance.FileBackend;
+import org.cog.hymnchtv.persistance.MediaQuota;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import timber.log.Timber;
 
 /**
  * Class provides the media playback service for the given media.
- * It also broadcasts the playback status to the broadcast listeners
+ * It also broadcasts the playback state changes to the broadcast listeners; the playback position
+ * and duration are sampled in-process by the UI via PlaybackStatus.
  *
  * Note: extends JobIntentService always call onDestroy for every new action
  * Must use static variables if need to keep values (not verified for recording)
  *
+ * The media players are prepared asynchronously via MediaPlayerPool, so the serial work queue is never
+ * blocked by a media prepare e.g. network stream; the start/seek actions received while the player is
+ * being prepared are executed on ACTION_PLAYER_PREPARED.
+ * The online media streams are played via the shared on-disk MediaCache, so the replay is served from the disk.
+ *
+ * The midi main and accompany e.g. bm/bmc given as a single merged uri, are played as one stream by the in-app
+ * MidiPlayer, so the two parts are always in sync, and the playback speed is supported on all android versions.
+ * On android devices without PlaybackParams support, the media is played by the time-stretch StretchPlayer
+ * if the playback speed is not the normal speed.
+ *
+ * Playlist playback: the next playlist item players are pre-prepared on ACTION_PLAYLIST_NEXT, and chained to the
+ * current players with setNextMediaPlayer() for gapless playback; PLAYLIST_STATE is broadcast when the playback
+ * has advanced to the next item.
+ *
  * @author Eng Chong Meng
  */
 public class AudioBgService extends JobIntentService implements MediaPlayer.OnCompletionListener
@@ -54,6 +72,14 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
     public static final String ACTION_PLAYER_PAUSE = "player_pause";
     public static final String ACTION_PLAYER_STOP = "player_stop";
     public static final String ACTION_PLAYER_SEEK = "player_seek";
+    public static final String ACTION_PLAYER_TRIM = "player_trim";
+    private static final String ACTION_PLAYER_PREPARED = "player_prepared";
+
+    // Playlist actions
+    public static final String ACTION_PLAYLIST_NEXT = "playlist_next";
+    private static final String ACTION_PLAYLIST_ADVANCE = "playlist_advance";
+    private static final String ACTION_PCM_COMPLETED = "pcm_completed";
+    private static final String ACTION_PCM_ERROR = "pcm_error";
 
     // Playback without any UI update
     public static final String ACTION_PLAYBACK_PLAY = "playback_play";
@@ -62,18 +88,37 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
 
     // Media player broadcast status parameters
     public static final String PLAYBACK_STATE = "playback_state";
-    public static final String PLAYBACK_STATUS = "playback_status";
     public static final String PLAYBACK_DURATION = "playback_duration";
     public static final String PLAYBACK_POSITION = "playback_position";
     public static final String PLAYBACK_URI = "playback_uri";
 
+    // Playlist broadcast status and parameters
+    public static final String PLAYLIST_STATE = "playlist_state";
+    public static final String PLAYLIST_CURRENT = "playlist_current";
+    public static final String PLAYLIST_NEXT = "playlist_next_uris";
+
     private static final Map<Uri, MediaPlayer> uriPlayers = new ConcurrentHashMap<>();
 
     // Map contains the running loop count for the reference media player
     private static final Map<MediaPlayer, Integer> playbackCounts = new ConcurrentHashMap<>();
 
-    // Handler for media player playback status broadcast
-    private Handler mHandlerPlayback = new Handler(Looper.getMainLooper());
+    // The uris pending for the player prepared to start playback, seek, or broadcast the media info
+    private static final Set<Uri> startPending = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private static final Map<Uri, Integer> seekPending = new ConcurrentHashMap<>();
+    private static final Set<Uri> initPending = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private static MediaPlayerPool mPlayerPool = null;
+
+    // The playlist current and next item uris; and the current players chained to the next item players
+    private static final List<Uri> playlistCurrent = new CopyOnWriteArrayList<>();
+    private static final List<Uri> playlistNext = new CopyOnWriteArrayList<>();
+    private static final Map<MediaPlayer, MediaPlayer> chainedPlayers = new ConcurrentHashMap<>();
+    private static final Map<MediaPlayer, Uri> chainedUris = new ConcurrentHashMap<>();
+
+    // The in-app PCM players i.e. the midi players of the merged midi uris and the time-stretch players,
+    // and their running loop counts
+    private static final Map<Uri, PcmPlayer> uriPcmPlayers = new ConcurrentHashMap<>();
+    private static final Map<PcmPlayer, Integer> pcmCounts = new ConcurrentHashMap<>();
 
     private MediaPlayer mPlayer = null;
     private Uri fileUri;
@@ -136,6 +181,13 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
     @Override
     protected void onHandleWork(Intent intent)
     {
+        // The merged midi main and accompany, and the time-stretch playback are played by the in-app PCM player
+        if (isPcmPlayback(intent.getAction(), intent.getData())) {
+            fileUri = intent.getData();
+            pcmAction(intent.getAction(), fileUri, intent.getIntExtra(PLAYBACK_POSITION, 0));
+            return;
+        }
+
         switch (intent.getAction()) {
             case ACTION_PLAYER_INIT:
                 fileUri = intent.getData();
@@ -168,6 +220,25 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
                 playerPlay(fileUri);
                 break;
 
+            case ACTION_PLAYER_TRIM:
+                playerTrim();
+                break;
+
+            case ACTION_PLAYER_PREPARED:
+                fileUri = intent.getData();
+                playerPrepared(fileUri);
+                break;
+
+            case ACTION_PLAYLIST_NEXT:
+                playlistQueue(intent.getParcelableArrayListExtra(PLAYLIST_CURRENT),
+                        intent.getParcelableArrayListExtra(PLAYLIST_NEXT));
+                break;
+
+            case ACTION_PLAYLIST_ADVANCE:
+                fileUri = intent.getData();
+                playlistAdvance(fileUri);
+                break;
+
             case ACTION_PLAYBACK_LOOP:
                 mLoopCount = 1;
                 try {
@@ -222,11 +293,6 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
     //        stopTimer();
     //        stopRecording();
     //
-    //        if (mHandlerPlayback != null) {
-    //            mHandlerPlayback.removeCallbacks(playbackStatus);
-    //            mHandlerPlayback = null;
-    //        }
-    //
     //        for (Uri uri : uriPlayers.keySet()) {
     //            fileUri = uri;
     //            playerRelease(uri);
@@ -238,36 +304,117 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
      * ============================================================= */
 
     /**
-     * Create a new media player instance for the specified uri
+     * Get the player pool, create one if none
+     *
+     * @param context context
+     * @return the media player pool
+     */
+    private static synchronized MediaPlayerPool getPlayerPool(Context context)
+    {
+        if (mPlayerPool == null) {
+            Context ctx = context.getApplicationContext();
+            mPlayerPool = new MediaPlayerPool(new MediaPlayerPool.PoolListener()
+            {
+                @Override
+                public void onPlayerPrepared(Uri uri)
+                {
+                    enqueuePlayerAction(ctx, ACTION_PLAYER_PREPARED, uri);
+                }
+
+                @Override
+                public void onPlayerError(Uri uri)
+                {
+                    HymnsApp.showToastMessage(R.string.gui_error_media_url_invalid, uri);
+                    enqueuePlayerAction(ctx, ACTION_PLAYER_STOP, uri);
+                }
+
+                @Override
+                public boolean isPending(Uri uri)
+                {
+                    return startPending.contains(uri) || seekPending.containsKey(uri) || initPending.contains(uri);
+                }
+
+                @Override
+                public void onPlayerReleased(Uri uri)
+                {
+                    // Clear the pending action, and reset the UI from its preparing state
+                    enqueuePlayerAction(ctx, ACTION_PLAYER_STOP, uri);
+                }
+            });
+        }
+        return mPlayerPool;
+    }
+
+    private static void enqueuePlayerAction(Context context, String action, Uri uri)
+    {
+        Intent intent = new Intent(context, AudioBgService.class);
+        intent.setAction(action);
+        intent.setData(uri);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Take the prepared player for the specified uri from the player pool, and make it the active player;
+     * else start preparing a new player asynchronously.
      *
      * @param uri Media file uri
-     * @return true is creation is successful
+     * @return true if the prepared player is available, false if it is being prepared
      */
-    public boolean playerCreate(Uri uri)
+    private boolean acquirePlayer(Uri uri)
     {
         if (uri == null)
             return false;
 
-        mPlayer = new MediaPlayer();
+        MediaPlayerPool playerPool = getPlayerPool(this);
+        mPlayer = playerPool.acquire(uri);
+        if (mPlayer == null) {
+            playerPool.prepare(this, uri);
+            return false;
+        }
+
+        mPlayer.setOnCompletionListener(this);
         uriPlayers.put(uri, mPlayer);
-        mPlayer.setAudioAttributes(new AudioAttributes.Builder().setLegacyStreamType(AudioManager.STREAM_MUSIC).build());
+        return true;
+    }
 
-        try {
-            mPlayer.setOnCompletionListener(this);
-            if (uri.toString().startsWith("http")) {
-                mPlayer.setDataSource(uri.toString());
+    /**
+     * Execute the actions pending for the player of the given uri to be prepared; the playback is started only when
+     * all the players pending to start are prepared, so the multiple uri playbacks are synchronized.
+     *
+     * @param uri the media file uri of the prepared player
+     */
+    private void playerPrepared(Uri uri)
+    {
+        if (initPending.remove(uri)) {
+            playbackState(this, PlaybackState.stop, uri, 0, MediaInfoCache.getCachedDuration(uri));
+        }
+
+        Integer seekPosition = seekPending.remove(uri);
+        if (seekPosition != null) {
+            playerSeek(uri, seekPosition);
+        }
+
+        if (!startPending.isEmpty()) {
+            boolean isReady = true;
+            MediaPlayerPool playerPool = getPlayerPool(this);
+            for (Uri xUri : startPending) {
+                if (!uriPlayers.containsKey(xUri) && !playerPool.isPrepared(xUri)) {
+                    isReady = false;
+                    break;
+                }
             }
-            else {
-                mPlayer.setDataSource(this, uri);
+
+            if (isReady) {
+                for (Uri xUri : new ArrayList<>(startPending)) {
+                    startPending.remove(xUri);
+                    fileUri = xUri;
+                    playerStart(xUri);
+                }
             }
-            mPlayer.prepare();
-        } catch (IOException | IllegalStateException e) {
-            HymnsApp.showToastMessage(R.string.gui_error_media_url_invalid, uri);
-            Timber.e("Media player creation error for: %s", uri.getPath());
-            playerRelease(uri);
-            return false;
         }
-        return true;
+
+        // Either the current or the next playlist item player may just get ready for chaining
+        playlistChain();
     }
 
     /**
@@ -287,9 +434,6 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
         if (mPlayer != null) {
             if (mPlayer.isPlaying()) {
                 playbackState(PlaybackState.play, uri);
-                // Cancel and re-sync with only one loop running
-                mHandlerPlayback.removeCallbacks(playbackStatus);
-                mHandlerPlayback.postDelayed(playbackStatus, 500);
             }
             else {
                 int position = mPlayer.getCurrentPosition();
@@ -303,10 +447,15 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
             }
         }
         else {
-            // Create new to get media info and then release to conserve resource
-            if (playerCreate(uri)) {
-                playerRelease(uri);
-            }
+            // Get the media info from cache or retriever, and get a player ready for the expected playback
+            Context context = getApplicationContext();
+            initPending.add(uri);
+            MediaInfoCache.getDuration(context, uri, (xUri, duration) -> {
+                if ((duration > 0) && initPending.remove(xUri)) {
+                    playbackState(context, PlaybackState.stop, xUri, 0, duration);
+                }
+            });
+            getPlayerPool(this).prepare(this, uri);
         }
     }
 
@@ -338,7 +487,11 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
 
         mPlayer = uriPlayers.get(fileUri);
         if (mPlayer == null) {
-            playbackState(PlaybackState.stop, uri);
+            // Cancel the pending playback start if the player is still being prepared
+            if (startPending.remove(uri))
+                playbackState(this, PlaybackState.stop, uri, 0, MediaInfoCache.getCachedDuration(uri));
+            else
+                playbackState(PlaybackState.stop, uri);
         }
         else if (mPlayer.isPlaying()) {
             mPlayer.pause();
@@ -348,7 +501,6 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
 
     /**
      * Start playing back on existing player or create new if none
-     * Broadcast the player status at regular interval
      *
      * @param uri the media file uri
      */
@@ -360,8 +512,10 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
         Timber.w("start player for: %s", fileUri.getLastPathSegment());
         mPlayer = uriPlayers.get(uri);
         if (mPlayer == null) {
-            if (!playerCreate(uri))
+            if (!acquirePlayer(uri)) {
+                startPending.add(uri);
                 return;
+            }
         }
         else if (mPlayer.isPlaying()) {
             return;
@@ -376,12 +530,11 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
             playbackCounts.put(mPlayer, mLoopCount);
             mPlayer.start();
             playbackState(PlaybackState.play, uri);
+            MediaQuota.getInstance(this).onMediaPlayed(uri);
         } catch (Exception e) {
             Timber.e("Playback failed: %s", e.getMessage());
             playerRelease(uri);
         }
-        mHandlerPlayback.removeCallbacks(playbackStatus);
-        mHandlerPlayback.postDelayed(playbackStatus, 500);
     }
 
     /**
@@ -396,8 +549,10 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
             return;
 
         mPlayer = uriPlayers.get(uri);
-        if ((mPlayer == null) && !playerCreate(uri))
+        if ((mPlayer == null) && !acquirePlayer(uri)) {
+            seekPending.put(uri, seekPosition);
             return;
+        }
 
         try {
             mPlayer.seekTo(seekPosition);
@@ -410,10 +565,15 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
     }
 
     /**
-     * Setting of playback speed is only support in Android.M
+     * Setting of playback speed via PlaybackParams is only support in Android.M; else the playback is handed over
+     * to the time-stretch StretchPlayer
      */
     private void setPlaybackSpeed()
     {
+        for (PcmPlayer player : uriPcmPlayers.values()) {
+            player.setSpeed(playbackSpeed);
+        }
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             for (Map.Entry<Uri, MediaPlayer> entry : uriPlayers.entrySet()) {
                 MediaPlayer player = entry.getValue();
@@ -432,10 +592,17 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
                 }
             }
         }
+        else if (playbackSpeed != 1.0f) {
+            for (Uri uri : new ArrayList<>(uriPlayers.keySet())) {
+                if (StretchPlayer.isSupported(uri))
+                    pcmHandover(uri);
+            }
+        }
     }
 
     /**
-     * Release the player resource and remove it from uriPlayers
+     * Remove the player from uriPlayers, and return it to the player pool for reuse;
+     * also cancel any pending action if the player is still being prepared.
      *
      * @param uri the media file uri
      */
@@ -444,20 +611,221 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
         if (uri == null)
             return;
 
+        boolean hasPending = startPending.remove(uri) | (seekPending.remove(uri) != null) | initPending.remove(uri);
         mPlayer = uriPlayers.get(uri);
         if (mPlayer != null) {
-            mPlayer.seekTo(0);
-            playbackState(PlaybackState.stop, uri);
-
             playbackCounts.remove(mPlayer);
-            uriPlayers.remove(uri);
-            if (mPlayer.isPlaying()) {
-                mPlayer.stop();
+            playlistUnchain(mPlayer);
+            try {
+                if (mPlayer.isPlaying()) {
+                    mPlayer.pause();
+                }
+                mPlayer.seekTo(0);
+                playbackState(PlaybackState.stop, uri);
+                uriPlayers.remove(uri);
+                getPlayerPool(this).recycle(uri, mPlayer);
+            } catch (IllegalStateException e) {
+                Timber.w("Media player in illegal state: %s", e.getMessage());
+                playbackState(this, PlaybackState.stop, uri, 0, MediaInfoCache.getCachedDuration(uri));
+                uriPlayers.remove(uri);
+                mPlayer.reset();
+                mPlayer.release();
             }
-            mPlayer.reset();
-            mPlayer.release();
             mPlayer = null;
         }
+        else if (hasPending) {
+            playbackState(this, PlaybackState.stop, uri, 0, MediaInfoCache.getCachedDuration(uri));
+        }
+
+        if (uriPlayers.isEmpty()) {
+            playlistCurrent.clear();
+            playlistNext.clear();
+        }
+    }
+
+    /**
+     * Queue the next playlist item, and get its players prepared for chaining to the current item players.
+     * The next item is chained only if it has the same number of uris as the current item e.g. midi main and
+     * accompany; else the next item is started by the UI when the current playback stops.
+     *
+     * @param current the current playlist item uris
+     * @param next the next playlist item uris; null if none
+     */
+    private void playlistQueue(List<Uri> current, List<Uri> next)
+    {
+        for (MediaPlayer player : new ArrayList<>(chainedPlayers.keySet())) {
+            playlistUnchain(player);
+        }
+        playlistCurrent.clear();
+        playlistNext.clear();
+
+        if ((current == null) || (next == null) || (current.size() != next.size())
+                || hasMergedMidi(current) || hasMergedMidi(next)) {
+            Timber.d("Playlist next item is not chained: %s", next);
+            return;
+        }
+
+        playlistCurrent.addAll(current);
+        playlistNext.addAll(next);
+        MediaPlayerPool playerPool = getPlayerPool(this);
+        for (Uri uri : next) {
+            if (!playerPool.isPrepared(uri))
+                playerPool.prepare(this, uri);
+        }
+        playlistChain();
+    }
+
+    private boolean hasMergedMidi(List<Uri> uris)
+    {
+        for (Uri uri : uris) {
+            if (MidiPlayer.isMergedUri(uri))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Chain the prepared next playlist item players to the current item players for gapless playback
+     */
+    private void playlistChain()
+    {
+        MediaPlayerPool playerPool = getPlayerPool(this);
+        for (int i = 0; (i < playlistNext.size()) && (i < playlistCurrent.size()); i++) {
+            MediaPlayer player = uriPlayers.get(playlistCurrent.get(i));
+            if ((player == null) || chainedPlayers.containsKey(player))
+                continue;
+
+            Uri nextUri = playlistNext.get(i);
+            MediaPlayer nextPlayer = playerPool.acquire(nextUri);
+            if (nextPlayer == null)
+                continue;
+
+            try {
+                nextPlayer.setOnCompletionListener(this);
+                player.setNextMediaPlayer(nextPlayer);
+                chainedPlayers.put(player, nextPlayer);
+                chainedUris.put(nextPlayer, nextUri);
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Timber.w("Playlist chaining failed for %s: %s", nextUri.getLastPathSegment(), e.getMessage());
+                playerPool.recycle(nextUri, nextPlayer);
+            }
+        }
+    }
+
+    /**
+     * Remove the chained next playlist item player from the given player, and return it to the player pool
+     *
+     * @param player the current playlist item player
+     */
+    private void playlistUnchain(MediaPlayer player)
+    {
+        MediaPlayer nextPlayer = chainedPlayers.remove(player);
+        if (nextPlayer == null)
+            return;
+
+        try {
+            player.setNextMediaPlayer(null);
+        } catch (IllegalStateException e) {
+            Timber.w("Playlist unchain exception: %s", e.getMessage());
+        }
+
+        Uri nextUri = chainedUris.remove(nextPlayer);
+        if (nextUri != null)
+            getPlayerPool(this).recycle(nextUri, nextPlayer);
+        else
+            nextPlayer.release();
+    }
+
+    /**
+     * The current player has completed and its chained next player has started playback; make the next player
+     * the active player. PLAYLIST_STATE is broadcast once all the current item players have advanced.
+     *
+     * @param uri the media file uri of the completed player
+     */
+    private void playlistAdvance(Uri uri)
+    {
+        MediaPlayer player = uriPlayers.get(uri);
+        MediaPlayer nextPlayer = (player == null) ? null : chainedPlayers.remove(player);
+        if (nextPlayer == null)
+            return;
+
+        Uri nextUri = chainedUris.remove(nextPlayer);
+        playbackCounts.remove(player);
+        uriPlayers.remove(uri);
+        try {
+            player.setNextMediaPlayer(null);
+            player.seekTo(0);
+            getPlayerPool(this).recycle(uri, player);
+        } catch (IllegalStateException e) {
+            player.release();
+        }
+
+        // Each playlist item is played once
+        uriPlayers.put(nextUri, nextPlayer);
+        playbackCounts.put(nextPlayer, 1);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                nextPlayer.setPlaybackParams(nextPlayer.getPlaybackParams().setSpeed(playbackSpeed));
+            } catch (IllegalStateException e) {
+                Timber.e("Playback setSpeed failed: %s", e.getMessage());
+            }
+        }
+        playbackState(PlaybackState.play, nextUri);
+
+        if (chainedPlayers.isEmpty()) {
+            ArrayList<Uri> current = new ArrayList<>(playlistNext);
+            playlistCurrent.clear();
+            playlistNext.clear();
+
+            Intent intent = new Intent(PLAYLIST_STATE);
+            intent.putParcelableArrayListExtra(PLAYLIST_CURRENT, current);
+            LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+            Timber.d("Playlist advanced to: %s", current);
+        }
+    }
+
+    /**
+     * Request the service to release all the idle players on low memory;
+     * Must be executed in the service worker thread, so it is serialized with other player actions.
+     *
+     * @param context the caller context
+     * @return true if the trim request is queued i.e. there are existing players
+     */
+    public static boolean trimIdlePlayers(Context context)
+    {
+        if (uriPlayers.isEmpty() && uriPcmPlayers.isEmpty() && ((mPlayerPool == null) || mPlayerPool.isEmpty()))
+            return false;
+
+        Intent intent = new Intent(context, AudioBgService.class);
+        intent.setAction(ACTION_PLAYER_TRIM);
+        enqueueWork(context, intent);
+        return true;
+    }
+
+    /**
+     * Release all the players that are not actively playing e.g. in pause state; the UI is updated to stop state.
+     * All the pooled idle players are also released.
+     */
+    private void playerTrim()
+    {
+        int count = 0;
+        for (Map.Entry<Uri, MediaPlayer> entry : uriPlayers.entrySet()) {
+            MediaPlayer player = entry.getValue();
+            if ((player != null) && !player.isPlaying()) {
+                fileUri = entry.getKey();
+                playerRelease(fileUri);
+                count++;
+            }
+        }
+        for (Map.Entry<Uri, PcmPlayer> entry : uriPcmPlayers.entrySet()) {
+            if (!entry.getValue().isPlaying()) {
+                fileUri = entry.getKey();
+                pcmRelease(fileUri);
+                count++;
+            }
+        }
+        count += getPlayerPool(this).releaseAll();
+        Timber.d("Idle media players released: %s", count);
     }
 
     // Listener for playback completion
@@ -475,6 +843,10 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
             mp.release();
             stopSelf();
         }
+        else if (chainedPlayers.containsKey(mp)) {
+            // The chained next playlist item player has started
+            enqueuePlayerAction(this, ACTION_PLAYLIST_ADVANCE, fileUri);
+        }
         else {
             checkLoopSyncAction(mp);
         }
@@ -558,62 +930,312 @@ public class AudioBgService extends JobIntentService implements MediaPlayer.OnCo
     {
         MediaPlayer xPlayer = uriPlayers.get(uri);
         if (xPlayer != null) {
-            Intent intent = new Intent(PLAYBACK_STATE);
-            intent.putExtra(PLAYBACK_URI, uri);
-            intent.putExtra(PLAYBACK_STATE, pState);
-            intent.putExtra(PLAYBACK_POSITION, xPlayer.getCurrentPosition());
-            intent.putExtra(PLAYBACK_DURATION, xPlayer.getDuration());
-
-            LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
-            // Timber.d("Audio playback state: %s (%s): %s", pState, xPlayer.getDuration(), uri.getPath());
+            playbackState(this, pState, uri, xPlayer.getCurrentPosition(), xPlayer.getDuration());
         }
     }
 
     /**
-     * Broadcast the relevant info of the media playback status (uri); loop@500ms until no active player
-     * a. player uri file
-     * b. playback position
-     * c. uri playback duration
+     * Broadcast the given media info of the uri when there is no active player
+     *
+     * @param context context
+     * @param pState player state
+     * @param uri media file uri
+     * @param position playback position
+     * @param duration uri playback duration
      */
-    private final Runnable playbackStatus = new Runnable()
+    private static void playbackState(Context context, PlaybackState pState, Uri uri, int position, int duration)
     {
-        public void run()
-        {
-            boolean hasActivePlayer = false;
+        Intent intent = new Intent(PLAYBACK_STATE);
+        intent.putExtra(PLAYBACK_URI, uri);
+        intent.putExtra(PLAYBACK_STATE, pState);
+        intent.putExtra(PLAYBACK_POSITION, position);
+        intent.putExtra(PLAYBACK_DURATION, duration);
+
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+        // Timber.d("Audio playback state: %s (%s): %s", pState, duration, uri.getPath());
+    }
 
-            for (Map.Entry<Uri, MediaPlayer> entry : uriPlayers.entrySet()) {
-                MediaPlayer playerX = entry.getValue();
-                if ((playerX == null) || !playerX.isPlaying())
-                    continue;
+    /* =============================================================
+     * In-app PCM player handlers for the merged midi main and accompany,
+     * and the time-stretch playback
+     * ============================================================= */
+
+    /**
+     * Check if the uri action is to be handled by the in-app PCM player i.e. the merged midi uri, an active PCM player,
+     * or the playback requires the time-stretch on android devices without PlaybackParams support.
+     *
+     * @param action the player action
+     * @param uri the media uri
+     * @return true if the action is to be handled by the PCM player handlers
+     */
+    private static boolean isPcmPlayback(String action, Uri uri)
+    {
+        if (uri == null)
+            return false;
+        if (MidiPlayer.isMergedUri(uri) || uriPcmPlayers.containsKey(uri))
+            return true;
+
+        return (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) && (playbackSpeed != 1.0f)
+                && !ACTION_PLAYER_INIT.equals(action) && !ACTION_PLAYER_PREPARED.equals(action)
+                && !uriPlayers.containsKey(uri) && StretchPlayer.isSupported(uri);
+    }
+
+    private void pcmAction(String action, Uri uri, int position)
+    {
+        switch (action) {
+            case ACTION_PLAYER_INIT:
+                pcmInit(uri);
+                break;
+
+            case ACTION_PLAYER_START:
+            case ACTION_PLAYBACK_PLAY:
+                pcmStart(uri);
+                break;
 
-                hasActivePlayer = true;
-                // Timber.d("Audio playback state: %s:  %s", playerX.getCurrentPosition(), entry.getKey());
+            case ACTION_PLAYER_PAUSE:
+                pcmPause(uri);
+                break;
 
-                Intent intent = new Intent(PLAYBACK_STATUS);
-                intent.putExtra(PLAYBACK_URI, entry.getKey());
-                intent.putExtra(PLAYBACK_POSITION, playerX.getCurrentPosition());
-                intent.putExtra(PLAYBACK_DURATION, playerX.getDuration());
-                LocalBroadcastManager.getInstance(AudioBgService.this).sendBroadcast(intent);
+            case ACTION_PLAYER_STOP:
+                pcmRelease(uri);
+                break;
+
+            case ACTION_PLAYER_SEEK:
+                pcmSeek(uri, position);
+                break;
+
+            case ACTION_PCM_COMPLETED:
+                pcmCompleted(uri);
+                break;
+
+            case ACTION_PCM_ERROR:
+                pcmError(uri);
+                break;
+        }
+    }
+
+    /**
+     * Get the PCM player of the given uri, or create one if none and requested
+     *
+     * @param uri the media uri
+     * @param create true to create the player if none
+     * @return the PCM player, or null if none or the media cannot be loaded
+     */
+    private PcmPlayer obtainPcmPlayer(Uri uri, boolean create)
+    {
+        PcmPlayer player = uriPcmPlayers.get(uri);
+        if ((player == null) && create) {
+            try {
+                player = MidiPlayer.isMergedUri(uri) ? new MidiPlayer(this, uri) : new StretchPlayer(this, uri);
+            } catch (IOException | RuntimeException e) {
+                Timber.e("PCM player creation error for %s: %s", uri.getPath(), e.getMessage());
+                HymnsApp.showToastMessage(R.string.gui_error_media_url_invalid, uri);
+                return null;
             }
 
-            if (hasActivePlayer)
-                mHandlerPlayback.postDelayed(this, 500);
+            Context context = getApplicationContext();
+            player.setOnCompletionListener(mp -> enqueuePlayerAction(context, ACTION_PCM_COMPLETED, uri));
+            player.setOnErrorListener((mp, message) -> enqueuePlayerAction(context, ACTION_PCM_ERROR, uri));
+            player.setSpeed(playbackSpeed);
+            MediaInfoCache.putDuration(uri, player.getDuration());
+            uriPcmPlayers.put(uri, player);
+        }
+        return player;
+    }
+
+    private void pcmInit(Uri uri)
+    {
+        PcmPlayer player = obtainPcmPlayer(uri, false);
+        if (player != null) {
+            pcmState(player.isPlaying() ? PlaybackState.play : PlaybackState.pause, uri, player);
+        }
+        else if ((player = obtainPcmPlayer(uri, true)) != null) {
+            // Just get the media info; the player is created again on playback start
+            playbackState(this, PlaybackState.stop, uri, 0, player.getDuration());
+            uriPcmPlayers.remove(uri);
+            player.release();
+        }
+    }
+
+    private void pcmStart(Uri uri)
+    {
+        PcmPlayer player = obtainPcmPlayer(uri, true);
+        if (player == null) {
+            playbackState(this, PlaybackState.stop, uri, 0, 0);
+        }
+        else if (!player.isPlaying()) {
+            pcmCounts.put(player, mLoopCount);
+            player.setSpeed(playbackSpeed);
+            player.start();
+            pcmState(PlaybackState.play, uri, player);
+            MediaQuota.getInstance(this).onMediaPlayed(uri);
+        }
+    }
+
+    private void pcmPause(Uri uri)
+    {
+        PcmPlayer player = obtainPcmPlayer(uri, false);
+        if (player == null) {
+            playbackState(this, PlaybackState.stop, uri, 0, MediaInfoCache.getCachedDuration(uri));
+        }
+        else if (player.isPlaying()) {
+            player.pause();
+            pcmState(PlaybackState.pause, uri, player);
+        }
+    }
+
+    private void pcmSeek(Uri uri, int position)
+    {
+        PcmPlayer player = obtainPcmPlayer(uri, true);
+        if (player != null) {
+            player.seekTo(position);
+            if (!player.isPlaying())
+                pcmState(PlaybackState.pause, uri, player);
+        }
+    }
+
+    private void pcmRelease(Uri uri)
+    {
+        PcmPlayer player = uriPcmPlayers.remove(uri);
+        if (player != null) {
+            pcmCounts.remove(player);
+            player.release();
+        }
+        playbackState(this, PlaybackState.stop, uri, 0, MediaInfoCache.getCachedDuration(uri));
+    }
+
+    /**
+     * The PCM playback has completed; restart it if the loop count is not exhausted, else release the player
+     *
+     * @param uri the media uri
+     */
+    private void pcmCompleted(Uri uri)
+    {
+        PcmPlayer player = obtainPcmPlayer(uri, false);
+        if (player == null)
+            return;
+
+        Integer count = pcmCounts.get(player);
+        if ((count != null) && (count > 0)) {
+            pcmCounts.put(player, --count);
+            player.seekTo(0);
+            player.start();
+        }
+
+        // Release the player if the loop count is exhausted
+        if (!player.isPlaying()) {
+            pcmRelease(uri);
+        }
+    }
+
+    /**
+     * The PCM player has stopped on the decoder or AudioTrack error; release it and report the error
+     *
+     * @param uri the media uri
+     */
+    private void pcmError(Uri uri)
+    {
+        if (uriPcmPlayers.containsKey(uri)) {
+            HymnsApp.showToastMessage(R.string.gui_error_media_url_invalid, uri);
+            pcmRelease(uri);
+        }
+    }
+
+    /**
+     * Hand over the playback of the given uri from its MediaPlayer to the time-stretch StretchPlayer at the
+     * current position, e.g. on the playback speed change on android devices without PlaybackParams support.
+     *
+     * @param uri the media uri
+     */
+    private void pcmHandover(Uri uri)
+    {
+        MediaPlayer player = uriPlayers.remove(uri);
+        if (player == null)
+            return;
+
+        boolean isPlaying = false;
+        int position = 0;
+        Integer count = playbackCounts.remove(player);
+        playlistUnchain(player);
+        try {
+            isPlaying = player.isPlaying();
+            position = player.getCurrentPosition();
+            if (isPlaying)
+                player.pause();
+            getPlayerPool(this).recycle(uri, player);
+        } catch (IllegalStateException e) {
+            player.release();
         }
-    };
+
+        PcmPlayer pcmPlayer = obtainPcmPlayer(uri, true);
+        if (pcmPlayer == null) {
+            playbackState(this, PlaybackState.stop, uri, 0, MediaInfoCache.getCachedDuration(uri));
+            return;
+        }
+
+        pcmCounts.put(pcmPlayer, (count == null) ? mLoopCount : count);
+        pcmPlayer.seekTo(position);
+        if (isPlaying) {
+            pcmPlayer.start();
+            pcmState(PlaybackState.play, uri, pcmPlayer);
+        }
+        else {
+            pcmState(PlaybackState.pause, uri, pcmPlayer);
+        }
+    }
+
+    private void pcmState(PlaybackState pState, Uri uri, PcmPlayer player)
+    {
+        playbackState(this, pState, uri, player.getCurrentPosition(), player.getDuration());
+    }
+
+    /**
+     * Get the active in-app PCM player of the given uri for the in-process playback status sampling.
+     *
+     * @param uri the media uri
+     * @return the PCM player, or null if none
+     * @see PlaybackStatus
+     */
+    static PcmPlayer getPcmPlayer(Uri uri)
+    {
+        return uriPcmPlayers.get(uri);
+    }
+
+    /**
+     * Get the active player of the given uri for the in-process playback status sampling.
+     *
+     * @param uri the media uri
+     * @return the uri player, or null if none
+     * @see PlaybackStatus
+     */
+    static MediaPlayer getPlayer(Uri uri)
+    {
+        return uriPlayers.get(uri);
+    }
 
     /**
      * Playback media audio without any UI update
-     * hence mHandlerPlayback not required
+     * hence no playback status is required
      *
      * @param uri the audio file
      */
     public void playerPlay(Uri uri)
     {
-        if (playerCreate(uri)) {
-            mPlayer.start();
-            uriPlayers.remove(uri);
+        if (uri == null)
+            return;
+
+        MediaPlayer player = new MediaPlayer();
+        player.setAudioAttributes(new AudioAttributes.Builder().setLegacyStreamType(AudioManager.STREAM_MUSIC).build());
+        player.setOnPreparedListener(MediaPlayer::start);
+        player.setOnCompletionListener(MediaPlayer::release);
+        try {
+            MediaCache.setDataSource(this, player, uri);
+            player.prepareAsync();
+        } catch (IOException | IllegalStateException e) {
+            HymnsApp.showToastMessage(R.string.gui_error_media_url_invalid, uri);
+            Timber.e("Media player creation error for: %s", uri.getPath());
+            player.release();
         }
-        mHandlerPlayback = null;
     }
 
     /* =============================================================
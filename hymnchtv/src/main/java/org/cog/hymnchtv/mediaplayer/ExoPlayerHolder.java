@@ -0,0 +1,188 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.google.android.exoplayer2.Player;
+import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.source.DefaultMediaSourceFactory;
+import com.google.android.exoplayer2.ui.StyledPlayerView;
+
+import org.cog.hymnchtv.utils.MemoryGovernor;
+
+import timber.log.Timber;
+
+/**
+ * The process-scoped holder of the SimpleExoPlayer shared by the MediaExoPlayerFragment instances. A fragment
+ * attaches its player view to the holder player on resume, and detaches on pause; the detached player, with its
+ * decoders and renderers, is kept warm for the configurable idle timeout, so the next video playback starts without the
+ * player rebuild. The playback continues across the configuration changes; else it is paused on detach.
+ *
+ * The holder also tracks the media loaded in the player, so the re-attached fragment continues its playback
+ * position without reloading the media. The detached player is released on the memory trim request.
+ *
+ * All the methods must be called on the main thread i.e. the player application looper.
+ *
+ * @author Eng Chong Meng
+ */
+public class ExoPlayerHolder
+{
+    // The default time (ms) to keep the detached player warm before it is released
+    public static final long IDLE_TIMEOUT = 60000;
+
+    private static ExoPlayerHolder mInstance = null;
+
+    private final Context mContext;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mIdleRelease = this::release;
+
+    private SimpleExoPlayer mPlayer = null;
+    private StyledPlayerView mPlayerView = null;
+    private Player.Listener mListener = null;
+
+    // The key of the media currently loaded in the player; null if none
+    private String mMediaKey = null;
+
+    private long mIdleTimeout = IDLE_TIMEOUT;
+
+    /**
+     * Get the ExoPlayerHolder instance and create one if new
+     *
+     * @param context context
+     * @return the ExoPlayerHolder instance
+     */
+    public static synchronized ExoPlayerHolder getInstance(Context context)
+    {
+        if (mInstance == null) {
+            mInstance = new ExoPlayerHolder(context.getApplicationContext());
+        }
+        return mInstance;
+    }
+
+    private ExoPlayerHolder(Context context)
+    {
+        mContext = context;
+        MemoryGovernor.registerTrimListener(ExoPlayerHolder.class.getSimpleName(), level -> {
+            if ((mPlayer == null) || (mPlayerView != null))
+                return 0;
+
+            release();
+            return 1;
+        });
+    }
+
+    /**
+     * Set the time to keep the detached player warm; a zero timeout releases the player on detach.
+     *
+     * @param idleTimeout the idle timeout (ms)
+     */
+    public void setIdleTimeout(long idleTimeout)
+    {
+        mIdleTimeout = Math.max(0, idleTimeout);
+    }
+
+    /**
+     * Attach the given player view and listener to the holder player; the player is created if none is warm.
+     * Any previously attached view and listener are detached.
+     *
+     * @param playerView the fragment player view
+     * @param listener the fragment player state listener
+     * @return the holder player
+     */
+    public SimpleExoPlayer attach(StyledPlayerView playerView, Player.Listener listener)
+    {
+        mHandler.removeCallbacks(mIdleRelease);
+        if (mPlayer == null) {
+            // Online media streams are played via the shared on-disk media cache
+            mPlayer = new SimpleExoPlayer.Builder(mContext)
+                    .setMediaSourceFactory(new DefaultMediaSourceFactory(MediaCache.getDataSourceFactory(mContext)))
+                    .build();
+            mMediaKey = null;
+            Timber.d("ExoPlayer created");
+        }
+        else if (mPlayerView != null) {
+            detach(mPlayerView, mListener, false);
+            mHandler.removeCallbacks(mIdleRelease);
+        }
+
+        mPlayerView = playerView;
+        mListener = listener;
+        mPlayer.addListener(listener);
+        playerView.setPlayer(mPlayer);
+        return mPlayer;
+    }
+
+    /**
+     * Detach the given player view and listener from the holder player; the player is released after the
+     * idle timeout unless it is re-attached. Ignored if the view is no longer attached.
+     *
+     * @param playerView the fragment player view
+     * @param listener the fragment player state listener
+     * @param isChangingConfigurations true to continue the playback across the configuration change
+     */
+    public void detach(StyledPlayerView playerView, Player.Listener listener, boolean isChangingConfigurations)
+    {
+        if ((mPlayer == null) || (playerView != mPlayerView))
+            return;
+
+        mPlayer.removeListener(listener);
+        playerView.setPlayer(null);
+        if (!isChangingConfigurations)
+            mPlayer.setPlayWhenReady(false);
+
+        mPlayerView = null;
+        mListener = null;
+        if (mIdleTimeout > 0)
+            mHandler.postDelayed(mIdleRelease, mIdleTimeout);
+        else
+            release();
+    }
+
+    /**
+     * @param mediaKey the media key of the fragment e.g. the media urls
+     * @return true if the given media is loaded in the holder player, and can be continued without reload
+     */
+    public boolean isLoaded(String mediaKey)
+    {
+        return (mPlayer != null) && (mMediaKey != null) && mMediaKey.equals(mediaKey);
+    }
+
+    /**
+     * @param mediaKey the key of the media loaded into the holder player
+     */
+    public void setLoaded(String mediaKey)
+    {
+        mMediaKey = mediaKey;
+    }
+
+    /**
+     * Release the holder player if it is not attached
+     */
+    public void release()
+    {
+        mHandler.removeCallbacks(mIdleRelease);
+        if ((mPlayer != null) && (mPlayerView == null)) {
+            mPlayer.release();
+            mPlayer = null;
+            mMediaKey = null;
+            Timber.d("ExoPlayer released");
+        }
+    }
+}
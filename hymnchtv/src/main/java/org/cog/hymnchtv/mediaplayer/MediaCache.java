@@ -0,0 +1,233 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer;
+
+import android.content.Context;
+import android.media.*;
+import android.net.Uri;
+import android.os.Build;
+
+import androidx.annotation.RequiresApi;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.database.ExoDatabaseProvider;
+import com.google.android.exoplayer2.upstream.*;
+import com.google.android.exoplayer2.upstream.cache.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import timber.log.Timber;
+
+/**
+ * The shared on-disk cache of the online media streams e.g. from heavenlyfood.cn or hymnal.net; bounded
+ * by the least recently used evictor. The first playback streams the media while it is being cached,
+ * the replay is served from the disk; and a partially played media continues from its cached ranges.
+ *
+ * The ExoPlayer uses the cache via the CacheDataSource factory. The android MediaPlayer, which is kept for the
+ * background audio playback for its midi support, reads the stream via a cache backed MediaDataSource (API-23).
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaCache
+{
+    private static final String CACHE_DIR = "media_cache";
+
+    private static final long CACHE_MAX_SIZE = 200 * 1024 * 1024L;
+
+    private static SimpleCache mCache = null;
+
+    private static CacheDataSource.Factory mCacheDataSourceFactory = null;
+
+    /**
+     * Only one SimpleCache instance is allowed per cache directory; so it is shared within the app process
+     *
+     * @param context context
+     * @return the shared media stream cache
+     */
+    public static synchronized SimpleCache getCache(Context context)
+    {
+        if (mCache == null) {
+            Context ctx = context.getApplicationContext();
+            File cacheDir = new File(ctx.getCacheDir(), CACHE_DIR);
+            mCache = new SimpleCache(cacheDir, new LeastRecentlyUsedCacheEvictor(CACHE_MAX_SIZE),
+                    new ExoDatabaseProvider(ctx));
+        }
+        return mCache;
+    }
+
+    /**
+     * @param context context
+     * @return the cache backed data source factory for the online media streams
+     */
+    private static synchronized CacheDataSource.Factory getCacheDataSourceFactory(Context context)
+    {
+        if (mCacheDataSourceFactory == null) {
+            mCacheDataSourceFactory = new CacheDataSource.Factory()
+                    .setCache(getCache(context))
+                    .setUpstreamDataSourceFactory(new DefaultHttpDataSource.Factory().setAllowCrossProtocolRedirects(true))
+                    .setFlags(CacheDataSource.FLAG_IGNORE_CACHE_ON_ERROR);
+        }
+        return mCacheDataSourceFactory;
+    }
+
+    /**
+     * The ExoPlayer data source factory; the local file, asset and content uris are read directly,
+     * while the online media streams are read via the cache.
+     *
+     * @param context context
+     * @return the data source factory for the ExoPlayer media source
+     */
+    public static DataSource.Factory getDataSourceFactory(Context context)
+    {
+        return new DefaultDataSourceFactory(context.getApplicationContext(), getCacheDataSourceFactory(context));
+    }
+
+    /**
+     * @param uri the media uri
+     * @return true if it is an online media stream
+     */
+    public static boolean isStream(Uri uri)
+    {
+        return uri.toString().startsWith("http");
+    }
+
+    /**
+     * Set the data source of the given media player; via the cache if it is an online media stream.
+     *
+     * @param context context
+     * @param player the media player
+     * @param uri the media uri
+     * @throws IOException if the data source cannot be set
+     */
+    public static void setDataSource(Context context, MediaPlayer player, Uri uri)
+            throws IOException
+    {
+        if (!isStream(uri)) {
+            player.setDataSource(context, uri);
+        }
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            player.setDataSource(new CachedMediaDataSource(context, uri));
+        }
+        else {
+            player.setDataSource(uri.toString());
+        }
+    }
+
+    /**
+     * Set the data source of the given media retriever; via the cache if it is an online media stream.
+     *
+     * @param context context
+     * @param retriever the media metadata retriever
+     * @param uri the media uri
+     */
+    public static void setDataSource(Context context, MediaMetadataRetriever retriever, Uri uri)
+    {
+        if (!isStream(uri)) {
+            retriever.setDataSource(context, uri);
+        }
+        else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            retriever.setDataSource(new CachedMediaDataSource(context, uri));
+        }
+        else {
+            retriever.setDataSource(uri.toString(), new HashMap<>());
+        }
+    }
+
+    /**
+     * The MediaDataSource of an online media stream read via the cache; the random access readAt() is served
+     * by re-opening the cache data source at the requested position when it is not the sequential read.
+     * The readAt() is called on the media framework thread, so the network access is never on the main thread.
+     */
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private static class CachedMediaDataSource extends MediaDataSource
+    {
+        private final Uri mUri;
+        private final Cache mCache;
+        private final CacheDataSource mDataSource;
+
+        private boolean isOpened = false;
+        private long mPosition = 0;
+        private long mSize = C.LENGTH_UNSET;
+
+        CachedMediaDataSource(Context context, Uri uri)
+        {
+            mUri = uri;
+            mCache = getCache(context);
+            mDataSource = getCacheDataSourceFactory(context).createDataSource();
+        }
+
+        @Override
+        public synchronized int readAt(long position, byte[] buffer, int offset, int size)
+                throws IOException
+        {
+            if (size == 0)
+                return 0;
+            if ((mSize != C.LENGTH_UNSET) && (position >= mSize))
+                return -1;
+
+            if (!isOpened || (position != mPosition)) {
+                openAt(position);
+            }
+
+            int count = mDataSource.read(buffer, offset, size);
+            if (count == C.RESULT_END_OF_INPUT)
+                return -1;
+
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public synchronized long getSize()
+                throws IOException
+        {
+            if (mSize == C.LENGTH_UNSET) {
+                mSize = ContentMetadata.getContentLength(mCache.getContentMetadata(mUri.toString()));
+            }
+            if ((mSize == C.LENGTH_UNSET) && !isOpened) {
+                openAt(0);
+            }
+            return mSize;
+        }
+
+        @Override
+        public synchronized void close()
+                throws IOException
+        {
+            if (isOpened) {
+                isOpened = false;
+                mDataSource.close();
+            }
+        }
+
+        private void openAt(long position)
+                throws IOException
+        {
+            close();
+            DataSpec dataSpec = new DataSpec.Builder().setUri(mUri).setPosition(position).build();
+            long length = mDataSource.open(dataSpec);
+            isOpened = true;
+            mPosition = position;
+            if ((length != C.LENGTH_UNSET) && (mSize == C.LENGTH_UNSET)) {
+                mSize = position + length;
+                Timber.d("Media stream size %s: %s", mSize, mUri.getLastPathSegment());
+            }
+        }
+    }
+}
@@ -52,7 +52,8 @@ import java.util.List;
  * see https://developer.android.com/codelabs/exoplayer-intro#0
  *
  * This MediaExoPlayerFragment requires its parent FragmentActivity to handle onConfigurationChanged()
- * It does not consider onSaveInstanceState(); it uses the speed in the user configuration setting.
+ * The player is shared via the process-scoped ExoPlayerHolder, and is kept warm after the fragment is paused;
+ * the playback position and speed are saved in onSaveInstanceState() in case the fragment is recreated.
  *
  * @author Eng Chong Meng
  */
@@ -61,6 +62,9 @@ public class MediaExoPlayerFragment extends Fragment
     // Tag for the instance state bundle.
     public static final String ATTR_MEDIA_URL = "mediaUrl";
     public static final String ATTR_MEDIA_URLS = "mediaUrls";
+    private static final String ATTR_POSITION = "position";
+    private static final String ATTR_ITEM_INDEX = "itemIndex";
+    private static final String ATTR_SPEED = "speed";
 
     private static final String sampleUrl = "https://www.learningcontainer.com/wp-content/uploads/2020/05/sample-mp4-file.mp4";
 
@@ -71,6 +75,14 @@ public class MediaExoPlayerFragment extends Fragment
     // Playback ratio of normal speed.
     private float mSpeed = 1.0f;
 
+    // The media key of the mediaUrl(s) in the ExoPlayerHolder
+    private String mMediaKey;
+
+    // true if the media is to be played from start; else continue from the saved playback position
+    private boolean mIsNewPlay = true;
+    private long mPosition = 0;
+    private int mItemIndex = 0;
+
     private FragmentActivity mContext;
     private SharedPreferences mSharedPref;
 
@@ -108,6 +120,14 @@ public class MediaExoPlayerFragment extends Fragment
             mediaUrl = args.getString(ATTR_MEDIA_URL);
             mediaUrls = args.getStringArrayList(ATTR_MEDIA_URLS);
         }
+        mMediaKey = ((mediaUrls == null) || mediaUrls.isEmpty()) ? mediaUrl : mediaUrls.toString();
+
+        if (savedInstanceState != null) {
+            mIsNewPlay = false;
+            mPosition = savedInstanceState.getLong(ATTR_POSITION, 0);
+            mItemIndex = savedInstanceState.getInt(ATTR_ITEM_INDEX, 0);
+            mSpeed = savedInstanceState.getFloat(ATTR_SPEED, mSpeed);
+        }
         playbackStateListener = new PlaybackStateListener();
     }
 
@@ -145,13 +165,30 @@ public class MediaExoPlayerFragment extends Fragment
         releasePlayer();
     }
 
-    public void initializePlayer()
+    @Override
+    public void onSaveInstanceState(@NonNull Bundle outState)
     {
-        if (mSimpleExoPlayer == null) {
-            mSimpleExoPlayer = new SimpleExoPlayer.Builder(mContext).build();
-            mSimpleExoPlayer.addListener(playbackStateListener);
-            mPlayerView.setPlayer(mSimpleExoPlayer);
+        super.onSaveInstanceState(outState);
+        if (mSimpleExoPlayer != null) {
+            mPosition = mSimpleExoPlayer.getCurrentPosition();
+            mItemIndex = mSimpleExoPlayer.getCurrentWindowIndex();
+            mSpeed = mSimpleExoPlayer.getPlaybackParameters().speed;
         }
+        outState.putLong(ATTR_POSITION, mPosition);
+        outState.putInt(ATTR_ITEM_INDEX, mItemIndex);
+        outState.putFloat(ATTR_SPEED, mSpeed);
+    }
+
+    /**
+     * Attach to the shared ExoPlayerHolder player; the media is loaded only if the player does not have it
+     * already e.g. on resume after the player has been released on idle, or for a new play.
+     */
+    public void initializePlayer()
+    {
+        ExoPlayerHolder playerHolder = ExoPlayerHolder.getInstance(mContext);
+        mSimpleExoPlayer = playerHolder.attach(mPlayerView, playbackStateListener);
+        if (!mIsNewPlay && playerHolder.isLoaded(mMediaKey))
+            return;
 
         if ((mediaUrls == null) || mediaUrls.isEmpty()) {
             MediaItem mediaItem = buildMediaItem(mediaUrl);
@@ -161,19 +198,29 @@ public class MediaExoPlayerFragment extends Fragment
         else {
             playVideoUrls();
         }
+        playerHolder.setLoaded(mMediaKey);
+
+        // Continue from the last playback position and speed of this fragment
+        if (!mIsNewPlay) {
+            setPlaybackSpeed(mSpeed);
+            if ((mItemIndex > 0) || (mPosition > 0))
+                mSimpleExoPlayer.seekTo(mItemIndex, mPosition);
+        }
+        mIsNewPlay = false;
     }
 
     /**
-     * Media play-back takes a lot of resources, so everything should be stopped and released at this time.
-     * Release all media-related resources. In a more complicated app this
-     * might involve unregistering listeners or releasing audio focus.
+     * Detach from the shared ExoPlayerHolder player, which is kept warm for the next playback; the playback
+     * continues only across the configuration change.
      *
-     * Save the user defined playback speed
+     * Save the user defined playback speed and the playback position
      */
     public void releasePlayer()
     {
         if (mSimpleExoPlayer != null) {
             mSpeed = mSimpleExoPlayer.getPlaybackParameters().speed;
+            mPosition = mSimpleExoPlayer.getCurrentPosition();
+            mItemIndex = mSimpleExoPlayer.getCurrentWindowIndex();
 
             // Audio media player speed is (0.4 >= mSpeed <= 1.4)
             SharedPreferences.Editor mEditor = mSharedPref.edit();
@@ -183,9 +230,8 @@ public class MediaExoPlayerFragment extends Fragment
                 mEditor.apply();
             }
 
-            mSimpleExoPlayer.setPlayWhenReady(false);
-            mSimpleExoPlayer.removeListener(playbackStateListener);
-            mSimpleExoPlayer.release();
+            ExoPlayerHolder.getInstance(mContext).detach(mPlayerView, playbackStateListener,
+                    mContext.isChangingConfigurations());
             mSimpleExoPlayer = null;
         }
     }
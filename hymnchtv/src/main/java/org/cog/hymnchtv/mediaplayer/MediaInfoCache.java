@@ -0,0 +1,127 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.LruCache;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * Cache of the media playback duration, so the media info can be shown without creating a media player.
+ * The duration is retrieved with MediaMetadataRetriever in the background on cache miss; the cache is also
+ * updated with the actual duration of each prepared media player.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaInfoCache
+{
+    private static final int CACHE_SIZE = 64;
+
+    private static final LruCache<Uri, Integer> mDurations = new LruCache<>(CACHE_SIZE);
+
+    private static final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Listener for the media duration retrieval result
+     */
+    public interface DurationListener
+    {
+        /**
+         * Called on the caller thread on cache hit, else on the retriever thread
+         *
+         * @param uri the media uri
+         * @param duration the media duration in ms, or 0 if unknown
+         */
+        void onDuration(Uri uri, int duration);
+    }
+
+    /**
+     * Get the cached media duration
+     *
+     * @param uri the media uri
+     * @return duration in ms, or 0 if not in cache
+     */
+    public static int getCachedDuration(Uri uri)
+    {
+        Integer duration = mDurations.get(uri);
+        return (duration == null) ? 0 : duration;
+    }
+
+    /**
+     * Update the cache with the given media duration
+     *
+     * @param uri the media uri
+     * @param duration the media duration in ms
+     */
+    public static void putDuration(Uri uri, int duration)
+    {
+        if (duration > 0)
+            mDurations.put(uri, duration);
+    }
+
+    /**
+     * Get the media duration from the cache, else retrieve it from the media in the background.
+     *
+     * @param context context
+     * @param uri the media uri
+     * @param listener the result listener
+     */
+    public static void getDuration(Context context, Uri uri, DurationListener listener)
+    {
+        int duration = getCachedDuration(uri);
+        if (duration > 0) {
+            listener.onDuration(uri, duration);
+            return;
+        }
+
+        Context ctx = context.getApplicationContext();
+        mExecutor.execute(() -> {
+            int mDuration = getCachedDuration(uri);
+            if (mDuration == 0) {
+                mDuration = retrieveDuration(ctx, uri);
+                putDuration(uri, mDuration);
+            }
+            listener.onDuration(uri, mDuration);
+        });
+    }
+
+    private static int retrieveDuration(Context context, Uri uri)
+    {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            MediaCache.setDataSource(context, retriever, uri);
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            return TextUtils.isEmpty(duration) ? 0 : Integer.parseInt(duration);
+        } catch (RuntimeException e) {
+            Timber.w("Media duration retrieval failed for %s: %s", uri.getLastPathSegment(), e.getMessage());
+            return 0;
+        } finally {
+            try {
+                retriever.release();
+            } catch (RuntimeException e) {
+                Timber.w("Media retriever release exception: %s", e.getMessage());
+            }
+        }
+    }
+}
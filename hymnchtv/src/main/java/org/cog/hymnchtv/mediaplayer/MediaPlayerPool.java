@@ -0,0 +1,292 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer;
+
+import android.content.Context;
+import android.media.*;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.util.*;
+
+import timber.log.Timber;
+
+/**
+ * A small pool of idle media players keyed by uri. The players are prepared asynchronously, so the caller
+ * is never blocked by the media prepare e.g. of a network stream; a prepared player is handed over to the
+ * caller on acquire, and may be returned to the pool after use for instant replay.
+ *
+ * The least recently used player is released when the pool is full, and all the pooled players are released
+ * when the pool has been idle for IDLE_TIMEOUT. The player which the owner still has a pending action for, is
+ * never evicted; it is only released on releaseAll(), and the owner is then notified to clear the pending action.
+ * The prepared, error and released callbacks are on the main thread.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaPlayerPool implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener
+{
+    // Allow the main and accompany media of a hymn, plus the previous pair
+    private static final int POOL_SIZE = 4;
+
+    private static final long IDLE_TIMEOUT = 120000; // ms
+
+    // Access ordered map for the LRU release of the pooled players
+    private final LinkedHashMap<Uri, MediaPlayer> mPlayers = new LinkedHashMap<>(POOL_SIZE, 0.75f, true);
+
+    private final Set<MediaPlayer> mPreparedPlayers = new HashSet<>();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final PoolListener mListener;
+
+    /**
+     * Listener for the pooled player prepare result; always called on the main thread.
+     */
+    public interface PoolListener
+    {
+        void onPlayerPrepared(Uri uri);
+
+        void onPlayerError(Uri uri);
+
+        /**
+         * @param uri the media uri
+         * @return true if the owner has a pending action e.g. start or seek, waiting for the player to be prepared
+         */
+        boolean isPending(Uri uri);
+
+        /**
+         * The player of the pending uri has been released by releaseAll() before its pending action is served
+         *
+         * @param uri the media uri
+         */
+        void onPlayerReleased(Uri uri);
+    }
+
+    public MediaPlayerPool(PoolListener listener)
+    {
+        mListener = listener;
+    }
+
+    /**
+     * Create and prepare asynchronously a player for the given uri if none in the pool.
+     *
+     * @param context context
+     * @param uri the media uri
+     */
+    public synchronized void prepare(Context context, Uri uri)
+    {
+        scheduleIdleRelease();
+        if (mPlayers.get(uri) != null)
+            return;
+
+        MediaPlayer player = new MediaPlayer();
+        player.setAudioAttributes(new AudioAttributes.Builder().setLegacyStreamType(AudioManager.STREAM_MUSIC).build());
+        player.setOnPreparedListener(this);
+        player.setOnErrorListener(this);
+        try {
+            MediaCache.setDataSource(context, player, uri);
+            player.prepareAsync();
+        } catch (IOException | RuntimeException e) {
+            Timber.e("Media player creation error for: %s", uri.getPath());
+            player.release();
+            mHandler.post(() -> mListener.onPlayerError(uri));
+            return;
+        }
+
+        mPlayers.put(uri, player);
+        trimToSize();
+    }
+
+    /**
+     * @param uri the media uri
+     * @return true if the pool has a prepared player for the given uri
+     */
+    public synchronized boolean isPrepared(Uri uri)
+    {
+        MediaPlayer player = mPlayers.get(uri);
+        return (player != null) && mPreparedPlayers.contains(player);
+    }
+
+    /**
+     * Take the prepared player for the given uri out of the pool.
+     *
+     * @param uri the media uri
+     * @return the prepared player, or null if none or it is still being prepared
+     */
+    public synchronized MediaPlayer acquire(Uri uri)
+    {
+        MediaPlayer player = mPlayers.get(uri);
+        if ((player == null) || !mPreparedPlayers.remove(player))
+            return null;
+
+        mPlayers.remove(uri);
+        return player;
+    }
+
+    /**
+     * Return a prepared player (e.g. in pause or playback completed state) to the pool for later reuse.
+     *
+     * @param uri the media uri
+     * @param player the player to be recycled
+     */
+    public synchronized void recycle(Uri uri, MediaPlayer player)
+    {
+        scheduleIdleRelease();
+        if (mPlayers.containsKey(uri)) {
+            player.release();
+            return;
+        }
+
+        player.setOnCompletionListener(null);
+        player.setOnErrorListener(this);
+        mPlayers.put(uri, player);
+        mPreparedPlayers.add(player);
+        trimToSize();
+    }
+
+    /**
+     * @return true if there is no player in the pool
+     */
+    public synchronized boolean isEmpty()
+    {
+        return mPlayers.isEmpty();
+    }
+
+    /**
+     * Release all the pooled players; the owner is notified of the released players with pending action.
+     *
+     * @return the number of players released
+     */
+    public synchronized int releaseAll()
+    {
+        int count = mPlayers.size();
+        for (Map.Entry<Uri, MediaPlayer> entry : mPlayers.entrySet()) {
+            Uri uri = entry.getKey();
+            entry.getValue().release();
+            if (mListener.isPending(uri))
+                mHandler.post(() -> mListener.onPlayerReleased(uri));
+        }
+        mPlayers.clear();
+        mPreparedPlayers.clear();
+        mHandler.removeCallbacks(idleRelease);
+        return count;
+    }
+
+    /**
+     * Release the least recently used players in excess of the pool size; the players with pending action are kept.
+     */
+    private void trimToSize()
+    {
+        Iterator<Map.Entry<Uri, MediaPlayer>> iterator = mPlayers.entrySet().iterator();
+        while ((mPlayers.size() > POOL_SIZE) && iterator.hasNext()) {
+            Map.Entry<Uri, MediaPlayer> entry = iterator.next();
+            if (mListener.isPending(entry.getKey()))
+                continue;
+
+            MediaPlayer player = entry.getValue();
+            mPreparedPlayers.remove(player);
+            player.release();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Release all the idle pooled players; the players with pending action are kept, and checked again later.
+     *
+     * @return the number of players released
+     */
+    private synchronized int releaseIdle()
+    {
+        int count = 0;
+        Iterator<Map.Entry<Uri, MediaPlayer>> iterator = mPlayers.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Uri, MediaPlayer> entry = iterator.next();
+            if (mListener.isPending(entry.getKey()))
+                continue;
+
+            MediaPlayer player = entry.getValue();
+            mPreparedPlayers.remove(player);
+            player.release();
+            iterator.remove();
+            count++;
+        }
+
+        if (!mPlayers.isEmpty())
+            scheduleIdleRelease();
+        return count;
+    }
+
+    private void scheduleIdleRelease()
+    {
+        mHandler.removeCallbacks(idleRelease);
+        mHandler.postDelayed(idleRelease, IDLE_TIMEOUT);
+    }
+
+    private final Runnable idleRelease = () -> {
+        int count = releaseIdle();
+        if (count > 0)
+            Timber.d("Idle pooled media players released: %s", count);
+    };
+
+    private synchronized Uri getUriByPlayer(MediaPlayer mp)
+    {
+        for (Map.Entry<Uri, MediaPlayer> entry : mPlayers.entrySet()) {
+            if (entry.getValue() == mp)
+                return entry.getKey();
+        }
+        return null;
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp)
+    {
+        Uri uri;
+        synchronized (this) {
+            uri = getUriByPlayer(mp);
+            if (uri == null)
+                return;
+            mPreparedPlayers.add(mp);
+        }
+
+        MediaInfoCache.putDuration(uri, mp.getDuration());
+        mListener.onPlayerPrepared(uri);
+    }
+
+    /**
+     * Release the pooled player on error; let the current owner handles the error if it is not a pooled player
+     */
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra)
+    {
+        Uri uri;
+        synchronized (this) {
+            uri = getUriByPlayer(mp);
+            if (uri == null)
+                return false;
+
+            mPlayers.remove(uri);
+            mPreparedPlayers.remove(mp);
+            mp.release();
+        }
+
+        Timber.e("Media player error (%s, %s) for: %s", what, extra, uri.getPath());
+        mListener.onPlayerError(uri);
+        return true;
+    }
+}
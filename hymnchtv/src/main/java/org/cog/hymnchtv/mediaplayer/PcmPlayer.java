@@ -0,0 +1,64 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer;
+
+/**
+ * The in-app player that renders the PCM on its own audio thread to an AudioTrack e.g. the midi synth player,
+ * and the time-stretch player; as used by AudioBgService in place of the android MediaPlayer.
+ * The positions and duration are in ms of the media timeline i.e. independent of the playback speed.
+ *
+ * @author Eng Chong Meng
+ */
+public interface PcmPlayer
+{
+    /**
+     * Listener for the playback completion; called on the player thread
+     */
+    interface OnCompletionListener
+    {
+        void onCompletion(PcmPlayer player);
+    }
+
+    /**
+     * Listener for the playback error; called on the player thread. The player is released on error,
+     * and cannot be restarted.
+     */
+    interface OnErrorListener
+    {
+        void onError(PcmPlayer player, String message);
+    }
+
+    void setOnCompletionListener(OnCompletionListener listener);
+
+    void setOnErrorListener(OnErrorListener listener);
+
+    void start();
+
+    void pause();
+
+    void seekTo(int position);
+
+    void setSpeed(float speed);
+
+    boolean isPlaying();
+
+    int getCurrentPosition();
+
+    int getDuration();
+
+    void release();
+}
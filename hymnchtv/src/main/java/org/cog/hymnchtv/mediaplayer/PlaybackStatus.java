@@ -0,0 +1,71 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer;
+
+import android.media.MediaPlayer;
+import android.net.Uri;
+
+/**
+ * The in-process playback status holder of a media uri i.e. position, duration and playing state.
+ * It replaces the periodic 500ms playback status broadcast: the UI keeps one instance, and samples the
+ * AudioBgService player only when it needs to draw e.g. per display frame while visible.
+ * The sampling does not allocate any object, and no work is done when there is no UI sampling.
+ *
+ * Note: the playback state changes i.e. init, play, pause and stop are still broadcast via PLAYBACK_STATE.
+ *
+ * @author Eng Chong Meng
+ */
+public class PlaybackStatus
+{
+    // The playback position and duration in ms
+    public int position;
+    public int duration;
+
+    public boolean isPlaying;
+
+    /**
+     * Update the status with the current state of the given uri player
+     *
+     * @param uri the media uri
+     * @return true if the uri has an active player, and the status is updated
+     */
+    public boolean sample(Uri uri)
+    {
+        PcmPlayer pcmPlayer = AudioBgService.getPcmPlayer(uri);
+        if (pcmPlayer != null) {
+            isPlaying = pcmPlayer.isPlaying();
+            position = pcmPlayer.getCurrentPosition();
+            duration = pcmPlayer.getDuration();
+            return true;
+        }
+
+        MediaPlayer player = AudioBgService.getPlayer(uri);
+        if (player == null)
+            return false;
+
+        // The player may be released by the service in the mean time
+        try {
+            isPlaying = player.isPlaying();
+            position = player.getCurrentPosition();
+            duration = player.getDuration();
+            return true;
+        } catch (IllegalStateException e) {
+            isPlaying = false;
+            return false;
+        }
+    }
+}
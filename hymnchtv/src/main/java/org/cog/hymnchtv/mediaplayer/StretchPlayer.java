@@ -0,0 +1,454 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.media.*;
+import android.net.Uri;
+import android.os.Process;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import timber.log.Timber;
+
+/**
+ * The pitch preserving variable speed player for android devices without PlaybackParams support (API-21/22).
+ * The media is decoded to PCM with MediaCodec, time-stretched with the WSOLA TimeStretcher, and written to an
+ * AudioTrack; all on the dedicated player thread, with the preallocated buffers.
+ *
+ * @author Eng Chong Meng
+ */
+public class StretchPlayer implements PcmPlayer, Runnable
+{
+    private static final long TIMEOUT_US = 10000;
+
+    // The max frames of each stretcher input block
+    private static final int BLOCK_FRAMES = 2048;
+
+    private final MediaExtractor mExtractor;
+    private final MediaFormat mFormat;
+    private final String mMime;
+    private final int mDuration;
+
+    private final Object mLock = new Object();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    private MediaCodec mCodec = null;
+    private AudioTrack mAudioTrack = null;
+    private TimeStretcher mStretcher = null;
+    private Thread mThread = null;
+
+    private int mSampleRate;
+    private int mChannels;
+
+    // The decoded PCM pending for the stretcher input, and the stretcher output
+    private short[] mPcm = new short[0];
+    private int mPcmOffset = 0;
+    private int mPcmFrames = 0;
+    private short[] mOut;
+
+    private boolean isInputEos = false;
+    private boolean isOutputEos = false;
+
+    // The media frame position of the stretcher input start i.e. the last seek position
+    private long mBaseFrame = 0;
+    private int mSeekPending = -1;
+
+    private volatile boolean isPlaying = false;
+    private volatile boolean isReleased = false;
+    private volatile int mPosition = 0;
+    private volatile float mSpeed = 1.0f;
+
+    private OnCompletionListener mListener = null;
+    private OnErrorListener mErrorListener = null;
+
+    /**
+     * @param uri the media uri
+     * @return true if the uri media can be played by the StretchPlayer i.e. all but the midi
+     */
+    public static boolean isSupported(Uri uri)
+    {
+        if ((uri == null) || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(uri.getScheme()))
+            return false;
+
+        String path = uri.getPath();
+        return (path == null) || !(path.toLowerCase().endsWith(".mid") || path.toLowerCase().endsWith(".midi"));
+    }
+
+    /**
+     * Open the media and select its audio track; the decoder is created on the player thread
+     *
+     * @param context context
+     * @param uri the media uri
+     * @throws IOException if the media cannot be opened or has no audio track
+     */
+    public StretchPlayer(Context context, Uri uri)
+            throws IOException
+    {
+        mExtractor = new MediaExtractor();
+        if (MediaCache.isStream(uri))
+            mExtractor.setDataSource(uri.toString());
+        else
+            mExtractor.setDataSource(context, uri, null);
+
+        MediaFormat format = null;
+        for (int i = 0; i < mExtractor.getTrackCount(); i++) {
+            MediaFormat trackFormat = mExtractor.getTrackFormat(i);
+            String mime = trackFormat.getString(MediaFormat.KEY_MIME);
+            if ((mime != null) && mime.startsWith("audio/")) {
+                mExtractor.selectTrack(i);
+                format = trackFormat;
+                break;
+            }
+        }
+        if (format == null) {
+            mExtractor.release();
+            throw new IOException("No audio track in: " + uri.getLastPathSegment());
+        }
+
+        mFormat = format;
+        mMime = format.getString(MediaFormat.KEY_MIME);
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        mDuration = format.containsKey(MediaFormat.KEY_DURATION)
+                ? (int) (format.getLong(MediaFormat.KEY_DURATION) / 1000) : 0;
+    }
+
+    @Override
+    public void setOnCompletionListener(OnCompletionListener listener)
+    {
+        mListener = listener;
+    }
+
+    @Override
+    public void setOnErrorListener(OnErrorListener listener)
+    {
+        mErrorListener = listener;
+    }
+
+    @Override
+    public void start()
+    {
+        synchronized (mLock) {
+            if (isReleased || isPlaying)
+                return;
+
+            if (mThread == null) {
+                mThread = new Thread(this, "StretchPlayer");
+                mThread.start();
+            }
+            if (mAudioTrack != null)
+                mAudioTrack.play();
+            isPlaying = true;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void pause()
+    {
+        synchronized (mLock) {
+            if (isPlaying) {
+                isPlaying = false;
+                if (mAudioTrack != null)
+                    mAudioTrack.pause();
+            }
+        }
+    }
+
+    /**
+     * The seek is executed on the player thread
+     *
+     * @param position the media position in ms
+     */
+    @Override
+    public void seekTo(int position)
+    {
+        synchronized (mLock) {
+            mSeekPending = Math.max(0, position);
+            mPosition = mSeekPending;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void setSpeed(float speed)
+    {
+        mSpeed = speed;
+    }
+
+    @Override
+    public boolean isPlaying()
+    {
+        return isPlaying;
+    }
+
+    @Override
+    public int getCurrentPosition()
+    {
+        return mPosition;
+    }
+
+    @Override
+    public int getDuration()
+    {
+        return mDuration;
+    }
+
+    @Override
+    public void release()
+    {
+        Thread thread;
+        synchronized (mLock) {
+            // Already released by the player thread on error
+            if (isReleased)
+                return;
+            isReleased = true;
+            isPlaying = false;
+            // Unblock the pending AudioTrack write
+            if (mAudioTrack != null) {
+                mAudioTrack.pause();
+                mAudioTrack.flush();
+            }
+            thread = mThread;
+            mThread = null;
+            mLock.notifyAll();
+        }
+
+        if (thread != null) {
+            try {
+                thread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        else {
+            mExtractor.release();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        try {
+            mCodec = MediaCodec.createDecoderByType(mMime);
+            mCodec.configure(mFormat, null, null, 0);
+            mCodec.start();
+            setupOutput();
+
+            while (true) {
+                synchronized (mLock) {
+                    while (!isPlaying && !isReleased && (mSeekPending < 0)) {
+                        mLock.wait();
+                    }
+                    if (isReleased)
+                        break;
+                    if (mSeekPending >= 0) {
+                        doSeek(mSeekPending);
+                        mSeekPending = -1;
+                    }
+                    if (!isPlaying)
+                        continue;
+                }
+
+                if (!isInputEos)
+                    feedInput();
+                if (mPcmFrames == 0 && !isOutputEos)
+                    drainOutput();
+                if (mPcmFrames > 0) {
+                    int count = mStretcher.putInput(mPcm, mPcmOffset, mPcmFrames);
+                    mPcmOffset += count;
+                    mPcmFrames -= count;
+                }
+
+                mStretcher.setSpeed(mSpeed);
+                int frames = mStretcher.process(mOut, mOut.length / mChannels);
+                if ((frames == 0) && isOutputEos && (mPcmFrames == 0))
+                    frames = mStretcher.drain(mOut);
+                if (frames > 0) {
+                    int result = mAudioTrack.write(mOut, 0, frames * mChannels);
+                    if (result < 0) {
+                        // The write is aborted by release(); else the AudioTrack is dead
+                        if (isReleased)
+                            break;
+                        throw new IllegalStateException("AudioTrack write error: " + result);
+                    }
+                }
+                mPosition = (int) ((mBaseFrame + mStretcher.getInputPosition()) * 1000 / mSampleRate);
+
+                if ((frames == 0) && isOutputEos && (mPcmFrames == 0)) {
+                    synchronized (mLock) {
+                        if (isReleased)
+                            break;
+                        // Play out the buffered audio; seekTo(0) and start() for the re-playback
+                        isPlaying = false;
+                        mAudioTrack.stop();
+                    }
+                    if (mListener != null)
+                        mListener.onCompletion(this);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Timber.e("Stretch player error: %s", e.getMessage());
+            // The player is released on error; any later start() is a no-op and release() has nothing to do
+            boolean isAborted;
+            synchronized (mLock) {
+                isAborted = isReleased;
+                isReleased = true;
+                isPlaying = false;
+                mThread = null;
+            }
+            if (!isAborted && (mErrorListener != null))
+                mErrorListener.onError(this, e.getMessage());
+        } catch (InterruptedException e) {
+            Timber.w("Stretch player interrupted");
+        } finally {
+            releaseResources();
+        }
+    }
+
+    /**
+     * Create the AudioTrack and the TimeStretcher for the current PCM format
+     */
+    private void setupOutput()
+    {
+        synchronized (mLock) {
+            if (mAudioTrack != null)
+                mAudioTrack.release();
+
+            int channelMask = (mChannels == 1) ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+            int minSize = AudioTrack.getMinBufferSize(mSampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+            mAudioTrack = new AudioTrack(
+                    new AudioAttributes.Builder().setLegacyStreamType(AudioManager.STREAM_MUSIC).build(),
+                    new AudioFormat.Builder()
+                            .setSampleRate(mSampleRate)
+                            .setChannelMask(channelMask)
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                            .build(),
+                    Math.max(minSize, BLOCK_FRAMES * mChannels * 2 * 2), AudioTrack.MODE_STREAM,
+                    AudioManager.AUDIO_SESSION_ID_GENERATE);
+
+            mStretcher = new TimeStretcher(mChannels, mSampleRate, BLOCK_FRAMES);
+            mOut = new short[4 * mStretcher.getHopFrames() * mChannels];
+            if (isPlaying)
+                mAudioTrack.play();
+        }
+    }
+
+    private void feedInput()
+    {
+        int index = mCodec.dequeueInputBuffer(TIMEOUT_US);
+        if (index < 0)
+            return;
+
+        ByteBuffer buffer = mCodec.getInputBuffer(index);
+        int size = (buffer == null) ? -1 : mExtractor.readSampleData(buffer, 0);
+        if (size < 0) {
+            mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            isInputEos = true;
+        }
+        else {
+            mCodec.queueInputBuffer(index, 0, size, mExtractor.getSampleTime(), 0);
+            mExtractor.advance();
+        }
+    }
+
+    /**
+     * Take the next decoded PCM buffer into mPcm; mPcm grows only if a larger decoder buffer is received
+     */
+    private void drainOutput()
+    {
+        int index = mCodec.dequeueOutputBuffer(mBufferInfo, TIMEOUT_US);
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            MediaFormat format = mCodec.getOutputFormat();
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            if ((sampleRate != mSampleRate) || (channels != mChannels)) {
+                mSampleRate = sampleRate;
+                mChannels = channels;
+                setupOutput();
+            }
+            return;
+        }
+        if (index < 0)
+            return;
+
+        ByteBuffer buffer = mCodec.getOutputBuffer(index);
+        if ((buffer != null) && (mBufferInfo.size > 0)) {
+            buffer.order(ByteOrder.nativeOrder());
+            int samples = mBufferInfo.size / 2;
+            if (mPcm.length < samples)
+                mPcm = new short[samples];
+            for (int i = 0; i < samples; i++) {
+                mPcm[i] = buffer.getShort(mBufferInfo.offset + 2 * i);
+            }
+            mPcmOffset = 0;
+            mPcmFrames = samples / mChannels;
+        }
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+            isOutputEos = true;
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    /**
+     * Seek to the sync sample at or before the given position, and drop all the decoded and buffered audio
+     *
+     * @param position the media position in ms
+     */
+    private void doSeek(int position)
+    {
+        mExtractor.seekTo(position * 1000L, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        mCodec.flush();
+        mStretcher.reset();
+        // The AudioTrack can only be flushed when paused; resume after dropping the stale audio
+        mAudioTrack.pause();
+        mAudioTrack.flush();
+        if (isPlaying)
+            mAudioTrack.play();
+
+        long sampleTime = mExtractor.getSampleTime();
+        mBaseFrame = ((sampleTime < 0) ? position * 1000L : sampleTime) * mSampleRate / 1000000;
+        mPcmFrames = 0;
+        isInputEos = false;
+        isOutputEos = false;
+    }
+
+    private void releaseResources()
+    {
+        synchronized (mLock) {
+            isPlaying = false;
+            if (mAudioTrack != null) {
+                mAudioTrack.release();
+                mAudioTrack = null;
+            }
+        }
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException e) {
+                Timber.w("Media codec stop exception: %s", e.getMessage());
+            }
+            mCodec.release();
+            mCodec = null;
+        }
+        mExtractor.release();
+    }
+}
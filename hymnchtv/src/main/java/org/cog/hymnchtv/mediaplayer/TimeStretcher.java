@@ -0,0 +1,262 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer;
+
+/**
+ * The WSOLA (waveform similarity overlap-add) time-stretcher; changes the playback speed of the 16-bit PCM
+ * without changing its pitch.
+ *
+ * Each output hop of OVERLAP frames is the cross-fade of the previous segment tail with the input segment that
+ * best matches that tail, searched within +/-SEEK frames of the nominal analysis position; the analysis position
+ * advances by OVERLAP * speed per hop. The search correlates every CORR_STRIDE frame only, so the CPU cost per
+ * output frame is constant for any speed. All the buffers are preallocated; no object is allocated on process.
+ *
+ * This class has no android dependency, and is not thread safe except setSpeed().
+ *
+ * @author Eng Chong Meng
+ */
+public class TimeStretcher
+{
+    // The segment window is 2 * OVERLAP
+    private static final int WINDOW_MS = 30;
+    private static final int SEEK_MS = 10;
+    private static final int CORR_STRIDE = 4;
+
+    private final int mChannels;
+    private final int mOverlap;
+    private final int mSeek;
+
+    private final float[] mInput;
+    private final int mCapacity;
+    private final float[] mTail;
+    private final float[] mFadeIn;
+
+    private int mInputFrames = 0;
+    private double mAnalysisPos = 0;
+    private long mDroppedFrames = 0;
+    private boolean hasTail = false;
+
+    private volatile float mSpeed = 1.0f;
+
+    /**
+     * @param channels the number of the interleaved channels
+     * @param sampleRate the sample rate
+     * @param maxInputFrames the max number of frames of each putInput() call
+     */
+    public TimeStretcher(int channels, int sampleRate, int maxInputFrames)
+    {
+        mChannels = channels;
+        mOverlap = sampleRate * WINDOW_MS / 2000;
+        mSeek = sampleRate * SEEK_MS / 1000;
+
+        // Room for the max input block, plus the search window at the max analysis hop
+        mCapacity = maxInputFrames + 4 * (2 * mOverlap + 2 * mSeek);
+        mInput = new float[mCapacity * channels];
+        mTail = new float[mOverlap * channels];
+
+        // sin^2 fade in and cos^2 fade out sum to 1
+        mFadeIn = new float[mOverlap];
+        for (int i = 0; i < mOverlap; i++) {
+            double sin = Math.sin(0.5 * Math.PI * i / mOverlap);
+            mFadeIn[i] = (float) (sin * sin);
+        }
+    }
+
+    /**
+     * @param speed the playback speed e.g. 0.7f for the slow practice; 1.0f for the normal speed
+     */
+    public void setSpeed(float speed)
+    {
+        if (speed > 0)
+            mSpeed = speed;
+    }
+
+    /**
+     * @return the frames of each output hop; the process() output buffer must be able to hold at least one hop
+     */
+    public int getHopFrames()
+    {
+        return mOverlap;
+    }
+
+    /**
+     * Drop all the buffered audio e.g. on seek
+     */
+    public void reset()
+    {
+        mInputFrames = 0;
+        mAnalysisPos = 0;
+        mDroppedFrames = 0;
+        hasTail = false;
+    }
+
+    /**
+     * @return the input frame position of the audio being output, since the last reset()
+     */
+    public long getInputPosition()
+    {
+        return mDroppedFrames + (long) mAnalysisPos;
+    }
+
+    /**
+     * Put the interleaved PCM into the input buffer
+     *
+     * @param pcm the interleaved 16-bit PCM
+     * @param offset the pcm frame offset
+     * @param frames the number of frames
+     * @return the number of frames accepted; may be less than frames if the input buffer is full
+     */
+    public int putInput(short[] pcm, int offset, int frames)
+    {
+        compact();
+        int count = Math.min(frames, mCapacity - mInputFrames);
+        int dst = mInputFrames * mChannels;
+        int src = offset * mChannels;
+        for (int i = 0; i < count * mChannels; i++) {
+            mInput[dst + i] = pcm[src + i];
+        }
+        mInputFrames += count;
+        return count;
+    }
+
+    /**
+     * Drop the consumed input frames, keeping the search range before the analysis position
+     */
+    private void compact()
+    {
+        int drop = Math.min((int) mAnalysisPos - mSeek, mInputFrames);
+        if (drop > 0) {
+            System.arraycopy(mInput, drop * mChannels, mInput, 0, (mInputFrames - drop) * mChannels);
+            mInputFrames -= drop;
+            mAnalysisPos -= drop;
+            mDroppedFrames += drop;
+        }
+    }
+
+    /**
+     * Produce the time-stretched output hops for as long as the buffered input and the output room allow
+     *
+     * @param out the interleaved 16-bit PCM output buffer
+     * @param maxFrames the max number of frames to output
+     * @return the number of frames output, a multiple of getHopFrames()
+     */
+    public int process(short[] out, int maxFrames)
+    {
+        int produced = 0;
+        while (maxFrames - produced >= mOverlap) {
+            float speed = mSpeed;
+            int nominal = (int) Math.round(mAnalysisPos);
+            int start;
+            if (!hasTail) {
+                if (nominal + 2 * mOverlap > mInputFrames)
+                    break;
+                start = nominal;
+                copyOut(out, produced, start);
+            }
+            else {
+                if (nominal + mSeek + 2 * mOverlap > mInputFrames)
+                    break;
+                // The natural continuation is the best match at the normal speed
+                start = (speed == 1.0f) ? nominal : findBestStart(Math.max(0, nominal - mSeek), nominal + mSeek);
+                crossFadeOut(out, produced, start);
+            }
+
+            // Keep the segment second half as the tail for the next hop
+            System.arraycopy(mInput, (start + mOverlap) * mChannels, mTail, 0, mOverlap * mChannels);
+            hasTail = true;
+            produced += mOverlap;
+            mAnalysisPos = (speed == 1.0f) ? start + mOverlap : mAnalysisPos + mOverlap * speed;
+        }
+        return produced;
+    }
+
+    /**
+     * Output the remaining tail at the end of the stream
+     *
+     * @param out the interleaved 16-bit PCM output buffer; must hold at least getHopFrames()
+     * @return the number of frames output
+     */
+    public int drain(short[] out)
+    {
+        if (!hasTail)
+            return 0;
+
+        for (int i = 0; i < mOverlap * mChannels; i++) {
+            out[i] = clip(mTail[i] * (1f - mFadeIn[i / mChannels]));
+        }
+        hasTail = false;
+        return mOverlap;
+    }
+
+    /**
+     * Find the segment start within the given range that best correlates with the current tail
+     */
+    private int findBestStart(int low, int high)
+    {
+        int best = low;
+        float bestScore = -Float.MAX_VALUE;
+        for (int k = low; k <= high; k++) {
+            float corr = 0;
+            float energy = 1e-9f;
+            int base = k * mChannels;
+            for (int i = 0; i < mOverlap * mChannels; i += CORR_STRIDE * mChannels) {
+                for (int c = 0; c < mChannels; c++) {
+                    float x = mInput[base + i + c];
+                    corr += x * mTail[i + c];
+                    energy += x * x;
+                }
+            }
+            float score = corr / (float) Math.sqrt(energy);
+            if (score > bestScore) {
+                bestScore = score;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    private void copyOut(short[] out, int outFrame, int start)
+    {
+        int src = start * mChannels;
+        int dst = outFrame * mChannels;
+        for (int i = 0; i < mOverlap * mChannels; i++) {
+            out[dst + i] = clip(mInput[src + i]);
+        }
+    }
+
+    private void crossFadeOut(short[] out, int outFrame, int start)
+    {
+        int src = start * mChannels;
+        int dst = outFrame * mChannels;
+        for (int i = 0; i < mOverlap; i++) {
+            float fadeIn = mFadeIn[i];
+            for (int c = 0; c < mChannels; c++) {
+                int j = i * mChannels + c;
+                out[dst + j] = clip(mTail[j] * (1f - fadeIn) + mInput[src + j] * fadeIn);
+            }
+        }
+    }
+
+    private static short clip(float value)
+    {
+        if (value > Short.MAX_VALUE)
+            return Short.MAX_VALUE;
+        if (value < Short.MIN_VALUE)
+            return Short.MIN_VALUE;
+        return (short) value;
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.midi;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.media.*;
+import android.net.Uri;
+import android.os.Process;
+
+import org.cog.hymnchtv.mediaplayer.PcmPlayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * The in-app midi player for the hymn midi main and accompany e.g. bm/bmc or dm/dmc, played as a single
+ * merged stream via MidiSequencer; so the two parts never drift, and the tempo can be changed on all android
+ * versions. The PCM is rendered on the player thread into a preallocated buffer, and written to the AudioTrack.
+ *
+ * The merged midi playback is identified by the merged uri i.e. the main uri with the accompany uri in its query.
+ *
+ * @author Eng Chong Meng
+ */
+public class MidiPlayer implements PcmPlayer, Runnable
+{
+    private static final String PARAM_ACCOMPANY = "accompany";
+
+    private static final int SAMPLE_RATE = 44100;
+
+    // ~23ms per block at 44.1KHz
+    private static final int BLOCK_FRAMES = 1024;
+
+    private final MidiSequencer mSequencer;
+    private final short[] mBuffer = new short[BLOCK_FRAMES];
+    private final Object mLock = new Object();
+
+    private AudioTrack mAudioTrack = null;
+    private Thread mThread = null;
+
+    private volatile boolean isPlaying = false;
+    private volatile boolean isReleased = false;
+    private volatile int mPosition = 0;
+
+    private OnCompletionListener mListener = null;
+    private OnErrorListener mErrorListener = null;
+
+    /**
+     * Create the merged uri for the single stream playback of the midi main and accompany
+     *
+     * @param mainUri the midi main uri
+     * @param accompanyUri the midi accompany uri
+     * @return the merged uri, or the mainUri if there is no accompany
+     */
+    public static Uri getMergedUri(Uri mainUri, Uri accompanyUri)
+    {
+        if (accompanyUri == null)
+            return mainUri;
+
+        return mainUri.buildUpon().appendQueryParameter(PARAM_ACCOMPANY, accompanyUri.toString()).build();
+    }
+
+    /**
+     * @param uri the media uri
+     * @return true if the uri is a merged midi uri
+     */
+    public static boolean isMergedUri(Uri uri)
+    {
+        return (uri != null) && uri.isHierarchical() && (uri.getQueryParameter(PARAM_ACCOMPANY) != null);
+    }
+
+    /**
+     * @param uri the merged midi uri
+     * @return the midi main and accompany uris
+     */
+    private static List<Uri> getSourceUris(Uri uri)
+    {
+        List<Uri> uris = new ArrayList<>();
+        uris.add(uri.buildUpon().clearQuery().build());
+        uris.add(Uri.parse(uri.getQueryParameter(PARAM_ACCOMPANY)));
+        return uris;
+    }
+
+    /**
+     * Load and merge the midi main and accompany of the given merged uri
+     *
+     * @param context context
+     * @param uri the merged midi uri
+     * @throws IOException if the midi files cannot be read or parsed
+     */
+    public MidiPlayer(Context context, Uri uri)
+            throws IOException
+    {
+        ContentResolver resolver = context.getContentResolver();
+        List<Uri> uris = getSourceUris(uri);
+        try (InputStream main = resolver.openInputStream(uris.get(0));
+             InputStream accompany = resolver.openInputStream(uris.get(1))) {
+            if ((main == null) || (accompany == null))
+                throw new IOException("Midi file not found: " + uri);
+
+            mSequencer = new MidiSequencer(MidiSequence.parse(main, accompany), SAMPLE_RATE, BLOCK_FRAMES);
+        }
+    }
+
+    @Override
+    public void setOnCompletionListener(OnCompletionListener listener)
+    {
+        mListener = listener;
+    }
+
+    @Override
+    public void setOnErrorListener(OnErrorListener listener)
+    {
+        mErrorListener = listener;
+    }
+
+    /**
+     * Start or resume the playback; the AudioTrack and the player thread are created on first start
+     */
+    @Override
+    public void start()
+    {
+        synchronized (mLock) {
+            if (isReleased || isPlaying)
+                return;
+
+            if (mAudioTrack == null) {
+                int minSize = AudioTrack.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO,
+                        AudioFormat.ENCODING_PCM_16BIT);
+                mAudioTrack = new AudioTrack(
+                        new AudioAttributes.Builder().setLegacyStreamType(AudioManager.STREAM_MUSIC).build(),
+                        new AudioFormat.Builder()
+                                .setSampleRate(SAMPLE_RATE)
+                                .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                                .build(),
+                        Math.max(minSize, 4 * BLOCK_FRAMES * 2), AudioTrack.MODE_STREAM,
+                        AudioManager.AUDIO_SESSION_ID_GENERATE);
+            }
+            if (mThread == null) {
+                mThread = new Thread(this, "MidiPlayer");
+                mThread.start();
+            }
+
+            mAudioTrack.play();
+            isPlaying = true;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void pause()
+    {
+        synchronized (mLock) {
+            if (isPlaying) {
+                isPlaying = false;
+                mAudioTrack.pause();
+            }
+        }
+    }
+
+    /**
+     * @param position the playback position in ms at the original tempo
+     */
+    @Override
+    public void seekTo(int position)
+    {
+        synchronized (mLock) {
+            mSequencer.seekTo(position);
+            mPosition = mSequencer.getPosition();
+            // Drop the buffered audio of the old position; the AudioTrack can only be flushed when paused
+            if (mAudioTrack != null) {
+                mAudioTrack.pause();
+                mAudioTrack.flush();
+                if (isPlaying)
+                    mAudioTrack.play();
+            }
+        }
+    }
+
+    /**
+     * @param speed the playback speed i.e. the tempo relative to the original tempo
+     */
+    @Override
+    public void setSpeed(float speed)
+    {
+        mSequencer.setTempo(speed);
+    }
+
+    /**
+     * @param semitones the transpose in semitones
+     */
+    public void setTranspose(int semitones)
+    {
+        mSequencer.setTranspose(semitones);
+    }
+
+    @Override
+    public boolean isPlaying()
+    {
+        return isPlaying;
+    }
+
+    /**
+     * @return the playback position in ms at the original tempo
+     */
+    @Override
+    public int getCurrentPosition()
+    {
+        return mPosition;
+    }
+
+    /**
+     * @return the playback duration in ms at the original tempo
+     */
+    @Override
+    public int getDuration()
+    {
+        return mSequencer.getDuration();
+    }
+
+    /**
+     * Stop the playback and release the AudioTrack; the player cannot be used after release
+     */
+    @Override
+    public void release()
+    {
+        Thread thread;
+        synchronized (mLock) {
+            isReleased = true;
+            isPlaying = false;
+            // Unblock the pending AudioTrack write
+            if (mAudioTrack != null) {
+                mAudioTrack.pause();
+                mAudioTrack.flush();
+            }
+            thread = mThread;
+            mThread = null;
+            mLock.notifyAll();
+        }
+
+        if (thread != null) {
+            try {
+                thread.join(500);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (mAudioTrack != null) {
+            mAudioTrack.release();
+            mAudioTrack = null;
+        }
+    }
+
+    /**
+     * The player thread renders the sequence block by block into the preallocated buffer; the blocking
+     * AudioTrack write paces the rendering.
+     */
+    @Override
+    public void run()
+    {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        while (true) {
+            AudioTrack audioTrack;
+            synchronized (mLock) {
+                while (!isPlaying && !isReleased) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (isReleased)
+                    return;
+                audioTrack = mAudioTrack;
+            }
+
+            int frames = mSequencer.render(mBuffer, BLOCK_FRAMES);
+            mPosition = mSequencer.getPosition();
+            if (frames > 0) {
+                // Blocking write; returns an error code if the track is released in the mean time
+                int result = audioTrack.write(mBuffer, 0, frames);
+                if (result < 0) {
+                    Timber.w("Midi AudioTrack write error: %s", result);
+                    // The write is aborted by release(); else stop the player for release() by the owner
+                    synchronized (mLock) {
+                        if (isReleased)
+                            return;
+                        isReleased = true;
+                        isPlaying = false;
+                        mThread = null;
+                    }
+                    if (mErrorListener != null)
+                        mErrorListener.onError(this, "AudioTrack write error: " + result);
+                    return;
+                }
+            }
+
+            if (frames < BLOCK_FRAMES) {
+                synchronized (mLock) {
+                    if (isReleased)
+                        return;
+                    // Play out the buffered audio; start() will resume on the re-playback
+                    isPlaying = false;
+                    audioTrack.stop();
+                }
+                if (mListener != null)
+                    mListener.onCompletion(this);
+            }
+        }
+    }
+}
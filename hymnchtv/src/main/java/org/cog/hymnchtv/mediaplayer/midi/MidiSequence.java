@@ -0,0 +1,407 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.midi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The merged single timeline of the channel events of one or more standard midi files e.g. the hymn midi main
+ * and its accompany. Each midi file is converted to the absolute time in us with its own tempo map, so the merged
+ * events stay in sync; the playback tempo change is then just a time scale applied by the sequencer.
+ *
+ * The events are kept in the primitive arrays for the allocation free playback:
+ * the event time in us, and the packed message i.e. status | data1 << 8 | data2 << 16.
+ * Only the channel voice messages are kept; sysex and meta events other than the tempo are dropped.
+ *
+ * Each midi file uses its own channels e.g. both the main and the accompany use channel 0 with a different
+ * program; so the channels of the merged file that are already used are remapped to the free channels, to keep
+ * the program change and the controllers of each file apart. The percussion channel is shared, as it has no
+ * melodic program.
+ *
+ * This class has no android dependency.
+ *
+ * @author Eng Chong Meng
+ */
+public class MidiSequence
+{
+    private static final int DEFAULT_TEMPO = 500000; // us per quarter note i.e. 120 bpm
+
+    private static final int CHANNELS = 16;
+    private static final int PERCUSSION_CHANNEL = 9;
+
+    private long[] mTimes = new long[0];
+    private int[] mMessages = new int[0];
+    private int mCount = 0;
+
+    // The bit mask of the channels used by the merged events
+    private int mChannelMask = 0;
+
+    private long mDurationUs = 0;
+
+    /**
+     * Parse and merge the given standard midi file streams into a single timeline; the streams are not closed.
+     *
+     * @param inputs the midi file input streams
+     * @return the merged midi sequence
+     * @throws IOException if any of the stream is not a valid standard midi file
+     */
+    public static MidiSequence parse(InputStream... inputs)
+            throws IOException
+    {
+        MidiSequence sequence = new MidiSequence();
+        for (InputStream in : inputs) {
+            sequence.merge(new SmfParser(readAll(in)).parse());
+        }
+        return sequence;
+    }
+
+    /**
+     * @return the number of the events in the sequence
+     */
+    public int size()
+    {
+        return mCount;
+    }
+
+    /**
+     * @param index the event index
+     * @return the event time in us
+     */
+    public long getTime(int index)
+    {
+        return mTimes[index];
+    }
+
+    /**
+     * @param index the event index
+     * @return the packed channel message i.e. status | data1 << 8 | data2 << 16
+     */
+    public int getMessage(int index)
+    {
+        return mMessages[index];
+    }
+
+    /**
+     * @return the sequence duration in us, including the trailing end of track time
+     */
+    public long getDurationUs()
+    {
+        return mDurationUs;
+    }
+
+    /**
+     * Find the index of the first event at or after the given time
+     *
+     * @param timeUs the time in us
+     * @return the event index, or size() if none
+     */
+    public int indexOf(long timeUs)
+    {
+        int low = 0;
+        int high = mCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mTimes[mid] < timeUs)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Merge the given time sorted events into this sequence; the existing events precede the merged events
+     * at the same time.
+     */
+    private void merge(SmfParser.Events events)
+    {
+        remapChannels(events);
+
+        long[] times = new long[mCount + events.count];
+        int[] messages = new int[mCount + events.count];
+        int i = 0, j = 0, k = 0;
+        while ((i < mCount) || (j < events.count)) {
+            if ((j >= events.count) || ((i < mCount) && (mTimes[i] <= events.times[j]))) {
+                times[k] = mTimes[i];
+                messages[k++] = mMessages[i++];
+            }
+            else {
+                times[k] = events.times[j];
+                messages[k++] = events.messages[j++];
+            }
+        }
+        mTimes = times;
+        mMessages = messages;
+        mCount = k;
+        mDurationUs = Math.max(mDurationUs, events.durationUs);
+    }
+
+    /**
+     * Remap the channels of the given events that are already used by the merged events, to the channels not
+     * used by either; the channel is kept if there is no free channel left.
+     */
+    private void remapChannels(SmfParser.Events events)
+    {
+        int used = 0;
+        for (int i = 0; i < events.count; i++) {
+            used |= 1 << (events.messages[i] & 0x0F);
+        }
+
+        int[] channelMap = new int[CHANNELS];
+        int taken = mChannelMask | used;
+        boolean isRemapped = false;
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            channelMap[channel] = channel;
+            int bit = 1 << channel;
+            if ((channel == PERCUSSION_CHANNEL) || ((used & bit) == 0) || ((mChannelMask & bit) == 0))
+                continue;
+
+            for (int free = 0; free < CHANNELS; free++) {
+                if ((free != PERCUSSION_CHANNEL) && ((taken & (1 << free)) == 0)) {
+                    channelMap[channel] = free;
+                    taken |= 1 << free;
+                    isRemapped = true;
+                    break;
+                }
+            }
+        }
+
+        used = 0;
+        for (int i = 0; i < events.count; i++) {
+            int message = events.messages[i];
+            if (isRemapped)
+                message = (message & ~0x0F) | channelMap[message & 0x0F];
+            events.messages[i] = message;
+            used |= 1 << (message & 0x0F);
+        }
+        mChannelMask |= used;
+    }
+
+    private static byte[] readAll(InputStream in)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The standard midi file (format 0 or 1) parser
+     */
+    private static class SmfParser
+    {
+        private final byte[] mData;
+        private int mPos = 0;
+
+        // Collected track events in ticks, with the sequence number for the stable sorting
+        private final List<long[]> mTrackEvents = new ArrayList<>();
+        private final List<long[]> mTempos = new ArrayList<>();
+        private long mEndTick = 0;
+        private int mSeq = 0;
+
+        static class Events
+        {
+            long[] times;
+            int[] messages;
+            int count;
+            long durationUs;
+        }
+
+        SmfParser(byte[] data)
+        {
+            mData = data;
+        }
+
+        Events parse()
+                throws IOException
+        {
+            if (readInt() != 0x4D546864) // MThd
+                throw new IOException("Not a standard midi file");
+
+            int headerLength = readInt();
+            int headerEnd = mPos + headerLength;
+            readShort(); // format 0 or 1; format 2 is treated as format 1
+            int trackCount = readShort();
+            int division = readShort();
+            mPos = headerEnd;
+
+            for (int t = 0; (t < trackCount) && (mPos + 8 <= mData.length); t++) {
+                int chunkType = readInt();
+                int length = readInt();
+                int end = Math.min(mPos + length, mData.length);
+                if (chunkType == 0x4D54726B) // MTrk
+                    parseTrack(end);
+                mPos = end;
+            }
+            return toEvents(division);
+        }
+
+        private void parseTrack(int end)
+                throws IOException
+        {
+            long tick = 0;
+            int status = 0;
+            while (mPos < end) {
+                tick += readVarLength();
+                int data = readByte();
+                if (data < 0x80) {
+                    // running status
+                    if (status == 0)
+                        throw new IOException("Invalid midi running status");
+                    mPos--;
+                }
+                else if (data < 0xF0) {
+                    status = data;
+                }
+
+                if (data == 0xFF) {
+                    int type = readByte();
+                    int length = (int) readVarLength();
+                    if ((type == 0x51) && (length == 3)) {
+                        long tempo = (readByte() << 16) | (readByte() << 8) | readByte();
+                        mTempos.add(new long[]{tick, tempo, mSeq++});
+                    }
+                    else {
+                        mPos += length;
+                        if (type == 0x2F)
+                            break;
+                    }
+                }
+                else if ((data == 0xF0) || (data == 0xF7)) {
+                    mPos += (int) readVarLength();
+                }
+                else {
+                    int command = status & 0xF0;
+                    int data1 = readByte();
+                    int data2 = ((command == 0xC0) || (command == 0xD0)) ? 0 : readByte();
+                    if ((command == 0x80) || (command == 0x90) || (command == 0xB0)
+                            || (command == 0xC0) || (command == 0xE0)) {
+                        mTrackEvents.add(new long[]{tick, status | (data1 << 8) | (data2 << 16), mSeq++});
+                    }
+                }
+            }
+            mEndTick = Math.max(mEndTick, tick);
+        }
+
+        /**
+         * Sort the collected events by tick, and convert the tick to us with the tempo map
+         */
+        private Events toEvents(int division)
+        {
+            long[][] events = mTrackEvents.toArray(new long[0][]);
+            long[][] tempos = mTempos.toArray(new long[0][]);
+            Arrays.sort(events, (a, b) -> (a[0] != b[0]) ? Long.compare(a[0], b[0]) : Long.compare(a[2], b[2]));
+            Arrays.sort(tempos, (a, b) -> (a[0] != b[0]) ? Long.compare(a[0], b[0]) : Long.compare(a[2], b[2]));
+
+            TempoMap tempoMap = new TempoMap(division, tempos);
+            Events result = new Events();
+            result.count = events.length;
+            result.times = new long[events.length];
+            result.messages = new int[events.length];
+            for (int i = 0; i < events.length; i++) {
+                result.times[i] = tempoMap.toUs(events[i][0]);
+                result.messages[i] = (int) events[i][1];
+            }
+            result.durationUs = tempoMap.toUs(mEndTick);
+            return result;
+        }
+
+        private int readByte()
+                throws IOException
+        {
+            if (mPos >= mData.length)
+                throw new IOException("Unexpected end of midi file");
+            return mData[mPos++] & 0xFF;
+        }
+
+        private int readShort()
+                throws IOException
+        {
+            return (readByte() << 8) | readByte();
+        }
+
+        private int readInt()
+                throws IOException
+        {
+            return (readShort() << 16) | readShort();
+        }
+
+        private long readVarLength()
+                throws IOException
+        {
+            long value = 0;
+            int data;
+            do {
+                data = readByte();
+                value = (value << 7) | (data & 0x7F);
+            } while ((data & 0x80) != 0);
+            return value;
+        }
+    }
+
+    /**
+     * Convert the midi tick to us; the tick must be called in ascending order
+     */
+    private static class TempoMap
+    {
+        private final long[][] mTempos;
+        private final int mPpq;
+
+        private int mIndex = 0;
+        private long mLastTick = 0;
+        private double mLastUs = 0;
+        private double mUsPerTick;
+
+        TempoMap(int division, long[][] tempos)
+        {
+            mTempos = tempos;
+            if ((division & 0x8000) != 0) {
+                // SMPTE time division: frames per second and ticks per frame
+                int fps = -(byte) (division >> 8);
+                int ticksPerFrame = division & 0xFF;
+                mPpq = 0;
+                mUsPerTick = 1e6 / (fps * ticksPerFrame);
+            }
+            else {
+                mPpq = (division == 0) ? 96 : division;
+                mUsPerTick = (double) DEFAULT_TEMPO / mPpq;
+            }
+        }
+
+        long toUs(long tick)
+        {
+            while ((mIndex < mTempos.length) && (mTempos[mIndex][0] <= tick)) {
+                long tempoTick = mTempos[mIndex][0];
+                mLastUs += (tempoTick - mLastTick) * mUsPerTick;
+                mLastTick = tempoTick;
+                if (mPpq != 0)
+                    mUsPerTick = (double) mTempos[mIndex][1] / mPpq;
+                mIndex++;
+            }
+            return (long) (mLastUs + (tick - mLastTick) * mUsPerTick);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.midi;
+
+import java.io.*;
+
+/**
+ * The midi sequencer drives the MidiSynth with the merged MidiSequence events, and renders the PCM blocks.
+ * The events are dispatched at the exact sample position within the block; the tempo is a time scale on the
+ * sequence timeline, and the transpose is applied by the synth; so both can be changed at any time without
+ * re-preparing the sequence.
+ *
+ * All the public methods are synchronized, as the render is called on the audio thread, while the controls
+ * e.g. seek, tempo and transpose are called on the caller thread.
+ *
+ * This class has no android dependency; renderToWav() allows the rendering to be verified on the JVM.
+ *
+ * @author Eng Chong Meng
+ */
+public class MidiSequencer
+{
+    private final MidiSequence mSequence;
+    private final MidiSynth mSynth;
+    private final int mSampleRate;
+
+    private double mPositionUs = 0;
+    private int mEventIndex = 0;
+    private float mTempo = 1.0f;
+
+    /**
+     * @param sequence the midi sequence
+     * @param sampleRate the output sample rate
+     * @param maxFrames the max number of frames of each render call
+     */
+    public MidiSequencer(MidiSequence sequence, int sampleRate, int maxFrames)
+    {
+        mSequence = sequence;
+        mSampleRate = sampleRate;
+        mSynth = new MidiSynth(sampleRate, maxFrames);
+    }
+
+    /**
+     * Render the next block of the sequence; the events due within the block are dispatched at their sample position.
+     *
+     * @param buffer the mono 16-bit PCM output buffer
+     * @param frames the number of frames to render
+     * @return the number of frames rendered; less than frames when the sequence has ended
+     */
+    public synchronized int render(short[] buffer, int frames)
+    {
+        int count = mSequence.size();
+        long durationUs = mSequence.getDurationUs();
+        double usPerFrame = 1e6 * mTempo / mSampleRate;
+
+        int done = 0;
+        while (done < frames) {
+            while ((mEventIndex < count) && (mSequence.getTime(mEventIndex) <= mPositionUs)) {
+                mSynth.processMessage(mSequence.getMessage(mEventIndex++), false);
+            }
+            if ((mEventIndex >= count) && (mPositionUs >= durationUs))
+                break;
+
+            long nextUs = (mEventIndex < count) ? mSequence.getTime(mEventIndex) : durationUs;
+            int frameCount = (int) Math.min(frames - done, Math.ceil((nextUs - mPositionUs) / usPerFrame));
+            frameCount = Math.max(1, frameCount);
+
+            mSynth.render(buffer, done, frameCount);
+            mPositionUs += frameCount * usPerFrame;
+            done += frameCount;
+        }
+        return done;
+    }
+
+    /**
+     * Seek to the given position; the controller states before the position are chased, the notes are not.
+     *
+     * @param positionMs the sequence position in ms
+     */
+    public synchronized void seekTo(int positionMs)
+    {
+        long positionUs = Math.max(0, Math.min(positionMs * 1000L, mSequence.getDurationUs()));
+        mSynth.reset();
+        mEventIndex = mSequence.indexOf(positionUs);
+        for (int i = 0; i < mEventIndex; i++) {
+            mSynth.processMessage(mSequence.getMessage(i), true);
+        }
+        mPositionUs = positionUs;
+    }
+
+    /**
+     * @return the sequence position in ms
+     */
+    public synchronized int getPosition()
+    {
+        return (int) (mPositionUs / 1000);
+    }
+
+    /**
+     * @return the sequence duration in ms at the original tempo
+     */
+    public int getDuration()
+    {
+        return (int) (mSequence.getDurationUs() / 1000);
+    }
+
+    /**
+     * @return true if the whole sequence has been rendered
+     */
+    public synchronized boolean isEnded()
+    {
+        return (mEventIndex >= mSequence.size()) && (mPositionUs >= mSequence.getDurationUs());
+    }
+
+    /**
+     * Set the playback tempo relative to the original tempo
+     *
+     * @param tempo the tempo factor e.g. 0.8f for 80% of the original tempo
+     */
+    public synchronized void setTempo(float tempo)
+    {
+        if (tempo > 0)
+            mTempo = tempo;
+    }
+
+    /**
+     * @param semitones the transpose in semitones
+     */
+    public synchronized void setTranspose(int semitones)
+    {
+        mSynth.setTranspose(semitones);
+    }
+
+    /**
+     * Render the whole sequence from the current position into a mono 16-bit PCM wav file.
+     *
+     * @param file the output wav file
+     * @param maxFrames the max number of frames of each render call, as given in the constructor
+     * @throws IOException if the file write failed
+     */
+    public void renderToWav(File file, int maxFrames)
+            throws IOException
+    {
+        short[] buffer = new short[maxFrames];
+        byte[] bytes = new byte[maxFrames * 2];
+        long dataSize = 0;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            writeWavHeader(raf, 0);
+
+            int frames;
+            do {
+                frames = render(buffer, maxFrames);
+                for (int i = 0; i < frames; i++) {
+                    bytes[2 * i] = (byte) buffer[i];
+                    bytes[2 * i + 1] = (byte) (buffer[i] >> 8);
+                }
+                raf.write(bytes, 0, frames * 2);
+                dataSize += frames * 2;
+            } while (frames == maxFrames);
+
+            raf.seek(0);
+            writeWavHeader(raf, dataSize);
+        }
+    }
+
+    private void writeWavHeader(DataOutput out, long dataSize)
+            throws IOException
+    {
+        out.writeBytes("RIFF");
+        writeIntLE(out, (int) (36 + dataSize));
+        out.writeBytes("WAVE");
+        out.writeBytes("fmt ");
+        writeIntLE(out, 16);
+        writeShortLE(out, 1); // PCM
+        writeShortLE(out, 1); // mono
+        writeIntLE(out, mSampleRate);
+        writeIntLE(out, mSampleRate * 2);
+        writeShortLE(out, 2);
+        writeShortLE(out, 16);
+        out.writeBytes("data");
+        writeIntLE(out, (int) dataSize);
+    }
+
+    private static void writeIntLE(DataOutput out, int value)
+            throws IOException
+    {
+        writeShortLE(out, value);
+        writeShortLE(out, value >> 16);
+    }
+
+    private static void writeShortLE(DataOutput out, int value)
+            throws IOException
+    {
+        out.write(value & 0xFF);
+        out.write((value >> 8) & 0xFF);
+    }
+}
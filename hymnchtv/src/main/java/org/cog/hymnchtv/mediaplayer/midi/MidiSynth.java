@@ -0,0 +1,414 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.midi;
+
+/**
+ * A small polyphonic software synthesizer for the hymn midi playback; renders the mono 16-bit PCM.
+ *
+ * Each GM instrument family is rendered with a harmonic wavetable and an ADSR envelope, good enough for the
+ * hymn piano/organ accompaniment; the percussion channel is rendered as a decaying noise burst.
+ * All the voice and channel states are preallocated, so the render does not allocate any object.
+ * The oldest voice is stolen when all the voices are in use.
+ *
+ * This class has no android dependency, and is not thread safe; the caller must synchronize the access.
+ *
+ * @author Eng Chong Meng
+ */
+public class MidiSynth
+{
+    public static final int MAX_VOICES = 32;
+
+    private static final int CHANNELS = 16;
+    private static final int PERCUSSION_CHANNEL = 9;
+
+    private static final int TABLE_SIZE = 2048;
+
+    private static final float MASTER_GAIN = 0.25f;
+
+    private static final int STAGE_IDLE = 0;
+    private static final int STAGE_ATTACK = 1;
+    private static final int STAGE_DECAY = 2;
+    private static final int STAGE_RELEASE = 3;
+
+    /**
+     * The harmonic amplitudes of the wavetables: piano, organ, strings, flute, brass, guitar/bass
+     */
+    private static final float[][] HARMONICS = {
+            {1f, 0.5f, 0.3f, 0.2f, 0.12f, 0.08f, 0.04f},
+            {1f, 0.8f, 0f, 0.6f, 0f, 0.4f, 0f, 0.3f},
+            {1f, 0.5f, 0.33f, 0.25f, 0.2f, 0.17f, 0.14f, 0.12f, 0.11f, 0.1f},
+            {1f, 0.1f, 0.05f},
+            {1f, 0.7f, 0.5f, 0.4f, 0.3f, 0.2f, 0.15f, 0.1f},
+            {1f, 0.6f, 0.2f, 0.15f, 0.05f},
+    };
+
+    // The wavetable and envelope of each GM instrument family (program / 8)
+    private static final int[] FAMILY_WAVE = {0, 0, 1, 5, 5, 2, 2, 4, 4, 3, 2, 2, 2, 0, 0, 0};
+    private static final boolean[] FAMILY_DECAY = {true, true, false, true, true, false, false, false,
+            false, false, false, false, false, true, true, true};
+
+    private final int mSampleRate;
+    private final float[][] mWaveTables = new float[HARMONICS.length][TABLE_SIZE + 1];
+    private final float[] mMix;
+
+    // Voice states
+    private final int[] vStage = new int[MAX_VOICES];
+    private final int[] vChannel = new int[MAX_VOICES];
+    private final int[] vNote = new int[MAX_VOICES];
+    private final float[] vVelocity = new float[MAX_VOICES];
+    private final double[] vPhase = new double[MAX_VOICES];
+    private final double[] vPhaseInc = new double[MAX_VOICES];
+    private final float[] vLevel = new float[MAX_VOICES];
+    private final float[] vSustainLevel = new float[MAX_VOICES];
+    private final float[] vDecayCoef = new float[MAX_VOICES];
+    private final boolean[] vHeld = new boolean[MAX_VOICES];
+    private final long[] vAge = new long[MAX_VOICES];
+    private final float[][] vTable = new float[MAX_VOICES][];
+    private long mVoiceCount = 0;
+
+    // Channel states
+    private final int[] cProgram = new int[CHANNELS];
+    private final float[] cVolume = new float[CHANNELS];
+    private final float[] cExpression = new float[CHANNELS];
+    private final boolean[] cSustain = new boolean[CHANNELS];
+    private final float[] cBend = new float[CHANNELS];
+
+    private int mTranspose = 0;
+    private int mNoise = 22222;
+
+    private final float mAttackInc;
+    private final float mReleaseCoef;
+    private final float mPercussionCoef;
+
+    /**
+     * @param sampleRate the output sample rate
+     * @param maxFrames the max number of frames of each render call
+     */
+    public MidiSynth(int sampleRate, int maxFrames)
+    {
+        mSampleRate = sampleRate;
+        mMix = new float[maxFrames];
+
+        for (int w = 0; w < HARMONICS.length; w++) {
+            float[] table = mWaveTables[w];
+            float peak = 0;
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                double value = 0;
+                for (int h = 0; h < HARMONICS[w].length; h++) {
+                    value += HARMONICS[w][h] * Math.sin(2 * Math.PI * (h + 1) * i / TABLE_SIZE);
+                }
+                table[i] = (float) value;
+                peak = Math.max(peak, Math.abs(table[i]));
+            }
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                table[i] /= peak;
+            }
+            // guard sample for the linear interpolation
+            table[TABLE_SIZE] = table[0];
+        }
+
+        mAttackInc = 1f / (0.005f * sampleRate);
+        mReleaseCoef = timeCoef(0.25f);
+        mPercussionCoef = timeCoef(0.08f);
+        reset();
+    }
+
+    /**
+     * @param seconds the time for the level to decay to ~1/1000
+     * @return the per sample exponential decay coefficient
+     */
+    private float timeCoef(float seconds)
+    {
+        return (float) Math.exp(Math.log(0.001) / (seconds * mSampleRate));
+    }
+
+    /**
+     * Silence all the voices and reset all the channel controllers
+     */
+    public void reset()
+    {
+        for (int v = 0; v < MAX_VOICES; v++) {
+            vStage[v] = STAGE_IDLE;
+        }
+        for (int c = 0; c < CHANNELS; c++) {
+            cProgram[c] = 0;
+            cVolume[c] = 100 / 127f;
+            cExpression[c] = 1f;
+            cSustain[c] = false;
+            cBend[c] = 0;
+        }
+    }
+
+    /**
+     * Set the transpose in semitones; applies to the sounding notes as well, except the percussion channel
+     *
+     * @param semitones the transpose value
+     */
+    public void setTranspose(int semitones)
+    {
+        mTranspose = semitones;
+        for (int v = 0; v < MAX_VOICES; v++) {
+            if (vStage[v] != STAGE_IDLE)
+                updatePitch(v);
+        }
+    }
+
+    public int getTranspose()
+    {
+        return mTranspose;
+    }
+
+    /**
+     * Process the packed channel message i.e. status | data1 << 8 | data2 << 16
+     *
+     * @param message the packed midi message
+     * @param chaseOnly true to process only the controller states e.g. on seek, and ignore the notes
+     */
+    public void processMessage(int message, boolean chaseOnly)
+    {
+        int channel = message & 0x0F;
+        int data1 = (message >> 8) & 0x7F;
+        int data2 = (message >> 16) & 0x7F;
+        switch (message & 0xF0) {
+            case 0x90:
+                if (!chaseOnly) {
+                    if (data2 == 0)
+                        noteOff(channel, data1);
+                    else
+                        noteOn(channel, data1, data2);
+                }
+                break;
+
+            case 0x80:
+                if (!chaseOnly)
+                    noteOff(channel, data1);
+                break;
+
+            case 0xB0:
+                controlChange(channel, data1, data2);
+                break;
+
+            case 0xC0:
+                cProgram[channel] = data1;
+                break;
+
+            case 0xE0:
+                cBend[channel] = (((data2 << 7) | data1) - 8192) * 2f / 8192;
+                for (int v = 0; v < MAX_VOICES; v++) {
+                    if ((vStage[v] != STAGE_IDLE) && (vChannel[v] == channel))
+                        updatePitch(v);
+                }
+                break;
+        }
+    }
+
+    private void controlChange(int channel, int control, int value)
+    {
+        switch (control) {
+            case 7:
+                cVolume[channel] = value / 127f;
+                break;
+
+            case 11:
+                cExpression[channel] = value / 127f;
+                break;
+
+            case 64:
+                cSustain[channel] = (value >= 64);
+                if (!cSustain[channel]) {
+                    for (int v = 0; v < MAX_VOICES; v++) {
+                        if ((vChannel[v] == channel) && vHeld[v] && (vStage[v] != STAGE_IDLE)) {
+                            vHeld[v] = false;
+                            vStage[v] = STAGE_RELEASE;
+                        }
+                    }
+                }
+                break;
+
+            case 120:
+            case 123:
+                for (int v = 0; v < MAX_VOICES; v++) {
+                    if ((vChannel[v] == channel) && (vStage[v] != STAGE_IDLE))
+                        vStage[v] = (control == 120) ? STAGE_IDLE : STAGE_RELEASE;
+                }
+                break;
+
+            case 121:
+                cVolume[channel] = 100 / 127f;
+                cExpression[channel] = 1f;
+                cSustain[channel] = false;
+                cBend[channel] = 0;
+                break;
+        }
+    }
+
+    private void noteOn(int channel, int note, int velocity)
+    {
+        int voice = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int v = 0; v < MAX_VOICES; v++) {
+            if (vStage[v] == STAGE_IDLE) {
+                voice = v;
+                break;
+            }
+            // Prefer to steal the oldest releasing voice
+            long age = (vStage[v] == STAGE_RELEASE) ? vAge[v] - Integer.MAX_VALUE : vAge[v];
+            if (age < oldest) {
+                oldest = age;
+                voice = v;
+            }
+        }
+
+        float vel = velocity / 127f;
+        vStage[voice] = STAGE_ATTACK;
+        vChannel[voice] = channel;
+        vNote[voice] = note;
+        vVelocity[voice] = vel * vel;
+        vPhase[voice] = 0;
+        vLevel[voice] = 0;
+        vHeld[voice] = false;
+        vAge[voice] = mVoiceCount++;
+
+        if (channel == PERCUSSION_CHANNEL) {
+            vTable[voice] = null;
+            vSustainLevel[voice] = 0;
+            vDecayCoef[voice] = mPercussionCoef;
+        }
+        else {
+            int family = (cProgram[channel] >> 3) & 0x0F;
+            vTable[voice] = mWaveTables[FAMILY_WAVE[family]];
+            boolean isDecay = FAMILY_DECAY[family];
+            vSustainLevel[voice] = isDecay ? 0f : 0.8f;
+            // The lower notes decay slower, as a piano does
+            vDecayCoef[voice] = isDecay ? timeCoef(1.5f + (108 - note) * 0.05f) : timeCoef(0.3f);
+            updatePitch(voice);
+        }
+    }
+
+    private void noteOff(int channel, int note)
+    {
+        for (int v = 0; v < MAX_VOICES; v++) {
+            if ((vStage[v] != STAGE_IDLE) && (vStage[v] != STAGE_RELEASE)
+                    && (vChannel[v] == channel) && (vNote[v] == note) && !vHeld[v]) {
+                if (cSustain[channel])
+                    vHeld[v] = true;
+                else if (channel != PERCUSSION_CHANNEL)
+                    vStage[v] = STAGE_RELEASE;
+                break;
+            }
+        }
+    }
+
+    private void updatePitch(int voice)
+    {
+        int channel = vChannel[voice];
+        if (channel == PERCUSSION_CHANNEL)
+            return;
+
+        double note = vNote[voice] + mTranspose + cBend[channel];
+        double frequency = 440.0 * Math.pow(2.0, (note - 69) / 12.0);
+        vPhaseInc[voice] = frequency * TABLE_SIZE / mSampleRate;
+    }
+
+    /**
+     * Render the sounding voices into the given buffer
+     *
+     * @param buffer the mono 16-bit PCM output buffer
+     * @param offset the buffer offset
+     * @param frames the number of frames to render
+     */
+    public void render(short[] buffer, int offset, int frames)
+    {
+        while (frames > 0) {
+            int count = Math.min(frames, mMix.length);
+            renderBlock(buffer, offset, count);
+            offset += count;
+            frames -= count;
+        }
+    }
+
+    private void renderBlock(short[] buffer, int offset, int frames)
+    {
+        for (int i = 0; i < frames; i++) {
+            mMix[i] = 0;
+        }
+
+        for (int v = 0; v < MAX_VOICES; v++) {
+            if (vStage[v] == STAGE_IDLE)
+                continue;
+
+            int channel = vChannel[v];
+            float gain = vVelocity[v] * cVolume[channel] * cExpression[channel];
+            float[] table = vTable[v];
+            double phase = vPhase[v];
+            double phaseInc = vPhaseInc[v];
+            float level = vLevel[v];
+            int stage = vStage[v];
+            float sustain = vSustainLevel[v];
+            float decayCoef = vDecayCoef[v];
+
+            for (int i = 0; i < frames; i++) {
+                switch (stage) {
+                    case STAGE_ATTACK:
+                        level += mAttackInc;
+                        if (level >= 1f) {
+                            level = 1f;
+                            stage = STAGE_DECAY;
+                        }
+                        break;
+
+                    case STAGE_DECAY:
+                        level = sustain + (level - sustain) * decayCoef;
+                        break;
+
+                    case STAGE_RELEASE:
+                        level *= (table == null) ? decayCoef : mReleaseCoef;
+                        break;
+                }
+
+                float sample;
+                if (table == null) {
+                    mNoise = mNoise * 1103515245 + 12345;
+                    sample = (mNoise >> 16) / 32768f;
+                }
+                else {
+                    int index = (int) phase;
+                    float frac = (float) (phase - index);
+                    sample = table[index] + frac * (table[index + 1] - table[index]);
+                    phase += phaseInc;
+                    if (phase >= TABLE_SIZE)
+                        phase -= TABLE_SIZE;
+                }
+                mMix[i] += sample * level * gain;
+            }
+
+            vPhase[v] = phase;
+            vLevel[v] = level;
+            // The voice ends when its envelope is inaudible
+            vStage[v] = ((stage != STAGE_ATTACK) && (level < 0.0005f)) ? STAGE_IDLE : stage;
+        }
+
+        for (int i = 0; i < frames; i++) {
+            float value = mMix[i] * MASTER_GAIN;
+            if (value > 1f)
+                value = 1f;
+            else if (value < -1f)
+                value = -1f;
+            buffer[offset + i] = (short) (value * Short.MAX_VALUE);
+        }
+    }
+}
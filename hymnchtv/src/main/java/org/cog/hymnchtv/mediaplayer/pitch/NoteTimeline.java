@@ -0,0 +1,197 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.pitch;
+
+import org.cog.hymnchtv.mediaplayer.midi.MidiSequence;
+
+import java.util.Arrays;
+
+/**
+ * The melody note timeline of the hymn midi main for the pitch practice reference. The melody is taken as the
+ * highest sounding note at any time i.e. the soprano of the hymn harmony; the percussion channel is ignored.
+ *
+ * The notes are kept in the primitive arrays; the note lookup at the playback position is a check of the last
+ * found note, or a binary search on seek, and does not allocate any object. The lookup is not thread-safe, and
+ * must be called on a single thread.
+ *
+ * This class has no android dependency.
+ *
+ * @author Eng Chong Meng
+ */
+public class NoteTimeline
+{
+    public static final int NO_NOTE = -1;
+
+    // The midi percussion channel i.e. channel 10
+    private static final int CHANNEL_PERCUSSION = 9;
+
+    // The note start and end times in ms, and the midi note numbers
+    private final long[] mStarts;
+    private final long[] mEnds;
+    private final int[] mNotes;
+    private final int mCount;
+
+    private int mLastIndex = 0;
+
+    private NoteTimeline(long[] starts, long[] ends, int[] notes, int count)
+    {
+        mStarts = starts;
+        mEnds = ends;
+        mNotes = notes;
+        mCount = count;
+    }
+
+    /**
+     * Extract the melody note timeline from the given midi sequence
+     *
+     * @param sequence the hymn midi main sequence
+     * @return the melody note timeline
+     */
+    public static NoteTimeline fromSequence(MidiSequence sequence)
+    {
+        // The number of the sounding note-on of each note number
+        int[] sounding = new int[128];
+
+        long[] starts = new long[64];
+        long[] ends = new long[64];
+        int[] notes = new int[64];
+        int count = 0;
+
+        int melody = NO_NOTE;
+        int size = sequence.size();
+        int i = 0;
+        while (i < size) {
+            // Apply all the events at the same time before the melody note is evaluated
+            long timeUs = sequence.getTime(i);
+            for (; (i < size) && (sequence.getTime(i) == timeUs); i++) {
+                int message = sequence.getMessage(i);
+                int command = message & 0xF0;
+                int note = (message >> 8) & 0x7F;
+                int velocity = (message >> 16) & 0x7F;
+                if ((message & 0x0F) == CHANNEL_PERCUSSION)
+                    continue;
+
+                if ((command == 0x90) && (velocity > 0)) {
+                    sounding[note]++;
+                }
+                else if (((command == 0x80) || (command == 0x90)) && (sounding[note] > 0)) {
+                    sounding[note]--;
+                }
+            }
+
+            int top = NO_NOTE;
+            for (int note = 127; note >= 0; note--) {
+                if (sounding[note] > 0) {
+                    top = note;
+                    break;
+                }
+            }
+
+            if (top != melody) {
+                long timeMs = timeUs / 1000;
+                if (melody != NO_NOTE)
+                    ends[count - 1] = timeMs;
+
+                if (top != NO_NOTE) {
+                    if (count == starts.length) {
+                        starts = Arrays.copyOf(starts, count * 2);
+                        ends = Arrays.copyOf(ends, count * 2);
+                        notes = Arrays.copyOf(notes, count * 2);
+                    }
+                    starts[count] = timeMs;
+                    ends[count] = timeMs;
+                    notes[count++] = top;
+                }
+                melody = top;
+            }
+        }
+
+        if (melody != NO_NOTE)
+            ends[count - 1] = sequence.getDurationUs() / 1000;
+        return new NoteTimeline(starts, ends, notes, count);
+    }
+
+    /**
+     * @return the number of the melody notes
+     */
+    public int size()
+    {
+        return mCount;
+    }
+
+    /**
+     * Get the melody note at the given playback position
+     *
+     * @param timeMs the playback position in ms
+     * @return the midi note number; or NO_NOTE if none e.g. a rest
+     */
+    public int getNote(long timeMs)
+    {
+        if (mCount == 0)
+            return NO_NOTE;
+
+        // Fast path for the normal playback i.e. the position is still within the last found note or its next
+        int idx = mLastIndex;
+        if ((mStarts[idx] > timeMs) || ((idx + 1 < mCount) && (mStarts[idx + 1] <= timeMs))) {
+            if ((idx + 2 < mCount) && (mStarts[idx + 1] <= timeMs) && (timeMs < mStarts[idx + 2])) {
+                idx++;
+            }
+            else {
+                // The last note starting at or before the given time
+                int low = 0;
+                int high = mCount;
+                while (low < high) {
+                    int mid = (low + high) >>> 1;
+                    if (mStarts[mid] <= timeMs)
+                        low = mid + 1;
+                    else
+                        high = mid;
+                }
+                if (low == 0)
+                    return NO_NOTE;
+                idx = low - 1;
+            }
+            mLastIndex = idx;
+        }
+        return (timeMs < mEnds[idx]) ? mNotes[idx] : NO_NOTE;
+    }
+
+    /**
+     * @return the lowest melody note; or NO_NOTE if none
+     */
+    public int getLowestNote()
+    {
+        int lowest = NO_NOTE;
+        for (int i = 0; i < mCount; i++) {
+            if ((lowest == NO_NOTE) || (mNotes[i] < lowest))
+                lowest = mNotes[i];
+        }
+        return lowest;
+    }
+
+    /**
+     * @return the highest melody note; or NO_NOTE if none
+     */
+    public int getHighestNote()
+    {
+        int highest = NO_NOTE;
+        for (int i = 0; i < mCount; i++) {
+            highest = Math.max(highest, mNotes[i]);
+        }
+        return highest;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.pitch;
+
+/**
+ * The YIN fundamental frequency estimator for the monophonic singing voice.
+ * Ref: A. de Cheveigné and H. Kawahara, "YIN, a fundamental frequency estimator for speech and music", 2002.
+ *
+ * The difference function is computed only for the lags of the given frequency range i.e. the singing voice range;
+ * its cumulative mean normalized difference is searched for the first dip below the absolute threshold, and
+ * the lag is refined with the parabolic interpolation. All the work buffers are preallocated, and detect()
+ * does not allocate any object.
+ *
+ * This class has no android dependency; it can be run on the JVM e.g. with the PCM samples of a wav file.
+ *
+ * @author Eng Chong Meng
+ */
+public class PitchDetector
+{
+    public static final float NO_PITCH = -1f;
+
+    // The YIN absolute threshold of the cumulative mean normalized difference
+    private static final float THRESHOLD = 0.15f;
+
+    private final int mSampleRate;
+    private final int mFrameSize;
+
+    // The integration window size, and the lag range of the frequency range
+    private final int mWindow;
+    private final int mTauMin;
+    private final int mTauMax;
+
+    // The cumulative mean normalized difference of each lag
+    private final float[] mYin;
+
+    // The periodicity of the last detected pitch i.e. 1 - the normalized difference of the detected lag
+    private float mProbability = 0;
+
+    /**
+     * @param sampleRate the audio sample rate
+     * @param frameSize the number of samples in each detection frame
+     * @param minFreq the lowest frequency to detect
+     * @param maxFreq the highest frequency to detect
+     */
+    public PitchDetector(int sampleRate, int frameSize, float minFreq, float maxFreq)
+    {
+        mSampleRate = sampleRate;
+        mFrameSize = frameSize;
+        mWindow = frameSize / 2;
+        mTauMax = Math.min(frameSize - mWindow - 1, (int) Math.ceil(sampleRate / minFreq));
+        mTauMin = Math.max(2, (int) Math.floor(sampleRate / maxFreq));
+        mYin = new float[mTauMax + 1];
+    }
+
+    /**
+     * @return the number of samples required in each detection frame
+     */
+    public int getFrameSize()
+    {
+        return mFrameSize;
+    }
+
+    /**
+     * Estimate the fundamental frequency of the given audio frame
+     *
+     * @param frame the audio samples of getFrameSize() length; in any amplitude scale
+     * @return the frequency in Hz; or NO_PITCH if the frame is not periodic e.g. unvoiced or silence
+     */
+    public float detect(float[] frame)
+    {
+        // The difference function and its cumulative mean normalization in a single pass
+        float runningSum = 0;
+        mYin[0] = 1;
+        for (int tau = 1; tau <= mTauMax; tau++) {
+            float sum = 0;
+            for (int j = 0; j < mWindow; j++) {
+                float delta = frame[j] - frame[j + tau];
+                sum += delta * delta;
+            }
+            runningSum += sum;
+            mYin[tau] = (runningSum == 0) ? 1 : sum * tau / runningSum;
+        }
+
+        // The first dip below the threshold, then the local minimum of that dip
+        int tauEstimate = -1;
+        for (int tau = mTauMin; tau <= mTauMax; tau++) {
+            if (mYin[tau] < THRESHOLD) {
+                while ((tau + 1 <= mTauMax) && (mYin[tau + 1] < mYin[tau]))
+                    tau++;
+                tauEstimate = tau;
+                break;
+            }
+        }
+
+        if (tauEstimate == -1) {
+            mProbability = 0;
+            return NO_PITCH;
+        }
+        mProbability = 1 - mYin[tauEstimate];
+
+        // Refine the lag with the parabola through the neighbouring lags
+        float betterTau = tauEstimate;
+        if ((tauEstimate > 1) && (tauEstimate < mTauMax)) {
+            float s0 = mYin[tauEstimate - 1];
+            float s1 = mYin[tauEstimate];
+            float s2 = mYin[tauEstimate + 1];
+            float denominator = 2 * (2 * s1 - s2 - s0);
+            if (denominator != 0)
+                betterTau += (s2 - s0) / denominator;
+        }
+        return mSampleRate / betterTau;
+    }
+
+    /**
+     * @return the periodicity (0 to 1) of the last detected pitch; 0 if none
+     */
+    public float getProbability()
+    {
+        return mProbability;
+    }
+
+    /**
+     * Convert the given frequency to the midi note number
+     *
+     * @param frequency the frequency in Hz
+     * @return the fractional midi note number e.g. 69.0 for A4 440Hz
+     */
+    public static float toMidiNote(float frequency)
+    {
+        return (float) (69 + 12 * Math.log(frequency / 440.0) / Math.log(2));
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.pitch;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Process;
+
+import timber.log.Timber;
+
+/**
+ * The real-time pitch tracker of the pitch practice mode: the sung pitch is compared with the hymn melody note
+ * at the playback position.
+ *
+ * The microphone is captured with AudioRecord into a preallocated ring buffer on the capture thread; the pitch is
+ * detected on the dedicated detector thread on the latest frame for every hop of the new samples. The detector
+ * skips to the latest frame if it falls behind e.g. on the low-end devices, so the result stays in real time.
+ * The frame below the voice level gate is taken as unvoiced; the gate uses the same RMS to dB SPL calibration as
+ * the AudioBgService sound level meter.
+ *
+ * The results are published to the preallocated history ring, and are pulled by the view on each display frame.
+ * The sung note is folded to the octave nearest to the melody note, so the male voice singing an octave lower
+ * is matched. Nothing is allocated after start() on the capture and the detector threads.
+ *
+ * @author Eng Chong Meng
+ */
+public class PitchTracker
+{
+    private static final int SAMPLE_RATE = 16000;
+
+    // The detection frame of 64ms for the voice down to 70Hz, and the detection on every 16ms of the new samples
+    private static final int FRAME_SIZE = 1024;
+    private static final int HOP_SIZE = 256;
+
+    // Must be a power of 2
+    private static final int RING_SIZE = 8192;
+
+    // The singing voice frequency range
+    private static final float MIN_FREQ = 70f;
+    private static final float MAX_FREQ = 1000f;
+
+    // Calibration as in AudioBgService: 90 dB SPL at 1000 Hz yields RMS of 2500 for 16-bit samples
+    private static final double GAIN = 2500.0 / Math.pow(10.0, 90.0 / 20.0);
+
+    // The voice level gate in dB SPL
+    private static final double VOICE_GATE_DB = 45.0;
+
+    // The sung note within the tolerance (in semitones) of the melody note is in tune
+    public static final float TOLERANCE = 0.5f;
+
+    // The number of the results kept for the view
+    public static final int HISTORY_SIZE = 512;
+
+    public static final float NO_NOTE = Float.NaN;
+
+    private final NoteTimeline mTimeline;
+    private final PitchDetector mDetector = new PitchDetector(SAMPLE_RATE, FRAME_SIZE, MIN_FREQ, MAX_FREQ);
+
+    private final short[] mRing = new short[RING_SIZE];
+    private final short[] mReadBuffer = new short[HOP_SIZE];
+    private final float[] mFrame = new float[FRAME_SIZE];
+
+    // The total number of samples written to the ring; guarded by mLock
+    private long mWritePos = 0;
+    private final Object mLock = new Object();
+
+    // The result history ring: the sung note folded to the melody note octave, and the melody note
+    private final float[] mSungNotes = new float[HISTORY_SIZE];
+    private final int[] mMelodyNotes = new int[HISTORY_SIZE];
+    private volatile int mResultCount = 0;
+
+    // The number of the voiced results during the melody notes, and those in tune
+    private volatile int mVoicedCount = 0;
+    private volatile int mInTuneCount = 0;
+
+    // The playback position (ms) updated by the UI; -1 if the playback is not running
+    private volatile long mPositionMs = -1;
+
+    private volatile boolean isRunning = false;
+    private AudioRecord mAudioRecord = null;
+    private Thread mCaptureThread = null;
+    private Thread mDetectThread = null;
+
+    /**
+     * @param timeline the hymn melody note timeline for the reference
+     */
+    public PitchTracker(NoteTimeline timeline)
+    {
+        mTimeline = timeline;
+    }
+
+    /**
+     * Start the microphone capture and the pitch detection; the RECORD_AUDIO permission must be granted.
+     *
+     * @return true if the microphone capture is started
+     */
+    public synchronized boolean start()
+    {
+        if (isRunning)
+            return true;
+
+        int minBufferSize = AudioRecord.getMinBufferSize(SAMPLE_RATE,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        if (minBufferSize <= 0) {
+            Timber.w("Pitch tracker audio format not supported: %s", minBufferSize);
+            return false;
+        }
+
+        try {
+            mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.MIC, SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, Math.max(minBufferSize, 4 * HOP_SIZE * 2));
+            if (mAudioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+                Timber.w("Pitch tracker audio record init failed");
+                mAudioRecord.release();
+                mAudioRecord = null;
+                return false;
+            }
+            mAudioRecord.startRecording();
+        } catch (IllegalStateException | SecurityException e) {
+            Timber.w("Pitch tracker audio record start failed: %s", e.getMessage());
+            if (mAudioRecord != null) {
+                mAudioRecord.release();
+                mAudioRecord = null;
+            }
+            return false;
+        }
+
+        synchronized (mLock) {
+            mWritePos = 0;
+        }
+        mResultCount = 0;
+        mVoicedCount = 0;
+        mInTuneCount = 0;
+        isRunning = true;
+
+        mCaptureThread = new Thread(this::capture, "PitchCapture");
+        mDetectThread = new Thread(this::detect, "PitchDetect");
+        mCaptureThread.start();
+        mDetectThread.start();
+        return true;
+    }
+
+    /**
+     * Stop the pitch detection, and release the microphone
+     */
+    public synchronized void stop()
+    {
+        if (!isRunning)
+            return;
+
+        isRunning = false;
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+        try {
+            mCaptureThread.join(500);
+            mDetectThread.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            mAudioRecord.stop();
+        } catch (IllegalStateException e) {
+            Timber.w("Pitch tracker audio record stop failed: %s", e.getMessage());
+        }
+        mAudioRecord.release();
+        mAudioRecord = null;
+        mCaptureThread = null;
+        mDetectThread = null;
+    }
+
+    public boolean isRunning()
+    {
+        return isRunning;
+    }
+
+    /**
+     * Update the playback position for the melody note reference; called by the UI on each display frame
+     *
+     * @param positionMs the playback position in ms; -1 if the playback is stopped
+     */
+    public void setPlaybackPosition(long positionMs)
+    {
+        mPositionMs = positionMs;
+    }
+
+    /**
+     * @return the total number of the results published; the latest HISTORY_SIZE results are kept
+     */
+    public int getResultCount()
+    {
+        return mResultCount;
+    }
+
+    /**
+     * @param index the result index i.e. less than getResultCount()
+     * @return the sung note folded to the melody note octave; or NO_NOTE if unvoiced
+     */
+    public float getSungNote(int index)
+    {
+        return mSungNotes[index & (HISTORY_SIZE - 1)];
+    }
+
+    /**
+     * @param index the result index i.e. less than getResultCount()
+     * @return the melody note; or NoteTimeline.NO_NOTE if none
+     */
+    public int getMelodyNote(int index)
+    {
+        return mMelodyNotes[index & (HISTORY_SIZE - 1)];
+    }
+
+    /**
+     * @return the percentage of the voiced results during the melody notes that are in tune; -1 if none
+     */
+    public int getScore()
+    {
+        int voiced = mVoicedCount;
+        return (voiced == 0) ? -1 : (100 * mInTuneCount / voiced);
+    }
+
+    public NoteTimeline getTimeline()
+    {
+        return mTimeline;
+    }
+
+    /**
+     * The capture thread: read the microphone samples into the ring buffer
+     */
+    private void capture()
+    {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        int writeIdx = 0;
+        while (isRunning) {
+            int count = mAudioRecord.read(mReadBuffer, 0, HOP_SIZE);
+            if (count <= 0) {
+                if (count < 0) {
+                    Timber.w("Pitch tracker audio record read error: %s", count);
+                    break;
+                }
+                continue;
+            }
+
+            for (int i = 0; i < count; i++) {
+                mRing[writeIdx] = mReadBuffer[i];
+                writeIdx = (writeIdx + 1) & (RING_SIZE - 1);
+            }
+            synchronized (mLock) {
+                mWritePos += count;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * The detector thread: detect the pitch of the latest frame on every hop of the new samples
+     */
+    private void detect()
+    {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+        long readPos = 0;
+        while (isRunning) {
+            long writePos;
+            synchronized (mLock) {
+                while (isRunning && (mWritePos - readPos < HOP_SIZE)) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                writePos = mWritePos;
+            }
+            // Always work on the latest frame; the skipped hops are dropped to keep up in real time
+            readPos = writePos;
+            if (!isRunning || (writePos < FRAME_SIZE))
+                continue;
+
+            // Copy the latest frame out of the ring, and get its RMS level
+            int start = (int) ((writePos - FRAME_SIZE) & (RING_SIZE - 1));
+            double sumSquares = 0;
+            for (int i = 0; i < FRAME_SIZE; i++) {
+                float sample = mRing[(start + i) & (RING_SIZE - 1)];
+                mFrame[i] = sample / 32768f;
+                sumSquares += sample * sample;
+            }
+            double rmsDb = 20.0 * Math.log10(GAIN * Math.sqrt(sumSquares / FRAME_SIZE) + 1e-9);
+
+            float frequency = (rmsDb < VOICE_GATE_DB) ? PitchDetector.NO_PITCH : mDetector.detect(mFrame);
+            long positionMs = mPositionMs;
+            int melody = (positionMs < 0) ? NoteTimeline.NO_NOTE : mTimeline.getNote(positionMs);
+            publish(frequency, melody);
+        }
+    }
+
+    /**
+     * Publish the result to the history ring, and update the in tune score
+     */
+    private void publish(float frequency, int melody)
+    {
+        float sung = NO_NOTE;
+        if (frequency != PitchDetector.NO_PITCH) {
+            sung = PitchDetector.toMidiNote(frequency);
+            if (melody != NoteTimeline.NO_NOTE) {
+                // Fold to the octave nearest to the melody note
+                sung -= 12 * Math.round((sung - melody) / 12f);
+                if (Math.abs(sung - melody) <= TOLERANCE)
+                    mInTuneCount++;
+                mVoicedCount++;
+            }
+        }
+
+        int idx = mResultCount & (HISTORY_SIZE - 1);
+        mSungNotes[idx] = sung;
+        mMelodyNotes[idx] = melody;
+        // The volatile write publishes the result entries to the view
+        mResultCount++;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.pitch;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+import java.util.Locale;
+
+/**
+ * The pitch practice view: the melody notes are shown as the bars, and the sung pitch as the trace over them;
+ * the trace is green when in tune, else orange. The latest results scroll in from the right.
+ *
+ * The view pulls the new results from the PitchTracker on each display frame, and is redrawn only if there are
+ * new results. All the paints are preallocated, and onDraw() does not allocate any object except the score text
+ * when the score changes.
+ *
+ * @author Eng Chong Meng
+ */
+public class PitchView extends View
+{
+    // The width (px) of each result i.e. each detection hop
+    private static final float STEP_WIDTH = 3f;
+
+    // The note range margin (semitones) above and below the melody range
+    private static final int NOTE_MARGIN = 3;
+
+    private static final int COLOR_IN_TUNE = 0xFF4CAF50;
+    private static final int COLOR_OUT_TUNE = 0xFFFF9800;
+
+    private final Paint mMelodyPaint = new Paint();
+    private final Paint mInTunePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mOutTunePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private PitchTracker mTracker = null;
+    private int mLowNote;
+    private int mHighNote;
+
+    // The tracker result count at the last draw
+    private int mDrawnCount = -1;
+
+    // The cached score text; updated only when the score changes
+    private int mScore = -1;
+    private String mScoreText = "";
+
+    public PitchView(Context context)
+    {
+        this(context, null);
+    }
+
+    public PitchView(Context context, AttributeSet attrs)
+    {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+
+        mMelodyPaint.setColor(Color.LTGRAY);
+        mInTunePaint.setColor(COLOR_IN_TUNE);
+        mInTunePaint.setStrokeWidth(2 * density);
+        mInTunePaint.setStrokeCap(Paint.Cap.ROUND);
+        mOutTunePaint.setColor(COLOR_OUT_TUNE);
+        mOutTunePaint.setStrokeWidth(2 * density);
+        mOutTunePaint.setStrokeCap(Paint.Cap.ROUND);
+        mTextPaint.setColor(Color.DKGRAY);
+        mTextPaint.setTextSize(14 * density);
+        mTextPaint.setTextAlign(Paint.Align.RIGHT);
+    }
+
+    /**
+     * Show the results of the given pitch tracker
+     *
+     * @param tracker the pitch tracker; null to stop the update
+     */
+    public void setTracker(PitchTracker tracker)
+    {
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mTracker = tracker;
+        mDrawnCount = -1;
+        mScore = -1;
+        mScoreText = "";
+
+        if (tracker != null) {
+            NoteTimeline timeline = tracker.getTimeline();
+            mLowNote = timeline.getLowestNote() - NOTE_MARGIN;
+            mHighNote = timeline.getHighestNote() + NOTE_MARGIN;
+            if (isAttachedToWindow())
+                Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow()
+    {
+        super.onAttachedToWindow();
+        if (mTracker != null)
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+    }
+
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        super.onDetachedFromWindow();
+    }
+
+    /**
+     * Redraw only if there are new results from the pitch tracker
+     */
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback()
+    {
+        @Override
+        public void doFrame(long frameTimeNanos)
+        {
+            if (mTracker == null)
+                return;
+
+            if (mTracker.getResultCount() != mDrawnCount)
+                invalidate();
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    };
+
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        super.onDraw(canvas);
+        if ((mTracker == null) || (mHighNote <= mLowNote))
+            return;
+
+        int count = mTracker.getResultCount();
+        mDrawnCount = count;
+
+        float width = getWidth();
+        float height = getHeight();
+        float noteHeight = height / (mHighNote - mLowNote);
+
+        // The latest result is at the right edge; the results before the history ring are not available
+        int shown = Math.min(count, Math.min(PitchTracker.HISTORY_SIZE, (int) (width / STEP_WIDTH)));
+        float x = width - shown * STEP_WIDTH;
+        float lastX = 0;
+        float lastY = -1;
+
+        for (int i = count - shown; i < count; i++, x += STEP_WIDTH) {
+            int melody = mTracker.getMelodyNote(i);
+            if (melody != NoteTimeline.NO_NOTE) {
+                float top = (mHighNote - melody - 0.5f) * noteHeight;
+                canvas.drawRect(x, top, x + STEP_WIDTH, top + noteHeight, mMelodyPaint);
+            }
+
+            float sung = mTracker.getSungNote(i);
+            if (Float.isNaN(sung)) {
+                lastY = -1;
+                continue;
+            }
+
+            float y = Math.max(0, Math.min(height, (mHighNote - sung) * noteHeight));
+            boolean inTune = (melody != NoteTimeline.NO_NOTE) && (Math.abs(sung - melody) <= PitchTracker.TOLERANCE);
+            Paint paint = inTune ? mInTunePaint : mOutTunePaint;
+            if (lastY < 0)
+                canvas.drawPoint(x, y, paint);
+            else
+                canvas.drawLine(lastX, lastY, x, y, paint);
+            lastX = x;
+            lastY = y;
+        }
+
+        int score = mTracker.getScore();
+        if (score != mScore) {
+            mScore = score;
+            mScoreText = (score < 0) ? "" : String.format(Locale.US, "%d%%", score);
+        }
+        canvas.drawText(mScoreText, width - getPaddingRight(), getPaddingTop() - mTextPaint.ascent(), mTextPaint);
+    }
+}
@@ -30,12 +30,15 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import org.cog.hymnchtv.*;
+import org.cog.hymnchtv.download.DownloadJob;
 import org.cog.hymnchtv.hymnhistory.HistoryRecord;
 import org.cog.hymnchtv.mediaconfig.MediaConfig;
 import org.cog.hymnchtv.mediaconfig.MediaRecord;
+import org.cog.hymnchtv.mediaconfig.MediaSnapshot;
 import org.cog.hymnchtv.persistance.migrations.Migrations;
 import org.cog.hymnchtv.persistance.migrations.MigrationsHelper;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -54,7 +57,7 @@ public class DatabaseBackend extends SQLiteOpenHelper
      * Increment DATABASE_VERSION when there is a change in database records
      */
     public static final String DATABASE_NAME = "dbHymnApp.db";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 7;
 
     private static DatabaseBackend instance = null;
     private final Context mContext;
@@ -122,10 +125,47 @@ public class DatabaseBackend extends SQLiteOpenHelper
             + HistoryRecord.HYMN_TYPE + ", " + HistoryRecord.HYMN_NO + ", " + MediaConfig.HYMN_FU
             + ") ON CONFLICT REPLACE);";
 
+    // Download job queue table
+    public static String CREATE_DOWNLOAD_JOB = "CREATE TABLE " + DownloadJob.TABLE_NAME + " ("
+            + DownloadJob.JOB_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + DownloadJob.LINK + " TEXT, "
+            + DownloadJob.DEST_FILE + " TEXT UNIQUE, "
+            + DownloadJob.STATE + " TEXT, "
+            + DownloadJob.DOWNLOAD_ID + " INTEGER, "
+            + DownloadJob.ATTEMPTS + " INTEGER, "
+            + DownloadJob.RETRY_TIME + " NUMBER, "
+            + DownloadJob.BATCH + " TEXT);";
+
+    // Media blob store manifest table
+    public static String CREATE_MEDIA_BLOB = "CREATE TABLE " + MediaBlob.TABLE_NAME + " ("
+            + MediaBlob.PATH + " TEXT PRIMARY KEY, "
+            + MediaBlob.HASH + " TEXT, "
+            + MediaBlob.SIZE + " INTEGER, "
+            + MediaBlob.VERIFIED + " NUMBER);";
+
+    public static String CREATE_MEDIA_BLOB_INDEX = "CREATE INDEX " + MediaBlob.TABLE_NAME + "_" + MediaBlob.HASH
+            + " ON " + MediaBlob.TABLE_NAME + "(" + MediaBlob.HASH + ");";
+
+    // Media storage quota usage table
+    public static String CREATE_MEDIA_USAGE = "CREATE TABLE " + MediaUsage.TABLE_NAME + " ("
+            + MediaUsage.PATH + " TEXT PRIMARY KEY, "
+            + MediaUsage.LAST_PLAYED + " NUMBER, "
+            + MediaUsage.PINNED + " BOOL);";
+
+    // Media library scanner snapshot table
+    public static String CREATE_MEDIA_SNAPSHOT = "CREATE TABLE " + MediaSnapshot.TABLE_NAME + " ("
+            + MediaSnapshot.PATH + " TEXT PRIMARY KEY, "
+            + MediaSnapshot.MODIFIED + " NUMBER, "
+            + MediaSnapshot.SIZE + " INTEGER);";
+
     /**
      * Create all the required virgin database tables and perform initial data migration:
      * a. HymnContent Table per HYMN_XXX
      * b. HistoryRecord Table
+     * c. DownloadJob Table
+     * d. MediaBlob Table
+     * e. MediaUsage Table
+     * f. MediaSnapshot Table
      *
      * # Initialize and initial data migration
      *
@@ -144,6 +184,11 @@ public class DatabaseBackend extends SQLiteOpenHelper
         db.execSQL(HYMN_CONTENT_STATEMENT.replace("%s", HYMN_ER));
 
         db.execSQL(CREATE_HYMN_HISTORY);
+        db.execSQL(CREATE_DOWNLOAD_JOB);
+        db.execSQL(CREATE_MEDIA_BLOB);
+        db.execSQL(CREATE_MEDIA_BLOB_INDEX);
+        db.execSQL(CREATE_MEDIA_USAGE);
+        db.execSQL(CREATE_MEDIA_SNAPSHOT);
 
         // Perform the first data migration to SQLite database
         initDatabase(db);
@@ -184,9 +229,46 @@ public class DatabaseBackend extends SQLiteOpenHelper
         if (row == -1) {
             Timber.e("### Error in creating media record for table:hymNo: %s:%s", mRecord.getHymnType(), mRecord.getHymnNo());
         }
+        else {
+            MediaIndex.getInstance().onRecordStored(mRecord);
+        }
         return row;
     }
 
+    /**
+     * Save the given MediaRecords in a single transaction e.g. the media library scan or the records import
+     *
+     * @param mRecords list of MediaRecord
+     * @return the number of the records saved
+     */
+    public int storeMediaRecords(List<MediaRecord> mRecords)
+    {
+        List<MediaRecord> stored = new ArrayList<>();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (MediaRecord mRecord : mRecords) {
+                ContentValues values = new ContentValues();
+                values.put(MediaConfig.HYMN_NO, mRecord.getHymnNo());
+                values.put(MediaConfig.HYMN_FU, mRecord.isFu());
+                values.put(MediaConfig.MEDIA_TYPE, mRecord.getMediaType().toString());
+                values.put(MediaConfig.MEDIA_URI, mRecord.getMediaUri());
+                values.put(MediaConfig.MEDIA_FILE_PATH, mRecord.getMediaFilePath());
+
+                if (db.insert(mRecord.getHymnType(), null, values) != -1)
+                    stored.add(mRecord);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        for (MediaRecord mRecord : stored) {
+            MediaIndex.getInstance().onRecordStored(mRecord);
+        }
+        return stored.size();
+    }
+
     /**
      * Check if mRecord exist in DB and update with the DB result if update if true
      *
@@ -245,8 +327,11 @@ public class DatabaseBackend extends SQLiteOpenHelper
         SQLiteDatabase db = this.getReadableDatabase();
         String[] args = {Integer.toString(mRecord.getHymnNo()), mRecord.isFu() ? "1" : "0", mRecord.getMediaType().toString()};
 
-        return db.delete(mRecord.getHymnType(), MediaConfig.HYMN_NO + "=? AND "
+        int rows = db.delete(mRecord.getHymnType(), MediaConfig.HYMN_NO + "=? AND "
                 + MediaConfig.HYMN_FU + "=? AND " + MediaConfig.MEDIA_TYPE + "=?", args);
+        if (rows > 0)
+            MediaIndex.getInstance().onRecordDeleted(mRecord);
+        return rows;
     }
 
     /**
@@ -304,6 +389,26 @@ public class DatabaseBackend extends SQLiteOpenHelper
         return mediaRecords;
     }
 
+    /**
+     * Get the local media file paths of the media records e.g. the user imported media files
+     *
+     * @param hymnType one of the MediaConfig.hymnTypeValue
+     * @return List of the media file paths for the given hymnType
+     */
+    public List<String> getMediaFilePaths(String hymnType)
+    {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<String> filePaths = new ArrayList<>();
+
+        Cursor cursor = db.query(hymnType, new String[]{MediaConfig.MEDIA_FILE_PATH},
+                MediaConfig.MEDIA_FILE_PATH + " <> ''", null, null, null, null);
+        while (cursor.moveToNext()) {
+            filePaths.add(cursor.getString(0));
+        }
+        cursor.close();
+        return filePaths;
+    }
+
     /**
      * Save the given HistoryRecord to the database table hymnHistory
      * Purge old records in excess of (NUMBER_OF_RECORDS_IN_HISTORY - 10)
@@ -377,6 +482,282 @@ public class DatabaseBackend extends SQLiteOpenHelper
         return historyRecords;
     }
 
+    /**
+     * Save the given DownloadJob to the database table downloadJob, and update the job with its assigned jobId
+     *
+     * @param job an instance of DownloadJob
+     * @return the jobId, or -1 on error
+     */
+    public long storeDownloadJob(DownloadJob job)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        long row = db.insert(DownloadJob.TABLE_NAME, null, getDownloadJobValues(job));
+        if (row == -1) {
+            Timber.e("### Error in creating download job record: %s", job.getDestFile());
+        }
+        return row;
+    }
+
+    /**
+     * Save the given DownloadJobs in a single transaction e.g. the bulk prefetch
+     *
+     * @param jobs list of DownloadJob
+     * @return the row IDs of the newly inserted jobs, in the given jobs order
+     */
+    public long[] storeDownloadJobs(List<DownloadJob> jobs)
+    {
+        long[] rows = new long[jobs.size()];
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = db.insert(DownloadJob.TABLE_NAME, null, getDownloadJobValues(jobs.get(i)));
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return rows;
+    }
+
+    /**
+     * Update the state of the given DownloadJob in the database table downloadJob
+     *
+     * @param job an instance of DownloadJob
+     */
+    public void updateDownloadJob(DownloadJob job)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        String[] args = {Long.toString(job.getJobId())};
+        db.update(DownloadJob.TABLE_NAME, getDownloadJobValues(job), DownloadJob.JOB_ID + "=?", args);
+    }
+
+    /**
+     * Delete the given DownloadJob from the database table downloadJob
+     *
+     * @param job an instance of DownloadJob
+     */
+    public int deleteDownloadJob(DownloadJob job)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        String[] args = {Long.toString(job.getJobId())};
+        return db.delete(DownloadJob.TABLE_NAME, DownloadJob.JOB_ID + "=?", args);
+    }
+
+    /**
+     * Fetch all the pending download jobs in the queue order
+     *
+     * @return List of DownloadJob
+     */
+    public List<DownloadJob> getDownloadJobs()
+    {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<DownloadJob> downloadJobs = new ArrayList<>();
+        String ORDER_ASC = DownloadJob.JOB_ID + " ASC";
+
+        Cursor cursor = db.query(DownloadJob.TABLE_NAME, null, null, null, null, null, ORDER_ASC);
+        while (cursor.moveToNext()) {
+            DownloadJob downloadJob = new DownloadJob(
+                    cursor.getLong(cursor.getColumnIndex(DownloadJob.JOB_ID)),
+                    cursor.getString(cursor.getColumnIndex(DownloadJob.LINK)),
+                    new File(cursor.getString(cursor.getColumnIndex(DownloadJob.DEST_FILE))),
+                    Enum.valueOf(DownloadJob.State.class, cursor.getString(cursor.getColumnIndex(DownloadJob.STATE))),
+                    cursor.getLong(cursor.getColumnIndex(DownloadJob.DOWNLOAD_ID)),
+                    cursor.getInt(cursor.getColumnIndex(DownloadJob.ATTEMPTS)),
+                    cursor.getLong(cursor.getColumnIndex(DownloadJob.RETRY_TIME)),
+                    cursor.getString(cursor.getColumnIndex(DownloadJob.BATCH)));
+            downloadJobs.add(downloadJob);
+        }
+        cursor.close();
+        return downloadJobs;
+    }
+
+    private ContentValues getDownloadJobValues(DownloadJob job)
+    {
+        ContentValues values = new ContentValues();
+        values.put(DownloadJob.LINK, job.getLink());
+        values.put(DownloadJob.DEST_FILE, job.getDestFile().getAbsolutePath());
+        values.put(DownloadJob.STATE, job.getState().toString());
+        values.put(DownloadJob.DOWNLOAD_ID, job.getDownloadId());
+        values.put(DownloadJob.ATTEMPTS, job.getAttempts());
+        values.put(DownloadJob.RETRY_TIME, job.getRetryTime());
+        values.put(DownloadJob.BATCH, job.getBatch());
+        return values;
+    }
+
+    /**
+     * Save the given MediaBlob to the database table mediaBlob; replace the existing entry of the same path
+     *
+     * @param blob an instance of MediaBlob
+     */
+    public void storeMediaBlob(MediaBlob blob)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(MediaBlob.PATH, blob.getPath());
+        values.put(MediaBlob.HASH, blob.getHash());
+        values.put(MediaBlob.SIZE, blob.getSize());
+        values.put(MediaBlob.VERIFIED, blob.getVerified());
+
+        long row = db.insertWithOnConflict(MediaBlob.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        if (row == -1) {
+            Timber.e("### Error in creating media blob record: %s", blob.getPath());
+        }
+    }
+
+    /**
+     * Update the verified time of the given media blob path
+     *
+     * @param path the media file path
+     * @param verified the blob verified time (ms)
+     */
+    public void updateMediaBlobVerified(String path, long verified)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put(MediaBlob.VERIFIED, verified);
+        db.update(MediaBlob.TABLE_NAME, values, MediaBlob.PATH + "=?", new String[]{path});
+    }
+
+    /**
+     * Delete the given media blob path from the database table mediaBlob
+     *
+     * @param path the media file path
+     */
+    public int deleteMediaBlob(String path)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        return db.delete(MediaBlob.TABLE_NAME, MediaBlob.PATH + "=?", new String[]{path});
+    }
+
+    /**
+     * Fetch all the media blob store manifest entries
+     *
+     * @return List of MediaBlob
+     */
+    public List<MediaBlob> getMediaBlobs()
+    {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<MediaBlob> mediaBlobs = new ArrayList<>();
+
+        Cursor cursor = db.query(MediaBlob.TABLE_NAME, null, null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            MediaBlob mediaBlob = new MediaBlob(
+                    cursor.getString(cursor.getColumnIndex(MediaBlob.PATH)),
+                    cursor.getString(cursor.getColumnIndex(MediaBlob.HASH)),
+                    cursor.getLong(cursor.getColumnIndex(MediaBlob.SIZE)),
+                    cursor.getLong(cursor.getColumnIndex(MediaBlob.VERIFIED)));
+            mediaBlobs.add(mediaBlob);
+        }
+        cursor.close();
+        return mediaBlobs;
+    }
+
+    /**
+     * Save the given MediaUsages in a single transaction; replace the existing records of the same paths
+     *
+     * @param usages list of MediaUsage
+     */
+    public void storeMediaUsages(List<MediaUsage> usages)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (MediaUsage usage : usages) {
+                ContentValues values = new ContentValues();
+                values.put(MediaUsage.PATH, usage.getPath());
+                values.put(MediaUsage.LAST_PLAYED, usage.getLastPlayed());
+                values.put(MediaUsage.PINNED, usage.isPinned());
+                db.insertWithOnConflict(MediaUsage.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Delete the given media path from the database table mediaUsage
+     *
+     * @param path the media file path
+     */
+    public int deleteMediaUsage(String path)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        return db.delete(MediaUsage.TABLE_NAME, MediaUsage.PATH + "=?", new String[]{path});
+    }
+
+    /**
+     * Fetch all the media usage records
+     *
+     * @return List of MediaUsage
+     */
+    public List<MediaUsage> getMediaUsages()
+    {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<MediaUsage> mediaUsages = new ArrayList<>();
+
+        Cursor cursor = db.query(MediaUsage.TABLE_NAME, null, null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            MediaUsage mediaUsage = new MediaUsage(
+                    cursor.getString(cursor.getColumnIndex(MediaUsage.PATH)),
+                    cursor.getLong(cursor.getColumnIndex(MediaUsage.LAST_PLAYED)),
+                    cursor.getInt(cursor.getColumnIndex(MediaUsage.PINNED)) == 1);
+            mediaUsages.add(mediaUsage);
+        }
+        cursor.close();
+        return mediaUsages;
+    }
+
+    /**
+     * Save and delete the given media library snapshots in a single transaction
+     *
+     * @param snapshots list of the new or changed MediaSnapshot
+     * @param removed list of the removed snapshot paths
+     */
+    public void storeMediaSnapshots(List<MediaSnapshot> snapshots, List<String> removed)
+    {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (MediaSnapshot snapshot : snapshots) {
+                ContentValues values = new ContentValues();
+                values.put(MediaSnapshot.PATH, snapshot.getPath());
+                values.put(MediaSnapshot.MODIFIED, snapshot.getModified());
+                values.put(MediaSnapshot.SIZE, snapshot.getSize());
+                db.insertWithOnConflict(MediaSnapshot.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            for (String path : removed) {
+                db.delete(MediaSnapshot.TABLE_NAME, MediaSnapshot.PATH + "=?", new String[]{path});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Fetch all the media library snapshots
+     *
+     * @return List of MediaSnapshot
+     */
+    public List<MediaSnapshot> getMediaSnapshots()
+    {
+        SQLiteDatabase db = this.getReadableDatabase();
+        List<MediaSnapshot> mediaSnapshots = new ArrayList<>();
+
+        Cursor cursor = db.query(MediaSnapshot.TABLE_NAME, null, null, null, null, null, null);
+        while (cursor.moveToNext()) {
+            MediaSnapshot mediaSnapshot = new MediaSnapshot(
+                    cursor.getString(cursor.getColumnIndex(MediaSnapshot.PATH)),
+                    cursor.getLong(cursor.getColumnIndex(MediaSnapshot.MODIFIED)),
+                    cursor.getLong(cursor.getColumnIndex(MediaSnapshot.SIZE)));
+            mediaSnapshots.add(mediaSnapshot);
+        }
+        cursor.close();
+        return mediaSnapshots;
+    }
+
     @Override
     public SQLiteDatabase getWritableDatabase()
     {
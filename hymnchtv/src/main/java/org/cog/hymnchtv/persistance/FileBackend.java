@@ -245,6 +245,22 @@ public class FileBackend
         return hymnchtvDLDir;
     }
 
+    /**
+     * Get the media file of the given media path for playback; the media file may be kept in the MediaBlobStore
+     *
+     * @param dir the media directory under the hymnchtv store
+     * @param fileName the media file name
+     * @return the media file or its blob; null if the media is not available locally
+     */
+    public static File getMediaFile(String dir, String fileName)
+    {
+        File mediaDir = getHymnchtvStore(dir, false);
+        if (mediaDir == null)
+            return null;
+
+        return MediaBlobStore.getInstance().resolve(new File(mediaDir, fileName));
+    }
+
     /**
      * Create a new File for saving image or video captured with camera
      */
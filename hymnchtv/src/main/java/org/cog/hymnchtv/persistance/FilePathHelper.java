@@ -21,6 +21,7 @@ import android.content.*;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Environment;
 import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.text.TextUtils;
@@ -57,6 +58,24 @@ public class FilePathHelper
         return filePath;
     }
 
+    /**
+     * Get the local directory path of the folder selected with the ACTION_OPEN_DOCUMENT_TREE
+     *
+     * @param treeUri the document tree uri e.g. content://com.android.externalstorage.documents/tree/primary%3AMusic
+     * @return the local directory path; or null if the folder is not on the external storage
+     */
+    public static String getTreePath(Uri treeUri)
+    {
+        if ((treeUri == null) || !isExternalStoreDoc(treeUri.getAuthority()))
+            return null;
+
+        String[] idArr = DocumentsContract.getTreeDocumentId(treeUri).split(":", 2);
+        String relPath = (idArr.length == 2) ? idArr[1] : "";
+        File root = "primary".equalsIgnoreCase(idArr[0])
+                ? Environment.getExternalStorageDirectory() : new File("/storage", idArr[0]);
+        return TextUtils.isEmpty(relPath) ? root.getAbsolutePath() : new File(root, relPath).getAbsolutePath();
+    }
+
     /**
      * To create a new file based on the given uri (usually on ContentResolver failure)
      *
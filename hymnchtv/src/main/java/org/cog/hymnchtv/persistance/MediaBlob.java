@@ -0,0 +1,77 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.persistance;
+
+/**
+ * The manifest entry of the MediaBlobStore; persisted in the database table mediaBlob.
+ *
+ * The format of the media blob record consists of: path, hash, size, verified
+ * a. path: the absolute media file path, as used by the path-based media lookups
+ * b. hash: the SHA-256 hex digest of the media content; the blob file name in the store
+ * c. size: the blob size in bytes
+ * d. verified: the time (ms) of the last blob content verification; 0 if it is not verified yet
+ *
+ * Multiple paths may refer to the same blob, when the same media is used for different hymnTypes or media types.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaBlob
+{
+    public static final String TABLE_NAME = "mediaBlob";
+    public static final String PATH = "path";
+    public static final String HASH = "hash";
+    public static final String SIZE = "size";
+    public static final String VERIFIED = "verified";
+
+    private final String mPath;
+    private final String mHash;
+    private final long mSize;
+    private long mVerified;
+
+    public MediaBlob(String path, String hash, long size, long verified)
+    {
+        mPath = path;
+        mHash = hash;
+        mSize = size;
+        mVerified = verified;
+    }
+
+    public String getPath()
+    {
+        return mPath;
+    }
+
+    public String getHash()
+    {
+        return mHash;
+    }
+
+    public long getSize()
+    {
+        return mSize;
+    }
+
+    public long getVerified()
+    {
+        return mVerified;
+    }
+
+    void setVerified(long verified)
+    {
+        mVerified = verified;
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.persistance;
+
+import org.cog.hymnchtv.HymnsApp;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import timber.log.Timber;
+
+/**
+ * The content-addressed store of the downloaded media files. Each media content is stored once as a blob named by
+ * its SHA-256 hash i.e. .blobs/ab/abcdef...mp3, and the SQLite manifest maps the media file paths to the blobs;
+ * so the identical media used for different hymnTypes or media types are deduplicated.
+ *
+ * The path-based media lookups continue to work via resolve(): the media file is used if found at its path e.g. the
+ * user imported media; else the blob of the path in the manifest is used. The blob size is checked on every
+ * resolve, and its content hash is verified lazily in the background on its first use; a truncated or corrupted
+ * blob is removed, so the media is reported as missing and can be downloaded again.
+ *
+ * The manifest is cached in memory, and all the methods are thread-safe.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaBlobStore
+{
+    // The blob store directory under the hymnchtv store
+    public static final String DIR_BLOBS = ".blobs";
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static MediaBlobStore mInstance = null;
+
+    private final DatabaseBackend mDB;
+
+    // The in-memory manifest of <path, MediaBlob>; loaded on first access
+    private Map<String, MediaBlob> mManifest = null;
+
+    // The blob hashes with the verification pending; to avoid the duplicated verification
+    private final Set<String> mVerifying = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MediaBlobStore");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    public static synchronized MediaBlobStore getInstance()
+    {
+        if (mInstance == null) {
+            mInstance = new MediaBlobStore();
+        }
+        return mInstance;
+    }
+
+    private MediaBlobStore()
+    {
+        mDB = DatabaseBackend.getInstance(HymnsApp.getGlobalContext());
+    }
+
+    private synchronized Map<String, MediaBlob> getManifest()
+    {
+        if (mManifest == null) {
+            mManifest = new ConcurrentHashMap<>();
+            for (MediaBlob blob : mDB.getMediaBlobs()) {
+                mManifest.put(blob.getPath(), blob);
+            }
+        }
+        return mManifest;
+    }
+
+    /**
+     * Get the actual media file of the given media file path for playback. The lazy content verification of the
+     * blob is started in the background if it has not been verified.
+     *
+     * @param file the media file path
+     * @return the media file itself if found, else the verified or not yet verified blob of the path; or null
+     * if the media is not available locally
+     */
+    public File resolve(File file)
+    {
+        if (file.exists())
+            return file;
+
+        MediaBlob blob = getManifest().get(file.getAbsolutePath());
+        if (blob == null)
+            return null;
+
+        File blobFile = getBlobFile(blob.getHash(), file.getName());
+        if ((blobFile == null) || (blobFile.length() != blob.getSize())) {
+            Timber.w("Media blob missing or truncated: %s => %s", file, blobFile);
+            removeBlob(blob.getHash());
+            return null;
+        }
+
+        if (blob.getVerified() == 0)
+            verify(blob);
+        return blobFile;
+    }
+
+    /**
+     * Check if the given media file path is available locally without the blob file I/O
+     *
+     * @param file the media file path
+     * @return true if the media file is found at its path, or the path is in the manifest
+     */
+    public boolean isAvailable(File file)
+    {
+        return file.exists() || getManifest().containsKey(file.getAbsolutePath());
+    }
+
+    /**
+     * @return the media file paths in the manifest
+     */
+    public Set<String> getPaths()
+    {
+        return getManifest().keySet();
+    }
+
+    /**
+     * @return all the manifest entries
+     */
+    public Collection<MediaBlob> getBlobs()
+    {
+        return getManifest().values();
+    }
+
+    /**
+     * @param blob the manifest entry
+     * @return the blob file of the manifest entry; or null if the hymnchtv store is not available
+     */
+    public File getBlobFile(MediaBlob blob)
+    {
+        return getBlobFile(blob.getHash(), blob.getPath());
+    }
+
+    /**
+     * Get the media file paths of the given played file e.g. from the media player uri
+     *
+     * @param file the media file or the blob file
+     * @return all the media file paths referring to the blob; or the file path itself if it is not a blob
+     */
+    public List<String> getPaths(File file)
+    {
+        List<String> paths = new ArrayList<>();
+        File blobDir = file.getParentFile();
+        File storeDir = (blobDir == null) ? null : blobDir.getParentFile();
+        if ((storeDir != null) && DIR_BLOBS.equals(storeDir.getName())) {
+            String name = file.getName();
+            int idx = name.indexOf('.');
+            for (MediaBlob blob : getBlobPaths((idx == -1) ? name : name.substring(0, idx))) {
+                paths.add(blob.getPath());
+            }
+        }
+        else {
+            paths.add(file.getAbsolutePath());
+        }
+        return paths;
+    }
+
+    /**
+     * Store the downloaded media file in the blob store for the given media file path; the downloaded file is
+     * deleted if the same content is already in the store. Any existing media file at the path is replaced.
+     * Must be called on a background thread, as the whole content is hashed.
+     *
+     * @param srcFile the downloaded media file e.g. in the tmp directory
+     * @param file the media file path
+     * @return true if the media content is stored
+     */
+    public boolean store(File srcFile, File file)
+    {
+        String hash = getHash(srcFile);
+        File blobFile = (hash == null) ? null : getBlobFile(hash, file.getName());
+        if (blobFile == null)
+            return false;
+
+        long size = srcFile.length();
+        if (blobFile.exists() && (blobFile.length() == size)) {
+            Timber.d("Media blob deduplicated: %s => %s", file, blobFile.getName());
+            if (!srcFile.delete())
+                Timber.w("Failed to delete the duplicated media: %s", srcFile);
+        }
+        else {
+            File parent = blobFile.getParentFile();
+            if ((parent != null) && !parent.exists() && !parent.mkdirs()) {
+                Timber.e("Could not create media blob folder: %s", parent);
+                return false;
+            }
+            if (!srcFile.renameTo(blobFile)) {
+                Timber.e("Failed to store the media blob: %s => %s", srcFile, blobFile);
+                return false;
+            }
+        }
+
+        // The content has just been hashed, so the blob is verified
+        MediaBlob blob = new MediaBlob(file.getAbsolutePath(), hash, size, System.currentTimeMillis());
+        getManifest().put(blob.getPath(), blob);
+        mDB.storeMediaBlob(blob);
+
+        if (file.exists() && !file.delete())
+            Timber.w("Failed to delete the replaced media: %s", file);
+        return true;
+    }
+
+    /**
+     * Delete the given media file path; the blob is deleted if it is no longer referred by any path.
+     *
+     * @param file the media file path
+     * @return the number of bytes freed
+     */
+    public long delete(File file)
+    {
+        long freed = 0;
+        if (file.exists()) {
+            long size = file.length();
+            if (file.delete())
+                freed += size;
+        }
+
+        MediaBlob blob = getManifest().remove(file.getAbsolutePath());
+        if (blob != null) {
+            mDB.deleteMediaBlob(blob.getPath());
+            if (getBlobPaths(blob.getHash()).isEmpty()) {
+                File blobFile = getBlobFile(blob.getHash(), file.getName());
+                if ((blobFile != null) && blobFile.delete())
+                    freed += blob.getSize();
+            }
+        }
+        MediaIndex.getInstance().onFileChanged(file);
+        return freed;
+    }
+
+    /**
+     * Verify the blob content hash in the background; the blob is removed on mismatch
+     */
+    private void verify(MediaBlob blob)
+    {
+        if (!mVerifying.add(blob.getHash()))
+            return;
+
+        mExecutor.execute(() -> {
+            try {
+                File blobFile = getBlobFile(blob.getHash(), blob.getPath());
+                String hash = (blobFile == null) ? null : getHash(blobFile);
+                if (blob.getHash().equals(hash)) {
+                    long now = System.currentTimeMillis();
+                    for (MediaBlob pathBlob : getBlobPaths(blob.getHash())) {
+                        pathBlob.setVerified(now);
+                        mDB.updateMediaBlobVerified(pathBlob.getPath(), now);
+                    }
+                }
+                else {
+                    Timber.w("Media blob verification failed: %s => %s", blob.getPath(), hash);
+                    removeBlob(blob.getHash());
+                }
+            } finally {
+                mVerifying.remove(blob.getHash());
+            }
+        });
+    }
+
+    /**
+     * Remove the bad blob with the given hash and all its paths from the manifest
+     */
+    private void removeBlob(String hash)
+    {
+        for (MediaBlob blob : getBlobPaths(hash)) {
+            getManifest().remove(blob.getPath());
+            mDB.deleteMediaBlob(blob.getPath());
+
+            File blobFile = getBlobFile(hash, blob.getPath());
+            if ((blobFile != null) && blobFile.exists() && !blobFile.delete())
+                Timber.w("Failed to delete the media blob: %s", blobFile);
+            MediaIndex.getInstance().onFileChanged(new File(blob.getPath()));
+        }
+    }
+
+    /**
+     * @return all the manifest entries referring to the blob with the given hash
+     */
+    private List<MediaBlob> getBlobPaths(String hash)
+    {
+        List<MediaBlob> blobs = new ArrayList<>();
+        for (MediaBlob blob : getManifest().values()) {
+            if (blob.getHash().equals(hash))
+                blobs.add(blob);
+        }
+        return blobs;
+    }
+
+    /**
+     * Get the blob file of the given hash; the blob file name retains the media file name extension, for the
+     * mime type guessing by the players.
+     *
+     * @param hash the content hash
+     * @param fileName the media file name or path
+     * @return the blob file; or null if the hymnchtv store is not available
+     */
+    private static File getBlobFile(String hash, String fileName)
+    {
+        File blobDir = FileBackend.getHymnchtvStore(DIR_BLOBS + File.separator + hash.substring(0, 2), false);
+        if (blobDir == null)
+            return null;
+
+        int idx = fileName.lastIndexOf('.');
+        String ext = ((idx != -1) && (idx > fileName.lastIndexOf(File.separatorChar))) ? fileName.substring(idx) : "";
+        return new File(blobDir, hash + ext.toLowerCase(Locale.US));
+    }
+
+    /**
+     * @param file the file to hash
+     * @return the SHA-256 hex digest of the file content; or null on error
+     */
+    public static String getHash(File file)
+    {
+        try (InputStream is = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hash.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return hash.toString();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Timber.w("Media hash failed: %s; %s", file, e.getMessage());
+            return null;
+        }
+    }
+}
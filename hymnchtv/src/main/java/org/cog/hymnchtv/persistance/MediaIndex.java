@@ -0,0 +1,519 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.persistance;
+
+import static org.cog.hymnchtv.ContentHandler.MEDIA_BANZOU;
+import static org.cog.hymnchtv.ContentHandler.MEDIA_CHANGSHI;
+import static org.cog.hymnchtv.ContentHandler.MEDIA_JIAOCHANG;
+import static org.cog.hymnchtv.ContentHandler.MEDIA_MIDI;
+import static org.cog.hymnchtv.ContentHandler.MIDI_BB;
+import static org.cog.hymnchtv.ContentHandler.MIDI_DB;
+import static org.cog.hymnchtv.MainActivity.HYMN_BB;
+import static org.cog.hymnchtv.MainActivity.HYMN_DB;
+import static org.cog.hymnchtv.MainActivity.HYMN_ER;
+import static org.cog.hymnchtv.MainActivity.HYMN_XB;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_BB_NO_MAX;
+import static org.cog.hymnchtv.utils.HymnNoValidate.HYMN_DB_NO_TMAX;
+
+import android.Manifest;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.cog.hymnchtv.HymnsApp;
+import org.cog.hymnchtv.MediaType;
+import org.cog.hymnchtv.mediaconfig.MediaRecord;
+
+import java.io.File;
+import java.util.*;
+
+import timber.log.Timber;
+
+/**
+ * The in-memory media availability index of all the hymns, for the media buttons state on the lyrics page change
+ * without any I/O. Each hymnType has two bitsets indexed by the hymnNo:
+ * a. The local media files bitset; one slot for each media source i.e. the midi raw resource, and the local media
+ * files in the midi, banzou, jiaochang and changshi sub-directories.
+ * b. The media records bitset; one slot for each MediaType, as defined in the database table of the hymnType.
+ *
+ * The index is built once on a background thread from the media directories scan and one database query for each
+ * hymnType. It is kept current with the FileObserver of each media directory, the DownloadScheduler completion and
+ * the DatabaseBackend media record write hooks. The changes are coalesced and notified on the main thread.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaIndex
+{
+    // The local media file slots of each hymnNo in the files bitset
+    private static final int SLOT_MIDI_RES = 0;
+    private static final int SLOT_MIDI = 1;
+    private static final int SLOT_BANZOU = 2;
+    private static final int SLOT_JIAOCHANG = 3;
+    private static final int SLOT_CHANGSHI = 4;
+    private static final int FILE_SLOTS = 5;
+
+    // Only the first 4 mediaTypes have the media buttons; HYMN_URL is excluded
+    private static final int MEDIA_SLOTS = 4;
+
+    private static final String[] hymnTypes = {HYMN_ER, HYMN_XB, HYMN_BB, HYMN_DB};
+
+    private static final int OBSERVER_MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_TO | FileObserver.DELETE | FileObserver.MOVED_FROM;
+
+    /**
+     * The listener for the index changes; called on the main thread
+     */
+    public interface MediaIndexListener
+    {
+        /**
+         * @param hymnType the hymnType of which the media availability has changed
+         */
+        void onMediaIndexChanged(String hymnType);
+    }
+
+    private static MediaIndex mInstance = null;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, BitSet> mFileBits = new HashMap<>();
+    private final Map<String, BitSet> mRecordBits = new HashMap<>();
+
+    // Must keep a strong reference to the observers; else the events stop once they are garbage collected
+    private final List<FileObserver> mObservers = new ArrayList<>();
+    private final List<MediaIndexListener> mListeners = new ArrayList<>();
+
+    // The hymnTypes changed since the last listeners notification
+    private final Set<String> mChangedTypes = new HashSet<>();
+
+    private volatile boolean isReady = false;
+    private boolean isBuilding = false;
+    private boolean hasStorage = false;
+
+    public static synchronized MediaIndex getInstance()
+    {
+        if (mInstance == null) {
+            mInstance = new MediaIndex();
+        }
+        return mInstance;
+    }
+
+    /**
+     * Start the index build on a background thread if it has not been built; or rebuild it if it was built
+     * before the storage permission is granted. Must be called on the main thread.
+     */
+    public void start()
+    {
+        boolean storage = PermissionUtils.isPermissionGranted(HymnsApp.getGlobalContext(),
+                Manifest.permission.WRITE_EXTERNAL_STORAGE);
+        if (isBuilding || (isReady && (hasStorage || !storage)))
+            return;
+
+        isBuilding = true;
+        new Thread(() -> {
+            build(storage);
+            mHandler.post(() -> {
+                isBuilding = false;
+                hasStorage = storage;
+            });
+        }, "MediaIndex").start();
+    }
+
+    public void addListener(MediaIndexListener listener)
+    {
+        if (!mListeners.contains(listener))
+            mListeners.add(listener);
+    }
+
+    public void removeListener(MediaIndexListener listener)
+    {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Get the local availability of the hymn media content for all mediaType
+     *
+     * @param hymnType the hymnType
+     * @param hymnNo the hymnNo
+     * @return array of media content availability for all mediaType, or null if the index is not ready
+     */
+    public boolean[] getMediaState(String hymnType, int hymnNo)
+    {
+        if (!isReady)
+            return null;
+
+        boolean[] isAvailable = new boolean[MEDIA_SLOTS];
+        synchronized (this) {
+            BitSet records = mRecordBits.get(hymnType);
+            BitSet files = mFileBits.get(hymnType);
+            if ((records == null) || (files == null))
+                return null;
+
+            for (int i = 0; i < MEDIA_SLOTS; i++) {
+                isAvailable[i] = records.get(hymnNo * MEDIA_SLOTS + i);
+            }
+
+            int idx = hymnNo * FILE_SLOTS;
+            isAvailable[MediaType.HYMN_BANZOU.ordinal()] |= files.get(idx + SLOT_MIDI_RES)
+                    || files.get(idx + SLOT_MIDI) || files.get(idx + SLOT_BANZOU);
+            isAvailable[MediaType.HYMN_JIAOCHANG.ordinal()] |= files.get(idx + SLOT_JIAOCHANG);
+            isAvailable[MediaType.HYMN_CHANGSHI.ordinal()] |= files.get(idx + SLOT_CHANGSHI);
+        }
+        return isAvailable;
+    }
+
+    /**
+     * Update the index for the file added or removed by the app e.g. the download completion; the
+     * FileObserver may miss the event if the media directory is only created after the index is built.
+     *
+     * @param file the media file
+     */
+    public void onFileChanged(File file)
+    {
+        File dir = file.getParentFile();
+        if (dir == null)
+            return;
+
+        for (String hymnType : hymnTypes) {
+            int slot = getSlot(hymnType, dir);
+            if (slot != -1) {
+                updateFile(hymnType, slot, dir, file.getName(), MediaBlobStore.getInstance().isAvailable(file));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Database write hook on the media record store
+     *
+     * @param mRecord the stored media record
+     */
+    public void onRecordStored(MediaRecord mRecord)
+    {
+        updateRecord(mRecord, true);
+    }
+
+    /**
+     * Database write hook on the media record delete
+     *
+     * @param mRecord the deleted media record
+     */
+    public void onRecordDeleted(MediaRecord mRecord)
+    {
+        updateRecord(mRecord, false);
+    }
+
+    /**
+     * Build all the hymnTypes index; the file observers are started before the scan, so no change is missed.
+     *
+     * @param storage true if the storage permission is granted
+     */
+    private void build(boolean storage)
+    {
+        long startTime = System.currentTimeMillis();
+        DatabaseBackend mDB = DatabaseBackend.getInstance(HymnsApp.getGlobalContext());
+
+        stopObservers();
+        Map<String, BitSet> fileBits = new HashMap<>();
+        Map<String, BitSet> recordBits = new HashMap<>();
+        for (String hymnType : hymnTypes) {
+            BitSet files = new BitSet();
+            addMidiResources(hymnType, files);
+            for (int slot = SLOT_MIDI; slot < FILE_SLOTS; slot++) {
+                File dir = FileBackend.getHymnchtvStore(hymnType + getSubDir(slot), storage);
+                if (dir == null)
+                    continue;
+
+                startObserver(hymnType, slot, dir);
+                String[] fileNames = dir.list();
+                if (fileNames != null) {
+                    for (String fileName : fileNames) {
+                        int hymnNo = parseHymnNo(hymnType, slot, fileName);
+                        if (hymnNo > 0)
+                            files.set(hymnNo * FILE_SLOTS + slot);
+                    }
+                }
+            }
+            fileBits.put(hymnType, files);
+
+            BitSet records = new BitSet();
+            for (MediaRecord mRecord : mDB.getMediaRecords(hymnType)) {
+                int slot = getRecordSlot(mRecord);
+                if (slot != -1)
+                    records.set(slot);
+            }
+            recordBits.put(hymnType, records);
+        }
+
+        // The downloaded media kept in the blob store are indexed by their manifest paths
+        for (String path : MediaBlobStore.getInstance().getPaths()) {
+            File file = new File(path);
+            File dir = file.getParentFile();
+            for (String hymnType : hymnTypes) {
+                int slot = (dir == null) ? -1 : getSlot(hymnType, dir);
+                if (slot != -1) {
+                    int hymnNo = parseHymnNo(hymnType, slot, file.getName());
+                    if (hymnNo > 0)
+                        fileBits.get(hymnType).set(hymnNo * FILE_SLOTS + slot);
+                    break;
+                }
+            }
+        }
+
+        synchronized (this) {
+            mFileBits.clear();
+            mFileBits.putAll(fileBits);
+            mRecordBits.clear();
+            mRecordBits.putAll(recordBits);
+        }
+        isReady = true;
+        Timber.d("Media index built in %s ms (storage: %s)", System.currentTimeMillis() - startTime, storage);
+
+        for (String hymnType : hymnTypes) {
+            notifyChanged(hymnType);
+        }
+    }
+
+    /**
+     * The midi raw resources of the banzou media; only for the hymn_bb and hymn_db
+     */
+    private void addMidiResources(String hymnType, BitSet files)
+    {
+        String prefix;
+        int maxNo;
+        if (HYMN_BB.equals(hymnType)) {
+            prefix = MIDI_BB;
+            maxNo = HYMN_BB_NO_MAX;
+        }
+        else if (HYMN_DB.equals(hymnType)) {
+            prefix = MIDI_DB;
+            maxNo = HYMN_DB_NO_TMAX;
+        }
+        else {
+            return;
+        }
+
+        for (int hymnNo = 1; hymnNo <= maxNo; hymnNo++) {
+            if (HymnsApp.getFileResId(prefix + hymnNo, "raw") != 0)
+                files.set(hymnNo * FILE_SLOTS + SLOT_MIDI_RES);
+        }
+    }
+
+    private void startObserver(String hymnType, int slot, File dir)
+    {
+        FileObserver observer = new FileObserver(dir.getAbsolutePath(), OBSERVER_MASK)
+        {
+            @Override
+            public void onEvent(int event, String path)
+            {
+                if (path == null)
+                    return;
+
+                boolean exist = (event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) == 0;
+                updateFile(hymnType, slot, dir, path, exist);
+            }
+        };
+        observer.startWatching();
+        synchronized (mObservers) {
+            mObservers.add(observer);
+        }
+    }
+
+    private void stopObservers()
+    {
+        synchronized (mObservers) {
+            for (FileObserver observer : mObservers) {
+                observer.stopWatching();
+            }
+            mObservers.clear();
+        }
+    }
+
+    /**
+     * Update the file slot of the hymnNo of the given fileName
+     *
+     * @param hymnType the hymnType
+     * @param slot the file slot of the media directory
+     * @param dir the media directory
+     * @param fileName the changed file name
+     * @param exist true if the file is added, false if removed
+     */
+    private void updateFile(String hymnType, int slot, File dir, String fileName, boolean exist)
+    {
+        int hymnNo = parseHymnNo(hymnType, slot, fileName);
+        if ((hymnNo <= 0) || !isReady)
+            return;
+
+        // The media file removed from its path may still be available in the blob store
+        if (!exist)
+            exist = MediaBlobStore.getInstance().isAvailable(new File(dir, fileName));
+
+        // The changshi media may have more than one file of the same hymnNo with the different title
+        if (!exist && (slot == SLOT_CHANGSHI)) {
+            String[] fileNames = dir.list();
+            if (fileNames != null) {
+                for (String name : fileNames) {
+                    if (parseHymnNo(hymnType, slot, name) == hymnNo) {
+                        exist = true;
+                        break;
+                    }
+                }
+            }
+            if (!exist) {
+                for (String path : MediaBlobStore.getInstance().getPaths()) {
+                    File file = new File(path);
+                    if (dir.equals(file.getParentFile()) && (parseHymnNo(hymnType, slot, file.getName()) == hymnNo)) {
+                        exist = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        boolean changed;
+        synchronized (this) {
+            BitSet files = mFileBits.get(hymnType);
+            if (files == null)
+                return;
+
+            int idx = hymnNo * FILE_SLOTS + slot;
+            changed = files.get(idx) != exist;
+            files.set(idx, exist);
+        }
+        if (changed)
+            notifyChanged(hymnType);
+    }
+
+    private void updateRecord(MediaRecord mRecord, boolean exist)
+    {
+        int slot = getRecordSlot(mRecord);
+        if ((slot == -1) || !isReady)
+            return;
+
+        synchronized (this) {
+            BitSet records = mRecordBits.get(mRecord.getHymnType());
+            if (records == null)
+                return;
+            records.set(slot, exist);
+        }
+        notifyChanged(mRecord.getHymnType());
+    }
+
+    /**
+     * @return the records bitset slot of the given media record, or -1 if it has no media button
+     * or the record isFu does not match its hymnNo.
+     */
+    private int getRecordSlot(MediaRecord mRecord)
+    {
+        int type = mRecord.getMediaType().ordinal();
+        int hymnNo = mRecord.getHymnNo();
+        if ((type >= MEDIA_SLOTS) || (hymnNo <= 0)
+                || (mRecord.isFu() != MediaRecord.isFu(mRecord.getHymnType(), hymnNo)))
+            return -1;
+
+        return hymnNo * MEDIA_SLOTS + type;
+    }
+
+    private int getSlot(String hymnType, File dir)
+    {
+        for (int slot = SLOT_MIDI; slot < FILE_SLOTS; slot++) {
+            File slotDir = FileBackend.getHymnchtvStore(hymnType + getSubDir(slot), false);
+            if (dir.equals(slotDir))
+                return slot;
+        }
+        return -1;
+    }
+
+    private static String getSubDir(int slot)
+    {
+        switch (slot) {
+            case SLOT_MIDI:
+                return MEDIA_MIDI;
+            case SLOT_BANZOU:
+                return MEDIA_BANZOU;
+            case SLOT_JIAOCHANG:
+                return MEDIA_JIAOCHANG;
+            case SLOT_CHANGSHI:
+            default:
+                return MEDIA_CHANGSHI;
+        }
+    }
+
+    /**
+     * Parse the hymnNo from the local media fileName e.g. D123.mp3, B12.mid, or C5hymnTitle.mp3 for changshi.
+     *
+     * @param hymnType the hymnType
+     * @param slot the file slot of the media directory
+     * @param fileName the media file name
+     * @return the hymnNo, or -1 if the fileName is not a media file of the hymnType
+     */
+    private static int parseHymnNo(String hymnType, int slot, String fileName)
+    {
+        char prefix;
+        switch (hymnType) {
+            case HYMN_ER:
+                prefix = 'C';
+                break;
+            case HYMN_XB:
+                prefix = 'X';
+                break;
+            case HYMN_BB:
+                prefix = 'B';
+                break;
+            case HYMN_DB:
+            default:
+                prefix = 'D';
+                break;
+        }
+
+        if ((fileName.length() < 2) || (fileName.charAt(0) != prefix))
+            return -1;
+
+        int end = 1;
+        while ((end < fileName.length()) && Character.isDigit(fileName.charAt(end))) {
+            end++;
+        }
+        if (end == 1 || end > 6)
+            return -1;
+
+        String suffix = fileName.substring(end);
+        String ext = (slot == SLOT_MIDI) ? ".mid" : ".mp3";
+        if ((slot == SLOT_CHANGSHI) ? !suffix.endsWith(ext) : !suffix.equals(ext))
+            return -1;
+
+        return Integer.parseInt(fileName.substring(1, end));
+    }
+
+    /**
+     * Coalesce the changes of the same hymnType into a single notification on the main thread
+     */
+    private void notifyChanged(String hymnType)
+    {
+        synchronized (mChangedTypes) {
+            if (!mChangedTypes.add(hymnType))
+                return;
+        }
+
+        mHandler.post(() -> {
+            synchronized (mChangedTypes) {
+                mChangedTypes.remove(hymnType);
+            }
+            for (MediaIndexListener listener : new ArrayList<>(mListeners)) {
+                listener.onMediaIndexChanged(hymnType);
+            }
+        });
+    }
+}
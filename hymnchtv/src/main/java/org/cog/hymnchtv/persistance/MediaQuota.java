@@ -0,0 +1,404 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.persistance;
+
+import static org.cog.hymnchtv.ContentHandler.MEDIA_BANZOU;
+import static org.cog.hymnchtv.ContentHandler.MEDIA_CHANGSHI;
+import static org.cog.hymnchtv.ContentHandler.MEDIA_JIAOCHANG;
+import static org.cog.hymnchtv.ContentHandler.MEDIA_MIDI;
+import static org.cog.hymnchtv.MainActivity.HYMN_BB;
+import static org.cog.hymnchtv.MainActivity.HYMN_DB;
+import static org.cog.hymnchtv.MainActivity.HYMN_ER;
+import static org.cog.hymnchtv.MainActivity.HYMN_XB;
+import static org.cog.hymnchtv.MainActivity.PREF_SETTINGS;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.cog.hymnchtv.download.DownloadJob;
+import org.cog.hymnchtv.download.DownloadScheduler;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+
+import timber.log.Timber;
+
+/**
+ * The storage quota manager of the downloaded media files in the hymnchtv store. The media last played time is
+ * tracked from the AudioBgService playback events; when the downloaded media exceed the user set quota, the least
+ * recently used media are evicted in the background, after each download completion and on the quota change.
+ *
+ * The media downloaded or found local by the offline prefetch of a hymn set are pinned, and are never evicted until
+ * they are unpinned by the user. The media played or downloaded within MIN_IDLE_TIME are also kept, so the media in
+ * playback is not evicted. Only the media in the download directories are managed; the user imported media are not,
+ * even if moved into the same directories i.e. any media file referred by a media record is never evicted.
+ *
+ * The usage records are cached in memory, and are accessed on the quota worker thread only.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaQuota implements DownloadScheduler.DownloadListener
+{
+    // The user set media quota (MB) in the PREF_SETTINGS; 0 for no quota
+    public static final String PREF_MEDIA_QUOTA = "MediaQuota";
+
+    // The delay (ms) to coalesce the quota enforcement requests e.g. the prefetch batch completions
+    private static final long ENFORCE_DELAY = 10000;
+
+    // The minimum time (ms) since the media was last used before it may be evicted
+    private static final long MIN_IDLE_TIME = 60 * 60 * 1000;
+
+    private static final String[] hymnTypes = {HYMN_ER, HYMN_XB, HYMN_BB, HYMN_DB};
+
+    /**
+     * The callback of the usage request; called on the main thread
+     */
+    public interface UsageListener
+    {
+        /**
+         * @param usage the bytes used by the downloaded media of each hymnType
+         * @param pinned the bytes used by the pinned media of all the hymnTypes
+         */
+        void onMediaUsage(Map<String, Long> usage, long pinned);
+    }
+
+    /**
+     * A stored media content i.e. a media file or a blob, with all the media file paths referring to it
+     */
+    private static class MediaItem
+    {
+        final List<String> paths = new ArrayList<>();
+        final String hymnType;
+        final long size;
+        long lastUsed;
+        boolean pinned = false;
+
+        MediaItem(String hymnType, long size, long lastUsed)
+        {
+            this.hymnType = hymnType;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static MediaQuota mInstance = null;
+
+    private final DatabaseBackend mDB;
+    private final SharedPreferences mPref;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // The <path, MediaUsage> records; loaded on first access on the worker thread
+    private Map<String, MediaUsage> mUsages = null;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MediaQuota");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private final Runnable enforcer = () -> mExecutor.execute(this::enforce);
+
+    /**
+     * Get the MediaQuota instance, and start listening to the download completion
+     *
+     * @param context context
+     * @return the MediaQuota instance
+     */
+    public static synchronized MediaQuota getInstance(Context context)
+    {
+        if (mInstance == null) {
+            mInstance = new MediaQuota(context.getApplicationContext());
+        }
+        return mInstance;
+    }
+
+    private MediaQuota(Context context)
+    {
+        mDB = DatabaseBackend.getInstance(context);
+        mPref = context.getSharedPreferences(PREF_SETTINGS, 0);
+        DownloadScheduler.getInstance(context).addListener(this);
+        requestEnforce();
+    }
+
+    /**
+     * @return the user set media quota (MB); 0 for no quota
+     */
+    public int getQuota()
+    {
+        return mPref.getInt(PREF_MEDIA_QUOTA, 0);
+    }
+
+    /**
+     * Set the media quota, and evict the least recently used media if the quota is exceeded
+     *
+     * @param quota the media quota (MB); 0 for no quota
+     */
+    public void setQuota(int quota)
+    {
+        mPref.edit().putInt(PREF_MEDIA_QUOTA, Math.max(0, quota)).apply();
+        requestEnforce();
+    }
+
+    /**
+     * Update the last played time of the played media; called by the AudioBgService on the playback start
+     *
+     * @param uri the media uri; only the local file is tracked
+     */
+    public void onMediaPlayed(Uri uri)
+    {
+        if ((uri == null) || !ContentResolver.SCHEME_FILE.equals(uri.getScheme()) || (uri.getPath() == null))
+            return;
+
+        File file = new File(uri.getPath());
+        long now = System.currentTimeMillis();
+        mExecutor.execute(() -> updateUsages(MediaBlobStore.getInstance().getPaths(file), now, null));
+    }
+
+    /**
+     * Pin the given media of the offline hymn set, so it is never evicted
+     *
+     * @param file the media file path
+     */
+    public void pin(File file)
+    {
+        mExecutor.execute(() -> updateUsages(Collections.singletonList(file.getAbsolutePath()), -1, true));
+    }
+
+    /**
+     * Unpin all the pinned media, so they are subjected to the quota eviction
+     */
+    public void unpinAll()
+    {
+        mExecutor.execute(() -> {
+            List<String> paths = new ArrayList<>();
+            for (MediaUsage usage : getUsages().values()) {
+                if (usage.isPinned())
+                    paths.add(usage.getPath());
+            }
+            updateUsages(paths, -1, false);
+            Timber.d("Media unpinned: %s", paths.size());
+        });
+        requestEnforce();
+    }
+
+    /**
+     * Get the storage used by the downloaded media of each hymnType in the background
+     *
+     * @param listener the listener to be notified on the main thread
+     */
+    public void getUsage(UsageListener listener)
+    {
+        mExecutor.execute(() -> {
+            Map<String, Long> usage = new LinkedHashMap<>();
+            for (String hymnType : hymnTypes) {
+                usage.put(hymnType, 0L);
+            }
+
+            long pinned = 0;
+            for (MediaItem item : scan()) {
+                usage.put(item.hymnType, usage.get(item.hymnType) + item.size);
+                if (item.pinned)
+                    pinned += item.size;
+            }
+            long pinnedSize = pinned;
+            mHandler.post(() -> listener.onMediaUsage(usage, pinnedSize));
+        });
+    }
+
+    @Override
+    public void onDownloadProgress(List<DownloadJob> jobs)
+    {
+    }
+
+    /**
+     * Pin the completed prefetch batch media, and enforce the quota for the new download
+     *
+     * @param job the completed job; with state COMPLETED or FAILED
+     */
+    @Override
+    public void onDownloadCompleted(DownloadJob job)
+    {
+        if (job.getState() != DownloadJob.State.COMPLETED)
+            return;
+
+        if (job.getBatch() != null)
+            pin(job.getDestFile());
+        requestEnforce();
+    }
+
+    private void requestEnforce()
+    {
+        mHandler.removeCallbacks(enforcer);
+        mHandler.postDelayed(enforcer, ENFORCE_DELAY);
+    }
+
+    /**
+     * Evict the least recently used media which are neither pinned nor recently used, until the total media
+     * size is within the quota. Run on the worker thread.
+     */
+    private void enforce()
+    {
+        long quota = getQuota() * 1024L * 1024L;
+        if (quota <= 0)
+            return;
+
+        List<MediaItem> items = scan();
+        long total = 0;
+        for (MediaItem item : items) {
+            total += item.size;
+        }
+        if (total <= quota)
+            return;
+
+        Collections.sort(items, (item1, item2) -> Long.compare(item1.lastUsed, item2.lastUsed));
+        long idleTime = System.currentTimeMillis() - MIN_IDLE_TIME;
+        long freed = 0;
+        int evicted = 0;
+        for (MediaItem item : items) {
+            if ((total - freed <= quota) || (item.lastUsed > idleTime))
+                break;
+            if (item.pinned)
+                continue;
+
+            for (String path : item.paths) {
+                MediaBlobStore.getInstance().delete(new File(path));
+                if (getUsages().remove(path) != null)
+                    mDB.deleteMediaUsage(path);
+            }
+            freed += item.size;
+            evicted++;
+        }
+        Timber.d("Media quota enforced: %s/%s bytes; evicted %s (%s bytes)", total - freed, quota, evicted, freed);
+    }
+
+    /**
+     * Scan all the downloaded media in the media directories and the blob store; the user media files referred by
+     * the media records are excluded. Run on the worker thread.
+     *
+     * @return the media items with their last used time and pinned state
+     */
+    private List<MediaItem> scan()
+    {
+        // The user imported media files, which may have been moved into the media directories
+        Set<String> userPaths = new HashSet<>();
+        for (String hymnType : hymnTypes) {
+            for (String filePath : mDB.getMediaFilePaths(hymnType)) {
+                userPaths.add(new File(filePath).getAbsolutePath());
+            }
+        }
+
+        // The <media directory path, hymnType> of the managed media directories
+        Map<String, String> mediaDirs = new HashMap<>();
+        for (String hymnType : hymnTypes) {
+            for (String subDir : new String[]{MEDIA_MIDI, MEDIA_BANZOU, MEDIA_JIAOCHANG, MEDIA_CHANGSHI}) {
+                File dir = FileBackend.getHymnchtvStore(hymnType + subDir, false);
+                if (dir != null)
+                    mediaDirs.put(dir.getAbsolutePath(), hymnType);
+            }
+        }
+
+        // The <storage file path, MediaItem>; the paths of a shared blob are grouped into one item
+        Map<String, MediaItem> items = new HashMap<>();
+        for (Map.Entry<String, String> entry : mediaDirs.entrySet()) {
+            File[] files = new File(entry.getKey()).listFiles();
+            if (files == null)
+                continue;
+
+            for (File file : files) {
+                if (file.isFile() && !userPaths.contains(file.getAbsolutePath())) {
+                    MediaItem item = new MediaItem(entry.getValue(), file.length(), file.lastModified());
+                    item.paths.add(file.getAbsolutePath());
+                    items.put(file.getAbsolutePath(), item);
+                }
+            }
+        }
+
+        MediaBlobStore blobStore = MediaBlobStore.getInstance();
+        for (MediaBlob blob : blobStore.getBlobs()) {
+            File blobFile = blobStore.getBlobFile(blob);
+            String hymnType = mediaDirs.get(new File(blob.getPath()).getParent());
+            if ((blobFile == null) || (hymnType == null) || items.containsKey(blob.getPath())
+                    || userPaths.contains(blob.getPath()))
+                continue;
+
+            MediaItem item = items.get(blobFile.getAbsolutePath());
+            if (item == null) {
+                item = new MediaItem(hymnType, blob.getSize(), blobFile.lastModified());
+                items.put(blobFile.getAbsolutePath(), item);
+            }
+            item.paths.add(blob.getPath());
+        }
+
+        Map<String, MediaUsage> usages = getUsages();
+        for (MediaItem item : items.values()) {
+            for (String path : item.paths) {
+                MediaUsage usage = usages.get(path);
+                if (usage != null) {
+                    item.lastUsed = Math.max(item.lastUsed, usage.getLastPlayed());
+                    item.pinned |= usage.isPinned();
+                }
+            }
+        }
+        return new ArrayList<>(items.values());
+    }
+
+    /**
+     * Update and save the usage records of the given paths. Run on the worker thread.
+     *
+     * @param paths the media file paths
+     * @param lastPlayed the last played time; -1 to keep unchanged
+     * @param pinned the pinned state; null to keep unchanged
+     */
+    private void updateUsages(List<String> paths, long lastPlayed, Boolean pinned)
+    {
+        if (paths.isEmpty())
+            return;
+
+        Map<String, MediaUsage> usages = getUsages();
+        List<MediaUsage> changed = new ArrayList<>();
+        for (String path : paths) {
+            MediaUsage usage = usages.get(path);
+            if (usage == null) {
+                usage = new MediaUsage(path, 0, false);
+                usages.put(path, usage);
+            }
+            if (lastPlayed != -1)
+                usage.setLastPlayed(lastPlayed);
+            if (pinned != null)
+                usage.setPinned(pinned);
+            changed.add(usage);
+        }
+        mDB.storeMediaUsages(changed);
+    }
+
+    private Map<String, MediaUsage> getUsages()
+    {
+        if (mUsages == null) {
+            mUsages = new HashMap<>();
+            for (MediaUsage usage : mDB.getMediaUsages()) {
+                mUsages.put(usage.getPath(), usage);
+            }
+        }
+        return mUsages;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.persistance;
+
+/**
+ * The usage record of a downloaded media file for the MediaQuota; persisted in the database table mediaUsage.
+ *
+ * The format of the media usage record consists of: path, lastPlayed, pinned
+ * a. path: the absolute media file path, as used by the path-based media lookups
+ * b. lastPlayed: the time (ms) the media was last played; 0 if it has not been played
+ * c. pinned: true if the media is part of an offline hymn set, and must not be evicted
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaUsage
+{
+    public static final String TABLE_NAME = "mediaUsage";
+    public static final String PATH = "path";
+    public static final String LAST_PLAYED = "lastPlayed";
+    public static final String PINNED = "pinned";
+
+    private final String mPath;
+    private long mLastPlayed;
+    private boolean mPinned;
+
+    public MediaUsage(String path, long lastPlayed, boolean pinned)
+    {
+        mPath = path;
+        mLastPlayed = lastPlayed;
+        mPinned = pinned;
+    }
+
+    public String getPath()
+    {
+        return mPath;
+    }
+
+    public long getLastPlayed()
+    {
+        return mLastPlayed;
+    }
+
+    void setLastPlayed(long lastPlayed)
+    {
+        mLastPlayed = lastPlayed;
+    }
+
+    public boolean isPinned()
+    {
+        return mPinned;
+    }
+
+    void setPinned(boolean pinned)
+    {
+        mPinned = pinned;
+    }
+}
@@ -0,0 +1,22 @@
+package org.cog.hymnchtv.persistance.migrations;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.cog.hymnchtv.download.DownloadJob;
+
+public class MigrationTo3
+{
+    // Create the table for the persistent download job queue; the table as of db version 3, as the later columns
+    // are added by the later migrations e.g. MigrationTo4 batch column
+    public static void createDownloadJobTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + DownloadJob.TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DownloadJob.TABLE_NAME + " ("
+                + DownloadJob.JOB_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + DownloadJob.LINK + " TEXT, "
+                + DownloadJob.DEST_FILE + " TEXT UNIQUE, "
+                + DownloadJob.STATE + " TEXT, "
+                + DownloadJob.DOWNLOAD_ID + " INTEGER, "
+                + DownloadJob.ATTEMPTS + " INTEGER, "
+                + DownloadJob.RETRY_TIME + " NUMBER);");
+    }
+}
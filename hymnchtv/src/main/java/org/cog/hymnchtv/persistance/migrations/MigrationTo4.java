@@ -0,0 +1,13 @@
+package org.cog.hymnchtv.persistance.migrations;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.cog.hymnchtv.download.DownloadJob;
+
+public class MigrationTo4
+{
+    // Add the prefetch batch column to the download job table
+    public static void addDownloadJobBatch(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + DownloadJob.TABLE_NAME + " ADD COLUMN " + DownloadJob.BATCH + " TEXT");
+    }
+}
@@ -0,0 +1,18 @@
+package org.cog.hymnchtv.persistance.migrations;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.cog.hymnchtv.persistance.MediaBlob;
+
+import static org.cog.hymnchtv.persistance.DatabaseBackend.CREATE_MEDIA_BLOB;
+import static org.cog.hymnchtv.persistance.DatabaseBackend.CREATE_MEDIA_BLOB_INDEX;
+
+public class MigrationTo5
+{
+    // Create the manifest table of the content-addressed media blob store
+    public static void createMediaBlobTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + MediaBlob.TABLE_NAME);
+        db.execSQL(CREATE_MEDIA_BLOB);
+        db.execSQL(CREATE_MEDIA_BLOB_INDEX);
+    }
+}
@@ -0,0 +1,16 @@
+package org.cog.hymnchtv.persistance.migrations;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.cog.hymnchtv.persistance.MediaUsage;
+
+import static org.cog.hymnchtv.persistance.DatabaseBackend.CREATE_MEDIA_USAGE;
+
+public class MigrationTo6
+{
+    // Create the table of the media last played time and pinned state for the media storage quota
+    public static void createMediaUsageTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + MediaUsage.TABLE_NAME);
+        db.execSQL(CREATE_MEDIA_USAGE);
+    }
+}
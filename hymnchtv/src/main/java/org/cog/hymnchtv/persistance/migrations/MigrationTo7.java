@@ -0,0 +1,16 @@
+package org.cog.hymnchtv.persistance.migrations;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.cog.hymnchtv.mediaconfig.MediaSnapshot;
+
+import static org.cog.hymnchtv.persistance.DatabaseBackend.CREATE_MEDIA_SNAPSHOT;
+
+public class MigrationTo7
+{
+    // Create the table of the media library file snapshots for the incremental scan
+    public static void createMediaSnapshotTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + MediaSnapshot.TABLE_NAME);
+        db.execSQL(CREATE_MEDIA_SNAPSHOT);
+    }
+}
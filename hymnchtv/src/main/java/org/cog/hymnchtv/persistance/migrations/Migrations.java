@@ -26,7 +26,15 @@ public class Migrations
             case 1:
                 MigrationTo2.createHymnHistoryTable(db);
             case 2:
-                // MigrationTo3.createHymnQQTable(db);
+                MigrationTo3.createDownloadJobTable(db);
+            case 3:
+                MigrationTo4.addDownloadJobBatch(db);
+            case 4:
+                MigrationTo5.createMediaBlobTable(db);
+            case 5:
+                MigrationTo6.createMediaUsageTable(db);
+            case 6:
+                MigrationTo7.createMediaSnapshotTable(db);
         }
     }
 }
@@ -18,11 +18,14 @@ package org.cog.hymnchtv.utils;
 
 import android.view.View;
 
-import androidx.viewpager.widget.ViewPager;
 import androidx.viewpager2.widget.ViewPager2;
 
 /**
- * Class provides the transition effect when user slides the hymn lyrics view page
+ * Class provides the transition effect when user slides the hymn lyrics view page.
+ *
+ * The page is promoted to a hardware layer only while it is in transition, so the alpha, scale
+ * and translation animation are applied to the cached layer texture without re-drawing the lyrics
+ * score bitmaps and text; the layer is dropped once the page is settled to release the GPU memory.
  *
  * @author Eng Chong Meng
  */
@@ -34,6 +37,13 @@ public class DepthPageTransformer implements ViewPager2.PageTransformer
     {
         int pageWidth = view.getWidth();
 
+        // Page is in transition when it is partially shown
+        boolean inTransition = (position > -1) && (position < 1) && (position != 0);
+        int layerType = inTransition ? View.LAYER_TYPE_HARDWARE : View.LAYER_TYPE_NONE;
+        if (view.getLayerType() != layerType) {
+            view.setLayerType(layerType, null);
+        }
+
         if (position < -1) { // [-Infinity,-1)
             // This page is way off-screen to the left.
             view.setAlpha(0);
@@ -0,0 +1,132 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.utils;
+
+import android.app.Activity;
+import android.os.*;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import androidx.annotation.RequiresApi;
+
+import timber.log.Timber;
+
+/**
+ * Frame timing instrumentation using the android FrameMetrics; for debug use only.
+ * The frames rendered in between start() and stop() are collected, and the number of janky frames
+ * i.e. frames that exceed the display refresh interval, is logged on stop().
+ *
+ * @author Eng Chong Meng
+ */
+@RequiresApi(api = Build.VERSION_CODES.N)
+public class FrameJankMonitor implements Window.OnFrameMetricsAvailableListener
+{
+    private final String mName;
+    private final long mFrameIntervalNs;
+
+    private HandlerThread mHandlerThread = null;
+    private Window mWindow = null;
+
+    private boolean isTracking = false;
+    private int mFrameCount;
+    private int mJankCount;
+    private long mMaxDurationNs;
+    private long mTotalDurationNs;
+
+    /**
+     * Create a frame monitor for the given activity window
+     *
+     * @param activity the activity to be monitored
+     * @param name the name for the logging
+     */
+    public FrameJankMonitor(Activity activity, String name)
+    {
+        mName = name;
+        float refreshRate = activity.getWindowManager().getDefaultDisplay().getRefreshRate();
+        mFrameIntervalNs = (long) (1e9 / ((refreshRate > 0) ? refreshRate : 60f));
+    }
+
+    /**
+     * Attach the FrameMetrics listener to the given window; call from activity onResume()
+     */
+    public void attach(Window window)
+    {
+        if (mWindow == null) {
+            mHandlerThread = new HandlerThread("FrameJankMonitor");
+            mHandlerThread.start();
+            mWindow = window;
+            mWindow.addOnFrameMetricsAvailableListener(this, new Handler(mHandlerThread.getLooper()));
+        }
+    }
+
+    /**
+     * Detach the FrameMetrics listener; call from activity onPause()
+     */
+    public void detach()
+    {
+        if (mWindow != null) {
+            mWindow.removeOnFrameMetricsAvailableListener(this);
+            mWindow = null;
+            mHandlerThread.quitSafely();
+            mHandlerThread = null;
+        }
+    }
+
+    /**
+     * Start the frame metrics collection e.g. on page drag start
+     */
+    public synchronized void start()
+    {
+        if (!isTracking) {
+            isTracking = true;
+            mFrameCount = 0;
+            mJankCount = 0;
+            mMaxDurationNs = 0;
+            mTotalDurationNs = 0;
+        }
+    }
+
+    /**
+     * Stop the frame metrics collection and log the result e.g. when the page is settled
+     */
+    public synchronized void stop()
+    {
+        if (isTracking) {
+            isTracking = false;
+            if (mFrameCount > 0) {
+                Timber.d("%s frames: %s; janky: %s (%.1f%%); avg: %.2fms; max: %.2fms", mName, mFrameCount,
+                        mJankCount, 100f * mJankCount / mFrameCount, mTotalDurationNs / 1e6 / mFrameCount, mMaxDurationNs / 1e6);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onFrameMetricsAvailable(Window window, FrameMetrics frameMetrics, int dropCountSinceLastInvocation)
+    {
+        if (!isTracking)
+            return;
+
+        long durationNs = frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION);
+        mFrameCount++;
+        mTotalDurationNs += durationNs;
+        if (durationNs > mMaxDurationNs)
+            mMaxDurationNs = durationNs;
+        if (durationNs > mFrameIntervalNs)
+            mJankCount++;
+        mJankCount += dropCountSinceLastInvocation;
+    }
+}
@@ -23,6 +23,7 @@ import static org.cog.hymnchtv.MainActivity.HYMN_XB;
 
 import android.util.Range;
 
+import org.cog.hymnchtv.HymnType;
 import org.cog.hymnchtv.HymnsApp;
 import org.cog.hymnchtv.R;
 
@@ -41,7 +42,7 @@ public class HymnNoValidate
 {
     /* Maximum HymnNo/HymnIndex: 大本诗歌 and start of its supplement */
     // The values and the similar must be updated if there are any new contents added
-    public static final int HYMN_DB_NO_MAX = 780;
+    public static final int HYMN_DB_NO_MAX = HymnType.HYMN_DB_NO_MAX;
     public static final int HYMN_DBS_NO_MAX = 6;
 
     // FuGe pass-in index is HYMN_DB_NO_MAX + fu Number
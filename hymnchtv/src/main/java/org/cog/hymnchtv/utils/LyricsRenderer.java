@@ -0,0 +1,433 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.utils;
+
+import static org.cog.hymnchtv.MainActivity.HYMN_BB;
+import static org.cog.hymnchtv.MainActivity.HYMN_DB;
+import static org.cog.hymnchtv.MainActivity.HYMN_ER;
+import static org.cog.hymnchtv.MainActivity.HYMN_XB;
+
+import android.content.Context;
+import android.graphics.*;
+import android.graphics.pdf.PdfDocument;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Layout;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+
+import org.cog.hymnchtv.BuildConfig;
+import org.cog.hymnchtv.ContentView;
+import org.cog.hymnchtv.R;
+import org.cog.hymnchtv.glide.AssetFile;
+import org.cog.hymnchtv.persistance.FileBackend;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * The class renders the hymn lyrics text into shareable image files, or the lyrics text and scores into
+ * a paginated pdf file. Rendering is done page by page on a background thread; each image page is drawn on
+ * a single reused bitmap and saved before the next page is drawn, so the memory used is bounded by one page.
+ *
+ * The PdfDocument keeps all its finished pages, with the score bitmaps drawn on them, in memory until writeTo();
+ * the pdf memory is hence bounded by the few lyrics text pages plus at most SCORE_PAGE_SUFFIX.length score pages,
+ * each decoded at twice the pdf page width.
+ *
+ * The rendered files are cached in the app cache directory by (hymnType, hymnNo, style); re-sharing of the
+ * same hymn is served from the cache without rendering.
+ *
+ * @author Eng Chong Meng
+ */
+public class LyricsRenderer
+{
+    private static final String DIR_LYRICS_SHARE = "lyrics_share";
+
+    // Max number of score pages; see ContentView#showLyricsScore()
+    private static final String[] SCORE_PAGE_SUFFIX = {"", "a", "b", "c", "d"};
+
+    private static final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * The supported render styles; the page size is in pixels for image and in points (1/72 inch) for pdf.
+     * All pages are in A4 aspect ratio.
+     */
+    public enum Style
+    {
+        TEXT_IMAGE("png", 1080, 1527, 40f),
+        SCORE_PDF("pdf", 595, 842, 16f);
+
+        private final String ext;
+        private final int width;
+        private final int height;
+        private final float textSize;
+
+        Style(String ext, int width, int height, float textSize)
+        {
+            this.ext = ext;
+            this.width = width;
+            this.height = height;
+            this.textSize = textSize;
+        }
+    }
+
+    /**
+     * Callback for the render result; always called on the UI thread.
+     */
+    public interface RenderListener
+    {
+        /**
+         * @param uris the uris of the rendered files for sharing; empty on render error
+         */
+        void onRendered(ArrayList<Uri> uris);
+    }
+
+    /**
+     * Render the lyrics of the given hymn in the background, and return the uris of the rendered files.
+     *
+     * @param context context
+     * @param hymnType HYMN_ER, HYMN_XB, HYMN_BB or HYMN_DB
+     * @param hymnIndex the hymn index as used in the pager adapter
+     * @param style the render style
+     * @param listener the result listener
+     */
+    public static void render(Context context, String hymnType, int hymnIndex, Style style, RenderListener listener)
+    {
+        Context ctx = context.getApplicationContext();
+        mExecutor.execute(() -> {
+            ArrayList<Uri> uris = new ArrayList<>();
+            for (File file : getRenderedFiles(ctx, hymnType, hymnIndex, style)) {
+                uris.add(FileBackend.getUriForFile(ctx, file));
+            }
+            mUiHandler.post(() -> listener.onRendered(uris));
+        });
+    }
+
+    /**
+     * Get the rendered files from the cache, else render and save them to the cache. Must not be called on UI thread.
+     *
+     * @return list of the rendered files, empty on error
+     */
+    private static List<File> getRenderedFiles(Context ctx, String hymnType, int hymnIndex, Style style)
+    {
+        List<File> files = new ArrayList<>();
+
+        // {hymnNo, pageCount}
+        int[] hymnScoreInfo = HymnIdx2NoConvert.hymnIdx2NoConvert(hymnType, hymnIndex);
+        String[] lyricsRes = ContentView.getLyricsResource(hymnType, hymnScoreInfo[0]);
+        if ((hymnScoreInfo[0] == -1) || (lyricsRes == null)) {
+            Timber.w("Invalid hymn for lyrics rendering: %s (%s)", hymnType, hymnIndex);
+            return files;
+        }
+
+        File cacheDir = new File(ctx.getCacheDir(), DIR_LYRICS_SHARE);
+        // Lyrics assets may change between releases
+        String baseName = hymnType + hymnScoreInfo[0] + "_" + style.name().toLowerCase() + "_" + BuildConfig.VERSION_CODE;
+
+        // The index file contains the number of rendered pages; it is written only after all pages are saved
+        File indexFile = new File(cacheDir, baseName + ".idx");
+        int pageCount = readPageCount(indexFile);
+        if (pageCount > 0) {
+            for (int i = 0; i < pageCount; i++) {
+                File file = getPageFile(cacheDir, baseName, style, i);
+                if (!file.exists()) {
+                    files.clear();
+                    break;
+                }
+                files.add(file);
+            }
+            if (!files.isEmpty())
+                return files;
+        }
+
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            Timber.w("Cannot create lyrics share cache: %s", cacheDir);
+            return files;
+        }
+
+        String lyrics = readLyricsText(ctx, lyricsRes[1]);
+        String footer = ctx.getString(getTitleResId(hymnType)) + " #" + hymnScoreInfo[0];
+        try {
+            if (style == Style.TEXT_IMAGE) {
+                renderImages(cacheDir, baseName, style, lyrics, footer, files);
+            }
+            else {
+                renderPdf(ctx, getPageFile(cacheDir, baseName, style, 0), style, lyrics, footer,
+                        lyricsRes[0], hymnScoreInfo[1]);
+                files.add(getPageFile(cacheDir, baseName, style, 0));
+            }
+            writePageCount(indexFile, files.size());
+            Timber.d("Lyrics rendered: %s (%s files)", baseName, files.size());
+        } catch (IOException e) {
+            Timber.w("Lyrics rendering failed: %s", e.getMessage());
+            for (File file : files) {
+                file.delete();
+            }
+            files.clear();
+        }
+        return files;
+    }
+
+    /**
+     * Render the lyrics text into one image file per page; all pages are drawn on the same bitmap.
+     */
+    private static void renderImages(File cacheDir, String baseName, Style style, String lyrics, String footer,
+            List<File> files)
+            throws IOException
+    {
+        Bitmap bitmap = Bitmap.createBitmap(style.width, style.height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        try {
+            drawTextPages(style, lyrics, footer, new PageSink()
+            {
+                @Override
+                public Canvas beginPage(int pageNo)
+                {
+                    bitmap.eraseColor(Color.WHITE);
+                    return canvas;
+                }
+
+                @Override
+                public void endPage(int pageNo)
+                        throws IOException
+                {
+                    File file = getPageFile(cacheDir, baseName, style, pageNo);
+                    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+                        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                    }
+                    files.add(file);
+                }
+            });
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Render the lyrics text pages followed by the lyrics scores pages if any, into a single pdf file.
+     */
+    private static void renderPdf(Context ctx, File pdfFile, Style style, String lyrics, String footer,
+            String scorePrefix, int scorePages)
+            throws IOException
+    {
+        PdfDocument document = new PdfDocument();
+        try {
+            PdfPageSink pageSink = new PdfPageSink(document, style);
+            int pageNo = drawTextPages(style, lyrics, footer, pageSink);
+
+            // Each score page is decoded and drawn in turn; the finished page holds its bitmap until writeTo()
+            for (int i = 0; (i < scorePages) && (i < SCORE_PAGE_SUFFIX.length); i++) {
+                Bitmap score = decodeScore(ctx, scorePrefix + SCORE_PAGE_SUFFIX[i] + ".png", 2 * style.width);
+                if (score == null)
+                    continue;
+
+                Canvas canvas = pageSink.beginPage(pageNo);
+                canvas.drawColor(Color.WHITE);
+                float scale = Math.min((float) style.width / score.getWidth(), (float) style.height / score.getHeight());
+                float left = (style.width - score.getWidth() * scale) / 2;
+                RectF dst = new RectF(left, 0, left + score.getWidth() * scale, score.getHeight() * scale);
+                canvas.drawBitmap(score, null, dst, new Paint(Paint.FILTER_BITMAP_FLAG));
+                pageSink.endPage(pageNo++);
+            }
+
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(pdfFile))) {
+                document.writeTo(out);
+            }
+        } finally {
+            document.close();
+        }
+    }
+
+    /**
+     * Layout the lyrics text once, and draw it page by page with the footer.
+     *
+     * @return the number of pages drawn
+     */
+    private static int drawTextPages(Style style, String lyrics, String footer, PageSink pageSink)
+            throws IOException
+    {
+        int margin = style.width / 12;
+        int contentWidth = style.width - 2 * margin;
+        int contentHeight = style.height - 3 * margin;
+
+        TextPaint textPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        textPaint.setColor(Color.BLACK);
+        textPaint.setTextSize(style.textSize);
+        StaticLayout layout = new StaticLayout(lyrics, textPaint, contentWidth,
+                Layout.Alignment.ALIGN_NORMAL, 1.2f, 0f, false);
+
+        TextPaint footerPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        footerPaint.setColor(Color.GRAY);
+        footerPaint.setTextSize(style.textSize * 0.75f);
+
+        int pageNo = 0;
+        int lineCount = layout.getLineCount();
+        int line = 0;
+        while (line < lineCount) {
+            int top = layout.getLineTop(line);
+            int end = line + 1;
+            while ((end < lineCount) && (layout.getLineBottom(end) - top <= contentHeight)) {
+                end++;
+            }
+            int bottom = layout.getLineBottom(end - 1);
+
+            Canvas canvas = pageSink.beginPage(pageNo);
+            int saveCount = canvas.save();
+            canvas.translate(margin, margin - top);
+            canvas.clipRect(0, top, contentWidth, bottom);
+            layout.draw(canvas);
+            canvas.restoreToCount(saveCount);
+
+            canvas.drawText(footer + "  (" + (pageNo + 1) + ")", margin, style.height - margin, footerPaint);
+            pageSink.endPage(pageNo++);
+            line = end;
+        }
+        return pageNo;
+    }
+
+    /**
+     * Decode the lyrics score asset, sub-sampled to not less than the given width.
+     *
+     * @return the score bitmap or null if not available
+     */
+    private static Bitmap decodeScore(Context ctx, String resName, int width)
+    {
+        AssetFile assetFile = new AssetFile(ctx, resName);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = assetFile.getInputStream()) {
+            if (in == null)
+                return null;
+            BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException e) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.outWidth / (options.inSampleSize * 2) >= width) {
+            options.inSampleSize *= 2;
+        }
+
+        try (InputStream in = assetFile.getInputStream()) {
+            return (in == null) ? null : BitmapFactory.decodeStream(in, null, options);
+        } catch (IOException e) {
+            Timber.w("Lyrics score decode failed: %s", resName);
+            return null;
+        }
+    }
+
+    private static String readLyricsText(Context ctx, String resFName)
+    {
+        StringBuilder lyrics = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(ctx.getAssets().open(resFName)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lyrics.append(line);
+                lyrics.append('\n');
+            }
+        } catch (IOException e) {
+            Timber.w("Error reading file: %s", resFName);
+        }
+        return lyrics.toString();
+    }
+
+    private static int getTitleResId(String hymnType)
+    {
+        switch (hymnType) {
+            case HYMN_ER:
+                return R.string.hymn_title_er;
+            case HYMN_XB:
+                return R.string.hymn_title_xb;
+            case HYMN_BB:
+                return R.string.hymn_title_bb;
+            case HYMN_DB:
+            default:
+                return R.string.hymn_title_db;
+        }
+    }
+
+    private static File getPageFile(File cacheDir, String baseName, Style style, int pageNo)
+    {
+        return new File(cacheDir, baseName + "_" + pageNo + "." + style.ext);
+    }
+
+    private static int readPageCount(File indexFile)
+    {
+        if (!indexFile.exists())
+            return 0;
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+            return Integer.parseInt(reader.readLine().trim());
+        } catch (IOException | NullPointerException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writePageCount(File indexFile, int pageCount)
+            throws IOException
+    {
+        try (Writer writer = new FileWriter(indexFile)) {
+            writer.write(Integer.toString(pageCount));
+        }
+    }
+
+    /**
+     * The page output for the page by page rendering
+     */
+    private interface PageSink
+    {
+        Canvas beginPage(int pageNo);
+
+        void endPage(int pageNo)
+                throws IOException;
+    }
+
+    private static class PdfPageSink implements PageSink
+    {
+        private final PdfDocument mDocument;
+        private final Style mStyle;
+        private PdfDocument.Page mPage;
+
+        PdfPageSink(PdfDocument document, Style style)
+        {
+            mDocument = document;
+            mStyle = style;
+        }
+
+        @Override
+        public Canvas beginPage(int pageNo)
+        {
+            mPage = mDocument.startPage(new PdfDocument.PageInfo.Builder(mStyle.width, mStyle.height, pageNo + 1).create());
+            return mPage.getCanvas();
+        }
+
+        @Override
+        public void endPage(int pageNo)
+        {
+            mDocument.finishPage(mPage);
+            mPage = null;
+        }
+    }
+}
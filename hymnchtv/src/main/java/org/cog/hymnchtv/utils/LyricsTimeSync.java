@@ -0,0 +1,234 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.utils;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+
+import org.cog.hymnchtv.persistance.MediaBlobStore;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import timber.log.Timber;
+
+/**
+ * The lyrics timing track of a media file for the karaoke lyrics line highlight. The track holds the start time
+ * of each lyrics line i.e. the n-th time is for the n-th non-blank lyrics text line.
+ *
+ * The track is kept as the LRC sidecar file of the media file e.g. hymn_db/media_jiaochang/123.lrc; the sidecar of
+ * the media path is used for the media kept in the MediaBlobStore. Each sidecar line starts with the [mm:ss.xx]
+ * time tag; the other LRC tags and the lyrics text after the time tag are ignored. The track is either user
+ * provided, or captured by tapping along the lyrics during the playback.
+ *
+ * The line start times are preloaded in a long[]; the line lookup per display frame is a check of the last found
+ * line, or a binary search on seek, and does not allocate any object.
+ *
+ * @author Eng Chong Meng
+ */
+public class LyricsTimeSync
+{
+    public static final String TRACK_EXT = ".lrc";
+
+    // The LRC time tag e.g. [01:23.45] or [01:23]
+    private static final Pattern TIME_TAG = Pattern.compile("\\[(\\d+):(\\d{1,2})(?:[.:](\\d{1,3}))?]");
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    // The line start times (ms) in ascending order, and the number of lines
+    private long[] mTimes;
+    private int mCount;
+
+    // The last found line index for the fast lookup during the normal playback
+    private int mLastIndex = -1;
+
+    /**
+     * Create an empty timing track for the tap along capture
+     */
+    public LyricsTimeSync()
+    {
+        this(new long[INITIAL_CAPACITY], 0);
+    }
+
+    private LyricsTimeSync(long[] times, int count)
+    {
+        mTimes = times;
+        mCount = count;
+    }
+
+    /**
+     * Load the timing track of the given media uri from its sidecar file
+     *
+     * @param uri the playback media uri
+     * @return the timing track; or null if none is found
+     */
+    public static LyricsTimeSync load(Uri uri)
+    {
+        File trackFile = getTrackFile(uri);
+        if ((trackFile == null) || !trackFile.exists())
+            return null;
+
+        long[] times = new long[INITIAL_CAPACITY];
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(trackFile), "UTF-8"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = TIME_TAG.matcher(line);
+                if (!matcher.lookingAt())
+                    continue;
+
+                if (count == times.length)
+                    times = Arrays.copyOf(times, count * 2);
+                times[count++] = parseTime(matcher);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Timber.w("Lyrics timing track read failed: %s; %s", trackFile, e.getMessage());
+            return null;
+        }
+
+        if (count == 0)
+            return null;
+
+        Arrays.sort(times, 0, count);
+        Timber.d("Lyrics timing track loaded (%s lines): %s", count, trackFile);
+        return new LyricsTimeSync(times, count);
+    }
+
+    /**
+     * Get the sidecar timing track file of the given media uri; the blob file of the MediaBlobStore is mapped
+     * back to its media file path.
+     *
+     * @param uri the playback media uri
+     * @return the timing track file; or null if the uri is not a local media file e.g. the streaming or midi uri
+     */
+    public static File getTrackFile(Uri uri)
+    {
+        if ((uri == null) || !ContentResolver.SCHEME_FILE.equals(uri.getScheme()) || (uri.getPath() == null))
+            return null;
+
+        List<String> paths = MediaBlobStore.getInstance().getPaths(new File(uri.getPath()));
+        File trackFile = null;
+        for (String path : paths) {
+            int idx = path.lastIndexOf('.');
+            File file = new File(((idx > path.lastIndexOf(File.separatorChar)) ? path.substring(0, idx) : path) + TRACK_EXT);
+            if (file.exists())
+                return file;
+            if (trackFile == null)
+                trackFile = file;
+        }
+        return trackFile;
+    }
+
+    /**
+     * Get the lyrics line index of the given playback position
+     *
+     * @param position the playback position (ms)
+     * @return the lyrics line index; or -1 if the position is before the first line
+     */
+    public int getLineIndex(long position)
+    {
+        // Fast path for the normal playback i.e. the position is still within the last found line
+        int idx = mLastIndex;
+        if ((idx >= 0) && (idx < mCount) && (mTimes[idx] <= position)
+                && ((idx + 1 == mCount) || (position < mTimes[idx + 1]))) {
+            return idx;
+        }
+
+        idx = Arrays.binarySearch(mTimes, 0, mCount, position);
+        if (idx < 0) {
+            // The line before the insertion point
+            idx = -idx - 2;
+        }
+        else {
+            // Use the last of the lines with the same start time
+            while ((idx + 1 < mCount) && (mTimes[idx + 1] == position))
+                idx++;
+        }
+        mLastIndex = idx;
+        return idx;
+    }
+
+    /**
+     * Add the next lyrics line start time for the tap along capture
+     *
+     * @param position the playback position (ms) of the tap
+     * @return the new line index
+     */
+    public int addLine(long position)
+    {
+        if (mCount == mTimes.length)
+            mTimes = Arrays.copyOf(mTimes, mCount * 2);
+
+        // The start times must be in ascending order e.g. the tap after a backward seek
+        mTimes[mCount] = (mCount > 0) ? Math.max(position, mTimes[mCount - 1]) : position;
+        return mCount++;
+    }
+
+    /**
+     * @return the number of the lyrics lines in the track
+     */
+    public int getLineCount()
+    {
+        return mCount;
+    }
+
+    /**
+     * Save the timing track to the given sidecar file
+     *
+     * @param trackFile the sidecar file
+     * @return true if the track is saved
+     */
+    public boolean save(File trackFile)
+    {
+        File parent = trackFile.getParentFile();
+        if ((parent != null) && !parent.exists() && !parent.mkdirs()) {
+            Timber.w("Could not create lyrics timing track folder: %s", parent);
+            return false;
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(trackFile), "UTF-8")) {
+            for (int i = 0; i < mCount; i++) {
+                long time = mTimes[i];
+                writer.write(String.format(Locale.US, "[%02d:%02d.%02d]\n",
+                        time / 60000, (time / 1000) % 60, (time % 1000) / 10));
+            }
+            return true;
+        } catch (IOException e) {
+            Timber.w("Lyrics timing track save failed: %s; %s", trackFile, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the time (ms) of the matched LRC time tag
+     */
+    private static long parseTime(Matcher matcher)
+    {
+        long time = Long.parseLong(matcher.group(1)) * 60000 + Long.parseLong(matcher.group(2)) * 1000;
+        String fraction = matcher.group(3);
+        if (fraction != null) {
+            // The fraction is in 1/10, 1/100 or 1/1000 second
+            int millis = Integer.parseInt(fraction);
+            for (int i = fraction.length(); i < 3; i++)
+                millis *= 10;
+            time += millis;
+        }
+        return time;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import androidx.annotation.NonNull;
+
+import com.bumptech.glide.Glide;
+import com.pierfrancescosoffritti.androidyoutubeplayer.core.player.views.YouTubePlayerPool;
+
+import org.cog.hymnchtv.MediaGuiController;
+import org.cog.hymnchtv.mediaplayer.AudioBgService;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * The memory governor reacts to the android onTrimMemory/onLowMemory callbacks, and releases the memory
+ * held by the various long-lived hymnchtv structures; so the app is not killed on devices with low RAM:
+ * a. Glide bitmap pool and memory cache.
+ * b. The static media players broadcast receivers in MediaGuiController.
+ * c. The idle (non-playing) media players in AudioBgService, and the pre-warmed youtube player; only when
+ *    the UI is no longer visible.
+ * d. Any registered TrimListener e.g. ContentHandler pager adapter fragment references.
+ *
+ * Must register via HymnsApp#registerComponentCallbacks() on app start.
+ *
+ * @author Eng Chong Meng
+ */
+public class MemoryGovernor implements ComponentCallbacks2
+{
+    private static MemoryGovernor mInstance = null;
+
+    private final Context mContext;
+
+    // Map of the registered listeners; name is used for the trim log only
+    private static final Map<String, TrimListener> mTrimListeners = new ConcurrentHashMap<>();
+
+    private MemoryGovernor(Context context)
+    {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Get an instance of the MemoryGovernor and create one if new
+     *
+     * @param context context
+     * @return MemoryGovernor instance
+     */
+    public static synchronized MemoryGovernor getInstance(Context context)
+    {
+        if (mInstance == null) {
+            mInstance = new MemoryGovernor(context);
+        }
+        return mInstance;
+    }
+
+    /**
+     * Register the listener to be called on memory trim request; replace any existing with the same name
+     *
+     * @param name the listener name for logging
+     * @param listener TrimListener
+     */
+    public static void registerTrimListener(String name, TrimListener listener)
+    {
+        mTrimListeners.put(name, listener);
+    }
+
+    /**
+     * Unregister the listener only if it is the currently registered instance under the given name
+     *
+     * @param name the listener name
+     * @param listener TrimListener
+     */
+    public static void unregisterTrimListener(String name, TrimListener listener)
+    {
+        mTrimListeners.remove(name, listener);
+    }
+
+    /**
+     * Called by android when the OS has determined that it is a good time for a process to trim
+     * unneeded memory from its process. Always call on the UI thread.
+     *
+     * @param level The context of the trim, giving a hint of the amount of trimming the application may like to perform.
+     */
+    @Override
+    public void onTrimMemory(int level)
+    {
+        Runtime runtime = Runtime.getRuntime();
+        long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+        StringBuilder freed = new StringBuilder();
+
+        // Let glide decide how much to release for the given level; clear all if in critical state
+        if ((level == TRIM_MEMORY_RUNNING_CRITICAL) || (level >= TRIM_MEMORY_MODERATE)) {
+            Glide.get(mContext).clearMemory();
+            freed.append("glide caches cleared; ");
+        }
+        else {
+            Glide.get(mContext).trimMemory(level);
+            freed.append("glide caches trimmed; ");
+        }
+
+        int count = MediaGuiController.trimReceivers(mContext);
+        if (count > 0)
+            freed.append("stale receivers: ").append(count).append("; ");
+
+        for (Map.Entry<String, TrimListener> entry : mTrimListeners.entrySet()) {
+            count = entry.getValue().onTrimMemory(level);
+            if (count > 0)
+                freed.append(entry.getKey()).append(": ").append(count).append("; ");
+        }
+
+        // Release the paused players only when the UI is hidden or the system is in critical state
+        if ((level == TRIM_MEMORY_RUNNING_CRITICAL) || (level >= TRIM_MEMORY_UI_HIDDEN)) {
+            if (AudioBgService.trimIdlePlayers(mContext))
+                freed.append("idle players release requested; ");
+
+            YouTubePlayerPool.clear();
+        }
+
+        long heapFreed = heapUsed - (runtime.totalMemory() - runtime.freeMemory());
+        Timber.i("Memory trim level %s: %sheap used: %s (freed: %s)", level, freed,
+                ByteFormat.format(heapUsed), ByteFormat.format(Math.max(heapFreed, 0)));
+    }
+
+    @Override
+    public void onLowMemory()
+    {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration newConfig)
+    {
+    }
+
+    /**
+     * Listener for the memory trim request
+     */
+    public interface TrimListener
+    {
+        /**
+         * Release any memory that can be rebuilt later for the given trim level
+         *
+         * @param level the ComponentCallbacks2 trim level
+         * @return the number of items released, for logging only
+         */
+        int onTrimMemory(int level);
+    }
+}
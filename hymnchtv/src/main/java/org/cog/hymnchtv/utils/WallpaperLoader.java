@@ -0,0 +1,240 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.utils;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+
+import org.cog.hymnchtv.BuildConfig;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import timber.log.Timber;
+
+/**
+ * The class loads the main UI wallpaper, either from the predefined drawable resource or the user
+ * defined wallpaper file. The source image is decoded only once in the background, and rendered to the
+ * exact view size. The rendered variant is saved in the app cache for each view size (i.e. portrait and landscape);
+ * it is re-rendered only when the source or the view size changes. Only the new and the last used variants of
+ * the current source are kept in the cache. The last loaded wallpaper is kept in memory for instant display on
+ * activity re-creation, and is released on the memory trim request. The target view is weakly referenced while
+ * the wallpaper is being rendered, so the destroyed activity is not retained.
+ *
+ * @author Eng Chong Meng
+ */
+public class WallpaperLoader
+{
+    private static final String DIR_WALLPAPER_CACHE = "wallpaper_cache";
+
+    private static final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    // The last requested and rendered wallpaper variants; accessed on UI thread only
+    private static String mRequestedName = null;
+    private static String mVariantName = null;
+    private static Bitmap mWallpaper = null;
+
+    static {
+        MemoryGovernor.registerTrimListener(WallpaperLoader.class.getSimpleName(), level -> {
+            if (mWallpaper == null)
+                return 0;
+
+            mVariantName = null;
+            mWallpaper = null;
+            return 1;
+        });
+    }
+
+    /**
+     * Set the view background with the given predefined drawable resource
+     *
+     * @param view the view for the wallpaper
+     * @param resId the drawable resource id
+     */
+    public static void loadWallpaper(View view, int resId)
+    {
+        // resId may change between releases
+        String sourceKey = "res" + BuildConfig.VERSION_CODE + "_" + resId;
+        loadWallpaper(view, sourceKey, resId, null);
+    }
+
+    /**
+     * Set the view background with the given user defined wallpaper file
+     *
+     * @param view the view for the wallpaper
+     * @param wpFile the user wallpaper file
+     */
+    public static void loadWallpaper(View view, File wpFile)
+    {
+        // Source changes in file content also change the lastModified time
+        String sourceKey = "wp" + Integer.toHexString(wpFile.getAbsolutePath().hashCode())
+                + "_" + Long.toHexString(wpFile.lastModified());
+        loadWallpaper(view, sourceKey, 0, wpFile);
+    }
+
+    private static void loadWallpaper(View view, String sourceKey, int resId, File wpFile)
+    {
+        int width = view.getWidth();
+        int height = view.getHeight();
+
+        // Wait for the view layout to complete to get the view size
+        if ((width == 0) || (height == 0)) {
+            view.addOnLayoutChangeListener(new View.OnLayoutChangeListener()
+            {
+                @Override
+                public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                        int oldLeft, int oldTop, int oldRight, int oldBottom)
+                {
+                    v.removeOnLayoutChangeListener(this);
+                    if ((right - left > 0) && (bottom - top > 0)) {
+                        loadWallpaper(v, sourceKey, resId, wpFile);
+                    }
+                }
+            });
+            return;
+        }
+
+        String variantName = sourceKey + "_" + width + "x" + height + ".jpg";
+        mRequestedName = variantName;
+
+        // Show immediately if it was the last rendered wallpaper
+        Resources res = view.getResources();
+        if (variantName.equals(mVariantName) && (mWallpaper != null)) {
+            view.setBackground(new BitmapDrawable(res, mWallpaper));
+            return;
+        }
+
+        Context context = view.getContext().getApplicationContext();
+        WeakReference<View> viewRef = new WeakReference<>(view);
+        mExecutor.execute(() -> {
+            Bitmap bitmap = getVariant(context, sourceKey, variantName, context.getResources(), resId, wpFile,
+                    width, height);
+            if (bitmap == null)
+                return;
+
+            mUiHandler.post(() -> {
+                mVariantName = variantName;
+                mWallpaper = bitmap;
+
+                // Skip if the view is gone, or has since been requested to show other wallpaper
+                View target = viewRef.get();
+                if ((target != null) && variantName.equals(mRequestedName)) {
+                    target.setBackground(new BitmapDrawable(target.getResources(), bitmap));
+                }
+            });
+        });
+    }
+
+    /**
+     * Get the rendered wallpaper variant from the cache if available, else render it from its source and save
+     * to the cache; the other sources variants and the older variants of this source, except the last used one
+     * e.g. of the other orientation, are purged. Must not be called on UI thread.
+     *
+     * @return the wallpaper bitmap with the exact width and height, or null on error
+     */
+    private static Bitmap getVariant(Context context, String sourceKey, String variantName, Resources res,
+            int resId, File wpFile, int width, int height)
+    {
+        File cacheDir = new File(context.getCacheDir(), DIR_WALLPAPER_CACHE);
+        File variantFile = new File(cacheDir, variantName);
+
+        if (variantFile.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(variantFile.getAbsolutePath());
+            if (bitmap != null) {
+                // Mark as the last used variant for the purge
+                variantFile.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+
+        // Decode the source with the largest sample size that still meets the view size
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeSource(res, resId, wpFile, options);
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            Timber.w("Wallpaper source decode failed: %s", sourceKey);
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while ((options.outWidth / (options.inSampleSize * 2) >= width)
+                && (options.outHeight / (options.inSampleSize * 2) >= height)) {
+            options.inSampleSize *= 2;
+        }
+
+        Bitmap source = decodeSource(res, resId, wpFile, options);
+        if (source == null)
+            return null;
+
+        // View background drawable is stretched to the view bounds; so do the same here
+        Bitmap bitmap = Bitmap.createScaledBitmap(source, width, height, true);
+        if (bitmap != source)
+            source.recycle();
+
+        // The view size may change often e.g. in multi-window mode; keep only the last used variant of the source
+        File[] files = cacheDir.listFiles();
+        if (files != null) {
+            File lastVariant = null;
+            for (File file : files) {
+                if (file.equals(variantFile))
+                    continue;
+
+                if (file.getName().startsWith(sourceKey + "_")
+                        && ((lastVariant == null) || (file.lastModified() > lastVariant.lastModified()))) {
+                    if (lastVariant != null)
+                        lastVariant.delete();
+                    lastVariant = file;
+                }
+                else {
+                    file.delete();
+                }
+            }
+        }
+
+        if (cacheDir.exists() || cacheDir.mkdirs()) {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(variantFile))) {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 95, out);
+            } catch (IOException e) {
+                Timber.w("Wallpaper variant save failed: %s", e.getMessage());
+                variantFile.delete();
+            }
+        }
+        Timber.d("Wallpaper variant rendered: %s (sample size: %s)", variantName, options.inSampleSize);
+        return bitmap;
+    }
+
+    private static Bitmap decodeSource(Resources res, int resId, File wpFile, BitmapFactory.Options options)
+    {
+        // Decode the drawable resource without density scaling, which is done in createScaledBitmap
+        options.inScaled = false;
+        if (wpFile != null)
+            return BitmapFactory.decodeFile(wpFile.getAbsolutePath(), options);
+        else
+            return BitmapFactory.decodeResource(res, resId, options);
+    }
+
+}
@@ -2,6 +2,7 @@ package org.cog.hymnchtv.utils;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.graphics.Canvas;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
@@ -17,6 +18,8 @@ import timber.log.Timber;
 
 /**
  * Text view with pinch-to-zoom and user increment/decrement fixed zoom-in/zoom-out scale factor ability.
+ * While the pinch gesture is in progress, the zoom is applied as a canvas scale on the current text layout only;
+ * the new text size is committed with a single text relayout and preference update when the gesture ends.
  * Ref: https://github.com/lecho/android_samples/blob/master/zoomtextview/src/lecho/sample/zoomtextview/view/ZoomTextView.java
  *
  * @author Eng Chong Meng
@@ -36,6 +39,12 @@ public class ZoomTextView extends AppCompatTextView
     private float mScaleFactor = MIN_SCALE_FACTOR;
     private float mDefaultSize;
 
+    // The in-progress pinch gesture scale relative to mScaleFactor, and its pivot point
+    private boolean isScaling = false;
+    private float mGestureScale = 1.0f;
+    private float mPivotX;
+    private float mPivotY;
+
     public ZoomTextView(Context context)
     {
         this(context, null, 0);
@@ -71,6 +80,23 @@ public class ZoomTextView extends AppCompatTextView
         setTextSize(mScaleFactor * mDefaultSize);
     }
 
+    /**
+     * Draw the text with the in-progress gesture scale applied to the canvas, without relayout of the text.
+     */
+    @Override
+    protected void onDraw(Canvas canvas)
+    {
+        if (isScaling && (mGestureScale != 1.0f)) {
+            int saveCount = canvas.save();
+            canvas.scale(mGestureScale, mGestureScale, mPivotX, mPivotY);
+            super.onDraw(canvas);
+            canvas.restoreToCount(saveCount);
+        }
+        else {
+            super.onDraw(canvas);
+        }
+    }
+
     /**
      * Implement onTouchEvent with detection for 2-points double tab to perform fixed scale zoomIn/zoomOut
      */
@@ -91,16 +117,46 @@ public class ZoomTextView extends AppCompatTextView
      */
     private class ScaleGestureListener extends SimpleOnScaleGestureListener
     {
+        // The accumulated gesture scale factor, not limited by the min/max scale factors
+        private float mTotalScale;
+
+        @Override
+        public boolean onScaleBegin(ScaleGestureDetector detector)
+        {
+            isScaling = true;
+            mTotalScale = 1.0f;
+            mGestureScale = 1.0f;
+            mPivotX = detector.getFocusX();
+            mPivotY = detector.getFocusY();
+            return true;
+        }
+
         @Override
         public boolean onScale(ScaleGestureDetector detector)
         {
-            float tmpScale = mScaleFactor * detector.getScaleFactor();
-            if (tmpScale < MIN_CHANGE)
+            float tmpScale = mTotalScale * detector.getScaleFactor();
+            if (mScaleFactor * tmpScale < MIN_CHANGE)
                 return false;
 
-            setLyricsTextSize(tmpScale);
+            mTotalScale = tmpScale;
+            float scaleFactor = Math.max(MIN_SCALE_FACTOR, Math.min(mScaleFactor * mTotalScale, MAX_SCALE_FACTOR));
+            float gestureScale = scaleFactor / mScaleFactor;
+            if (gestureScale != mGestureScale) {
+                mGestureScale = gestureScale;
+                invalidate();
+            }
             return true;
         }
+
+        @Override
+        public void onScaleEnd(ScaleGestureDetector detector)
+        {
+            isScaling = false;
+            mGestureScale = 1.0f;
+            // Redraw is needed even if the text size is unchanged i.e. at the min/max scale limit
+            invalidate();
+            setLyricsTextSize(mScaleFactor * mTotalScale);
+        }
     }
 
     /**
@@ -0,0 +1,150 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JVM tests of the MediaSourceResolver mirror link ranking with a stub HostFilter, the learned host statistics,
+ * and the concurrent probe against a local HTTP server stub.
+ *
+ * @author Eng Chong Meng
+ */
+public class MediaSourceResolverTest
+{
+    private static final String LINK_A = "https://a.example.org/D1.mp3";
+    private static final String LINK_B = "https://b.example.org/D1.mp3";
+    private static final String LINK_C = "https://c.example.org/D1.mp3";
+
+    private final MediaSourceResolver mResolver = new MediaSourceResolver();
+
+    // The hosts deemed unavailable by the stub host filter
+    private final Set<String> mDownHosts = new HashSet<>();
+
+    @Test
+    public void ruleOrderWithoutResults()
+    {
+        mResolver.setHostFilter(host -> !mDownHosts.contains(host));
+        assertEquals(links(LINK_A, LINK_B, LINK_C), mResolver.sortLinks(links(LINK_A, LINK_B, LINK_C)));
+        assertEquals(LINK_A, mResolver.getBestLink(links(LINK_A, LINK_B, LINK_C)));
+        assertNull(mResolver.getBestLink(links()));
+    }
+
+    @Test
+    public void unavailableHostDemoted()
+    {
+        mResolver.setHostFilter(host -> !mDownHosts.contains(host));
+        mDownHosts.add("a.example.org");
+        assertEquals(links(LINK_B, LINK_C, LINK_A), mResolver.sortLinks(links(LINK_A, LINK_B, LINK_C)));
+
+        // The unavailable host is demoted even with the best learned success rate
+        for (int i = 0; i < 10; i++) {
+            mResolver.report("a.example.org", true, 100);
+            mResolver.report("c.example.org", false, 100);
+        }
+        assertEquals(links(LINK_B, LINK_C, LINK_A), mResolver.sortLinks(links(LINK_A, LINK_B, LINK_C)));
+
+        // All hosts are available without the host filter
+        mResolver.setHostFilter(null);
+        assertEquals(links(LINK_A, LINK_B, LINK_C), mResolver.sortLinks(links(LINK_A, LINK_B, LINK_C)));
+    }
+
+    @Test
+    public void successRateReordersLinks()
+    {
+        assertEquals(0.5, mResolver.getSuccessRate("a.example.org"), 0);
+        for (int i = 0; i < 5; i++) {
+            mResolver.report("a.example.org", false, 5000);
+            mResolver.report("c.example.org", true, 200);
+        }
+        assertTrue(mResolver.getSuccessRate("a.example.org") < 0.1);
+        assertTrue(mResolver.getSuccessRate("c.example.org") > 0.9);
+        assertEquals(links(LINK_C, LINK_B, LINK_A), mResolver.sortLinks(links(LINK_A, LINK_B, LINK_C)));
+
+        // The host recovers its rank with the later successes
+        for (int i = 0; i < 10; i++) {
+            mResolver.report("a.example.org", true, 100);
+        }
+        assertEquals(LINK_A, mResolver.getBestLink(links(LINK_A, LINK_B, LINK_C)));
+    }
+
+    @Test
+    public void latencyBreaksTie()
+    {
+        for (int i = 0; i < 5; i++) {
+            mResolver.report("a.example.org", true, 3000);
+            mResolver.report("b.example.org", true, 100);
+        }
+        assertEquals(links(LINK_B, LINK_A), mResolver.sortLinks(links(LINK_A, LINK_B)));
+    }
+
+    @Test
+    public void resolveFirstRespondedLink()
+            throws IOException, InterruptedException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress(0), 0);
+        server.createContext("/", exchange -> {
+            int code = exchange.getRequestURI().getPath().startsWith("/missing") ? 404 : 200;
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            // Two different hosts of the same local server stub
+            int port = server.getAddress().getPort();
+            String missing = "http://127.0.0.1:" + port + "/missing/D1.mp3";
+            String media = "http://localhost:" + port + "/D1.mp3";
+
+            BlockingQueue<Optional<String>> resolved = new LinkedBlockingQueue<>();
+            mResolver.resolve(links(missing, media), link -> resolved.add(Optional.ofNullable(link)));
+            assertEquals(Optional.of(media), resolved.poll(10, TimeUnit.SECONDS));
+
+            // Both probe results are reported to the host statistics
+            long timeout = System.currentTimeMillis() + 10000;
+            while ((mResolver.getSuccessRate("127.0.0.1") == 0.5) && (System.currentTimeMillis() < timeout)) {
+                Thread.sleep(10);
+            }
+            assertTrue(mResolver.getSuccessRate("127.0.0.1") < 0.5);
+            assertTrue(mResolver.getSuccessRate("localhost") > 0.5);
+            assertEquals(media, mResolver.getBestLink(links(missing, media)));
+
+            // None is resolved if all the mirrors fail
+            mResolver.resolve(links(missing), link -> resolved.add(Optional.ofNullable(link)));
+            assertEquals(Optional.empty(), resolved.poll(10, TimeUnit.SECONDS));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static List<String> links(String... links)
+    {
+        return Arrays.asList(links);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import static org.cog.hymnchtv.HymnType.HYMN_BB;
+import static org.cog.hymnchtv.HymnType.HYMN_DB;
+import static org.cog.hymnchtv.HymnType.HYMN_ER;
+import static org.cog.hymnchtv.HymnType.HYMN_XB;
+import static org.junit.Assert.assertEquals;
+
+import org.cog.hymnchtv.MediaType;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.*;
+
+/**
+ * The JVM tests of the media source rules: the table-driven expected mirror links of each hymn media, in the
+ * mirror preference order; and the rule hymnNo range and link template expansion.
+ *
+ * @author Eng Chong Meng
+ */
+@RunWith(Enclosed.class)
+public class MediaSourceRulesTest
+{
+    /**
+     * The expected mirror links of each hymn media, one test run per table row
+     */
+    @RunWith(Parameterized.class)
+    public static class MirrorLinks
+    {
+        private static final String HF_MUSIC = "https://heavenlyfood.cn/hymns/music/";
+        private static final String HF_HYMNAL = "https://heavenlyfood.cn/hymnal/诗歌/";
+        private static final String HYMNAL_CN = "https://www.hymnal.net/cn/hymn/";
+
+        // The 大本诗歌 categories as in the hymn toc
+        private static final int[] CATEGORY_DB = new int[]{1, 6, 53, 194, 229, 269, 330, 356, 367, 441, 454, 458, 472,
+                474, 490, 529, 548, 551, 579, 592, 624, 632, 650, 662, 670, 740, 745, 752, 768, 781, 787};
+
+        private static final String[] CATEGORY_DB_NAMES = new String[]{"颂赞三一神", "敬拜父", "赞美主", "圣灵的丰满",
+                "得救的证实与快乐", "羡慕", "奉献", "与基督的联合", "经历基督", "经历神", "十字架的夸耀", "十字架的道路", "复活的生命",
+                "鼓励", "试炼中的安慰", "里面生命的各方面", "神医", "祷告", "读经", "召会", "聚会", "属灵的争战", "事奉", "传扬福音",
+                "福音", "受浸", "国度", "荣耀的盼望", "终极的显出", "附"};
+
+        private static final MediaSourceRules mRules = new MediaSourceRules()
+                .addCategory(HYMN_ER, new int[]{1, 101, 201, 301, 401, 501, 601, 701},
+                        new String[]{"c1", "c2", "c3", "c4", "c5", "c6", "爱主"})
+                .addCategory(HYMN_XB, new int[]{1, 20, 50, 110, 130},
+                        new String[]{"c1", "c2", "c3", "召会生活"})
+                .addCategory(HYMN_BB, new int[]{1, 100, 200},
+                        new String[]{"赞美的话", "灵与生命"})
+                .addCategory(HYMN_DB, CATEGORY_DB, CATEGORY_DB_NAMES);
+
+        @Parameterized.Parameters(name = "{0} #{1} {4}")
+        public static Collection<Object[]> data()
+        {
+            return Arrays.asList(new Object[][]{
+                    // hymnType, hymnNo, fileName, lyricsPhrase, mediaType, expected links
+                    {HYMN_ER, 1, "C1.mp3", "", MediaType.HYMN_BANZOU, links(HF_MUSIC + "er/C1.mp3")},
+                    {HYMN_ER, 603, "C603我爱我的主耶稣.mp3", "", MediaType.HYMN_CHANGSHI, links(
+                            HF_HYMNAL + "儿童诗歌/06爱主/C603我爱我的主耶稣.mp3",
+                            "http://www.lightinnj.org/mp3/k-mp3/C0603.mp3")},
+                    {HYMN_ER, 601, "C601.mp3", "", MediaType.HYMN_CHANGSHI, links(
+                            HF_HYMNAL + "儿童诗歌/06爱主/E601耶稣我们爱你.mp3",
+                            "http://www.lightinnj.org/mp3/k-mp3/C0601.mp3")},
+                    {HYMN_ER, 1, "C1.mp3", "", MediaType.HYMN_JIAOCHANG, links()},
+
+                    {HYMN_XB, 112, "X112神生命的种子.mp3", "", MediaType.HYMN_CHANGSHI, links(
+                            HF_HYMNAL + "新歌颂咏/4召会生活110/X112神生命的种子.mp3",
+                            "http://g.cgbr.org/music/x/media/112.mp3")},
+                    {HYMN_XB, 5, "X5.mp3", "", MediaType.HYMN_BANZOU, links()},
+
+                    {HYMN_BB, 15, "B15.mp3", "", MediaType.HYMN_BANZOU, links(
+                            HF_MUSIC + "bu/B15.mp3", HYMNAL_CN + "ts/15/f=mid")},
+                    {HYMN_BB, 1, "B1.mp3", "", MediaType.HYMN_CHANGSHI, links(
+                            HF_HYMNAL + "补充本/00赞美的话/B1当我们开口赞美.mp3", HYMNAL_CN + "ts/1/f=sing")},
+                    {HYMN_BB, 123, "B123耶稣活在我里面.mp3", "", MediaType.HYMN_CHANGSHI, links(
+                            HF_HYMNAL + "补充本/01灵与生命/B123耶稣活在我里面.mp3", HYMNAL_CN + "ts/123/f=sing")},
+
+                    {HYMN_DB, 45, "D45.mp3", "", MediaType.HYMN_BANZOU, links(
+                            HF_MUSIC + "da/D45.mp3", HYMNAL_CN + "ch/45/f=mid")},
+                    {HYMN_DB, 781, "781.mp3", "", MediaType.HYMN_JIAOCHANG, links(
+                            "https://heavenlyfood.cn/hymns/jiaochang/da/781.mp3")},
+                    {HYMN_DB, 422, "D422.mp3", "主我还有谁在天上", MediaType.HYMN_CHANGSHI, links(
+                            HF_HYMNAL + "大本诗歌/09经历基督367/D422主我还有谁在天上.mp3", HYMNAL_CN + "ch/422/f=sing")},
+                    {HYMN_DB, 8, "D8.mp3", "ignored", MediaType.HYMN_CHANGSHI, links(
+                            HF_HYMNAL + "大本诗歌/02敬拜父006/D8父阿你是万灵之.mp3", HYMNAL_CN + "ch/8/f=sing")},
+                    {HYMN_DB, 781, "DF1.mp3", "颂赞与尊贵与荣耀归你", MediaType.HYMN_CHANGSHI, links(
+                            HF_HYMNAL + "大本诗歌/30附/DF1颂赞与尊贵与荣耀归你.mp3", HYMNAL_CN + "ch/781/f=sing")},
+                    {HYMN_DB, 782, "DF2.mp3", "ignored", MediaType.HYMN_CHANGSHI, links(
+                            HF_HYMNAL + "大本诗歌/30附/DF2阿利路阿利路亚.mp3", HYMNAL_CN + "ch/782/f=sing")},
+            });
+        }
+
+        private final MediaSourceRules.HymnRef mRef;
+        private final MediaType mMediaType;
+        private final List<String> mExpected;
+
+        public MirrorLinks(String hymnType, int hymnNo, String fileName, String lyricsPhrase,
+                MediaType mediaType, List<String> expected)
+        {
+            mRef = new MediaSourceRules.HymnRef(hymnType, hymnNo, fileName, lyricsPhrase);
+            mMediaType = mediaType;
+            mExpected = expected;
+        }
+
+        @Test
+        public void getLinks()
+        {
+            assertEquals(mExpected, mRules.getLinks(mRef, mMediaType));
+        }
+    }
+
+    /**
+     * The rule hymnNo range and the link template placeholders
+     */
+    public static class RuleTemplate
+    {
+        @Test
+        public void ruleRangeAndPadding()
+        {
+            MediaSourceRules rules = new MediaSourceRules(Arrays.asList(
+                    new MediaSourceRules.Rule(HYMN_DB, MediaType.HYMN_BANZOU, 1, 99, "a/{no3}/{no4}/{no}"),
+                    new MediaSourceRules.Rule(HYMN_DB, MediaType.HYMN_BANZOU, 50, 200, "b/{file}")));
+
+            assertEquals(links("a/007/0007/7"), rules.getLinks(new MediaSourceRules.HymnRef(HYMN_DB, 7, "f", null),
+                    MediaType.HYMN_BANZOU));
+            assertEquals(links("a/099/0099/99", "b/f"), rules.getLinks(
+                    new MediaSourceRules.HymnRef(HYMN_DB, 99, "f", null), MediaType.HYMN_BANZOU));
+            assertEquals(links(), rules.getLinks(new MediaSourceRules.HymnRef(HYMN_DB, 201, "f", null),
+                    MediaType.HYMN_BANZOU));
+        }
+    }
+
+    private static List<String> links(String... links)
+    {
+        return Arrays.asList(links);
+    }
+}
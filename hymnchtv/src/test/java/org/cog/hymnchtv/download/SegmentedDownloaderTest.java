@@ -0,0 +1,263 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * JVM tests of the SegmentedDownloader against a local HTTP server stub, with the byte range support, the whole
+ * file MD5 headers and the faulty responses switched per test.
+ *
+ * @author Eng Chong Meng
+ */
+public class SegmentedDownloaderTest
+{
+    private static final String ETAG = "\"v1-1234\"";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private HttpServer mServer;
+    private URL mUrl;
+
+    // The file content served, and the server behaviour
+    private byte[] mContent;
+    private boolean acceptRanges = true;
+    private String mHeadMd5 = null;
+    private String mDigest = null;
+    private String mEtag = ETAG;
+
+    // The served content is corrupted at this offset if not -1
+    private int mCorruptOffset = -1;
+
+    // The byte range response starting at this offset is cut short if not -1
+    private int mTruncateOffset = -1;
+
+    @Before
+    public void setUp()
+            throws IOException
+    {
+        mContent = new byte[SegmentedDownloader.SEGMENT_SIZE * 2 + 12345];
+        new Random(1).nextBytes(mContent);
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/media.mp3", this::handle);
+        mServer.start();
+        mUrl = new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + "/media.mp3");
+    }
+
+    @After
+    public void tearDown()
+    {
+        mServer.stop(0);
+    }
+
+    @Test
+    public void segmentedDownloadWithHeadMd5()
+            throws IOException
+    {
+        mHeadMd5 = md5(mContent);
+        SegmentedDownloader.Probe probe = SegmentedDownloader.probe(mUrl);
+        assertTrue(probe.acceptRanges);
+        assertEquals(mContent.length, probe.length);
+        assertEquals(ETAG, probe.validator);
+        assertEquals(mHeadMd5, probe.contentMd5);
+
+        File file = tmpFolder.newFile("media.mp3");
+        SegmentedDownloader downloader = new SegmentedDownloader(mUrl, file, probe);
+        assertTrue(downloader.isSegmented());
+        downloader.download(null);
+
+        assertArrayEquals(mContent, Files.readAllBytes(file.toPath()));
+        assertEquals(mHeadMd5, SegmentedDownloader.getFileMd5(file));
+        assertEquals(mContent.length, downloader.getTransferredBytes());
+        assertFalse(new File(file.getPath() + ".seg").exists());
+    }
+
+    @Test
+    public void wholeFileMd5FromDigestAndEtag()
+            throws IOException
+    {
+        String md5 = md5(mContent);
+        mDigest = "sha-256=abc, MD5=" + md5;
+        assertEquals(md5, SegmentedDownloader.probe(mUrl).contentMd5);
+
+        // The S3 style MD5 hex ETag
+        mDigest = null;
+        mEtag = "\"" + hex(md5Bytes(mContent)) + "\"";
+        assertEquals(md5, SegmentedDownloader.probe(mUrl).contentMd5);
+
+        // The other ETags and the partial response Content-MD5 are not the whole file MD5
+        mEtag = ETAG;
+        assertNull(SegmentedDownloader.probe(mUrl).contentMd5);
+    }
+
+    @Test
+    public void corruptedContentFails()
+            throws IOException
+    {
+        mHeadMd5 = md5(mContent);
+        mCorruptOffset = SegmentedDownloader.SEGMENT_SIZE + 100;
+        File file = tmpFolder.newFile("media.mp3");
+        SegmentedDownloader downloader = new SegmentedDownloader(mUrl, file, SegmentedDownloader.probe(mUrl));
+        try {
+            downloader.download(null);
+            fail("The corrupted download must fail the md5 verification");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("md5"));
+        }
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void truncatedSegmentFailsThenResumes()
+            throws IOException
+    {
+        // Without any whole file MD5, the pre-sized file must not pass on its length alone
+        mTruncateOffset = SegmentedDownloader.SEGMENT_SIZE;
+        SegmentedDownloader.Probe probe = SegmentedDownloader.probe(mUrl);
+        assertNull(probe.contentMd5);
+
+        File file = tmpFolder.newFile("media.mp3");
+        try {
+            new SegmentedDownloader(mUrl, file, probe).download(null);
+            fail("The download with a truncated segment must fail");
+        } catch (IOException e) {
+            assertEquals(mContent.length, file.length());
+            assertTrue(new File(file.getPath() + ".seg").exists());
+        }
+
+        // The resume fetches only the rest of the truncated segment
+        mTruncateOffset = -1;
+        SegmentedDownloader downloader = new SegmentedDownloader(mUrl, file, probe);
+        downloader.download(null);
+        assertArrayEquals(mContent, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void streamDownloadWithoutByteRange()
+            throws IOException
+    {
+        acceptRanges = false;
+        mHeadMd5 = md5(mContent);
+        SegmentedDownloader.Probe probe = SegmentedDownloader.probe(mUrl);
+        assertFalse(probe.acceptRanges);
+        assertEquals(mHeadMd5, probe.contentMd5);
+
+        File file = tmpFolder.newFile("media.mp3");
+        SegmentedDownloader downloader = new SegmentedDownloader(mUrl, file, probe);
+        assertFalse(downloader.isSegmented());
+        downloader.download(null);
+        assertArrayEquals(mContent, Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * The stub handler: the HEAD and the full GET have the Content-MD5; the byte range response has the
+     * Content-MD5 of its partial body only.
+     */
+    private void handle(HttpExchange exchange)
+            throws IOException
+    {
+        byte[] body = mContent.clone();
+        if (mCorruptOffset != -1)
+            body[mCorruptOffset] ^= 0x55;
+
+        exchange.getResponseHeaders().set("ETag", mEtag);
+        if (mDigest != null)
+            exchange.getResponseHeaders().set("Digest", mDigest);
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            if (mHeadMd5 != null)
+                exchange.getResponseHeaders().set("Content-MD5", mHeadMd5);
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(body.length));
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+
+        int start = 0;
+        int end = body.length - 1;
+        int code = 200;
+        if (acceptRanges && (range != null) && range.startsWith("bytes=")) {
+            String[] bounds = range.substring(6).split("-");
+            start = Integer.parseInt(bounds[0]);
+            end = Math.min(end, Integer.parseInt(bounds[1]));
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + body.length);
+        }
+
+        if (start == mTruncateOffset)
+            end -= 1000;
+        byte[] data = new byte[end - start + 1];
+        System.arraycopy(body, start, data, 0, data.length);
+        exchange.getResponseHeaders().set("Content-MD5", (code == 200) && (mHeadMd5 != null) ? mHeadMd5 : md5(data));
+        exchange.sendResponseHeaders(code, data.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * The base64 encoded MD5 of the given data as in the Content-MD5 header; computed independently of
+     * the SegmentedDownloader MD5 encoding under test
+     */
+    private static String md5(byte[] data)
+    {
+        return Base64.getEncoder().encodeToString(md5Bytes(data));
+    }
+
+    private static byte[] md5Bytes(byte[] data)
+    {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String hex(byte[] data)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : data) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.midi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+/**
+ * JVM tests of the midi main and accompany merge, and of the sequencer rendering to a wav file.
+ *
+ * @author Eng Chong Meng
+ */
+public class MidiSequencerTest
+{
+    private static final int SAMPLE_RATE = 22050;
+    private static final int MAX_FRAMES = 512;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void mergeRemapsSharedChannels()
+            throws IOException
+    {
+        // Both the main and the accompany use channel 0 with their own program, and share the percussion channel
+        byte[] main = smf(480, programChange(0, 0), noteOn(0, 0, 67), noteOff(480, 0, 67), noteOn(0, 9, 36));
+        byte[] accompany = smf(480, programChange(0, 19), noteOn(0, 0, 48), noteOff(480, 0, 48), noteOn(0, 9, 42));
+        MidiSequence sequence = MidiSequence.parse(new ByteArrayInputStream(main), new ByteArrayInputStream(accompany));
+
+        int mainChannel = -1;
+        int accompanyChannel = -1;
+        for (int i = 0; i < sequence.size(); i++) {
+            int message = sequence.getMessage(i);
+            int channel = message & 0x0F;
+            int data1 = (message >> 8) & 0x7F;
+            if ((message & 0xF0) == 0xC0) {
+                if (data1 == 0)
+                    mainChannel = channel;
+                else
+                    accompanyChannel = channel;
+            }
+            else if ((data1 == 36) || (data1 == 42)) {
+                assertEquals("percussion channel must be kept", 9, channel);
+            }
+        }
+
+        assertEquals(0, mainChannel);
+        assertNotEquals(mainChannel, accompanyChannel);
+        assertNotEquals(9, accompanyChannel);
+        for (int i = 0; i < sequence.size(); i++) {
+            int message = sequence.getMessage(i);
+            if (((message >> 8) & 0x7F) == 48)
+                assertEquals("accompany notes follow its program change", accompanyChannel, message & 0x0F);
+        }
+    }
+
+    @Test
+    public void renderToWav()
+            throws IOException
+    {
+        // A4 for one second at 120 bpm, then one beat of rest
+        byte[] midi = smf(480, programChange(0, 0), noteOn(0, 0, 69), noteOff(960, 0, 69), endOfTrack(480));
+        MidiSequence sequence = MidiSequence.parse(new ByteArrayInputStream(midi));
+        assertEquals(1500000, sequence.getDurationUs());
+
+        File wav = tmpFolder.newFile("a4.wav");
+        new MidiSequencer(sequence, SAMPLE_RATE, MAX_FRAMES).renderToWav(wav, MAX_FRAMES);
+        short[] samples = readWav(wav);
+
+        assertEquals(SAMPLE_RATE * 3 / 2, samples.length, MAX_FRAMES);
+        double rms = rms(samples, SAMPLE_RATE / 10, SAMPLE_RATE * 9 / 10);
+        assertTrue("note must be audible: " + rms, rms > 500);
+
+        // The zero crossings of the sounding note give its fundamental
+        int crossings = 0;
+        for (int i = SAMPLE_RATE / 10 + 1; i < SAMPLE_RATE * 9 / 10; i++) {
+            if ((samples[i - 1] < 0) && (samples[i] >= 0))
+                crossings++;
+        }
+        assertEquals(440 * 0.8, crossings, 440 * 0.8 * 0.05);
+    }
+
+    @Test
+    public void tempoScalesRenderLength()
+            throws IOException
+    {
+        byte[] midi = smf(480, noteOn(0, 0, 60), noteOff(960, 0, 60));
+        MidiSequencer sequencer = new MidiSequencer(MidiSequence.parse(new ByteArrayInputStream(midi)),
+                SAMPLE_RATE, MAX_FRAMES);
+        sequencer.setTempo(0.5f);
+
+        File wav = tmpFolder.newFile("slow.wav");
+        sequencer.renderToWav(wav, MAX_FRAMES);
+        assertEquals(SAMPLE_RATE * 2, readWav(wav).length, MAX_FRAMES);
+    }
+
+    @Test
+    public void renderHymnMidiPair()
+            throws IOException
+    {
+        File main = new File("src/main/res/raw/bm1.mid");
+        File accompany = new File("src/main/res/raw/bmc1.mid");
+        assumeTrue(main.exists() && accompany.exists());
+
+        MidiSequence sequence;
+        try (InputStream in1 = new FileInputStream(main); InputStream in2 = new FileInputStream(accompany)) {
+            sequence = MidiSequence.parse(in1, in2);
+        }
+        File wav = tmpFolder.newFile("bm1.wav");
+        new MidiSequencer(sequence, SAMPLE_RATE, MAX_FRAMES).renderToWav(wav, MAX_FRAMES);
+
+        short[] samples = readWav(wav);
+        long expected = sequence.getDurationUs() * SAMPLE_RATE / 1000000;
+        assertEquals(expected, samples.length, MAX_FRAMES);
+        assertTrue(rms(samples, 0, samples.length) > 100);
+    }
+
+    /**
+     * Read the mono 16-bit PCM samples of the given wav file, and check its header
+     */
+    private static short[] readWav(File file)
+            throws IOException
+    {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x46464952, data.getInt(0)); // RIFF
+        assertEquals(0x45564157, data.getInt(8)); // WAVE
+        assertEquals(1, data.getShort(20)); // PCM
+        assertEquals(1, data.getShort(22)); // mono
+        assertEquals(SAMPLE_RATE, data.getInt(24));
+        assertEquals(16, data.getShort(34));
+        assertEquals(0x61746164, data.getInt(36)); // data
+
+        int dataSize = data.getInt(40);
+        assertEquals(data.capacity() - 44, dataSize);
+        short[] samples = new short[dataSize / 2];
+        data.position(44);
+        data.asShortBuffer().get(samples);
+        return samples;
+    }
+
+    private static double rms(short[] samples, int from, int to)
+    {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / (to - from));
+    }
+
+    /**
+     * Build a format 0 standard midi file of the given track events; the end of track is appended if missing
+     */
+    private static byte[] smf(int division, byte[]... events)
+            throws IOException
+    {
+        ByteArrayOutputStream track = new ByteArrayOutputStream();
+        for (byte[] event : events) {
+            track.write(event);
+        }
+        byte[] last = events[events.length - 1];
+        if ((last[last.length - 3] & 0xFF) != 0xFF)
+            track.write(endOfTrack(0));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("MThd");
+        out.writeInt(6);
+        out.writeShort(0);
+        out.writeShort(1);
+        out.writeShort(division);
+        out.writeBytes("MTrk");
+        out.writeInt(track.size());
+        track.writeTo(out);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] programChange(int channel, int program)
+    {
+        return event(0, 0xC0 | channel, program);
+    }
+
+    private static byte[] noteOn(int delta, int channel, int note)
+    {
+        return event(delta, 0x90 | channel, note, 100);
+    }
+
+    private static byte[] noteOff(int delta, int channel, int note)
+    {
+        return event(delta, 0x80 | channel, note, 0);
+    }
+
+    private static byte[] endOfTrack(int delta)
+    {
+        return event(delta, 0xFF, 0x2F, 0x00);
+    }
+
+    private static byte[] event(int delta, int... data)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // The variable length delta time
+        int buffer = delta & 0x7F;
+        while ((delta >>= 7) > 0) {
+            buffer = (buffer << 8) | 0x80 | (delta & 0x7F);
+        }
+        while (true) {
+            out.write(buffer & 0xFF);
+            if ((buffer & 0x80) == 0)
+                break;
+            buffer >>= 8;
+        }
+        for (int value : data) {
+            out.write(value);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * hymnchtv: COG hymns' lyrics viewer and player client
+ * Copyright 2020 Eng Chong Meng
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cog.hymnchtv.mediaplayer.pitch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.cog.hymnchtv.mediaplayer.midi.MidiSequence;
+import org.cog.hymnchtv.mediaplayer.midi.MidiSequencer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * JVM tests of the pitch detector on the wav fixtures of the sine, the harmonic rich tone, the noise, and the
+ * rendered hymn melody against its note timeline.
+ *
+ * @author Eng Chong Meng
+ */
+public class PitchDetectorTest
+{
+    // Same as the PitchTracker recording parameters
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_SIZE = 1024;
+    private static final float MIN_FREQ = 70f;
+    private static final float MAX_FREQ = 1000f;
+
+    // E2 to A5 i.e. the hymn singing range
+    private static final float[] FREQUENCIES = new float[]{82.41f, 110f, 196f, 261.63f, 440f, 659.26f, 880f};
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final PitchDetector mDetector = new PitchDetector(SAMPLE_RATE, FRAME_SIZE, MIN_FREQ, MAX_FREQ);
+
+    @Test
+    public void sineWavDetected()
+            throws IOException
+    {
+        for (float freq : FREQUENCIES) {
+            float[] samples = readWav(writeWav("sine" + freq, tone(freq, new float[]{1f}, 0.5f)));
+            float pitch = mDetector.detect(frame(samples, SAMPLE_RATE / 4));
+            assertEquals("sine " + freq, freq, pitch, freq * 0.005f);
+            assertEquals(PitchDetector.toMidiNote(freq), PitchDetector.toMidiNote(pitch), 0.1f);
+            assertTrue(mDetector.getProbability() > 0.9f);
+        }
+    }
+
+    @Test
+    public void harmonicToneDetected()
+            throws IOException
+    {
+        // The voice like tone with its second and third harmonics stronger than the fundamental
+        float[] harmonics = new float[]{0.4f, 1f, 0.7f, 0.3f};
+        for (float freq : FREQUENCIES) {
+            if (freq * harmonics.length > SAMPLE_RATE / 2f)
+                continue;
+
+            float[] samples = readWav(writeWav("tone" + freq, tone(freq, harmonics, 0.2f)));
+            float pitch = mDetector.detect(frame(samples, SAMPLE_RATE / 4));
+            assertEquals("tone " + freq, freq, pitch, freq * 0.01f);
+        }
+    }
+
+    @Test
+    public void noiseAndSilenceNoPitch()
+            throws IOException
+    {
+        float[] noise = new float[SAMPLE_RATE / 2];
+        Random random = new Random(1);
+        for (int i = 0; i < noise.length; i++) {
+            noise[i] = (random.nextFloat() * 2 - 1) * 0.5f;
+        }
+        float[] samples = readWav(writeWav("noise", noise));
+        for (int offset = 0; offset + FRAME_SIZE <= samples.length; offset += FRAME_SIZE) {
+            assertEquals(PitchDetector.NO_PITCH, mDetector.detect(frame(samples, offset)), 0f);
+            assertEquals(0f, mDetector.getProbability(), 0f);
+        }
+
+        assertEquals(PitchDetector.NO_PITCH, mDetector.detect(new float[FRAME_SIZE]), 0f);
+    }
+
+    @Test
+    public void renderedMelodyMatchesTimeline()
+            throws IOException
+    {
+        // C4, E4, G4 then A3; each for one beat at 120 bpm
+        int[] melody = new int[]{60, 64, 67, 57};
+        ByteArrayOutputStream track = new ByteArrayOutputStream();
+        track.write(event(0, 0xC0, 0));
+        for (int note : melody) {
+            track.write(event(0, 0x90, note, 100));
+            track.write(event(480, 0x80, note, 0));
+        }
+        track.write(event(0, 0xFF, 0x2F, 0x00));
+        MidiSequence sequence = MidiSequence.parse(new ByteArrayInputStream(smf(480, track.toByteArray())));
+
+        NoteTimeline timeline = NoteTimeline.fromSequence(sequence);
+        assertEquals(melody.length, timeline.size());
+        assertEquals(57, timeline.getLowestNote());
+        assertEquals(67, timeline.getHighestNote());
+        assertEquals(NoteTimeline.NO_NOTE, timeline.getNote(2100));
+
+        File wav = tmpFolder.newFile("melody.wav");
+        new MidiSequencer(sequence, SAMPLE_RATE, FRAME_SIZE).renderToWav(wav, FRAME_SIZE);
+        float[] samples = readWav(wav);
+
+        // The sung note of the rendered melody follows the timeline of each note sustain
+        for (int i = 0; i < melody.length; i++) {
+            long timeMs = i * 500 + 200;
+            assertEquals(melody[i], timeline.getNote(timeMs));
+
+            float pitch = mDetector.detect(frame(samples, (int) (timeMs * SAMPLE_RATE / 1000)));
+            assertEquals("note " + melody[i], melody[i], PitchDetector.toMidiNote(pitch), 0.3f);
+        }
+    }
+
+    /**
+     * The tone of the given fundamental frequency and harmonic amplitudes for half a second
+     */
+    private static float[] tone(float freq, float[] harmonics, float amplitude)
+    {
+        float[] samples = new float[SAMPLE_RATE / 2];
+        for (int i = 0; i < samples.length; i++) {
+            double value = 0;
+            for (int h = 0; h < harmonics.length; h++) {
+                value += harmonics[h] * Math.sin(2 * Math.PI * freq * (h + 1) * i / SAMPLE_RATE);
+            }
+            samples[i] = (float) (value * amplitude);
+        }
+        return samples;
+    }
+
+    private static float[] frame(float[] samples, int offset)
+    {
+        float[] frame = new float[FRAME_SIZE];
+        System.arraycopy(samples, offset, frame, 0, FRAME_SIZE);
+        return frame;
+    }
+
+    /**
+     * Write the given samples (-1 to 1) as the mono 16-bit PCM wav fixture
+     */
+    private File writeWav(String name, float[] samples)
+            throws IOException
+    {
+        ByteBuffer data = ByteBuffer.allocate(44 + samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(0x46464952).putInt(36 + samples.length * 2).putInt(0x45564157); // RIFF WAVE
+        data.putInt(0x20746d66).putInt(16).putShort((short) 1).putShort((short) 1); // fmt PCM mono
+        data.putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * 2).putShort((short) 2).putShort((short) 16);
+        data.putInt(0x61746164).putInt(samples.length * 2); // data
+        for (float sample : samples) {
+            data.putShort((short) Math.round(sample * Short.MAX_VALUE));
+        }
+
+        File file = tmpFolder.newFile(name + ".wav");
+        Files.write(file.toPath(), data.array());
+        return file;
+    }
+
+    /**
+     * Read the mono 16-bit PCM samples of the given wav file, in the PitchTracker short to float scale
+     */
+    private static float[] readWav(File file)
+            throws IOException
+    {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x46464952, data.getInt(0)); // RIFF
+        assertEquals(0x45564157, data.getInt(8)); // WAVE
+        assertEquals(1, data.getShort(22)); // mono
+        assertEquals(SAMPLE_RATE, data.getInt(24));
+        assertEquals(16, data.getShort(34));
+
+        float[] samples = new float[data.getInt(40) / 2];
+        data.position(44);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = data.getShort() / 32768f;
+        }
+        return samples;
+    }
+
+    /**
+     * Build a format 0 standard midi file of the given track data
+     */
+    private static byte[] smf(int division, byte[] track)
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBytes("MThd");
+        out.writeInt(6);
+        out.writeShort(0);
+        out.writeShort(1);
+        out.writeShort(division);
+        out.writeBytes("MTrk");
+        out.writeInt(track.length);
+        out.write(track);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] event(int delta, int... data)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // The variable length delta time
+        int buffer = delta & 0x7F;
+        while ((delta >>= 7) > 0) {
+            buffer = (buffer << 8) | 0x80 | (delta & 0x7F);
+        }
+        while (true) {
+            out.write(buffer & 0xFF);
+            if ((buffer & 0x80) == 0)
+                break;
+            buffer >>= 8;
+        }
+        for (int value : data) {
+            out.write(value);
+        }
+        return out.toByteArray();
+    }
+}